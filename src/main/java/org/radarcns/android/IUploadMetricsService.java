@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android;
+
+import org.radarcns.android.kafka.UploadMetrics;
+
+import java.util.Map;
+
+/**
+ * Service that reports upload metrics. The binder of {@link RadarService} implements this next to
+ * {@link IRadarService}, so check for it with {@code instanceof} before using it.
+ */
+public interface IUploadMetricsService {
+    /**
+     * Upload metrics per topic name: throughput, request latency, failures by cause and the age
+     * of data when it is uploaded. Empty if no data is uploaded.
+     */
+    Map<String, UploadMetrics.TopicMetrics> getUploadMetrics();
+}
@@ -34,7 +34,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -65,6 +64,19 @@ public class RadarConfiguration {
     public static final String DATABASE_COMMIT_RATE_KEY = "database_commit_rate";
     public static final String KAFKA_CLEAN_RATE_KEY = "kafka_clean_rate";
     public static final String KAFKA_RECORDS_SEND_LIMIT_KEY = "kafka_records_send_limit";
+    public static final String KAFKA_RECORDS_SIZE_LIMIT_KEY = "kafka_records_size_limit";
+    public static final String KAFKA_RECORDS_SEND_LIMIT_ADAPTIVE_KEY = "kafka_records_send_limit_adaptive";
+    public static final String KAFKA_RECORDS_SEND_LIMIT_MIN_KEY = "kafka_records_send_limit_min";
+    public static final String KAFKA_RECORDS_SEND_LIMIT_MAX_KEY = "kafka_records_send_limit_max";
+    public static final String KAFKA_UPLOAD_LATENCY_TARGET_KEY = "kafka_upload_latency_target_ms";
+    public static final String KAFKA_UPLOAD_PARALLELISM_KEY = "kafka_upload_parallelism";
+    public static final String KAFKA_UPLOAD_MAX_BYTES_IN_FLIGHT_KEY = "kafka_upload_max_bytes_in_flight";
+    public static final String KAFKA_UPLOAD_POLICY_KEY = "kafka_upload_policy";
+    public static final String KAFKA_UPLOAD_TOPIC_PRIORITIES_KEY = "kafka_upload_topic_priorities";
+    public static final String KAFKA_TRY_SEND_CAPACITY_KEY = "kafka_try_send_capacity";
+    public static final String KAFKA_UPLOAD_REQUESTS_PER_MINUTE_KEY = "kafka_upload_requests_per_minute";
+    public static final String KAFKA_UPLOAD_WINDOW_CONSTRAINTS_KEY = "kafka_upload_window_constraints";
+    public static final String KAFKA_UPLOAD_WINDOW_MAX_DELAY_KEY = "kafka_upload_window_max_delay";
     public static final String SENDER_CONNECTION_TIMEOUT_KEY = "sender_connection_timeout";
     public static final String DATA_RETENTION_KEY = "data_retention_ms";
     public static final String FIREBASE_FETCH_TIMEOUT_MS_KEY = "firebase_fetch_timeout_ms";
@@ -73,8 +85,13 @@ public class RadarConfiguration {
     public static final String DEVICE_SERVICES_TO_CONNECT = "device_services_to_connect";
     public static final String KAFKA_UPLOAD_MINIMUM_BATTERY_LEVEL = "kafka_upload_minimum_battery_level";
     public static final String MAX_CACHE_SIZE = "cache_max_size_bytes";
+    public static final String CACHE_FRAME_TOPICS = "cache_frame_topics";
+    public static final String CACHE_BACKPRESSURE_LEVEL = "cache_backpressure_level";
+    public static final String CACHE_OVERFLOW_POLICIES = "cache_overflow_policies";
     public static final String SEND_ONLY_WITH_WIFI = "send_only_with_wifi";
     public static final String SEND_WITH_COMPRESSION = "send_with_compression";
+    public static final String SEND_WITH_ADAPTIVE_COMPRESSION = "send_with_adaptive_compression";
+    public static final String SEND_BINARY_CONTENT = "send_binary_content";
     public static final String UNSAFE_KAFKA_CONNECTION = "unsafe_kafka_connection";
     public static final String OAUTH2_AUTHORIZE_URL = "oauth2_authorize_url";
     public static final String OAUTH2_TOKEN_URL = "oauth2_token_url";
@@ -98,17 +115,22 @@ public class RadarConfiguration {
     public static final Set<String> LONG_VALUES = new HashSet<>(Arrays.asList(
             UI_REFRESH_RATE_KEY, KAFKA_UPLOAD_RATE_KEY, DATABASE_COMMIT_RATE_KEY,
             KAFKA_CLEAN_RATE_KEY, SENDER_CONNECTION_TIMEOUT_KEY, DATA_RETENTION_KEY,
-            FIREBASE_FETCH_TIMEOUT_MS_KEY));
+            FIREBASE_FETCH_TIMEOUT_MS_KEY, KAFKA_UPLOAD_LATENCY_TARGET_KEY,
+            KAFKA_UPLOAD_WINDOW_MAX_DELAY_KEY));
 
     public static final Set<String> INT_VALUES = new HashSet<>(Arrays.asList(
-            KAFKA_RECORDS_SEND_LIMIT_KEY, MAX_CACHE_SIZE));
+            KAFKA_RECORDS_SEND_LIMIT_KEY, MAX_CACHE_SIZE, KAFKA_UPLOAD_PARALLELISM_KEY,
+            KAFKA_UPLOAD_MAX_BYTES_IN_FLIGHT_KEY, KAFKA_RECORDS_SEND_LIMIT_MIN_KEY,
+            KAFKA_RECORDS_SEND_LIMIT_MAX_KEY, KAFKA_RECORDS_SIZE_LIMIT_KEY,
+            KAFKA_TRY_SEND_CAPACITY_KEY, KAFKA_UPLOAD_REQUESTS_PER_MINUTE_KEY));
 
     public static final Set<String> BOOLEAN_VALUES = new HashSet<>(Arrays.asList(
             CONDENSED_DISPLAY_KEY, SEND_ONLY_WITH_WIFI, SEND_WITH_COMPRESSION,
-            UNSAFE_KAFKA_CONNECTION));
+            SEND_WITH_ADAPTIVE_COMPRESSION, SEND_BINARY_CONTENT, UNSAFE_KAFKA_CONNECTION,
+            KAFKA_RECORDS_SEND_LIMIT_ADAPTIVE_KEY));
 
-    public static final Set<String> FLOAT_VALUES = Collections.singleton(
-            KAFKA_UPLOAD_MINIMUM_BATTERY_LEVEL);
+    public static final Set<String> FLOAT_VALUES = new HashSet<>(Arrays.asList(
+            KAFKA_UPLOAD_MINIMUM_BATTERY_LEVEL, CACHE_BACKPRESSURE_LEVEL));
 
     private static final Object syncObject = new Object();
     private static RadarConfiguration instance = null;
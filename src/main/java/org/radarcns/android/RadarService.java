@@ -32,13 +32,18 @@ import org.radarcns.android.auth.AppAuthState;
 import org.radarcns.android.auth.AppSource;
 import org.radarcns.android.auth.LoginActivity;
 import org.radarcns.android.auth.portal.ManagementPortalService;
+import org.radarcns.android.data.OverflowPolicy;
 import org.radarcns.android.data.TableDataHandler;
 import org.radarcns.android.device.DeviceServiceConnection;
 import org.radarcns.android.device.DeviceServiceProvider;
 import org.radarcns.android.device.DeviceStatusListener;
 import org.radarcns.android.kafka.ServerStatusListener;
+import org.radarcns.android.kafka.UploadMetrics;
+import org.radarcns.android.kafka.UploadScheduler;
+import org.radarcns.android.kafka.UploadWindow;
 import org.radarcns.android.util.Boast;
 import org.radarcns.android.util.BundleSerialization;
+import org.radarcns.android.util.HttpConnectionPool;
 import org.radarcns.config.ServerConfig;
 import org.radarcns.data.TimedInt;
 import org.radarcns.producer.rest.SchemaRetriever;
@@ -223,6 +228,8 @@ public class RadarService extends Service implements ServerStatusListener {
     public void onCreate() {
         super.onCreate();
 
+        // keep connections alive when the data sender is recreated
+        HttpConnectionPool.retain();
         binder = createBinder();
         mHandler = new Handler(getMainLooper());
 
@@ -302,6 +309,7 @@ public class RadarService extends Service implements ServerStatusListener {
             }
         }
 
+        HttpConnectionPool.release();
         super.onDestroy();
     }
 
@@ -319,7 +327,8 @@ public class RadarService extends Service implements ServerStatusListener {
                 try {
                     ServerConfig schemaRegistry = new ServerConfig(configuration.getString(SCHEMA_REGISTRY_URL_KEY));
                     schemaRegistry.setUnsafe(unsafeConnection);
-                    remoteSchemaRetriever = new SchemaRetriever(schemaRegistry, 30);
+                    remoteSchemaRetriever = new SchemaRetriever(schemaRegistry, 30,
+                            HttpConnectionPool.get());
                     kafkaConfig = new ServerConfig(urlString);
                     kafkaConfig.setUnsafe(unsafeConnection);
                 } catch (MalformedURLException ex) {
@@ -364,6 +373,30 @@ public class RadarService extends Service implements ServerStatusListener {
 
         localDataHandler.setSendOnlyWithWifi(sendOnlyWithWifi);
         localDataHandler.setCompression(configuration.getBoolean(SEND_WITH_COMPRESSION, false));
+        localDataHandler.setAdaptiveCompression(
+                configuration.getBoolean(SEND_WITH_ADAPTIVE_COMPRESSION, false));
+        localDataHandler.setBinaryContent(configuration.getBoolean(SEND_BINARY_CONTENT, false));
+        Set<String> frameTopics = new HashSet<>();
+        if (configuration.has(CACHE_FRAME_TOPICS)) {
+            for (String topic : configuration.getString(CACHE_FRAME_TOPICS).split(" ")) {
+                if (!topic.isEmpty()) {
+                    frameTopics.add(topic);
+                }
+            }
+        }
+        localDataHandler.setFrameEncodedTopics(frameTopics);
+        if (configuration.has(CACHE_BACKPRESSURE_LEVEL)) {
+            localDataHandler.setBackpressureLevel(
+                    configuration.getFloat(CACHE_BACKPRESSURE_LEVEL));
+        }
+        if (configuration.has(CACHE_OVERFLOW_POLICIES)) {
+            try {
+                localDataHandler.setOverflowPolicies(OverflowPolicy.parsePolicies(
+                        configuration.getString(CACHE_OVERFLOW_POLICIES)));
+            } catch (IllegalArgumentException ex) {
+                logger.error("Cannot parse cache overflow policies", ex);
+            }
+        }
 
         if (configuration.has(DATA_RETENTION_KEY)) {
             localDataHandler.setDataRetention(
@@ -377,6 +410,61 @@ public class RadarService extends Service implements ServerStatusListener {
             localDataHandler.setKafkaRecordsSendLimit(
                     configuration.getInt(KAFKA_RECORDS_SEND_LIMIT_KEY));
         }
+        if (configuration.has(KAFKA_RECORDS_SIZE_LIMIT_KEY)) {
+            localDataHandler.setKafkaRecordsSizeLimit(
+                    configuration.getInt(KAFKA_RECORDS_SIZE_LIMIT_KEY));
+        }
+        localDataHandler.setAdaptiveSendLimit(
+                configuration.getBoolean(KAFKA_RECORDS_SEND_LIMIT_ADAPTIVE_KEY, false),
+                configuration.getInt(KAFKA_RECORDS_SEND_LIMIT_MIN_KEY,
+                        TableDataHandler.SEND_LIMIT_MIN_DEFAULT),
+                configuration.getInt(KAFKA_RECORDS_SEND_LIMIT_MAX_KEY,
+                        TableDataHandler.SEND_LIMIT_MAX_DEFAULT),
+                configuration.getLong(KAFKA_UPLOAD_LATENCY_TARGET_KEY,
+                        TableDataHandler.UPLOAD_LATENCY_TARGET_DEFAULT));
+        if (configuration.has(KAFKA_UPLOAD_PARALLELISM_KEY)) {
+            localDataHandler.setKafkaUploadParallelism(
+                    configuration.getInt(KAFKA_UPLOAD_PARALLELISM_KEY));
+        }
+        if (configuration.has(KAFKA_UPLOAD_MAX_BYTES_IN_FLIGHT_KEY)) {
+            localDataHandler.setKafkaMaxBytesInFlight(
+                    configuration.getInt(KAFKA_UPLOAD_MAX_BYTES_IN_FLIGHT_KEY));
+        }
+        if (configuration.has(KAFKA_UPLOAD_REQUESTS_PER_MINUTE_KEY)) {
+            localDataHandler.setKafkaUploadRequestsPerMinute(
+                    configuration.getInt(KAFKA_UPLOAD_REQUESTS_PER_MINUTE_KEY));
+        }
+        if (configuration.has(KAFKA_TRY_SEND_CAPACITY_KEY)) {
+            localDataHandler.setKafkaTrySendCapacity(
+                    configuration.getInt(KAFKA_TRY_SEND_CAPACITY_KEY));
+        }
+        if (configuration.has(KAFKA_UPLOAD_POLICY_KEY)) {
+            try {
+                localDataHandler.setKafkaUploadPolicy(UploadScheduler.Policy.parse(
+                        configuration.getString(KAFKA_UPLOAD_POLICY_KEY)));
+            } catch (IllegalArgumentException ex) {
+                logger.error("Cannot parse upload policy", ex);
+            }
+        }
+        if (configuration.has(KAFKA_UPLOAD_TOPIC_PRIORITIES_KEY)) {
+            try {
+                localDataHandler.setKafkaTopicPriorities(UploadScheduler.parsePriorities(
+                        configuration.getString(KAFKA_UPLOAD_TOPIC_PRIORITIES_KEY)));
+            } catch (IllegalArgumentException ex) {
+                logger.error("Cannot parse topic priorities", ex);
+            }
+        }
+        if (configuration.has(KAFKA_UPLOAD_WINDOW_CONSTRAINTS_KEY)) {
+            long maxDelay = configuration.has(KAFKA_UPLOAD_WINDOW_MAX_DELAY_KEY)
+                    ? configuration.getLong(KAFKA_UPLOAD_WINDOW_MAX_DELAY_KEY)
+                    : UploadWindow.MAX_DELAY_DEFAULT;
+            try {
+                localDataHandler.setKafkaUploadWindow(UploadWindow.Constraint.parseAll(
+                        configuration.getString(KAFKA_UPLOAD_WINDOW_CONSTRAINTS_KEY)), maxDelay);
+            } catch (IllegalArgumentException ex) {
+                logger.error("Cannot parse upload window constraints", ex);
+            }
+        }
         if (configuration.has(SENDER_CONNECTION_TIMEOUT_KEY)) {
             localDataHandler.setSenderConnectionTimeout(
                     configuration.getLong(SENDER_CONNECTION_TIMEOUT_KEY));
@@ -700,7 +788,7 @@ public class RadarService extends Service implements ServerStatusListener {
         }
     }
 
-    protected class RadarBinder extends Binder implements IRadarService {
+    protected class RadarBinder extends Binder implements IRadarService, IUploadMetricsService {
         @Override
         public ServerStatusListener.Status getServerStatus() {
              return serverStatus;
@@ -711,6 +799,15 @@ public class RadarService extends Service implements ServerStatusListener {
             return latestNumberOfRecordsSent;
         }
 
+        @Override
+        public Map<String, UploadMetrics.TopicMetrics> getUploadMetrics() {
+            TableDataHandler localDataHandler = dataHandler;
+            if (localDataHandler == null) {
+                return Collections.emptyMap();
+            }
+            return localDataHandler.getUploadMetrics();
+        }
+
         @Override
         public List<DeviceServiceProvider> getConnections() {
             return Collections.unmodifiableList(mConnections);
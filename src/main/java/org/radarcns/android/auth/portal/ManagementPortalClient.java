@@ -7,6 +7,7 @@ import org.json.JSONObject;
 import org.radarcns.android.auth.AppAuthState;
 import org.radarcns.android.auth.AppSource;
 import org.radarcns.android.auth.AuthStringParser;
+import org.radarcns.android.util.HttpConnectionPool;
 import org.radarcns.android.util.ResponseHandler;
 import org.radarcns.config.ServerConfig;
 import org.radarcns.producer.AuthenticationException;
@@ -36,11 +37,13 @@ public class ManagementPortalClient implements Closeable {
     private static final String APPLICATION_JSON_UTF8 = APPLICATION_JSON + "; charset=utf-8";
     private static final MediaType APPLICATION_JSON_MEDIA_TYPE = MediaType
             .parse(APPLICATION_JSON_UTF8);
+    /** Connection timeout in seconds. */
+    private static final long CONNECTION_TIMEOUT = 30L;
 
     private final RestClient client;
 
     public ManagementPortalClient(ServerConfig managementPortal) {
-        client = new RestClient(managementPortal);
+        client = new RestClient(managementPortal, CONNECTION_TIMEOUT, HttpConnectionPool.get());
     }
 
     /**
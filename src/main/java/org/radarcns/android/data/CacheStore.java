@@ -24,14 +24,20 @@ import org.radarcns.android.util.SharedSingleThreadExecutorFactory;
 import org.radarcns.android.util.SingleThreadExecutorFactory;
 import org.radarcns.topic.AvroTopic;
 import org.radarcns.util.CountedReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 
 public class CacheStore {
+    private static final Logger logger = LoggerFactory.getLogger(CacheStore.class);
     private static final Object SYNC_OBJECT = new Object();
     private static CacheStore store = null;
 
@@ -45,44 +51,126 @@ public class CacheStore {
     }
 
     private final Map<String, CountedReference<DataCache>> caches;
+    private final Map<DataCache, String> cacheFiles;
     private SingleThreadExecutorFactory cacheExecutorFactory;
+    private DecodePool decodePool;
+    private float batteryLevel;
+    private boolean isPlugged;
 
     private CacheStore() {
         caches = new HashMap<>();
+        cacheFiles = new HashMap<>();
         cacheExecutorFactory = null;
+        decodePool = null;
+        batteryLevel = 1f;
+        isPlugged = false;
     }
 
-    @SuppressWarnings("unchecked")
+    /** Update the battery state, which limits the number of threads to decode records with. */
+    public synchronized void setBatteryState(float level, boolean isPlugged) {
+        this.batteryLevel = level;
+        this.isPlugged = isPlugged;
+        if (decodePool != null) {
+            decodePool.setBatteryState(level, isPlugged);
+        }
+    }
+
+    /** Get or create the cache of a topic that is shared by all subjects. */
     public synchronized <K extends SpecificRecord, V extends SpecificRecord> DataCache<K, V>
             getOrCreateCache(Context context, AvroTopic<K, V> topic) throws IOException {
+        return getOrCreateCache(context, topic, null);
+    }
+
+    /**
+     * Get or create the cache of a topic for a single subject.
+     * @param subject user ID of the subject, or {@code null} for the cache that is shared by all
+     *                subjects. An empty user ID has a subject cache of its own.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <K extends SpecificRecord, V extends SpecificRecord> ExtendedDataCache<K, V>
+            getOrCreateCache(Context context, AvroTopic<K, V> topic, String subject)
+            throws IOException {
 
         if (cacheExecutorFactory == null) {
             cacheExecutorFactory = new SharedSingleThreadExecutorFactory(
                     new AndroidThreadFactory("DataCache", THREAD_PRIORITY_BACKGROUND));
+            decodePool = new DecodePool();
+            decodePool.setBatteryState(batteryLevel, isPlugged);
         }
 
-        CountedReference<DataCache> ref = caches.get(topic.getName());
+        File file = getCacheFile(context, topic, subject);
+        String path = file.getAbsolutePath();
+        CountedReference<DataCache> ref = caches.get(path);
         if (ref == null) {
-            ref = new CountedReference<DataCache>(
-                    new TapeCache<>(context, topic, cacheExecutorFactory));
-            caches.put(topic.getName(), ref);
+            TapeCache<K, V> cache = new TapeCache<>(context, topic, file, cacheExecutorFactory);
+            cache.setDecodePool(decodePool);
+            ref = new CountedReference<DataCache>(cache);
+            caches.put(path, ref);
+            cacheFiles.put(cache, path);
         }
-        return ref.acquire();
+        // all stored caches are tape caches
+        return (ExtendedDataCache<K, V>) ref.acquire();
     }
 
     public synchronized <K extends SpecificRecord, V extends SpecificRecord> void releaseCache(DataCache<K, V> cache) throws IOException {
-        CountedReference<DataCache> ref = caches.get(cache.getTopic().getName());
+        String path = cacheFiles.get(cache);
+        CountedReference<DataCache> ref = path != null ? caches.get(path) : null;
         if (ref == null) {
             throw new IllegalStateException("DataCache " + cache.getTopic() + " is not held");
         }
         DataCache storedCache = ref.release();
         if (ref.isNotHeld()) {
             storedCache.close();
-            caches.remove(cache.getTopic().getName());
+            caches.remove(path);
+            cacheFiles.remove(storedCache);
             if (caches.size() == 0) {
                 cacheExecutorFactory.close();
                 cacheExecutorFactory = null;
+                decodePool.close();
+                decodePool = null;
+            }
+        }
+    }
+
+    /**
+     * Delete all files of the cache of a topic, including its key dictionary and any records in
+     * its overflow archive.
+     * @param subject user ID of the subject, or {@code null} for the cache that is shared by all
+     *                subjects. An empty user ID has a subject cache of its own.
+     * @return whether all files were removed.
+     * @throws IllegalStateException if the cache is still held.
+     */
+    public synchronized boolean deleteCache(Context context, AvroTopic<?, ?> topic,
+            String subject) {
+        File file = getCacheFile(context, topic, subject);
+        if (caches.containsKey(file.getAbsolutePath())) {
+            throw new IllegalStateException("DataCache " + topic + " is still held");
+        }
+        boolean deleted = true;
+        for (File storageFile : TapeCache.storageFiles(file)) {
+            if (storageFile.exists() && !storageFile.delete()) {
+                logger.warn("Cannot remove cache file {}", storageFile);
+                deleted = false;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * File that the cache of a topic is stored in.
+     * @param subject user ID of the subject, or {@code null} for the cache that is shared by all
+     *                subjects. An empty user ID has a subject cache of its own.
+     */
+    public static File getCacheFile(Context context, AvroTopic<?, ?> topic, String subject) {
+        File directory = context.getCacheDir();
+        if (subject != null) {
+            try {
+                directory = new File(new File(directory, "subjects"),
+                        "subject-" + URLEncoder.encode(subject, "UTF-8"));
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException("UTF-8 encoding is not supported", ex);
             }
         }
+        return new File(directory, topic.getName() + ".tape");
     }
 }
@@ -28,7 +28,7 @@ public interface DataHandler<K, V> extends ServerStatusListener {
      */
     void clean();
 
-    /** Get all caches */
+    /** Get all caches of the current subject. */
     Map<AvroTopic<K, ? extends V>, ? extends DataCache<K, ? extends V>> getCaches();
 
 
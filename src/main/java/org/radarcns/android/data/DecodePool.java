@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import org.radarcns.android.util.AndroidThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+
+/**
+ * Worker threads to decode large batches of cached records on, shared by all caches. The number
+ * of threads that may be used for a single batch depends on the battery state: all processors,
+ * up to {@link #MAXIMUM_PARALLELISM}, while charging or with a full enough battery, half of
+ * them below {@link #REDUCED_BATTERY_LEVEL} and only the calling thread below
+ * {@link #LOW_BATTERY_LEVEL}. Idle worker threads are stopped after a while.
+ */
+public class DecodePool {
+    /** Maximum number of threads, including the calling thread, to decode a batch with. */
+    static final int MAXIMUM_PARALLELISM = 4;
+    static final float REDUCED_BATTERY_LEVEL = 0.5f;
+    static final float LOW_BATTERY_LEVEL = 0.2f;
+    private static final long IDLE_TIMEOUT_SECONDS = 30L;
+
+    private final ThreadPoolExecutor executor;
+    private final int maximumParallelism;
+    private volatile int parallelism;
+
+    /** Decode pool using the number of available processors. */
+    public DecodePool() {
+        this(Math.min(MAXIMUM_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Decode pool with given maximum parallelism.
+     * @param maximumParallelism maximum number of threads to decode a batch with, including the
+     *                           calling thread.
+     */
+    DecodePool(int maximumParallelism) {
+        this.maximumParallelism = Math.max(1, maximumParallelism);
+        int numThreads = Math.max(1, this.maximumParallelism - 1);
+        executor = new ThreadPoolExecutor(numThreads, numThreads,
+                IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new AndroidThreadFactory("DataCacheDecoder", THREAD_PRIORITY_BACKGROUND));
+        executor.allowCoreThreadTimeOut(true);
+        parallelism = this.maximumParallelism;
+    }
+
+    /** Update the battery state that determines the parallelism. */
+    public void setBatteryState(float level, boolean isPlugged) {
+        if (isPlugged || level >= REDUCED_BATTERY_LEVEL) {
+            parallelism = maximumParallelism;
+        } else if (level >= LOW_BATTERY_LEVEL) {
+            parallelism = Math.max(1, maximumParallelism / 2);
+        } else {
+            parallelism = 1;
+        }
+    }
+
+    /** Number of threads, including the calling thread, to decode a single batch with. */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Executor to run decoding tasks on. */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /** Stop the worker threads. Tasks that are submitted afterwards are rejected. */
+    public void close() {
+        executor.shutdown();
+    }
+}
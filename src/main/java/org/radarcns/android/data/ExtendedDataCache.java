@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import android.support.annotation.NonNull;
+
+import org.radarcns.data.Record;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Data cache with features that not every {@link DataCache} supports. Users of a
+ * {@link DataCache} check whether it implements this interface before using these features, so
+ * that other implementations of {@link DataCache} keep working without them.
+ *
+ * @param <K> measurement key type
+ * @param <V> measurement value type
+ */
+public interface ExtendedDataCache<K, V> extends DataCache<K, V> {
+    /**
+     * Get unsent records in the cache, limited by both their number and their total serialized
+     * size. At least one record is returned if any are available, even if it exceeds the size
+     * limit.
+     *
+     * @param limit maximum number of records
+     * @param sizeLimit maximum total serialized size of the records in bytes
+     * @return records.
+     */
+    List<Record<K, V>> unsentRecords(int limit, long sizeLimit) throws IOException;
+
+    /**
+     * Get unsent records in the cache as they are stored, limited like
+     * {@link #unsentRecords(int, long)}. Only their keys are decoded.
+     *
+     * @param limit maximum number of records
+     * @param sizeLimit maximum total serialized size of the records in bytes
+     * @return records.
+     */
+    SerializedRecords<K, V> unsentSerializedRecords(int limit, long sizeLimit) throws IOException;
+
+    /**
+     * Get the number of bytes that the unsent records take up in the cache.
+     */
+    long numberOfBytes();
+
+    /**
+     * Get the time in milliseconds of the oldest unsent record, from the {@code time} field of its
+     * value, in seconds since the Unix Epoch. This does not decode a record each time it is
+     * called.
+     * @return time in milliseconds, or {@link Long#MAX_VALUE} if there are no records or their
+     *         value has no numeric {@code time} field.
+     * @throws IOException if the oldest record cannot be read.
+     */
+    long getOldestTime() throws IOException;
+
+    /**
+     * Add new measurements with the same key to the cache, in order. This has less overhead than
+     * adding the measurements one by one.
+     */
+    void addMeasurements(K key, Collection<? extends V> values);
+
+    /**
+     * Set whether records are stored in compressed frames of multiple records, if the topic
+     * supports it. The storage format only changes once the cache is empty.
+     */
+    void setFrameEncoding(boolean frameEncoding);
+
+    /**
+     * Set how records are handled that do not fit in the cache once it has reached its maximum
+     * size. By default, they are dropped, see {@link OverflowPolicy#REJECT_NEWEST}.
+     */
+    void setOverflowPolicy(OverflowPolicy policy);
+
+    /**
+     * Return a list to cache, like {@link #returnList(List)}, and let the cache reuse the value
+     * objects of its records for records that are retrieved later. Neither the list nor the
+     * values of its records should be used again.
+     */
+    void returnListAndValues(List list);
+
+    /** Get the numbers of records that were affected by the overflow policy of the cache. */
+    OverflowPolicy.Stats getOverflowStats();
+
+    /**
+     * Notify a listener whenever newly added records are written to the cache while it holds
+     * more than given number of unsent records. This replaces any previous listener.
+     * @param numberOfRecords threshold of unsent records
+     * @param listener listener to notify
+     */
+    void setHighWatermark(long numberOfRecords, @NonNull HighWatermarkListener listener);
+
+    /**
+     * Stop notifying given listener. Nothing happens if another listener was set in the meantime.
+     */
+    void removeHighWatermark(@NonNull HighWatermarkListener listener);
+
+    /**
+     * Get the fraction of the maximum size of the cache that is used by unsent records, from 0
+     * to 1. A cache that could not store its latest records because they did not fit has a fill
+     * level of 1 until records are removed or new records fit again.
+     */
+    float getFillLevel();
+
+    /**
+     * Get the time in milliseconds that the oldest added record has been waiting to be written
+     * to the cache, or 0 if no records are waiting.
+     */
+    long getFlushLag();
+
+    /**
+     * Notify a listener when the fill level of the cache reaches given level after records are
+     * written to it, and when it drops below that level again. This replaces any previous
+     * listener.
+     * @param fillLevel fill level from 0 to 1 to apply backpressure from
+     * @param listener listener to notify
+     */
+    void setBackpressureListener(float fillLevel, @NonNull BackpressureListener listener);
+
+    /**
+     * Stop notifying given listener. Nothing happens if another listener was set in the meantime.
+     */
+    void removeBackpressureListener(@NonNull BackpressureListener listener);
+
+    /** Listener for caches that exceed their high watermark. */
+    interface HighWatermarkListener {
+        /**
+         * The cache has more unsent records than its high watermark. This is called from the
+         * thread that writes to the cache, so it should return quickly.
+         */
+        void onHighWatermark(DataCache<?, ?> cache);
+    }
+
+    /** Listener for caches that are getting full. */
+    interface BackpressureListener {
+        /**
+         * The cache reached its backpressure fill level, or dropped below it again. Producers
+         * of records should slow down while there is backpressure. This is called from the
+         * thread that writes to the cache, so it should return quickly.
+         * @param cache cache whose fill level changed
+         * @param hasBackpressure whether the cache fill level is at or above the backpressure
+         *                        level.
+         */
+        void onBackpressure(DataCache<?, ?> cache, boolean hasBackpressure);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.specific.SpecificData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Reads and writes records without nested types in Avro binary encoding. The field types are
+ * resolved once, when the codec is created, instead of walking the schema for every record as
+ * {@link org.apache.avro.specific.SpecificDatumReader} and
+ * {@link org.apache.avro.specific.SpecificDatumWriter} do. The encoding is exactly the same.
+ *
+ * Supported fields are booleans, numbers, strings, bytes and enums, and unions of {@code null}
+ * with one of those. Strings are always read as {@link String}.
+ *
+ * @param <T> record type
+ */
+public class FlatRecordCodec<T extends IndexedRecord> implements DatumReader<T>, DatumWriter<T> {
+    private static final int BOOLEAN = 0;
+    private static final int INT = 1;
+    private static final int LONG = 2;
+    private static final int FLOAT = 3;
+    private static final int DOUBLE = 4;
+    private static final int STRING = 5;
+    private static final int BYTES = 6;
+    private static final int ENUM = 7;
+
+    private final Schema schema;
+    private final int[] types;
+    /** Union index of null per field, or -1 if the field is not a union. */
+    private final int[] nullIndexes;
+    /** Enum symbols per enum field, indexed by ordinal. */
+    private final Object[][] enumSymbols;
+    private final Schema[] enumSchemas;
+
+    /**
+     * Codec for given record schema.
+     * @throws IllegalArgumentException if the schema is not {@link #supports(Schema) supported}
+     */
+    public FlatRecordCodec(Schema schema) {
+        if (!supports(schema)) {
+            throw new IllegalArgumentException("Schema " + schema.getFullName()
+                    + " does not only contain primitive fields");
+        }
+        this.schema = schema;
+        List<Schema.Field> fields = schema.getFields();
+        types = new int[fields.size()];
+        nullIndexes = new int[fields.size()];
+        enumSymbols = new Object[fields.size()][];
+        enumSchemas = new Schema[fields.size()];
+
+        for (int i = 0; i < types.length; i++) {
+            Schema fieldSchema = fields.get(i).schema();
+            nullIndexes[i] = -1;
+            if (fieldSchema.getType() == Schema.Type.UNION) {
+                List<Schema> unionTypes = fieldSchema.getTypes();
+                nullIndexes[i] = unionTypes.get(0).getType() == Schema.Type.NULL ? 0 : 1;
+                fieldSchema = unionTypes.get(1 - nullIndexes[i]);
+            }
+            types[i] = typeOf(fieldSchema.getType());
+            if (types[i] == ENUM) {
+                List<String> symbols = fieldSchema.getEnumSymbols();
+                enumSymbols[i] = new Object[symbols.size()];
+                for (int s = 0; s < symbols.size(); s++) {
+                    enumSymbols[i][s] = SpecificData.get().createEnum(symbols.get(s), fieldSchema);
+                }
+                enumSchemas[i] = fieldSchema;
+            }
+        }
+    }
+
+    /** Whether given schema is a record with only fields that this codec supports. */
+    public static boolean supports(Schema schema) {
+        if (schema.getType() != Schema.Type.RECORD) {
+            return false;
+        }
+        for (Schema.Field field : schema.getFields()) {
+            Schema fieldSchema = field.schema();
+            if (fieldSchema.getType() == Schema.Type.UNION) {
+                List<Schema> unionTypes = fieldSchema.getTypes();
+                if (unionTypes.size() != 2) {
+                    return false;
+                }
+                if (unionTypes.get(0).getType() == Schema.Type.NULL) {
+                    fieldSchema = unionTypes.get(1);
+                } else if (unionTypes.get(1).getType() == Schema.Type.NULL) {
+                    fieldSchema = unionTypes.get(0);
+                } else {
+                    return false;
+                }
+            }
+            if (typeOf(fieldSchema.getType()) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Field type code of given Avro type, or -1 if it is not supported. */
+    private static int typeOf(Schema.Type type) {
+        switch (type) {
+            case BOOLEAN:
+                return BOOLEAN;
+            case INT:
+                return INT;
+            case LONG:
+                return LONG;
+            case FLOAT:
+                return FLOAT;
+            case DOUBLE:
+                return DOUBLE;
+            case STRING:
+                return STRING;
+            case BYTES:
+                return BYTES;
+            case ENUM:
+                return ENUM;
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public void setSchema(Schema schema) {
+        if (!this.schema.equals(schema)) {
+            throw new IllegalArgumentException("Cannot change the schema of a FlatRecordCodec");
+        }
+    }
+
+    @Override
+    public void write(T record, Encoder out) throws IOException {
+        for (int i = 0; i < types.length; i++) {
+            Object value = record.get(i);
+            if (nullIndexes[i] != -1) {
+                if (value == null) {
+                    out.writeIndex(nullIndexes[i]);
+                    out.writeNull();
+                    continue;
+                }
+                out.writeIndex(1 - nullIndexes[i]);
+            } else if (value == null) {
+                throw new NullPointerException("Field " + schema.getFields().get(i).name()
+                        + " of " + schema.getFullName() + " may not be null");
+            }
+            switch (types[i]) {
+                case BOOLEAN:
+                    out.writeBoolean((Boolean) value);
+                    break;
+                case INT:
+                    out.writeInt((Integer) value);
+                    break;
+                case LONG:
+                    out.writeLong((Long) value);
+                    break;
+                case FLOAT:
+                    out.writeFloat((Float) value);
+                    break;
+                case DOUBLE:
+                    out.writeDouble((Double) value);
+                    break;
+                case STRING:
+                    out.writeString((CharSequence) value);
+                    break;
+                case BYTES:
+                    out.writeBytes((ByteBuffer) value);
+                    break;
+                case ENUM:
+                    out.writeEnum(value instanceof Enum
+                            ? ((Enum<?>) value).ordinal()
+                            : enumSchemas[i].getEnumOrdinal(value.toString()));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown field type " + types[i]);
+            }
+        }
+    }
+
+    @Override
+    public T read(T reuse, Decoder in) throws IOException {
+        @SuppressWarnings("unchecked")
+        T record = (T) SpecificData.get().newRecord(reuse, schema);
+        for (int i = 0; i < types.length; i++) {
+            if (nullIndexes[i] != -1) {
+                int index = in.readIndex();
+                if (index == nullIndexes[i]) {
+                    in.readNull();
+                    record.put(i, null);
+                    continue;
+                } else if (index != 1 - nullIndexes[i]) {
+                    throw new IOException("Union index " + index + " out of range");
+                }
+            }
+            switch (types[i]) {
+                case BOOLEAN:
+                    record.put(i, in.readBoolean());
+                    break;
+                case INT:
+                    record.put(i, in.readInt());
+                    break;
+                case LONG:
+                    record.put(i, in.readLong());
+                    break;
+                case FLOAT:
+                    record.put(i, in.readFloat());
+                    break;
+                case DOUBLE:
+                    record.put(i, in.readDouble());
+                    break;
+                case STRING:
+                    record.put(i, in.readString());
+                    break;
+                case BYTES:
+                    Object old = record.get(i);
+                    record.put(i, in.readBytes(
+                            old instanceof ByteBuffer ? (ByteBuffer) old : null));
+                    break;
+                case ENUM:
+                    int ordinal = in.readEnum();
+                    if (ordinal < 0 || ordinal >= enumSymbols[i].length) {
+                        throw new IOException("Enum ordinal " + ordinal + " out of range");
+                    }
+                    record.put(i, enumSymbols[i][ordinal]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown field type " + types[i]);
+            }
+        }
+        return record;
+    }
+}
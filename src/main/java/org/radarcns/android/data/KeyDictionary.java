@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary of the keys in a tape, so that records can refer to their key by index instead of
+ * storing it. The keys are stored in a separate file, each as a four-byte length followed by its
+ * binary encoding. A key is written to file before it is returned as a new index, so records
+ * never refer to keys that were not stored. A key that was only partially written is ignored
+ * when the file is read again.
+ *
+ * Keys are decoded once, so all records with the same key share a single key instance.
+ *
+ * @param <K> key type
+ */
+public class KeyDictionary<K extends SpecificRecord> implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(KeyDictionary.class);
+
+    private final File file;
+    private final Schema keySchema;
+    private final SpecificDatumWriter<K> keyWriter;
+    private final List<K> keys;
+    private final Map<K, Integer> indexes;
+    private final ByteArrayOutputStream keyBuffer;
+    private BinaryEncoder encoder;
+    private FileOutputStream out;
+
+    /**
+     * Dictionary stored in given file. Existing keys in the file are read.
+     * @param file file to store keys in
+     * @param keySchema schema of the keys
+     * @throws IOException if the file cannot be read or created, or contains invalid keys
+     */
+    public KeyDictionary(File file, Schema keySchema) throws IOException {
+        this.file = file;
+        this.keySchema = keySchema;
+        this.keyWriter = new SpecificDatumWriter<>(keySchema);
+        this.keys = new ArrayList<>();
+        this.indexes = new HashMap<>();
+        this.keyBuffer = new ByteArrayOutputStream(64);
+        this.encoder = null;
+
+        long validLength = read(new SpecificDatumReader<K>(keySchema));
+        this.out = new FileOutputStream(file, true);
+        if (validLength < out.getChannel().size()) {
+            logger.warn("Ignoring partially written key in {}", file);
+            out.getChannel().truncate(validLength);
+        }
+    }
+
+    /**
+     * Read all keys from file.
+     * @return number of bytes of completely written keys
+     */
+    private long read(SpecificDatumReader<K> keyReader) throws IOException {
+        if (!file.exists()) {
+            return 0L;
+        }
+        long validLength = 0L;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] keyBytes;
+                try {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Key dictionary " + file + " is corrupted");
+                    }
+                    keyBytes = new byte[length];
+                    in.readFully(keyBytes);
+                } catch (EOFException ex) {
+                    break;
+                }
+                K key;
+                try {
+                    key = keyReader.read(null,
+                            DecoderFactory.get().binaryDecoder(keyBytes, null));
+                } catch (RuntimeException ex) {
+                    throw new IOException("Failed to deserialize key in " + file, ex);
+                }
+                indexes.put(key, keys.size());
+                keys.add(key);
+                validLength += 4 + keyBytes.length;
+            }
+        }
+        return validLength;
+    }
+
+    /**
+     * Get the index of given key, adding the key to the dictionary if needed.
+     * @throws IOException if a new key cannot be stored
+     */
+    public int indexOf(K key) throws IOException {
+        Integer index = indexes.get(key);
+        return index != null ? index : add(key);
+    }
+
+    /** Store a new key and return its index. */
+    private int add(K key) throws IOException {
+        keyBuffer.reset();
+        // reserve space for the length
+        keyBuffer.write(new byte[4], 0, 4);
+        encoder = EncoderFactory.get().binaryEncoder(keyBuffer, encoder);
+        keyWriter.write(key, encoder);
+        encoder.flush();
+
+        byte[] entry = keyBuffer.toByteArray();
+        int length = entry.length - 4;
+        entry[0] = (byte) (length >> 24);
+        entry[1] = (byte) (length >> 16);
+        entry[2] = (byte) (length >> 8);
+        entry[3] = (byte) length;
+        out.write(entry);
+        // records may only refer to the key once it is stored
+        out.getFD().sync();
+
+        // keep a copy, in case the caller modifies the key afterwards
+        K storedKey = SpecificData.get().deepCopy(keySchema, key);
+        int index = keys.size();
+        keys.add(storedKey);
+        indexes.put(storedKey, index);
+        return index;
+    }
+
+    /**
+     * Get the key with given index.
+     * @throws IOException if the dictionary does not contain the index
+     */
+    public K get(int index) throws IOException {
+        if (index < 0 || index >= keys.size()) {
+            throw new IOException("Key " + index + " is not in key dictionary " + file);
+        }
+        return keys.get(index);
+    }
+
+    /** Number of keys in the dictionary. */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Remove all keys. Only call this when no stored record refers to a key anymore.
+     * @throws IOException if the file cannot be truncated
+     */
+    public void clear() throws IOException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        out.getChannel().truncate(0L);
+        keys.clear();
+        indexes.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
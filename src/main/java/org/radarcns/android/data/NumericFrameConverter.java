@@ -0,0 +1,656 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificRecord;
+import org.radarcns.data.Record;
+import org.radarcns.topic.AvroTopic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Converts records of a topic of which all value fields are numeric, or nullable numeric, to and
+ * from frames of multiple records, as stored in queue files of
+ * {@link org.radarcns.util.QueueFileHeader#VERSION_4}. A frame stores the values of each field
+ * for all its records together. Fields of which the name starts with {@code time}, and integer
+ * fields, are stored as the delta-of-delta of their bit pattern, which is small for regularly
+ * sampled timestamps. Other fields are stored as the XOR of their bit pattern with the previous
+ * value, as in the Gorilla time series database. Each value of a nullable field is preceded by a
+ * bit that is zero for null values, which are otherwise left out of the column. Keys are stored as
+ * runs of key indexes in a
+ * {@link KeyDictionary}. Decoding a frame results in the same values as were encoded.
+ *
+ * <pre>
+ * Frame:
+ *   varint           Number of records `n`
+ *   varint           Number of key runs `r`
+ *   r times:
+ *     varint         Key index
+ *     varint         Run length
+ *   ...              Bit-packed values of the first field for all `n` records, then of the
+ *                    second field, etc. Nullable fields have a presence bit per record.
+ * </pre>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class NumericFrameConverter<K extends SpecificRecord, V extends SpecificRecord> {
+    private final Schema valueSchema;
+    private final KeyDictionary<K> keyDictionary;
+    private final ColumnCodec[] codecs;
+    private final boolean[] nullable;
+    private final BitOutput output;
+    private final BitInput input;
+    private final FlatRecordCodec<V> valueWriter;
+    private final ByteArrayOutputStream valueBuffer;
+    private final List<Record<K, V>> decodedRecords;
+    private BinaryEncoder encoder;
+    private byte[] frameBuffer;
+    private int[] runIndexes;
+    private int[] runLengths;
+    private Object[] values;
+
+    /**
+     * Converter for given topic.
+     * @param topic topic with a value schema that is {@link #supports(Schema) supported}
+     * @param keyDictionary dictionary to store keys in
+     * @throws IllegalArgumentException if the value schema is not supported
+     */
+    public NumericFrameConverter(AvroTopic<K, V> topic, KeyDictionary<K> keyDictionary) {
+        this.valueSchema = topic.getValueSchema();
+        if (!supports(valueSchema)) {
+            throw new IllegalArgumentException("Values of topic " + topic.getName()
+                    + " do not only have numeric or nullable numeric fields");
+        }
+        this.keyDictionary = keyDictionary;
+
+        List<Schema.Field> fields = valueSchema.getFields();
+        this.codecs = new ColumnCodec[fields.size()];
+        this.nullable = new boolean[fields.size()];
+        for (int i = 0; i < codecs.length; i++) {
+            Schema.Field field = fields.get(i);
+            nullable[i] = field.schema().getType() == Schema.Type.UNION;
+            Schema.Type type = numericType(field.schema());
+            if (field.name().startsWith("time")
+                    || type == Schema.Type.INT || type == Schema.Type.LONG) {
+                codecs[i] = new DeltaCodec(type);
+            } else {
+                codecs[i] = new XorCodec(type);
+            }
+        }
+        this.output = new BitOutput();
+        this.input = new BitInput();
+        this.valueWriter = new FlatRecordCodec<>(valueSchema);
+        this.valueBuffer = new ByteArrayOutputStream();
+        this.decodedRecords = new ArrayList<>();
+        this.encoder = null;
+        this.frameBuffer = new byte[1024];
+        this.runIndexes = new int[4];
+        this.runLengths = new int[4];
+        this.values = new Object[64];
+    }
+
+    /**
+     * Whether values of given schema can be stored in frames. All fields must be numeric, or a
+     * union of null and a numeric type.
+     */
+    public static boolean supports(Schema valueSchema) {
+        if (valueSchema.getType() != Schema.Type.RECORD || valueSchema.getFields().isEmpty()) {
+            return false;
+        }
+        for (Schema.Field field : valueSchema.getFields()) {
+            if (numericType(field.schema()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Numeric type of a field schema, also when it is a union with null.
+     * @return numeric type or {@code null} if the schema is not numeric
+     */
+    private static Schema.Type numericType(Schema fieldSchema) {
+        if (fieldSchema.getType() == Schema.Type.UNION) {
+            List<Schema> unionTypes = fieldSchema.getTypes();
+            if (unionTypes.size() != 2) {
+                return null;
+            }
+            if (unionTypes.get(0).getType() == Schema.Type.NULL) {
+                fieldSchema = unionTypes.get(1);
+            } else if (unionTypes.get(1).getType() == Schema.Type.NULL) {
+                fieldSchema = unionTypes.get(0);
+            } else {
+                return null;
+            }
+        }
+        switch (fieldSchema.getType()) {
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return fieldSchema.getType();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Write a frame of records.
+     * @param records records to take the frame from
+     * @param from index of the first record of the frame
+     * @param to index after the last record of the frame
+     * @param out stream to write the frame to
+     * @throws IOException if the frame cannot be written or a new key cannot be stored
+     */
+    public void serialize(List<Record<K, V>> records, int from, int to, OutputStream out)
+            throws IOException {
+        output.reset();
+        output.writeVarInt(to - from);
+
+        int numRuns = 0;
+        K lastKey = null;
+        for (int i = from; i < to; i++) {
+            K key = records.get(i).key;
+            if (numRuns > 0 && (key == lastKey || key.equals(lastKey))) {
+                runLengths[numRuns - 1]++;
+                continue;
+            }
+            if (numRuns == runIndexes.length) {
+                runIndexes = Arrays.copyOf(runIndexes, numRuns * 2);
+                runLengths = Arrays.copyOf(runLengths, numRuns * 2);
+            }
+            runIndexes[numRuns] = keyDictionary.indexOf(key);
+            runLengths[numRuns] = 1;
+            numRuns++;
+            lastKey = key;
+        }
+        output.writeVarInt(numRuns);
+        for (int i = 0; i < numRuns; i++) {
+            output.writeVarInt(runIndexes[i]);
+            output.writeVarInt(runLengths[i]);
+        }
+
+        for (int f = 0; f < codecs.length; f++) {
+            ColumnCodec codec = codecs[f];
+            codec.reset();
+            for (int i = from; i < to; i++) {
+                Number value = (Number) records.get(i).value.get(f);
+                if (nullable[f]) {
+                    if (value == null) {
+                        output.write(0L, 1);
+                        continue;
+                    }
+                    output.write(1L, 1);
+                }
+                codec.write(output, value);
+            }
+        }
+        output.writeTo(out);
+    }
+
+    /**
+     * Read the number of records in a frame.
+     * @param in input with the frame data
+     * @throws IOException if the number cannot be read
+     */
+    public static int readCount(InputStream in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Frame ended early");
+            }
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Invalid number of records in frame");
+    }
+
+    /**
+     * Read records from a frame.
+     * @param in input with exactly the data of a single frame
+     * @param skip number of records at the start of the frame to skip
+     * @param limit maximum number of records to read
+     * @param records list to add the records to
+     * @param valuePool value objects to reuse, may be {@code null}
+     * @return number of records in the frame
+     * @throws IOException if the frame cannot be read or decoded
+     */
+    public int deserialize(InputStream in, int skip, int limit, List<Record<K, V>> records,
+            Queue<V> valuePool) throws IOException {
+        input.reset(frameBuffer, readFrame(in));
+        int numRecords = input.readVarInt();
+        int end = skip + Math.max(0, Math.min(limit, numRecords - skip));
+        if (end - skip > values.length) {
+            values = new Object[Math.max(end - skip, values.length * 2)];
+        }
+        for (int i = skip; i < end; i++) {
+            V reuse = valuePool != null ? valuePool.poll() : null;
+            values[i - skip] = SpecificData.get().newRecord(reuse, valueSchema);
+        }
+
+        int numRuns = input.readVarInt();
+        int position = 0;
+        for (int r = 0; r < numRuns; r++) {
+            K key = keyDictionary.get(input.readVarInt());
+            int runEnd = position + input.readVarInt();
+            for (int i = Math.max(position, skip); i < Math.min(runEnd, end); i++) {
+                @SuppressWarnings("unchecked")
+                V value = (V) values[i - skip];
+                records.add(new Record<>(key, value));
+            }
+            position = runEnd;
+        }
+        if (position != numRecords) {
+            throw new IOException("Keys in frame do not match its number of records");
+        }
+
+        for (int f = 0; f < codecs.length; f++) {
+            ColumnCodec codec = codecs[f];
+            codec.reset();
+            for (int i = 0; i < numRecords; i++) {
+                Object value = nullable[f] && input.read(1) == 0L ? null : codec.read(input);
+                if (i >= skip && i < end) {
+                    ((SpecificRecord) values[i - skip]).put(f, value);
+                }
+            }
+        }
+        Arrays.fill(values, 0, end - skip, null);
+        return numRecords;
+    }
+
+    /**
+     * Read records from a frame, keeping their values in Avro binary encoding.
+     * @param in input with exactly the data of a single frame
+     * @param skip number of records at the start of the frame to skip
+     * @param limit maximum number of records to read
+     * @param records records to add the records to
+     * @return number of records in the frame
+     * @throws IOException if the frame cannot be read or decoded
+     */
+    public int readSerialized(InputStream in, int skip, int limit,
+            SerializedRecords<K, V> records) throws IOException {
+        decodedRecords.clear();
+        int numRecords = deserialize(in, skip, limit, decodedRecords, null);
+        for (Record<K, V> record : decodedRecords) {
+            valueBuffer.reset();
+            encoder = EncoderFactory.get().binaryEncoder(valueBuffer, encoder);
+            valueWriter.write(record.value, encoder);
+            encoder.flush();
+            byte[] value = valueBuffer.toByteArray();
+            records.add(record.key, value, 0, value.length);
+        }
+        decodedRecords.clear();
+        return numRecords;
+    }
+
+    /**
+     * Read the data of a frame into the frame buffer.
+     * @return length of the data
+     */
+    private int readFrame(InputStream in) throws IOException {
+        int length = in.available();
+        if (length > frameBuffer.length) {
+            frameBuffer = new byte[Math.max(length, frameBuffer.length * 2)];
+        }
+        int numRead = 0;
+        while (numRead < length) {
+            int n = in.read(frameBuffer, numRead, length - numRead);
+            if (n < 0) {
+                throw new IOException("Frame data ended early");
+            }
+            numRead += n;
+        }
+        return length;
+    }
+
+    /** Bit pattern conversion of a numeric type. */
+    private static abstract class ColumnCodec {
+        final Schema.Type type;
+        final int width;
+
+        ColumnCodec(Schema.Type type) {
+            this.type = type;
+            this.width = type == Schema.Type.DOUBLE || type == Schema.Type.LONG ? 64 : 32;
+        }
+
+        /** Start a new column. */
+        abstract void reset();
+
+        abstract void write(BitOutput out, Number value);
+
+        abstract Object read(BitInput in) throws IOException;
+
+        /** Bit pattern of a value. 32-bit integers are sign-extended. */
+        long toBits(Number value) {
+            switch (type) {
+                case DOUBLE:
+                    return Double.doubleToRawLongBits(value.doubleValue());
+                case FLOAT:
+                    return Float.floatToRawIntBits(value.floatValue()) & 0xFFFFFFFFL;
+                case INT:
+                    return value.intValue();
+                default:
+                    return value.longValue();
+            }
+        }
+
+        /** Value of a bit pattern. */
+        Object fromBits(long bits) {
+            switch (type) {
+                case DOUBLE:
+                    return Double.longBitsToDouble(bits);
+                case FLOAT:
+                    return Float.intBitsToFloat((int) bits);
+                case INT:
+                    return (int) bits;
+                default:
+                    return bits;
+            }
+        }
+
+        /** Write a complete bit pattern. */
+        void writeRaw(BitOutput out, long bits) {
+            out.write(width == 64 ? bits : bits & 0xFFFFFFFFL, width);
+        }
+
+        /** Read a complete bit pattern, as returned by {@link #toBits(Number)}. */
+        long readRaw(BitInput in) throws IOException {
+            long bits = in.read(width);
+            return type == Schema.Type.INT ? (int) bits : bits;
+        }
+    }
+
+    /** Stores the delta-of-delta of the bit patterns of a column. */
+    private static class DeltaCodec extends ColumnCodec {
+        private int index;
+        private long previous;
+        private long previousDelta;
+
+        DeltaCodec(Schema.Type type) {
+            super(type);
+        }
+
+        @Override
+        void reset() {
+            index = 0;
+            previous = 0L;
+            previousDelta = 0L;
+        }
+
+        @Override
+        void write(BitOutput out, Number value) {
+            long bits = toBits(value);
+            if (index == 0) {
+                writeRaw(out, bits);
+            } else {
+                long delta = bits - previous;
+                out.writeSigned(delta - previousDelta);
+                previousDelta = delta;
+            }
+            previous = bits;
+            index++;
+        }
+
+        @Override
+        Object read(BitInput in) throws IOException {
+            long bits;
+            if (index == 0) {
+                bits = readRaw(in);
+            } else {
+                long delta = previousDelta + in.readSigned();
+                bits = previous + delta;
+                previousDelta = delta;
+            }
+            previous = bits;
+            index++;
+            return fromBits(bits);
+        }
+    }
+
+    /** Stores the XOR of the bit pattern of each value with that of the previous value. */
+    private static class XorCodec extends ColumnCodec {
+        private final int sizeBits;
+        private boolean isFirst;
+        private long previous;
+        private int previousLeading;
+        private int previousTrailing;
+
+        XorCodec(Schema.Type type) {
+            super(type);
+            // number of bits to store a count of zeros or a length in
+            sizeBits = width == 64 ? 6 : 5;
+        }
+
+        @Override
+        void reset() {
+            isFirst = true;
+            previous = 0L;
+            previousLeading = -1;
+            previousTrailing = -1;
+        }
+
+        @Override
+        void write(BitOutput out, Number value) {
+            long bits = toBits(value);
+            if (isFirst) {
+                writeRaw(out, bits);
+                isFirst = false;
+                previous = bits;
+                return;
+            }
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0L) {
+                out.write(0L, 1);
+                return;
+            }
+            out.write(1L, 1);
+            int leading = Long.numberOfLeadingZeros(xor) - (64 - width);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading
+                    && trailing >= previousTrailing) {
+                // meaningful bits fit in the previous window
+                out.write(0L, 1);
+                out.write(xor >>> previousTrailing, width - previousLeading - previousTrailing);
+            } else {
+                int length = width - leading - trailing;
+                out.write(1L, 1);
+                out.write(leading, sizeBits);
+                out.write(length - 1, sizeBits);
+                out.write(xor >>> trailing, length);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+
+        @Override
+        Object read(BitInput in) throws IOException {
+            if (isFirst) {
+                isFirst = false;
+                previous = readRaw(in);
+                return fromBits(previous);
+            }
+            if (in.read(1) == 1L) {
+                long xor;
+                if (in.read(1) == 0L) {
+                    if (previousLeading < 0) {
+                        throw new IOException("Frame refers to a missing value window");
+                    }
+                    xor = in.read(width - previousLeading - previousTrailing)
+                            << previousTrailing;
+                } else {
+                    int leading = (int) in.read(sizeBits);
+                    int length = (int) in.read(sizeBits) + 1;
+                    int trailing = width - leading - length;
+                    if (trailing < 0) {
+                        throw new IOException("Invalid value window in frame");
+                    }
+                    xor = in.read(length) << trailing;
+                    previousLeading = leading;
+                    previousTrailing = trailing;
+                }
+                previous ^= xor;
+            }
+            return fromBits(previous);
+        }
+    }
+
+    /** Output of bits, most significant bit first. */
+    private static class BitOutput {
+        private byte[] buffer = new byte[1024];
+        private long numBits;
+
+        void reset() {
+            Arrays.fill(buffer, 0, (int) ((numBits + 7) >>> 3), (byte) 0);
+            numBits = 0L;
+        }
+
+        /** Write the lowest {@code n} bits of given value, with {@code n <= 64}. */
+        void write(long value, int n) {
+            int requiredBytes = (int) ((numBits + n + 7) >>> 3);
+            if (requiredBytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(requiredBytes, buffer.length * 2));
+            }
+            while (n > 0) {
+                int index = (int) (numBits >>> 3);
+                int free = 8 - (int) (numBits & 7);
+                int take = Math.min(free, n);
+                int bits = (int) ((value >>> (n - take)) & ((1 << take) - 1));
+                buffer[index] |= bits << (free - take);
+                n -= take;
+                numBits += take;
+            }
+        }
+
+        /** Write a non-negative integer in groups of seven bits. */
+        void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80, 8);
+                value >>>= 7;
+            }
+            write(value, 8);
+        }
+
+        /**
+         * Write a signed value. Small absolute values take fewer bits: a zero takes one bit,
+         * and values that fit in 7, 12 or 20 bits after zigzag encoding take 2, 3 or 4 extra
+         * bits. Other values take 68 bits.
+         */
+        void writeSigned(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+            if (zigzag == 0L) {
+                write(0L, 1);
+            } else if (zigzag >>> 7 == 0L) {
+                write(0b10L, 2);
+                write(zigzag, 7);
+            } else if (zigzag >>> 12 == 0L) {
+                write(0b110L, 3);
+                write(zigzag, 12);
+            } else if (zigzag >>> 20 == 0L) {
+                write(0b1110L, 4);
+                write(zigzag, 20);
+            } else {
+                write(0b1111L, 4);
+                write(zigzag, 64);
+            }
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buffer, 0, (int) ((numBits + 7) >>> 3));
+        }
+    }
+
+    /** Input of bits, most significant bit first. */
+    private static class BitInput {
+        private byte[] buffer;
+        private int length;
+        private long position;
+
+        void reset(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+            this.position = 0L;
+        }
+
+        /** Read {@code n} bits, with {@code n <= 64}. */
+        long read(int n) throws IOException {
+            if (position + n > 8L * length) {
+                throw new EOFException("Frame ended early");
+            }
+            long result = 0L;
+            while (n > 0) {
+                int index = (int) (position >>> 3);
+                int available = 8 - (int) (position & 7);
+                int take = Math.min(available, n);
+                int bits = ((buffer[index] & 0xFF) >>> (available - take)) & ((1 << take) - 1);
+                result = (result << take) | bits;
+                n -= take;
+                position += take;
+            }
+            return result;
+        }
+
+        /** Read a non-negative integer written in groups of seven bits. */
+        int readVarInt() throws IOException {
+            int result = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = (int) read(8);
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (result < 0) {
+                        break;
+                    }
+                    return result;
+                }
+            }
+            throw new IOException("Invalid integer in frame");
+        }
+
+        /** Read a value written by {@link BitOutput#writeSigned(long)}. */
+        long readSigned() throws IOException {
+            long zigzag;
+            if (read(1) == 0L) {
+                return 0L;
+            } else if (read(1) == 0L) {
+                zigzag = read(7);
+            } else if (read(1) == 0L) {
+                zigzag = read(12);
+            } else if (read(1) == 0L) {
+                zigzag = read(20);
+            } else {
+                zigzag = read(64);
+            }
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+    }
+}
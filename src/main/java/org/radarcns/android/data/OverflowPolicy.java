@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/** Policy for records that do not fit in a cache that reached its maximum size. */
+public enum OverflowPolicy {
+    /** Records that do not fit are dropped. */
+    REJECT_NEWEST,
+    /** The oldest records are removed from the cache to make room for new records. */
+    DROP_OLDEST,
+    /**
+     * Records that do not fit are stored in a compressed archive next to the cache. They are
+     * moved back to the cache, in order, once it has room again.
+     */
+    SPILL,
+    /**
+     * Once the cache reaches its backpressure level, only a part of the new records is stored,
+     * from every second record just above that level to every sixteenth record when the cache
+     * is full. Records that still do not fit are dropped.
+     */
+    DOWNSAMPLE;
+
+    /**
+     * Parse a policy name, case insensitive.
+     * @throws IllegalArgumentException if the name does not match any policy.
+     */
+    public static OverflowPolicy parse(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.US));
+    }
+
+    /**
+     * Parse overflow policies of the form {@code "topic1:drop_oldest topic2:spill"}.
+     * @throws IllegalArgumentException if the policies cannot be parsed.
+     */
+    public static Map<String, OverflowPolicy> parsePolicies(String policies) {
+        Map<String, OverflowPolicy> result = new HashMap<>();
+        for (String policy : policies.trim().split("\\s+")) {
+            if (policy.isEmpty()) {
+                continue;
+            }
+            int separator = policy.lastIndexOf(':');
+            if (separator <= 0 || separator == policy.length() - 1) {
+                throw new IllegalArgumentException("Overflow policy " + policy
+                        + " does not have format topic:policy");
+            }
+            result.put(policy.substring(0, separator),
+                    parse(policy.substring(separator + 1)));
+        }
+        return result;
+    }
+
+    /** Numbers of records that were affected by the overflow policy of a cache. */
+    public static class Stats {
+        /** Number of new records that were dropped because they did not fit. */
+        public final long rejected;
+        /** Number of old records that were removed to make room for new records. */
+        public final long dropped;
+        /** Number of records that were stored in the overflow archive. */
+        public final long spilled;
+        /** Number of records that were moved from the overflow archive back to the cache. */
+        public final long restored;
+        /** Number of new records that were skipped by downsampling. */
+        public final long downsampled;
+        /**
+         * Number of new records that could not be written because of an error. Some of them may
+         * have been written before the error occurred.
+         */
+        public final long failed;
+
+        Stats(long rejected, long dropped, long spilled, long restored, long downsampled,
+                long failed) {
+            this.rejected = rejected;
+            this.dropped = dropped;
+            this.spilled = spilled;
+            this.restored = restored;
+            this.downsampled = downsampled;
+            this.failed = failed;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{rejected=" + rejected
+                    + ", dropped=" + dropped
+                    + ", spilled=" + spilled
+                    + ", restored=" + restored
+                    + ", downsampled=" + downsampled
+                    + ", failed=" + failed
+                    + '}';
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.radarcns.topic.AvroTopic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records of a topic as they are stored in a cache. Keys are decoded, but values are kept in
+ * Avro binary encoding, so that they can be uploaded without decoding and encoding them again.
+ * All values are stored in a single buffer, see {@link #getBuffer()}. A value is only decoded
+ * when requested with {@link #getValue(int)}.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class SerializedRecords<K, V> {
+    private final AvroTopic<K, V> topic;
+    private final List<K> keys;
+    private SpecificDatumReader<V> valueReader;
+    private byte[] buffer;
+    private int bufferSize;
+    private int[] valueOffsets;
+    private int[] valueLengths;
+
+    /** Empty records of given topic. */
+    SerializedRecords(AvroTopic<K, V> topic) {
+        this.topic = topic;
+        this.keys = new ArrayList<>();
+        this.buffer = new byte[0];
+        this.bufferSize = 0;
+        this.valueOffsets = new int[16];
+        this.valueLengths = new int[16];
+    }
+
+    /**
+     * Read the data of a stored record into the buffer.
+     * @param in input with the record data, which reports its remaining length as available
+     * @return offset of the data in the buffer
+     * @throws IOException if the data cannot be read
+     */
+    int readData(InputStream in) throws IOException {
+        int length = in.available();
+        ensureCapacity(length);
+        int offset = bufferSize;
+        int numRead = 0;
+        while (numRead < length) {
+            int n = in.read(buffer, offset + numRead, length - numRead);
+            if (n < 0) {
+                throw new IOException("Record data ended early");
+            }
+            numRead += n;
+        }
+        bufferSize += length;
+        return offset;
+    }
+
+    /**
+     * Add a record with given serialized value.
+     * @param key decoded key
+     * @param value buffer with the serialized value
+     * @param offset offset of the value in the buffer
+     * @param length length of the value
+     */
+    void add(K key, byte[] value, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(value, offset, buffer, bufferSize, length);
+        add(key, bufferSize, length);
+        bufferSize += length;
+    }
+
+    /** Make room in the buffer for given number of additional bytes. */
+    private void ensureCapacity(int length) {
+        if (bufferSize + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(bufferSize + length, buffer.length * 2));
+        }
+    }
+
+    /**
+     * Add a record of which the data was read with {@link #readData(InputStream)}.
+     * @param key decoded key
+     * @param valueOffset offset of the serialized value in the buffer
+     * @param valueLength length of the serialized value
+     */
+    void add(K key, int valueOffset, int valueLength) {
+        int index = keys.size();
+        if (index == valueOffsets.length) {
+            valueOffsets = Arrays.copyOf(valueOffsets, index * 2);
+            valueLengths = Arrays.copyOf(valueLengths, index * 2);
+        }
+        keys.add(key);
+        valueOffsets[index] = valueOffset;
+        valueLengths[index] = valueLength;
+    }
+
+    public AvroTopic<K, V> getTopic() {
+        return topic;
+    }
+
+    /** Number of records. */
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /** Number of records from the start that have the same key as the first record. */
+    public int getKeyRunLength() {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        K firstKey = keys.get(0);
+        int length = 1;
+        while (length < keys.size() && firstKey.equals(keys.get(length))) {
+            length++;
+        }
+        return length;
+    }
+
+    /** Key of the record at given index. */
+    public K getKey(int index) {
+        return keys.get(index);
+    }
+
+    /**
+     * Buffer with the serialized values. It may also contain other data.
+     * @see #getValueOffset(int)
+     * @see #getValueLength(int)
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /** Offset in the buffer of the serialized value of the record at given index. */
+    public int getValueOffset(int index) {
+        return valueOffsets[index];
+    }
+
+    /** Length of the serialized value of the record at given index. */
+    public int getValueLength(int index) {
+        return valueLengths[index];
+    }
+
+    /** Number of bytes that the records take up in the cache. */
+    public long getSerializedSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Decode the value of the record at given index.
+     * @throws IOException if the value cannot be decoded
+     */
+    public V getValue(int index) throws IOException {
+        if (valueReader == null) {
+            valueReader = new SpecificDatumReader<>(topic.getValueSchema());
+        }
+        BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(
+                buffer, valueOffsets[index], valueLengths[index], null);
+        try {
+            return valueReader.read(null, decoder);
+        } catch (RuntimeException ex) {
+            throw new IOException("Failed to deserialize object", ex);
+        }
+    }
+}
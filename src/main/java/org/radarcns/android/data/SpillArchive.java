@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import org.apache.avro.specific.SpecificRecord;
+import org.radarcns.data.Record;
+import org.radarcns.topic.AvroTopic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed archive of records that did not fit in a {@link TapeCache}, see
+ * {@link OverflowPolicy#SPILL}. Records are appended in blocks, each a four-byte length followed
+ * by the deflated records of a single append. In a block, each record is stored as a four-byte
+ * length followed by its serialized key and value. A block that was only partially written, for
+ * example because the app stopped while appending it, is removed before new blocks are appended
+ * or the archive is read.
+ *
+ * Records can only be read back all at once, in order, see {@link #takeAll()}.
+ *
+ * @param <K> record key type
+ * @param <V> record value type
+ */
+class SpillArchive<K extends SpecificRecord, V extends SpecificRecord> {
+    private static final Logger logger = LoggerFactory.getLogger(SpillArchive.class);
+
+    private final File file;
+    private final File restoreFile;
+    private final TapeAvroConverter<K, V> converter;
+    private final ByteArrayOutputStream recordBuffer;
+    private final ByteArrayOutputStream blockBuffer;
+    /** Whether an incomplete block at the end of the archive file was removed. */
+    private boolean isTruncated;
+
+    /**
+     * Archive stored in given file. The file is only created once records are appended.
+     * @throws IOException if the converter for the topic cannot be created.
+     */
+    SpillArchive(AvroTopic<K, V> topic, File file) throws IOException {
+        this.file = file;
+        this.restoreFile = restoreFile(file);
+        this.converter = new TapeAvroConverter<>(topic);
+        this.recordBuffer = new ByteArrayOutputStream(256);
+        this.blockBuffer = new ByteArrayOutputStream(4096);
+        this.isTruncated = false;
+    }
+
+    /** File that records of an archive in given file are moved to while they are read. */
+    static File restoreFile(File file) {
+        return new File(file.getPath() + ".restore");
+    }
+
+    /** Whether the archive contains no records. */
+    boolean isEmpty() {
+        return !file.exists() && !restoreFile.exists();
+    }
+
+    /** Size of the archive in bytes. */
+    long size() {
+        return file.length() + restoreFile.length();
+    }
+
+    /**
+     * Append records to the archive as a single block.
+     * @param records records to take records from
+     * @param from index of the first record to append
+     * @param to index after the last record to append
+     * @throws IOException if the records cannot be written
+     */
+    void append(List<Record<K, V>> records, int from, int to) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        if (!isTruncated) {
+            truncateIncompleteBlock(file);
+            isTruncated = true;
+        }
+        blockBuffer.reset();
+        try (DataOutputStream blockOut = new DataOutputStream(
+                new DeflaterOutputStream(blockBuffer))) {
+            blockOut.writeInt(to - from);
+            for (int i = from; i < to; i++) {
+                recordBuffer.reset();
+                converter.serialize(records.get(i), recordBuffer);
+                blockOut.writeInt(recordBuffer.size());
+                recordBuffer.writeTo(blockOut);
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+            out.writeInt(blockBuffer.size());
+            blockBuffer.writeTo(out);
+        }
+    }
+
+    /**
+     * Take all records out of the archive to read them. New records may be appended while
+     * reading. If the reader is not {@link Reader#finish() finished}, for example after an
+     * error, its records are kept in front of any new records.
+     * @throws IOException if the archive cannot be opened.
+     */
+    Reader<K, V> takeAll() throws IOException {
+        truncateIncompleteBlock(file);
+        isTruncated = true;
+        if (restoreFile.exists()) {
+            truncateIncompleteBlock(restoreFile);
+            // records of an earlier read come first
+            if (file.exists()) {
+                try (InputStream in = new FileInputStream(file);
+                     OutputStream out = new FileOutputStream(restoreFile, true)) {
+                    byte[] buffer = new byte[8192];
+                    int numRead;
+                    while ((numRead = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, numRead);
+                    }
+                }
+                if (!file.delete()) {
+                    throw new IOException("Cannot remove merged archive " + file);
+                }
+            }
+        } else if (!file.renameTo(restoreFile)) {
+            throw new IOException("Cannot read archive " + file);
+        }
+        return new Reader<>(restoreFile, converter);
+    }
+
+    /**
+     * Remove a block at the end of given archive file that was only partially written, so that
+     * new blocks follow the last complete block.
+     * @throws IOException if the file cannot be read or truncated
+     */
+    private static void truncateIncompleteBlock(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (RandomAccessFile archive = new RandomAccessFile(file, "rw")) {
+            long length = archive.length();
+            long position = 0L;
+            while (position + 4L <= length) {
+                archive.seek(position);
+                int blockLength = archive.readInt();
+                if (blockLength < 0 || position + 4L + blockLength > length) {
+                    break;
+                }
+                position += 4L + blockLength;
+            }
+            if (position < length) {
+                logger.warn("Removing incomplete block of {} bytes from {}",
+                        length - position, file);
+                archive.setLength(position);
+            }
+        }
+    }
+
+    /** Reads the records of an archive, one block at a time. */
+    static class Reader<K extends SpecificRecord, V extends SpecificRecord> implements Closeable {
+        private final File file;
+        private final DataInputStream in;
+        private final TapeAvroConverter<K, V> converter;
+        private byte[] buffer;
+
+        private Reader(File file, TapeAvroConverter<K, V> converter) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            this.converter = converter;
+            this.buffer = new byte[4096];
+        }
+
+        /**
+         * Read the records of the next block.
+         * @param records list to add the records to
+         * @return whether a block was read, or false if there are no more blocks.
+         * @throws IOException if the block cannot be read or decoded.
+         */
+        boolean readBlock(List<Record<K, V>> records) throws IOException {
+            int blockLength;
+            try {
+                blockLength = in.readInt();
+                if (blockLength > buffer.length) {
+                    buffer = new byte[Math.max(blockLength, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, blockLength);
+            } catch (EOFException ex) {
+                return false;
+            }
+
+            try (DataInputStream blockIn = new DataInputStream(new InflaterInputStream(
+                    new ByteArrayInputStream(buffer, 0, blockLength)))) {
+                int numRecords = blockIn.readInt();
+                byte[] recordData = new byte[256];
+                for (int i = 0; i < numRecords; i++) {
+                    int recordLength = blockIn.readInt();
+                    if (recordLength > recordData.length) {
+                        recordData = new byte[Math.max(recordLength, recordData.length * 2)];
+                    }
+                    blockIn.readFully(recordData, 0, recordLength);
+                    records.add(converter.deserialize(
+                            new ByteArrayInputStream(recordData, 0, recordLength)));
+                }
+            }
+            return true;
+        }
+
+        /** Remove the records that were taken from the archive. */
+        void finish() throws IOException {
+            close();
+            if (!file.delete()) {
+                logger.warn("Cannot remove restored archive {}", file);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+import android.util.Pair;
+
+import org.apache.avro.specific.SpecificRecord;
+import org.radarcns.data.Record;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.topic.AvroTopic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of a topic that stores the records of each subject in a separate cache. Measurements are
+ * added to the cache of the user ID in their key. All other operations act on the cache of the
+ * current subject, see {@link #setSubject(String)}, so that data of other subjects is kept until
+ * they are the current subject again.
+ *
+ * <p>The cache of the current subject is kept in a volatile field, so adding measurements of the
+ * current subject does not need to look up its cache or acquire a lock.
+ *
+ * @param <V> measurement value type
+ */
+public class SubjectPartitionedCache<V extends SpecificRecord> implements ExtendedDataCache<ObservationKey, V> {
+    private static final Logger logger = LoggerFactory.getLogger(SubjectPartitionedCache.class);
+    /**
+     * Partition key of records without a user ID, since the partition map has no null keys.
+     * Their cache is stored in a subject directory of its own, not in the cache that was shared by
+     * all subjects, which is moved to the subject caches and removed.
+     */
+    private static final String NO_SUBJECT = "";
+
+    private final Context context;
+    private final AvroTopic<ObservationKey, V> topic;
+    private final ConcurrentMap<String, ExtendedDataCache<ObservationKey, V>> partitions;
+    private volatile CurrentPartition<V> current;
+    /** Partition that records were last read from for an upload, so they are removed there. */
+    private volatile CurrentPartition<V> uploadRead;
+    /** Partition that each list of records came from, so it is returned there. */
+    private final Map<List<?>, ExtendedDataCache<ObservationKey, V>> lentLists;
+    private long timeWindowMillis;
+    private int maximumSize;
+    private boolean frameEncoding;
+    private OverflowPolicy overflowPolicy;
+    private long highWatermark;
+    /** Listener given to {@link #setHighWatermark(long, HighWatermarkListener)}. */
+    private HighWatermarkListener highWatermarkOwner;
+    /** Listener that is set on the partitions. */
+    private HighWatermarkListener highWatermarkListener;
+    private float backpressureLevel;
+    /** Listener given to {@link #setBackpressureListener(float, BackpressureListener)}. */
+    private BackpressureListener backpressureOwner;
+    /** Listener that is set on the partitions. */
+    private BackpressureListener backpressureListener;
+
+    /**
+     * Cache partitioned by subject.
+     * @param context Android context to create caches with.
+     * @param topic Kafka Avro topic to write data for.
+     * @param subject user ID of the current subject, or {@code null} if there is none.
+     */
+    public SubjectPartitionedCache(Context context, AvroTopic<ObservationKey, V> topic,
+                                   String subject) {
+        this.context = context;
+        this.topic = topic;
+        this.current = new CurrentPartition<>(subject, null);
+        this.partitions = new ConcurrentHashMap<>();
+        this.lentLists = Collections.synchronizedMap(
+                new IdentityHashMap<List<?>, ExtendedDataCache<ObservationKey, V>>());
+        this.timeWindowMillis = -1L;
+        this.maximumSize = -1;
+        this.frameEncoding = false;
+        this.overflowPolicy = OverflowPolicy.REJECT_NEWEST;
+    }
+
+    /** Set the user ID of the current subject, or {@code null} if there is none. */
+    public synchronized void setSubject(String subject) {
+        current = new CurrentPartition<>(subject,
+                subject != null ? partitions.get(subject) : null);
+    }
+
+    /** User ID of the current subject, or {@code null} if there is none. */
+    public String getSubject() {
+        return current.subject;
+    }
+
+    /**
+     * Get the cache of a single subject, creating it if needed. The returned cache is closed
+     * when this cache is closed.
+     */
+    public ExtendedDataCache<ObservationKey, V> getPartition(String subject) throws IOException {
+        String partitionKey = subject != null ? subject : NO_SUBJECT;
+        ExtendedDataCache<ObservationKey, V> partition = partitions.get(partitionKey);
+        if (partition != null) {
+            return partition;
+        }
+        synchronized (this) {
+            partition = partitions.get(partitionKey);
+            if (partition != null) {
+                return partition;
+            }
+            partition = CacheStore.getInstance().getOrCreateCache(context, topic, partitionKey);
+            if (timeWindowMillis >= 0L) {
+                partition.setTimeWindow(timeWindowMillis);
+            }
+            if (maximumSize >= 0) {
+                partition.setMaximumSize(maximumSize);
+            }
+            partition.setFrameEncoding(frameEncoding);
+            partition.setOverflowPolicy(overflowPolicy);
+            if (highWatermarkListener != null) {
+                partition.setHighWatermark(highWatermark, highWatermarkListener);
+            }
+            if (backpressureListener != null) {
+                partition.setBackpressureListener(backpressureLevel, backpressureListener);
+            }
+            partitions.put(partitionKey, partition);
+            if (subject != null && subject.equals(current.subject)) {
+                current = new CurrentPartition<>(subject, partition);
+            }
+            return partition;
+        }
+    }
+
+    /** Cache of the current subject, or {@code null} if there is no current subject. */
+    private ExtendedDataCache<ObservationKey, V> current() throws IOException {
+        CurrentPartition<V> currentPartition = current;
+        if (currentPartition.cache != null) {
+            return currentPartition.cache;
+        }
+        return currentPartition.subject != null ? getPartition(currentPartition.subject) : null;
+    }
+
+    /** Cache of the current subject if it was already created, or {@code null} otherwise. */
+    private ExtendedDataCache<ObservationKey, V> currentIfPresent() {
+        return current.cache;
+    }
+
+    /** Cache of the user ID of given key, without a lookup if it is the current subject. */
+    private ExtendedDataCache<ObservationKey, V> partitionOf(ObservationKey key) throws IOException {
+        CurrentPartition<V> currentPartition = current;
+        if (currentPartition.cache != null
+                && Objects.equals(currentPartition.subject, key.getUserId())) {
+            return currentPartition.cache;
+        }
+        return getPartition(key.getUserId());
+    }
+
+    /** Cache of the current subject, remembered as the partition to remove records from. */
+    private ExtendedDataCache<ObservationKey, V> readForUpload() throws IOException {
+        CurrentPartition<V> currentPartition = current;
+        ExtendedDataCache<ObservationKey, V> partition = current();
+        uploadRead = new CurrentPartition<>(currentPartition.subject, partition);
+        return partition;
+    }
+
+    /** Remember that a list of records came from given partition. */
+    private <T extends List<?>> T lend(T list, ExtendedDataCache<ObservationKey, V> partition) {
+        lentLists.put(list, partition);
+        return list;
+    }
+
+    private List<ExtendedDataCache<ObservationKey, V>> allPartitions() {
+        return new ArrayList<>(partitions.values());
+    }
+
+    /**
+     * Move all records of a cache that is shared by all subjects to the cache of their subject.
+     * Records are removed from the shared cache once they are stored in the cache of their
+     * subject. If the cache of a subject rejects, downsamples or fails to write any of its
+     * records, the records from that subject onwards are kept in the shared cache and an
+     * exception is thrown. The records of that subject that were stored are then moved again by
+     * a later import.
+     * @param sharedCache cache with records of any subject
+     * @param batchSize number of records to move at a time
+     * @return number of records moved.
+     * @throws IOException if the records cannot be read, stored or removed.
+     */
+    public int importRecords(DataCache<ObservationKey, V> sharedCache, int batchSize)
+            throws IOException {
+        int numberOfRecords = 0;
+        while (true) {
+            List<Record<ObservationKey, V>> records = sharedCache.unsentRecords(batchSize);
+            try {
+                if (records.isEmpty()) {
+                    break;
+                }
+                int numStored = 0;
+                try {
+                    while (numStored < records.size()) {
+                        numStored += importSubjectRecords(records, numStored);
+                    }
+                } finally {
+                    sharedCache.remove(numStored);
+                    numberOfRecords += numStored;
+                }
+            } finally {
+                sharedCache.returnList(records);
+            }
+        }
+        if (numberOfRecords > 0) {
+            logger.info("Moved {} records of topic {} to the cache of their subject",
+                    numberOfRecords, topic.getName());
+        }
+        return numberOfRecords;
+    }
+
+    /**
+     * Store the records of a single subject in the cache of that subject and write them to disk.
+     * @param records records to store
+     * @param from index of the first record to store; following records of the same subject are
+     *             stored too
+     * @return number of records stored.
+     * @throws IOException if the cache of the subject did not store all records.
+     */
+    private int importSubjectRecords(List<Record<ObservationKey, V>> records, int from)
+            throws IOException {
+        String subject = records.get(from).key.getUserId();
+        int to = from + 1;
+        while (to < records.size() && Objects.equals(subject, records.get(to).key.getUserId())) {
+            to++;
+        }
+        ExtendedDataCache<ObservationKey, V> partition = getPartition(subject);
+        long numLostBefore = numLost(partition.getOverflowStats());
+        for (int i = from; i < to; i++) {
+            Record<ObservationKey, V> record = records.get(i);
+            partition.addMeasurement(record.key, record.value);
+        }
+        partition.flush();
+        long numLost = numLost(partition.getOverflowStats()) - numLostBefore;
+        if (numLost > 0L) {
+            throw new IOException("Cache of topic " + topic.getName() + " did not store "
+                    + numLost + " of " + (to - from) + " records of a subject");
+        }
+        return to - from;
+    }
+
+    /** Number of records that a cache did not store at all. */
+    private static long numLost(OverflowPolicy.Stats stats) {
+        return stats.rejected + stats.downsampled + stats.failed;
+    }
+
+    @Override
+    public List<Record<ObservationKey, V>> unsentRecords(int limit) throws IOException {
+        return unsentRecords(limit, Long.MAX_VALUE);
+    }
+
+    @Override
+    public List<Record<ObservationKey, V>> unsentRecords(int limit, long sizeLimit) throws IOException {
+        ExtendedDataCache<ObservationKey, V> partition = readForUpload();
+        if (partition == null) {
+            return new ArrayList<>();
+        }
+        return lend(partition.unsentRecords(limit, sizeLimit), partition);
+    }
+
+    @Override
+    public SerializedRecords<ObservationKey, V> unsentSerializedRecords(int limit, long sizeLimit)
+            throws IOException {
+        ExtendedDataCache<ObservationKey, V> partition = readForUpload();
+        if (partition == null) {
+            return new SerializedRecords<>(topic);
+        }
+        return partition.unsentSerializedRecords(limit, sizeLimit);
+    }
+
+    @Override
+    public List<Record<ObservationKey, V>> getRecords(int limit) throws IOException {
+        ExtendedDataCache<ObservationKey, V> partition = current();
+        if (partition == null) {
+            return new ArrayList<>();
+        }
+        return lend(partition.getRecords(limit), partition);
+    }
+
+    @Override
+    public Pair<Long, Long> numberOfRecords() {
+        ExtendedDataCache<ObservationKey, V> partition = currentIfPresent();
+        if (partition == null) {
+            return new Pair<>(0L, 0L);
+        }
+        return partition.numberOfRecords();
+    }
+
+    @Override
+    public long numberOfBytes() {
+        ExtendedDataCache<ObservationKey, V> partition = currentIfPresent();
+        return partition != null ? partition.numberOfBytes() : 0L;
+    }
+
+    @Override
+    public long getOldestTime() throws IOException {
+        ExtendedDataCache<ObservationKey, V> partition = currentIfPresent();
+        return partition != null ? partition.getOldestTime() : Long.MAX_VALUE;
+    }
+
+    @Override
+    public float getFillLevel() {
+        ExtendedDataCache<ObservationKey, V> partition = currentIfPresent();
+        return partition != null ? partition.getFillLevel() : 0f;
+    }
+
+    @Override
+    public long getFlushLag() {
+        ExtendedDataCache<ObservationKey, V> partition = currentIfPresent();
+        return partition != null ? partition.getFlushLag() : 0L;
+    }
+
+    /**
+     * Remove records from the partition that records were last read from with
+     * {@link #unsentRecords(int)} or {@link #unsentSerializedRecords(int, long)}, even if the
+     * current subject has changed since. Without such a read, records are removed from the
+     * partition of the current subject.
+     */
+    @Override
+    public int remove(int number) throws IOException {
+        CurrentPartition<V> read = uploadRead;
+        uploadRead = null;
+        ExtendedDataCache<ObservationKey, V> partition = read != null ? read.cache : current();
+        return partition != null ? partition.remove(number) : 0;
+    }
+
+    @Override
+    public void addMeasurement(ObservationKey key, V value) {
+        try {
+            partitionOf(key).addMeasurement(key, value);
+        } catch (IOException ex) {
+            logger.error("Cannot create cache of topic {} for subject {}",
+                    topic.getName(), key.getUserId(), ex);
+        }
+    }
+
+    @Override
+    public void addMeasurements(ObservationKey key, Collection<? extends V> values) {
+        try {
+            partitionOf(key).addMeasurements(key, values);
+        } catch (IOException ex) {
+            logger.error("Cannot create cache of topic {} for subject {}",
+                    topic.getName(), key.getUserId(), ex);
+        }
+    }
+
+    @Override
+    public int removeBeforeTimestamp(long millis) {
+        int numberOfRecords = 0;
+        for (ExtendedDataCache<ObservationKey, V> partition : allPartitions()) {
+            numberOfRecords += partition.removeBeforeTimestamp(millis);
+        }
+        return numberOfRecords;
+    }
+
+    @Override
+    public AvroTopic<ObservationKey, V> getTopic() {
+        return topic;
+    }
+
+    @Override
+    public void writeRecordsToParcel(Parcel dest, int limit) throws IOException {
+        ExtendedDataCache<ObservationKey, V> partition = current();
+        if (partition == null) {
+            dest.writeInt(0);
+        } else {
+            partition.writeRecordsToParcel(dest, limit);
+        }
+    }
+
+    /**
+     * Return a list to the cache of the subject that it came from, even if the current subject
+     * has changed since.
+     */
+    @Override
+    public void returnList(List list) {
+        ExtendedDataCache<ObservationKey, V> partition = lentLists.remove(list);
+        if (partition != null) {
+            partition.returnList(list);
+        }
+    }
+
+    @Override
+    public void returnListAndValues(List list) {
+        ExtendedDataCache<ObservationKey, V> partition = lentLists.remove(list);
+        if (partition != null) {
+            partition.returnListAndValues(list);
+        }
+    }
+
+    @Override
+    public void setTimeWindow(long period) {
+        synchronized (this) {
+            timeWindowMillis = period;
+        }
+        for (ExtendedDataCache<ObservationKey, V> partition : allPartitions()) {
+            partition.setTimeWindow(period);
+        }
+    }
+
+    @Override
+    public void setMaximumSize(int bytes) {
+        synchronized (this) {
+            maximumSize = bytes;
+        }
+        for (ExtendedDataCache<ObservationKey, V> partition : allPartitions()) {
+            partition.setMaximumSize(bytes);
+        }
+    }
+
+    @Override
+    public void setFrameEncoding(boolean frameEncoding) {
+        synchronized (this) {
+            this.frameEncoding = frameEncoding;
+        }
+        for (ExtendedDataCache<ObservationKey, V> partition : allPartitions()) {
+            partition.setFrameEncoding(frameEncoding);
+        }
+    }
+
+    @Override
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        synchronized (this) {
+            this.overflowPolicy = policy;
+        }
+        for (ExtendedDataCache<ObservationKey, V> partition : allPartitions()) {
+            partition.setOverflowPolicy(policy);
+        }
+    }
+
+    /** Overflow statistics of the cache of the current subject. */
+    @Override
+    public OverflowPolicy.Stats getOverflowStats() {
+        ExtendedDataCache<ObservationKey, V> partition = currentIfPresent();
+        return partition != null
+                ? partition.getOverflowStats() : new OverflowPolicy.Stats(0L, 0L, 0L, 0L, 0L, 0L);
+    }
+
+    /**
+     * Set the high watermark of all partitions. The listener is only notified for the partition
+     * of the current subject, with this cache as argument.
+     */
+    @Override
+    public void setHighWatermark(long numberOfRecords, @NonNull final HighWatermarkListener listener) {
+        HighWatermarkListener partitionListener;
+        synchronized (this) {
+            if (highWatermarkOwner != listener) {
+                highWatermarkOwner = listener;
+                highWatermarkListener = new HighWatermarkListener() {
+                    @Override
+                    public void onHighWatermark(DataCache<?, ?> cache) {
+                        if (cache == currentIfPresent()) {
+                            listener.onHighWatermark(SubjectPartitionedCache.this);
+                        }
+                    }
+                };
+            }
+            highWatermark = numberOfRecords;
+            partitionListener = highWatermarkListener;
+        }
+        for (ExtendedDataCache<ObservationKey, V> partition : allPartitions()) {
+            partition.setHighWatermark(numberOfRecords, partitionListener);
+        }
+    }
+
+    @Override
+    public void removeHighWatermark(@NonNull HighWatermarkListener listener) {
+        HighWatermarkListener partitionListener;
+        synchronized (this) {
+            if (highWatermarkOwner != listener) {
+                return;
+            }
+            partitionListener = highWatermarkListener;
+            highWatermarkOwner = null;
+            highWatermarkListener = null;
+        }
+        for (ExtendedDataCache<ObservationKey, V> partition : allPartitions()) {
+            partition.removeHighWatermark(partitionListener);
+        }
+    }
+
+    /**
+     * Set the backpressure level of all partitions. The listener is only notified for the
+     * partition of the current subject, with this cache as argument.
+     */
+    @Override
+    public void setBackpressureListener(float fillLevel,
+            @NonNull final BackpressureListener listener) {
+        BackpressureListener partitionListener;
+        synchronized (this) {
+            if (backpressureOwner != listener) {
+                backpressureOwner = listener;
+                backpressureListener = new BackpressureListener() {
+                    @Override
+                    public void onBackpressure(DataCache<?, ?> cache, boolean hasBackpressure) {
+                        if (cache == currentIfPresent()) {
+                            listener.onBackpressure(
+                                    SubjectPartitionedCache.this, hasBackpressure);
+                        }
+                    }
+                };
+            }
+            backpressureLevel = fillLevel;
+            partitionListener = backpressureListener;
+        }
+        for (ExtendedDataCache<ObservationKey, V> partition : allPartitions()) {
+            partition.setBackpressureListener(fillLevel, partitionListener);
+        }
+    }
+
+    @Override
+    public void removeBackpressureListener(@NonNull BackpressureListener listener) {
+        BackpressureListener partitionListener;
+        synchronized (this) {
+            if (backpressureOwner != listener) {
+                return;
+            }
+            partitionListener = backpressureListener;
+            backpressureOwner = null;
+            backpressureListener = null;
+        }
+        for (ExtendedDataCache<ObservationKey, V> partition : allPartitions()) {
+            partition.removeBackpressureListener(partitionListener);
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (ExtendedDataCache<ObservationKey, V> partition : allPartitions()) {
+            partition.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<ExtendedDataCache<ObservationKey, V>> closing;
+        synchronized (this) {
+            closing = new ArrayList<>(partitions.values());
+            partitions.clear();
+            lentLists.clear();
+            current = new CurrentPartition<>(current.subject, null);
+            uploadRead = null;
+        }
+        IOException exception = null;
+        for (ExtendedDataCache<ObservationKey, V> partition : closing) {
+            try {
+                CacheStore.getInstance().releaseCache(partition);
+            } catch (IOException ex) {
+                if (exception == null) {
+                    exception = ex;
+                } else {
+                    logger.warn("Failed to close cache of topic {}", topic.getName(), ex);
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /** Subject together with its cache, so that both can be read at once. */
+    private static class CurrentPartition<V extends SpecificRecord> {
+        private final String subject;
+        /** Cache of the subject, or {@code null} if it was not created yet. */
+        private final ExtendedDataCache<ObservationKey, V> cache;
+
+        private CurrentPartition(String subject, ExtendedDataCache<ObservationKey, V> cache) {
+            this.subject = subject;
+            this.cache = cache;
+        }
+    }
+}
@@ -17,30 +17,43 @@
 package org.radarcns.android.data;
 
 import android.content.Context;
+import android.os.PowerManager;
 import android.os.Process;
 import android.support.annotation.NonNull;
 
 import org.apache.avro.specific.SpecificRecord;
 import org.radarcns.android.auth.AppAuthState;
+import org.radarcns.android.kafka.AdaptiveCompression;
+import org.radarcns.android.kafka.BinaryRestSender;
 import org.radarcns.android.kafka.KafkaDataSubmitter;
 import org.radarcns.android.kafka.ServerStatusListener;
+import org.radarcns.android.kafka.UploadMetrics;
+import org.radarcns.android.kafka.UploadScheduler;
+import org.radarcns.android.kafka.UploadWindow;
 import org.radarcns.android.util.AndroidThreadFactory;
 import org.radarcns.android.util.AtomicFloat;
 import org.radarcns.android.util.BatteryLevelReceiver;
+import org.radarcns.android.util.HttpConnectionPool;
 import org.radarcns.android.util.NetworkConnectedReceiver;
 import org.radarcns.android.util.SharedSingleThreadExecutorFactory;
 import org.radarcns.android.util.SingleThreadExecutorFactory;
 import org.radarcns.config.ServerConfig;
 import org.radarcns.kafka.ObservationKey;
+import org.radarcns.producer.KafkaSender;
 import org.radarcns.producer.rest.RestSender;
 import org.radarcns.producer.rest.SchemaRetriever;
 import org.radarcns.topic.AvroTopic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Locale;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -57,24 +70,47 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
 
     public static final long DATA_RETENTION_DEFAULT = 86400000L;
     public static final int SEND_LIMIT_DEFAULT = 1000;
+    public static final int SEND_LIMIT_MIN_DEFAULT = 100;
+    public static final int SEND_LIMIT_MAX_DEFAULT = 10000;
+    public static final long UPLOAD_LATENCY_TARGET_DEFAULT = 10_000L;
     public static final long UPLOAD_RATE_DEFAULT = 10L;
     public static final long SENDER_CONNECTION_TIMEOUT_DEFAULT = 10L;
     public static final float MINIMUM_BATTERY_LEVEL = 0.1f;
     public static final float REDUCED_BATTERY_LEVEL = 0.2f;
+    public static final float BACKPRESSURE_LEVEL_DEFAULT = 0.8f;
 
-    private final Map<AvroTopic<ObservationKey, ? extends SpecificRecord>, DataCache<ObservationKey, ? extends SpecificRecord>> tables = new ConcurrentHashMap<>();
-    private final Map<String, DataCache<ObservationKey, ? extends SpecificRecord>> tablesByName = new ConcurrentHashMap<>();
+    private final Map<AvroTopic<ObservationKey, ? extends SpecificRecord>, SubjectPartitionedCache<? extends SpecificRecord>> tables = new ConcurrentHashMap<>();
+    private final Map<String, SubjectPartitionedCache<? extends SpecificRecord>> tablesByName = new ConcurrentHashMap<>();
+    /** Caches of the current subject, updated when the subject changes or a topic is registered. */
+    private volatile Map<AvroTopic<ObservationKey, ? extends SpecificRecord>, DataCache<ObservationKey, ? extends SpecificRecord>> currentCaches = Collections.emptyMap();
     private final Set<ServerStatusListener> statusListeners;
+    private final Set<ExtendedDataCache.BackpressureListener> backpressureListeners;
+    /** Listener that is set on all caches, to notify the backpressure listeners. */
+    private final ExtendedDataCache.BackpressureListener cacheBackpressureListener;
     private final SingleThreadExecutorFactory executorFactory;
     private final BatteryLevelReceiver batteryLevelReceiver;
     private final NetworkConnectedReceiver networkConnectedReceiver;
     private final AtomicBoolean sendOnlyWithWifi;
     private final Context context;
     private int maxBytes;
+    private Set<String> frameEncodedTopics;
+    private float backpressureLevel;
+    private Map<String, OverflowPolicy> overflowPolicies;
     private AppAuthState authState;
     private ServerConfig kafkaConfig;
     private SchemaRetriever schemaRetriever;
     private int kafkaRecordsSendLimit;
+    private long kafkaRecordsSizeLimit;
+    private boolean kafkaRecordsSendLimitAdaptive;
+    private int kafkaRecordsSendLimitMin;
+    private int kafkaRecordsSendLimitMax;
+    private long kafkaUploadLatencyTarget;
+    private int kafkaUploadParallelism;
+    private long kafkaMaxBytesInFlight;
+    private UploadScheduler.Policy kafkaUploadPolicy;
+    private Map<String, Integer> kafkaTopicPriorities;
+    private int kafkaTrySendCapacity;
+    private int kafkaUploadRequestsPerMinute;
     private final AtomicLong dataRetention;
     private long kafkaUploadRate;
     private long senderConnectionTimeout;
@@ -82,9 +118,16 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
     private ServerStatusListener.Status status;
     private Map<String, Integer> lastNumberOfRecordsSent = new TreeMap<>();
     private KafkaDataSubmitter<SpecificRecord> submitter;
+    private final UploadMetrics uploadMetrics;
+    private final UploadWindow uploadWindow;
     private RestSender sender;
+    private BinaryRestSender binarySender;
     private final AtomicFloat minimumBatteryLevel;
     private boolean useCompression;
+    private boolean useAdaptiveCompression;
+    private boolean useBinaryContent;
+    private float batteryLevel;
+    private boolean isPlugged;
 
     /**
      * Create a data handler. If kafkaConfig is null, data will only be stored to disk, not uploaded.
@@ -97,6 +140,20 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
         this.schemaRetriever = schemaRetriever;
         this.kafkaUploadRate = UPLOAD_RATE_DEFAULT;
         this.kafkaRecordsSendLimit = SEND_LIMIT_DEFAULT;
+        this.kafkaRecordsSizeLimit = KafkaDataSubmitter.SIZE_LIMIT_DEFAULT;
+        this.kafkaRecordsSendLimitAdaptive = false;
+        this.kafkaRecordsSendLimitMin = SEND_LIMIT_MIN_DEFAULT;
+        this.kafkaRecordsSendLimitMax = SEND_LIMIT_MAX_DEFAULT;
+        this.kafkaUploadLatencyTarget = UPLOAD_LATENCY_TARGET_DEFAULT;
+        this.kafkaUploadParallelism = KafkaDataSubmitter.UPLOAD_PARALLELISM_DEFAULT;
+        this.kafkaMaxBytesInFlight = KafkaDataSubmitter.MAX_BYTES_IN_FLIGHT_DEFAULT;
+        this.kafkaUploadPolicy = KafkaDataSubmitter.UPLOAD_POLICY_DEFAULT;
+        this.kafkaTopicPriorities = Collections.emptyMap();
+        this.frameEncodedTopics = Collections.emptySet();
+        this.backpressureLevel = BACKPRESSURE_LEVEL_DEFAULT;
+        this.overflowPolicies = Collections.emptyMap();
+        this.kafkaTrySendCapacity = KafkaDataSubmitter.TRY_SEND_CAPACITY_DEFAULT;
+        this.kafkaUploadRequestsPerMinute = KafkaDataSubmitter.UPLOAD_REQUESTS_PER_MINUTE_DEFAULT;
         this.senderConnectionTimeout = SENDER_CONNECTION_TIMEOUT_DEFAULT;
         this.minimumBatteryLevel = new AtomicFloat(MINIMUM_BATTERY_LEVEL);
         this.executorFactory = new SharedSingleThreadExecutorFactory(
@@ -104,16 +161,53 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
 
         this.batteryLevelReceiver = new BatteryLevelReceiver(context, this);
         this.networkConnectedReceiver = new NetworkConnectedReceiver(context, this);
+        this.uploadWindow = new UploadWindow(new UploadWindow.Conditions() {
+            @Override
+            public boolean isUnmetered() {
+                return networkConnectedReceiver.isUnmetered();
+            }
+
+            @Override
+            public boolean isCharging() {
+                return batteryLevelReceiver.isPlugged();
+            }
+
+            @Override
+            public boolean isIdle() {
+                PowerManager powerManager = (PowerManager) TableDataHandler.this.context
+                        .getSystemService(Context.POWER_SERVICE);
+                return powerManager != null && !powerManager.isInteractive();
+            }
+        });
         this.sendOnlyWithWifi = new AtomicBoolean(sendOnlyWithWifi);
         this.useCompression = false;
+        this.useAdaptiveCompression = false;
+        this.useBinaryContent = false;
+        this.batteryLevel = 1f;
+        this.isPlugged = false;
         this.authState = authState;
 
         dataRetention = new AtomicLong(DATA_RETENTION_DEFAULT);
 
         submitter = null;
         sender = null;
+        binarySender = null;
+        uploadMetrics = new UploadMetrics();
 
         statusListeners = new HashSet<>();
+        backpressureListeners = new HashSet<>();
+        cacheBackpressureListener = new ExtendedDataCache.BackpressureListener() {
+            @Override
+            public void onBackpressure(DataCache<?, ?> cache, boolean hasBackpressure) {
+                List<ExtendedDataCache.BackpressureListener> listeners;
+                synchronized (backpressureListeners) {
+                    listeners = new ArrayList<>(backpressureListeners);
+                }
+                for (ExtendedDataCache.BackpressureListener listener : listeners) {
+                    listener.onBackpressure(cache, hasBackpressure);
+                }
+            }
+        };
 
         if (kafkaUrl != null) {
             doEnableSubmitter();
@@ -153,15 +247,40 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
         }
 
         updateServerStatus(Status.CONNECTING);
-        this.sender = new RestSender.Builder()
-                .server(kafkaConfig)
-                .schemaRetriever(schemaRetriever)
-                .connectionTimeout(senderConnectionTimeout, TimeUnit.SECONDS)
-                .useCompression(useCompression)
-                .headers(authState.getOkHttpHeaders())
-                .build();
-        this.submitter = new KafkaDataSubmitter<>(this, sender, kafkaRecordsSendLimit,
-                getPreferredUploadRate(), authState.getUserId());
+        KafkaSender kafkaSender;
+        if (useBinaryContent) {
+            this.binarySender = new BinaryRestSender.Builder()
+                    .server(kafkaConfig)
+                    .schemaRetriever(schemaRetriever)
+                    .connectionTimeout(senderConnectionTimeout, TimeUnit.SECONDS)
+                    .useCompression(useCompression)
+                    .headers(authState.getOkHttpHeaders())
+                    .connectionPool(HttpConnectionPool.get())
+                    .build();
+            kafkaSender = binarySender;
+        } else {
+            this.sender = new RestSender.Builder()
+                    .server(kafkaConfig)
+                    .schemaRetriever(schemaRetriever)
+                    .connectionTimeout(senderConnectionTimeout, TimeUnit.SECONDS)
+                    .useCompression(useCompression)
+                    .headers(authState.getOkHttpHeaders())
+                    .connectionPool(HttpConnectionPool.get())
+                    .build();
+            kafkaSender = sender;
+        }
+        this.submitter = new KafkaDataSubmitter<>(this, kafkaSender, kafkaRecordsSendLimit,
+                getPreferredUploadRate(), uploadMetrics);
+        this.submitter.setUploadParallelism(kafkaUploadParallelism, kafkaMaxBytesInFlight);
+        this.submitter.setSizeLimit(kafkaRecordsSizeLimit);
+        this.submitter.setUploadPolicy(kafkaUploadPolicy);
+        this.submitter.setTopicPriorities(kafkaTopicPriorities);
+        this.submitter.setTrySendCapacity(kafkaTrySendCapacity);
+        this.submitter.setUploadRequestsPerMinute(kafkaUploadRequestsPerMinute);
+        this.submitter.setCompression(useCompression, useAdaptiveCompression);
+        this.submitter.setBatteryState(batteryLevel, isPlugged);
+        this.submitter.setUploadWindow(uploadWindow);
+        updateAdaptiveSendLimit();
     }
 
     public synchronized boolean isStarted() {
@@ -177,6 +296,7 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
             this.submitter.close();
             this.submitter = null;
             this.sender = null;
+            this.binarySender = null;
         }
         if (status != Status.DISABLED) {
             updateServerStatus(Status.READY);
@@ -222,6 +342,7 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
             this.submitter.close();  // will also close sender
             this.submitter = null;
             this.sender = null;
+            this.binarySender = null;
         }
         if (schemaRetriever != null) {
             schemaRetriever.close();
@@ -286,6 +407,53 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
         getCache(topic).addMeasurement(key, value);
     }
 
+    /**
+     * Add measurements with the same key using given cache, in order. This has less overhead than
+     * adding the measurements one by one.
+     */
+    @SuppressWarnings("unchecked")
+    public <W extends SpecificRecord> void addMeasurements(AvroTopic<ObservationKey, W> topic,
+            ObservationKey key, Collection<? extends W> values) {
+        ((SubjectPartitionedCache<W>) tables.get(topic)).addMeasurements(key, values);
+    }
+
+    /**
+     * Add measurements with the same key and write them to the cache before returning, for
+     * example to import records that were stored on a device.
+     * @return whether all measurements were written. This is false if the cache rejected or
+     *         skipped any of them by its overflow policy, or if they could not be written. It may
+     *         also be false if other records of the same subject and topic were not written at
+     *         the same time.
+     */
+    @SuppressWarnings("unchecked")
+    public <W extends SpecificRecord> boolean importMeasurements(
+            AvroTopic<ObservationKey, W> topic, ObservationKey key,
+            Collection<? extends W> values) {
+        SubjectPartitionedCache<W> cache = (SubjectPartitionedCache<W>) tables.get(topic);
+        if (cache == null) {
+            logger.error("Cannot import records of unregistered topic {}", topic.getName());
+            return false;
+        }
+        ExtendedDataCache<ObservationKey, W> partition;
+        try {
+            partition = cache.getPartition(key.getUserId());
+        } catch (IOException ex) {
+            logger.error("Cannot import records of topic {}", topic.getName(), ex);
+            return false;
+        }
+        OverflowPolicy.Stats before = partition.getOverflowStats();
+        partition.addMeasurements(key, values);
+        partition.flush();
+        OverflowPolicy.Stats after = partition.getOverflowStats();
+        if (after.rejected > before.rejected || after.downsampled > before.downsampled
+                || after.failed > before.failed) {
+            logger.warn("Not all imported records of topic {} were written: {}",
+                    topic.getName(), after);
+            return false;
+        }
+        return true;
+    }
+
     @Override
     public void setMaximumCacheSize(int numBytes) {
         maxBytes = numBytes;
@@ -294,8 +462,100 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
         }
     }
 
+    /**
+     * Set the names of topics whose records are cached in compressed frames of multiple records.
+     * Only topics with numeric values can be cached that way. Existing caches change their
+     * format once they are empty.
+     */
+    public synchronized void setFrameEncodedTopics(Set<String> topicNames) {
+        frameEncodedTopics = Collections.unmodifiableSet(new HashSet<>(topicNames));
+        for (Map.Entry<AvroTopic<ObservationKey, ? extends SpecificRecord>, SubjectPartitionedCache<? extends SpecificRecord>> entry
+                : tables.entrySet()) {
+            entry.getValue().setFrameEncoding(
+                    frameEncodedTopics.contains(entry.getKey().getName()));
+        }
+    }
+
+    /**
+     * Set the overflow policies of caches, per topic name. Caches of other topics drop new
+     * records that do not fit, see {@link OverflowPolicy#REJECT_NEWEST}.
+     */
+    public synchronized void setOverflowPolicies(Map<String, OverflowPolicy> policies) {
+        overflowPolicies = Collections.unmodifiableMap(new HashMap<>(policies));
+        for (SubjectPartitionedCache<? extends SpecificRecord> cache : tables.values()) {
+            cache.setOverflowPolicy(overflowPolicy(cache.getTopic().getName()));
+        }
+    }
+
+    /** Overflow policy of a topic. */
+    private synchronized OverflowPolicy overflowPolicy(String topicName) {
+        OverflowPolicy policy = overflowPolicies.get(topicName);
+        return policy != null ? policy : OverflowPolicy.REJECT_NEWEST;
+    }
+
+    /**
+     * Numbers of records affected by the overflow policy per topic name, for the caches of the
+     * current subject.
+     */
+    public Map<String, OverflowPolicy.Stats> getOverflowStats() {
+        Map<String, OverflowPolicy.Stats> stats = new HashMap<>();
+        for (SubjectPartitionedCache<? extends SpecificRecord> cache : tables.values()) {
+            stats.put(cache.getTopic().getName(), cache.getOverflowStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Set the cache fill level, from 0 to 1, from which backpressure listeners are notified.
+     * @see #addBackpressureListener(ExtendedDataCache.BackpressureListener)
+     */
+    public synchronized void setBackpressureLevel(float fillLevel) {
+        backpressureLevel = fillLevel;
+        for (SubjectPartitionedCache<? extends SpecificRecord> cache : tables.values()) {
+            cache.setBackpressureListener(fillLevel, cacheBackpressureListener);
+        }
+    }
+
+    /**
+     * Get the caches of the current subject. Data of other subjects is kept separately until they
+     * are the current subject again. The returned map cannot be modified.
+     */
     public Map<AvroTopic<ObservationKey, ? extends SpecificRecord>, DataCache<ObservationKey, ? extends SpecificRecord>> getCaches() {
-        return tables;
+        return currentCaches;
+    }
+
+    /** Update the caches of the current subject, opening them if needed. */
+    private synchronized void updateCurrentCaches() {
+        Map<AvroTopic<ObservationKey, ? extends SpecificRecord>, DataCache<ObservationKey, ? extends SpecificRecord>> caches = new HashMap<>();
+        for (SubjectPartitionedCache<? extends SpecificRecord> table : tables.values()) {
+            String subject = table.getSubject();
+            if (subject == null) {
+                continue;
+            }
+            try {
+                caches.put(table.getTopic(), table.getPartition(subject));
+            } catch (IOException ex) {
+                logger.error("Cannot open cache of topic {}", table.getTopic().getName(), ex);
+            }
+        }
+        currentCaches = Collections.unmodifiableMap(caches);
+    }
+
+    /**
+     * Add a listener for caches that reach the backpressure level or drop below it again. The
+     * listener is called with the cache of a topic, as returned by {@link #getCache(String)}.
+     */
+    public void addBackpressureListener(ExtendedDataCache.BackpressureListener listener) {
+        synchronized (backpressureListeners) {
+            backpressureListeners.add(listener);
+        }
+    }
+
+    /** Remove a listener for cache backpressure. */
+    public void removeBackpressureListener(ExtendedDataCache.BackpressureListener listener) {
+        synchronized (backpressureListeners) {
+            backpressureListeners.remove(listener);
+        }
     }
 
     /** Add a listener for ServerStatus updates. */
@@ -337,17 +597,22 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
             // Overwrite key-value if exists. Only stores the last
             this.lastNumberOfRecordsSent.put(topicName, numberOfRecords );
 
-            if (numberOfRecords < 0 ) {
-                String message = String.format(Locale.US, "%1$45s has FAILED uploading", topicName);
-                logger.warn(message);
+            if (numberOfRecords < 0) {
+                logger.warn("{} has FAILED uploading", topicName);
             } else {
-                String message = String.format(Locale.US, "%1$45s uploaded %2$4d records",
-                        topicName, numberOfRecords);
-                logger.info(message);
+                logger.debug("{} uploaded {} records", topicName, numberOfRecords);
             }
         }
     }
 
+    /**
+     * Upload metrics per topic name: throughput, request latency, failures by cause and the age
+     * of data when it is uploaded. Metrics are kept when the submitter is stopped.
+     */
+    public Map<String, UploadMetrics.TopicMetrics> getUploadMetrics() {
+        return uploadMetrics.getMetrics();
+    }
+
     public Map<String, Integer> getRecordsSent() {
         synchronized (statusListeners) {
             return this.lastNumberOfRecordsSent;
@@ -367,6 +632,157 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
         this.kafkaRecordsSendLimit = kafkaRecordsSendLimit;
     }
 
+    /**
+     * Set the maximum number of cached bytes to send in a single request. Requests are cut off at
+     * the send limit or at this size limit, whichever comes first.
+     */
+    public synchronized void setKafkaRecordsSizeLimit(long kafkaRecordsSizeLimit) {
+        if (submitter != null) {
+            submitter.setSizeLimit(kafkaRecordsSizeLimit);
+        }
+        this.kafkaRecordsSizeLimit = kafkaRecordsSizeLimit;
+    }
+
+    /**
+     * Adapt the number of records to send in a single request per topic, based on the success and
+     * latency of previous requests. If not adaptive, the limit set with
+     * {@link #setKafkaRecordsSendLimit(int)} is used for all topics. Otherwise, that limit is the
+     * initial limit of each topic.
+     * @param adaptive whether to adapt the limit per topic
+     * @param minimumLimit minimum number of records per request
+     * @param maximumLimit maximum number of records per request
+     * @param latencyTargetMillis request duration above which the limit is decreased
+     */
+    public synchronized void setAdaptiveSendLimit(boolean adaptive, int minimumLimit,
+            int maximumLimit, long latencyTargetMillis) {
+        this.kafkaRecordsSendLimitAdaptive = adaptive;
+        this.kafkaRecordsSendLimitMin = minimumLimit;
+        this.kafkaRecordsSendLimitMax = maximumLimit;
+        this.kafkaUploadLatencyTarget = latencyTargetMillis;
+        updateAdaptiveSendLimit();
+    }
+
+    private synchronized void updateAdaptiveSendLimit() {
+        if (submitter == null) {
+            return;
+        }
+        if (kafkaRecordsSendLimitAdaptive) {
+            submitter.setAdaptiveSendLimit(kafkaRecordsSendLimitMin, kafkaRecordsSendLimitMax,
+                    kafkaUploadLatencyTarget);
+        } else {
+            submitter.disableAdaptiveSendLimit();
+        }
+    }
+
+    /**
+     * Current number of records sent in a single request, per topic name. This is empty if the
+     * send limit is not adaptive or if the submitter is not started.
+     */
+    public synchronized Map<String, Integer> getSendLimits() {
+        if (submitter == null) {
+            return Collections.emptyMap();
+        }
+        return submitter.getSendLimits();
+    }
+
+    /**
+     * Set the number of topics that may be uploaded at the same time.
+     * @param kafkaUploadParallelism number of topics, at least one.
+     */
+    public synchronized void setKafkaUploadParallelism(int kafkaUploadParallelism) {
+        if (kafkaUploadParallelism < 1) {
+            throw new IllegalArgumentException("Upload parallelism must be at least 1");
+        }
+        this.kafkaUploadParallelism = kafkaUploadParallelism;
+        if (submitter != null) {
+            submitter.setUploadParallelism(kafkaUploadParallelism, kafkaMaxBytesInFlight);
+        }
+    }
+
+    /**
+     * Set the number of cached bytes that may be uploaded at the same time over all topics.
+     * @param kafkaMaxBytesInFlight number of bytes, must be positive.
+     */
+    public synchronized void setKafkaMaxBytesInFlight(long kafkaMaxBytesInFlight) {
+        if (kafkaMaxBytesInFlight <= 0L) {
+            throw new IllegalArgumentException("Maximum number of bytes in flight must be positive");
+        }
+        this.kafkaMaxBytesInFlight = kafkaMaxBytesInFlight;
+        if (submitter != null) {
+            submitter.setUploadParallelism(kafkaUploadParallelism, kafkaMaxBytesInFlight);
+        }
+    }
+
+    /** Set the policy that determines which topics are uploaded first. */
+    public synchronized void setKafkaUploadPolicy(UploadScheduler.Policy kafkaUploadPolicy) {
+        this.kafkaUploadPolicy = kafkaUploadPolicy;
+        if (submitter != null) {
+            submitter.setUploadPolicy(kafkaUploadPolicy);
+        }
+    }
+
+    /**
+     * Set the priority of topics by topic name, for the weighted round robin upload policy.
+     * Topics that are not specified have priority 1.
+     */
+    public synchronized void setKafkaTopicPriorities(Map<String, Integer> kafkaTopicPriorities) {
+        this.kafkaTopicPriorities = new HashMap<>(kafkaTopicPriorities);
+        if (submitter != null) {
+            submitter.setTopicPriorities(this.kafkaTopicPriorities);
+        }
+    }
+
+    /**
+     * Batch uploads of cached data into windows that open when all given constraints are met.
+     * Data sent with {@link #trySend} is not held back.
+     * @param constraints constraints that must all be met, or none to upload continuously.
+     * @param maxDelay maximum time in seconds between upload windows, regardless of constraints.
+     */
+    public void setKafkaUploadWindow(Set<UploadWindow.Constraint> constraints, long maxDelay) {
+        uploadWindow.setConstraints(constraints, maxDelay);
+    }
+
+    /**
+     * Set the number of upload requests per minute that a single topic may make, after an
+     * initial burst.
+     * @param kafkaUploadRequestsPerMinute number of requests, or zero for no limit.
+     */
+    public synchronized void setKafkaUploadRequestsPerMinute(int kafkaUploadRequestsPerMinute) {
+        if (kafkaUploadRequestsPerMinute < 0) {
+            throw new IllegalArgumentException("Number of requests per minute may not be negative");
+        }
+        this.kafkaUploadRequestsPerMinute = kafkaUploadRequestsPerMinute;
+        if (submitter != null) {
+            submitter.setUploadRequestsPerMinute(kafkaUploadRequestsPerMinute);
+        }
+    }
+
+    /**
+     * Set the maximum number of records per topic that are held for {@link #trySend}. If more
+     * records are added before they can be sent, the oldest records are dropped.
+     * @param kafkaTrySendCapacity number of records, at least one.
+     */
+    public synchronized void setKafkaTrySendCapacity(int kafkaTrySendCapacity) {
+        if (kafkaTrySendCapacity < 1) {
+            throw new IllegalArgumentException("Try send capacity must be at least 1");
+        }
+        this.kafkaTrySendCapacity = kafkaTrySendCapacity;
+        if (submitter != null) {
+            submitter.setTrySendCapacity(kafkaTrySendCapacity);
+        }
+    }
+
+    /**
+     * Number of records per topic name that {@link #trySend} dropped because they could not be
+     * sent in time. This is empty if the submitter is not started.
+     */
+    public synchronized Map<String, Long> getTrySendDropped() {
+        if (submitter == null) {
+            return Collections.emptyMap();
+        }
+        return submitter.getTrySendDropped();
+    }
+
     public synchronized void setKafkaUploadRate(long kafkaUploadRate) {
         this.kafkaUploadRate = kafkaUploadRate;
         updateUploadRate();
@@ -378,15 +794,22 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
         if (sender != null) {
             sender.setHeaders(authState.getOkHttpHeaders());
         }
-        if (submitter != null) {
-            submitter.setUserId(authState.getUserId());
+        if (binarySender != null) {
+            binarySender.setHeaders(authState.getOkHttpHeaders());
         }
+        for (SubjectPartitionedCache<?> table : tables.values()) {
+            table.setSubject(authState.getUserId());
+        }
+        updateCurrentCaches();
     }
 
     public synchronized void setSenderConnectionTimeout(long senderConnectionTimeout) {
         if (sender != null) {
             sender.setConnectionTimeout(senderConnectionTimeout);
         }
+        if (binarySender != null) {
+            binarySender.setConnectionTimeout(senderConnectionTimeout);
+        }
         this.senderConnectionTimeout = senderConnectionTimeout;
     }
 
@@ -394,6 +817,9 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
         if (sender != null) {
             sender.setKafkaConfig(kafkaUrl);
         }
+        if (binarySender != null) {
+            binarySender.setKafkaConfig(kafkaUrl);
+        }
         this.kafkaConfig = kafkaUrl;
     }
 
@@ -401,6 +827,9 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
         if (sender != null) {
             sender.setSchemaRetriever(schemaRetriever);
         }
+        if (binarySender != null) {
+            binarySender.setSchemaRetriever(schemaRetriever);
+        }
         SchemaRetriever oldSchemaRetriever = this.schemaRetriever;
         this.schemaRetriever = schemaRetriever;
         if (oldSchemaRetriever != null) {
@@ -409,10 +838,49 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
     }
 
     public synchronized void setCompression(boolean useCompression) {
-        if (sender != null) {
-            sender.setCompression(useCompression);
-        }
         this.useCompression = useCompression;
+        if (submitter != null) {
+            submitter.setCompression(useCompression, useAdaptiveCompression);
+        }
+    }
+
+    /**
+     * Whether to upload data as Avro binary instead of JSON. The server must accept binary data,
+     * see {@link BinaryRestSender}. A running submitter is restarted to use the new format.
+     */
+    public synchronized void setBinaryContent(boolean useBinaryContent) {
+        if (this.useBinaryContent == useBinaryContent) {
+            return;
+        }
+        this.useBinaryContent = useBinaryContent;
+        if (isStarted()) {
+            stop();
+            start();
+        }
+    }
+
+    /**
+     * Whether to decide per request whether to compress it, if compression is enabled with
+     * {@link #setCompression(boolean)}. Small batches, topics that compress poorly and uploads
+     * on low battery are then sent uncompressed. This only applies to binary uploads, see
+     * {@link #setBinaryContent(boolean)}; JSON uploads are then all compressed.
+     */
+    public synchronized void setAdaptiveCompression(boolean useAdaptiveCompression) {
+        this.useAdaptiveCompression = useAdaptiveCompression;
+        if (submitter != null) {
+            submitter.setCompression(useCompression, useAdaptiveCompression);
+        }
+    }
+
+    /**
+     * Compression statistics per topic name, with estimated bytes saved and CPU time spent. This
+     * is empty if the submitter is not started.
+     */
+    public synchronized Map<String, AdaptiveCompression.Stats> getCompressionStats() {
+        if (submitter == null) {
+            return Collections.emptyMap();
+        }
+        return submitter.getCompressionStats();
     }
 
     public void setDataRetention(long dataRetention) {
@@ -448,6 +916,7 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
 
     @Override
     public void onBatteryLevelChanged(float level, boolean isPlugged) {
+        updateBatteryState(level, isPlugged);
         if (isStarted()) {
             if (level < minimumBatteryLevel.get() && !isPlugged) {
                 logger.info("Battery level getting low, stopping data sending");
@@ -462,14 +931,68 @@ public class TableDataHandler implements DataHandler<ObservationKey, SpecificRec
         }
     }
 
+    private synchronized void updateBatteryState(float level, boolean isPlugged) {
+        this.batteryLevel = level;
+        this.isPlugged = isPlugged;
+        if (submitter != null) {
+            submitter.setBatteryState(level, isPlugged);
+        }
+        CacheStore.getInstance().setBatteryState(level, isPlugged);
+    }
+
     public void registerTopic(AvroTopic<ObservationKey, ? extends SpecificRecord> topic) throws IOException {
         if (tables.containsKey(topic)) {
             return;
         }
-        DataCache<ObservationKey, ? extends SpecificRecord> cache = CacheStore.getInstance()
-                .getOrCreateCache(context.getApplicationContext(), topic);
+        final SubjectPartitionedCache<? extends SpecificRecord> cache = new SubjectPartitionedCache<>(
+                context.getApplicationContext(), topic, authState.getUserId());
         cache.setMaximumSize(maxBytes);
+        synchronized (this) {
+            cache.setFrameEncoding(frameEncodedTopics.contains(topic.getName()));
+            cache.setBackpressureListener(backpressureLevel, cacheBackpressureListener);
+            cache.setOverflowPolicy(overflowPolicy(topic.getName()));
+        }
         tables.put(topic, cache);
         tablesByName.put(topic.getName(), cache);
+        updateCurrentCaches();
+
+        final File sharedFile = CacheStore.getCacheFile(
+                context.getApplicationContext(), topic, null);
+        if (sharedFile.exists()) {
+            executorFactory.getExecutorService().submit(new Runnable() {
+                @Override
+                public void run() {
+                    importSharedCache(cache, sharedFile);
+                }
+            });
+        }
+    }
+
+    /**
+     * Move the records of a cache that is shared by all subjects, as used by earlier versions, to
+     * the cache of their subject. The shared cache is removed afterwards.
+     */
+    private <V extends SpecificRecord> void importSharedCache(SubjectPartitionedCache<V> cache,
+            File sharedFile) {
+        try {
+            CacheStore store = CacheStore.getInstance();
+            DataCache<ObservationKey, V> sharedCache = store.getOrCreateCache(
+                    context.getApplicationContext(), cache.getTopic());
+            try {
+                cache.importRecords(sharedCache, SEND_LIMIT_DEFAULT);
+            } finally {
+                store.releaseCache(sharedCache);
+            }
+            try {
+                if (!store.deleteCache(context.getApplicationContext(), cache.getTopic(), null)) {
+                    logger.warn("Cannot remove all files of shared cache {}", sharedFile);
+                }
+            } catch (IllegalStateException ex) {
+                logger.warn("Keeping shared cache {} that is still in use", sharedFile);
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to move records of topic {} to the cache of their subject",
+                    cache.getTopic().getName(), ex);
+        }
     }
 }
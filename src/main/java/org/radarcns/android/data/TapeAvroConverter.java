@@ -16,8 +16,13 @@
 
 package org.radarcns.android.data;
 
+import android.support.annotation.NonNull;
+
+import org.apache.avro.Schema;
 import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
 import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.io.EncoderFactory;
 import org.apache.avro.specific.SpecificDatumReader;
@@ -26,61 +31,275 @@ import org.apache.avro.specific.SpecificRecord;
 import org.radarcns.data.Record;
 import org.radarcns.topic.AvroTopic;
 import org.radarcns.util.BackedObjectQueue;
+import org.radarcns.util.QueueFileHeader;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
- * Converts records from an AvroTopic for Tape
+ * Converts records from an AvroTopic for Tape. A record is stored as its binary encoded key
+ * followed by its binary encoded value. In queue files of {@link QueueFileHeader#VERSION_1},
+ * records are prefixed by eight zero bytes, see {@link #setLegacyHeader(boolean)}. In queue files
+ * of {@link QueueFileHeader#VERSION_3}, the key is replaced by its index in a
+ * {@link KeyDictionary}, encoded as an Avro int, see {@link #setKeyDictionary(KeyDictionary)}.
+ *
+ * Keys and values without nested types are read and written with a {@link FlatRecordCodec}.
  */
 public class TapeAvroConverter<K extends SpecificRecord, V extends SpecificRecord>
         implements BackedObjectQueue.Converter<Record<K, V>> {
     private static final byte[] EMPTY_HEADER = {0, 0, 0, 0, 0, 0, 0, 0};
+    private boolean legacyHeader;
+    private KeyDictionary<K> keyDictionary;
     private final EncoderFactory encoderFactory;
     private final DecoderFactory decoderFactory;
-    private final SpecificDatumWriter<K> keyWriter;
-    private final SpecificDatumWriter<V> valueWriter;
-    private final SpecificDatumReader<K> keyReader;
-    private final SpecificDatumReader<V> valueReader;
+    private final DatumWriter<K> keyWriter;
+    private final DatumWriter<V> valueWriter;
+    private final DatumReader<K> keyReader;
+    private final DatumReader<V> valueReader;
     private BinaryEncoder encoder;
     private BinaryDecoder decoder;
+    private final ArraySliceInputStream keyInput;
+    private BinaryDecoder keyDecoder;
+    /** Most recently decoded key, shared by records with the same serialized key. */
+    private K lastKey;
+    private byte[] lastKeyBytes;
+    private byte[] recordBuffer;
 
     public TapeAvroConverter(AvroTopic<K, V> topic) throws IOException {
         encoderFactory = EncoderFactory.get();
         decoderFactory = DecoderFactory.get();
-        keyWriter = new SpecificDatumWriter<>(topic.getKeySchema());
-        valueWriter = new SpecificDatumWriter<>(topic.getValueSchema());
-        keyReader = new SpecificDatumReader<>(topic.getKeySchema());
-        valueReader = new SpecificDatumReader<>(topic.getValueSchema());
+        keyWriter = datumWriter(topic.getKeySchema());
+        valueWriter = datumWriter(topic.getValueSchema());
+        keyReader = datumReader(topic.getKeySchema());
+        valueReader = datumReader(topic.getValueSchema());
         encoder = null;
         decoder = null;
+        keyInput = new ArraySliceInputStream();
+        keyDecoder = null;
+        lastKey = null;
+        lastKeyBytes = null;
+        recordBuffer = new byte[1024];
+        legacyHeader = false;
+        keyDictionary = null;
+    }
+
+    /** Writer for given schema, using a {@link FlatRecordCodec} if possible. */
+    static <T extends SpecificRecord> DatumWriter<T> datumWriter(Schema schema) {
+        if (FlatRecordCodec.supports(schema)) {
+            return new FlatRecordCodec<T>(schema);
+        } else {
+            return new SpecificDatumWriter<T>(schema);
+        }
+    }
+
+    /** Reader for given schema, using a {@link FlatRecordCodec} if possible. */
+    static <T extends SpecificRecord> DatumReader<T> datumReader(Schema schema) {
+        if (FlatRecordCodec.supports(schema)) {
+            return new FlatRecordCodec<T>(schema);
+        } else {
+            return new SpecificDatumReader<T>(schema);
+        }
+    }
+
+    /**
+     * Whether records are prefixed by eight zero bytes, as in queue files of
+     * {@link QueueFileHeader#VERSION_1}. By default, they are not.
+     */
+    public void setLegacyHeader(boolean legacyHeader) {
+        this.legacyHeader = legacyHeader;
+    }
+
+    /** Whether records are prefixed by eight zero bytes. */
+    public boolean hasLegacyHeader() {
+        return legacyHeader;
+    }
+
+    /**
+     * Dictionary to store keys in, as in queue files of {@link QueueFileHeader#VERSION_3}.
+     * @param keyDictionary dictionary, or {@code null} to store keys with each record. By default,
+     *                      keys are stored with each record.
+     */
+    public void setKeyDictionary(KeyDictionary<K> keyDictionary) {
+        if (this.keyDictionary != keyDictionary) {
+            this.keyDictionary = keyDictionary;
+            lastKey = null;
+            lastKeyBytes = null;
+        }
+    }
+
+    /** Number of bytes before the key of a stored record. */
+    private int headerLength() {
+        return legacyHeader ? EMPTY_HEADER.length : 0;
     }
 
     public Record<K, V> deserialize(InputStream in) throws IOException {
-        // for backwards compatibility
+        return deserialize(in, null);
+    }
+
+    /**
+     * Deserialize a stored record, reusing an existing value object. A key that has the same
+     * serialized form as the previously read key is not decoded again, but the same key object
+     * is returned.
+     * @param in input with exactly the data of a single record
+     * @param reuse value object to fill with the stored value, or {@code null} to create a new
+     *              value object. It should not be used elsewhere anymore.
+     * @return record with the decoded key and value
+     * @throws IOException if the data cannot be read or decoded
+     */
+    public Record<K, V> deserialize(InputStream in, V reuse) throws IOException {
+        int end = readRecord(in);
+        int keyOffset = headerLength();
+        if (keyOffset > end) {
+            throw new IOException("Stored record is too short");
+        }
+        int valueOffset = keyOffset + readKey(recordBuffer, keyOffset, end);
+
+        decoder = decoderFactory.binaryDecoder(recordBuffer, valueOffset, end - valueOffset, decoder);
+        try {
+            V value = valueReader.read(reuse, decoder);
+            return new Record<>(lastKey, value);
+        } catch (RuntimeException ex) {
+            throw new IOException("Failed to deserialize object", ex);
+        }
+    }
+
+    /**
+     * Read the data of a stored record into the record buffer.
+     * @return length of the data
+     */
+    private int readRecord(InputStream in) throws IOException {
+        int length = in.available();
+        if (length > recordBuffer.length) {
+            recordBuffer = new byte[Math.max(length, recordBuffer.length * 2)];
+        }
         int numRead = 0;
-        do {
-            numRead += in.skip(8 - numRead);
-        } while (numRead < 8);
+        while (numRead < length) {
+            int n = in.read(recordBuffer, numRead, length - numRead);
+            if (n < 0) {
+                throw new IOException("Record data ended early");
+            }
+            numRead += n;
+        }
+        return length;
+    }
 
-        decoder = decoderFactory.binaryDecoder(in, decoder);
+    /**
+     * Read a stored record into given records, decoding only its key. A key that has the same
+     * serialized form as the previously read key is not decoded again.
+     * @param in input with exactly the data of a single record
+     * @param records records to add the record to
+     * @throws IOException if the data cannot be read or the key cannot be decoded
+     */
+    public void readSerialized(InputStream in, SerializedRecords<K, V> records)
+            throws IOException {
+        int offset = records.readData(in);
+        byte[] buffer = records.getBuffer();
+        int end = (int) records.getSerializedSize();
+        int keyOffset = offset + headerLength();
+        if (keyOffset > end) {
+            throw new IOException("Stored record is too short");
+        }
 
+        int keyLength = readKey(buffer, keyOffset, end);
+        int valueOffset = keyOffset + keyLength;
+        records.add(lastKey, valueOffset, end - valueOffset);
+    }
+
+    /**
+     * Decode the key at given offset, unless it has the same serialized form as the previously
+     * decoded key. With a key dictionary, this looks up the key by the index at given offset. The
+     * key is available as {@link #lastKey} afterwards.
+     * @return serialized length of the key or key index
+     * @throws IOException if the key cannot be decoded
+     */
+    private int readKey(byte[] buffer, int offset, int end) throws IOException {
+        if (keyDictionary != null) {
+            keyInput.reset(buffer, offset, end);
+            keyDecoder = decoderFactory.directBinaryDecoder(keyInput, keyDecoder);
+            lastKey = keyDictionary.get(keyDecoder.readInt());
+            return keyInput.position() - offset;
+        }
+        if (lastKey != null && startsWith(buffer, offset, end, lastKeyBytes)) {
+            return lastKeyBytes.length;
+        }
+        keyInput.reset(buffer, offset, end);
+        // the direct decoder does not read ahead, so the key length is known afterwards
+        keyDecoder = decoderFactory.directBinaryDecoder(keyInput, keyDecoder);
         try {
-            K key = keyReader.read(null, decoder);
-            V value = valueReader.read(null, decoder);
-            return new Record<>(key, value);
+            lastKey = keyReader.read(null, keyDecoder);
         } catch (RuntimeException ex) {
+            lastKey = null;
             throw new IOException("Failed to deserialize object", ex);
         }
+        int keyLength = keyInput.position() - offset;
+        lastKeyBytes = Arrays.copyOfRange(buffer, offset, offset + keyLength);
+        return keyLength;
+    }
+
+    /** Whether the buffer contains given prefix at given offset. */
+    private static boolean startsWith(byte[] buffer, int offset, int end, byte[] prefix) {
+        if (end - offset < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public void serialize(Record<K, V> o, OutputStream out) throws IOException {
-        // for backwards compatibility
-        out.write(EMPTY_HEADER, 0, 8);
+        if (legacyHeader) {
+            out.write(EMPTY_HEADER, 0, EMPTY_HEADER.length);
+        }
         encoder = encoderFactory.binaryEncoder(out, encoder);
-        keyWriter.write(o.key, encoder);
+        if (keyDictionary != null) {
+            encoder.writeInt(keyDictionary.indexOf(o.key));
+        } else {
+            keyWriter.write(o.key, encoder);
+        }
         valueWriter.write(o.value, encoder);
         encoder.flush();
     }
+
+    /** Input stream over a slice of an array that keeps track of its position. */
+    private static class ArraySliceInputStream extends InputStream {
+        private byte[] buffer;
+        private int position;
+        private int end;
+
+        void reset(byte[] buffer, int offset, int end) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = end;
+        }
+
+        int position() {
+            return position;
+        }
+
+        @Override
+        public int read() {
+            return position < end ? buffer[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] bytes, int offset, int length) {
+            if (position >= end) {
+                return -1;
+            }
+            int numRead = Math.min(length, end - position);
+            System.arraycopy(buffer, position, bytes, offset, numRead);
+            position += numRead;
+            return numRead;
+        }
+
+        @Override
+        public int available() {
+            return end - position;
+        }
+    }
 }
@@ -19,9 +19,11 @@ package org.radarcns.android.data;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Parcel;
+import android.support.annotation.NonNull;
 import android.util.Pair;
 
 import org.apache.avro.specific.SpecificRecord;
+import org.radarcns.android.kafka.UploadScheduler;
 import org.radarcns.android.util.SingleThreadExecutorFactory;
 import org.radarcns.data.AvroEncoder;
 import org.radarcns.data.Record;
@@ -30,14 +32,22 @@ import org.radarcns.topic.AvroTopic;
 import org.radarcns.util.BackedObjectQueue;
 import org.radarcns.util.ListPool;
 import org.radarcns.util.QueueFile;
+import org.radarcns.util.QueueFileHeader;
+import org.radarcns.util.QueueFileOutputStream;
+import org.radarcns.util.QueueFullException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -53,29 +63,102 @@ import static org.radarcns.android.device.DeviceService.CACHE_TOPIC;
  * Caches measurement on a BackedObjectQueue. Internally, all data is first cached on a local queue,
  * before being written in batches to the BackedObjectQueue, using a single-threaded
  * ExecutorService. Data is retrieved and removed from the queue in a blocking way using that same
- * ExecutorService. Sent messages are not kept, they are immediately removed.
+ * ExecutorService. Sent messages are not kept, they are immediately removed. Record keys are
+ * stored once, in a {@link KeyDictionary} next to the tape file. Records that do not fit in the
+ * tape are handled according to the {@link OverflowPolicy} of the cache.
  *
  * @param <K> measurement key type
  * @param <V> measurement value type
  */
-public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> implements DataCache<K, V> {
+public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> implements ExtendedDataCache<K, V> {
     private static final Logger logger = LoggerFactory.getLogger(TapeCache.class);
     private static final ListPool listPool = new ListPool(10);
+    /** Maximum number of value objects kept for reuse per cache. */
+    private static final int VALUE_POOL_SIZE = 1000;
+    /** Value of {@link #headTime} while the time of the oldest record is not known. */
+    private static final long HEAD_TIME_UNKNOWN = Long.MIN_VALUE;
+    /** Number of keys above which the key dictionary is cleared once the cache is empty. */
+    private static final int KEY_DICTIONARY_SIZE = 64;
+    /** Maximum number of records in a frame, see {@link #setFrameEncoding(boolean)}. */
+    private static final int FRAME_SIZE = 128;
+    /** Records are kept down to one in 2^4 by {@link OverflowPolicy#DOWNSAMPLE}. */
+    private static final int MAX_DOWNSAMPLE_SHIFT = 4;
+    /** Fill level below which records of the overflow archive are moved back to the tape. */
+    private static final float RESTORE_LEVEL = 0.5f;
+    /** Suffix of the key dictionary file, after the name of the tape file. */
+    private static final String KEYS_SUFFIX = ".keys";
+    /** Suffix of the overflow archive file, after the name of the tape file. */
+    private static final String SPILL_SUFFIX = ".spill";
 
     private final AvroTopic<K, V> topic;
     private final ScheduledExecutorService executor;
     private final List<Record<K, V>> measurementsToAdd;
     private final File outputFile;
-    private final BackedObjectQueue.Converter<Record<K, V>> converter;
+    private final TapeAvroConverter<K, V> converter;
+    private final KeyDictionary<K> keyDictionary;
+    /** Converter for frames, or {@code null} if the topic cannot be stored in frames. */
+    private final NumericFrameConverter<K, V> frameConverter;
+    /** Archive for records that do not fit with {@link OverflowPolicy#SPILL}. */
+    private final SpillArchive<K, V> spillArchive;
+    /** Value objects of returned lists, to decode new records into. */
+    private final Queue<V> valuePool;
     private final Runnable flusher;
     private final int maxBytes;
     private QueueFile queueFile;
 
     private BackedObjectQueue<Record<K, V>> queue;
     private Future<?> addMeasurementFuture;
+    /** Whether measurements are being written to file. */
+    private boolean isFlushing;
     private long timeWindowMillis;
+    private long highWatermark;
+    private HighWatermarkListener highWatermarkListener;
+    private volatile boolean frameEncoding;
+    private volatile DecodePool decodePool;
+    /** Whether the queue file contains frames instead of single records. */
+    private boolean isFramed;
+    /**
+     * Number of records at the start of the first frame that were already removed. This is
+     * stored in the queue file header, see {@link QueueFile#getFirstElementSkip()}.
+     */
+    private int headFrameSkip;
+    /** Maximum size of the queue file in bytes. */
+    private volatile long maximumFileSize;
+    /** Whether the latest records were not written because they did not fit in the queue file. */
+    private volatile boolean isFull;
+    /** Time that the oldest record in {@link #measurementsToAdd} was added, or 0 if none. */
+    private long pendingSince;
+    /** Time that the oldest record that is being written to file was added, or 0 if none. */
+    private long writingSince;
+    private float backpressureLevel;
+    private BackpressureListener backpressureListener;
+    /** Whether the backpressure listener was last notified of backpressure. */
+    private boolean hasBackpressure;
+    private volatile OverflowPolicy overflowPolicy;
+    /** Number of records that were ever removed from the head of the queue file. */
+    private long headPosition;
+    /**
+     * Head position when records were last read to upload them, or -1 if they were removed since.
+     * Records that were dropped to make room after that may have been read already, so they are
+     * not removed again once they are sent. Other reads do not change it.
+     */
+    private long uploadPeekPosition;
+    /**
+     * Time of the oldest record in the queue file, see {@link #getOldestTime()}, or
+     * {@link #HEAD_TIME_UNKNOWN} if it has to be read again because the head changed.
+     */
+    private final AtomicLong headTime;
+    /** Number of records that downsampling has seen, to select the records to keep. */
+    private long downsampleIndex;
+    private final AtomicLong rejectedRecords;
+    private final AtomicLong droppedRecords;
+    private final AtomicLong spilledRecords;
+    private final AtomicLong restoredRecords;
+    private final AtomicLong downsampledRecords;
+    private final AtomicLong failedRecords;
 
     private final AtomicLong queueSize;
+    private final AtomicLong queueBytes;
 
     /**
      * TapeCache to cache measurements with
@@ -87,21 +170,75 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
      */
     public TapeCache(final Context context, AvroTopic<K, V> topic,
                      SingleThreadExecutorFactory executorFactory) throws IOException {
+        this(context, topic, new File(context.getCacheDir(), topic.getName() + ".tape"),
+                executorFactory);
+    }
+
+    /**
+     * TapeCache to cache measurements with
+     * @param context Android context to broadcast the cache size.
+     * @param topic Kafka Avro topic to write data for.
+     * @param outputFile file to store the tape in. Its parent directory is created if needed.
+     * @param executorFactory factory to get a single-threaded {@link ScheduledExecutorService}
+     *                        from.
+     * @throws IOException if a BackedObjectQueue cannot be created.
+     */
+    public TapeCache(final Context context, AvroTopic<K, V> topic, File outputFile,
+                     SingleThreadExecutorFactory executorFactory) throws IOException {
         this.topic = topic;
         this.timeWindowMillis = 10_000L;
         this.maxBytes = 450_000_000;
-        outputFile = new File(context.getCacheDir(), topic.getName() + ".tape");
+        this.outputFile = outputFile;
+        File parent = outputFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + parent);
+        }
+        File keyFile = new File(outputFile.getPath() + KEYS_SUFFIX);
+        boolean supportsFrames = NumericFrameConverter.supports(topic.getValueSchema());
+        KeyDictionary<K> localKeyDictionary;
+        long numberOfRecords;
         try {
             queueFile = QueueFile.newMapped(outputFile, maxBytes);
+            localKeyDictionary = new KeyDictionary<>(keyFile, topic.getKeySchema());
+            if (queueFile.getVersion() == QueueFileHeader.VERSION_4 && !supportsFrames) {
+                throw new IOException("Cache contains frames of unsupported topic " + topic);
+            }
+            numberOfRecords = countRecords() - queueFile.getFirstElementSkip();
         } catch (IOException ex) {
             logger.error("TapeCache " + outputFile + " was corrupted. Removing old cache.");
-            if (outputFile.delete()) {
+            if (queueFile != null) {
+                queueFile.close();
+            }
+            if (outputFile.delete() && (!keyFile.exists() || keyFile.delete())) {
                 queueFile = QueueFile.newMapped(outputFile, maxBytes);
+                localKeyDictionary = new KeyDictionary<>(keyFile, topic.getKeySchema());
+                numberOfRecords = 0L;
             } else {
                 throw ex;
             }
         }
-        this.queueSize = new AtomicLong(queueFile.size());
+        this.keyDictionary = localKeyDictionary;
+        this.frameConverter = supportsFrames
+                ? new NumericFrameConverter<>(topic, keyDictionary) : null;
+        this.frameEncoding = false;
+        this.headFrameSkip = queueFile.getFirstElementSkip();
+        this.maximumFileSize = queueFile.getMaximumFileSize();
+        this.isFull = false;
+        this.backpressureLevel = 1f;
+        this.spillArchive = new SpillArchive<>(topic, new File(outputFile.getPath() + SPILL_SUFFIX));
+        this.overflowPolicy = OverflowPolicy.REJECT_NEWEST;
+        this.headPosition = 0L;
+        this.uploadPeekPosition = -1L;
+        this.headTime = new AtomicLong(HEAD_TIME_UNKNOWN);
+        this.downsampleIndex = 0L;
+        this.rejectedRecords = new AtomicLong(0L);
+        this.droppedRecords = new AtomicLong(0L);
+        this.spilledRecords = new AtomicLong(0L);
+        this.restoredRecords = new AtomicLong(0L);
+        this.downsampledRecords = new AtomicLong(0L);
+        this.failedRecords = new AtomicLong(0L);
+        this.queueSize = new AtomicLong(numberOfRecords);
+        this.queueBytes = new AtomicLong(usedBytes());
 
         this.executor = executorFactory.getScheduledExecutorService();
 
@@ -118,8 +255,11 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
         }, 10L, 10L, TimeUnit.SECONDS);
 
         this.measurementsToAdd = new ArrayList<>();
+        this.isFlushing = false;
 
         this.converter = new TapeAvroConverter<>(topic);
+        updateFormat();
+        this.valuePool = new ArrayBlockingQueue<>(VALUE_POOL_SIZE);
         this.queue = new BackedObjectQueue<>(queueFile, converter);
         this.flusher = new Runnable() {
             @Override
@@ -129,25 +269,130 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
         };
     }
 
+    /**
+     * All files that a cache with given tape file stores its data in, whether they exist or not.
+     */
+    static List<File> storageFiles(File outputFile) {
+        File spillFile = new File(outputFile.getPath() + SPILL_SUFFIX);
+        return Arrays.asList(outputFile, new File(outputFile.getPath() + KEYS_SUFFIX),
+                spillFile, SpillArchive.restoreFile(spillFile));
+    }
+
+    /**
+     * Get unsent records to upload them. Once they are sent, they are removed with
+     * {@link #remove(int)}, which takes into account any records that the cache dropped in the
+     * meantime.
+     */
     @Override
     public List<Record<K, V>> unsentRecords(final int limit) throws IOException {
+        return unsentRecords(limit, Long.MAX_VALUE);
+    }
+
+    @Override
+    public List<Record<K, V>> unsentRecords(final int limit, final long sizeLimit) throws IOException {
+        return readRecords(limit, sizeLimit, true);
+    }
+
+    /**
+     * Read the oldest records in the cache.
+     * @param isUpload whether the records are read to upload and then remove them, see
+     *                 {@link #uploadPeekPosition}.
+     */
+    private List<Record<K, V>> readRecords(final int limit, final long sizeLimit,
+            final boolean isUpload) throws IOException {
         logger.info("Trying to retrieve records from topic {}", topic);
         try {
-            return listPool.get(executor.submit(new Callable<List<Record<K, V>>>() {
+            return executor.submit(new Callable<List<Record<K, V>>>() {
                 @Override
                 public List<Record<K, V>> call() throws Exception {
+                    return doReadRecords(limit, sizeLimit, isUpload);
+                }
+            }).get();
+        } catch (InterruptedException ex) {
+            logger.warn("unsentRecords was interrupted, returning an empty list", ex);
+            Thread.currentThread().interrupt();
+            return listPool.get(Collections.<Record<K, V>>emptyList());
+        } catch (ExecutionException ex) {
+            logger.warn("Failed to retrieve records for topic {}", topic, ex);
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException("Unknown error occurred", ex);
+            }
+        }
+    }
+
+    /**
+     * Read the oldest records in the cache. This must be called from the executor thread.
+     * @see #readRecords(int, long, boolean)
+     */
+    private List<Record<K, V>> doReadRecords(int limit, long sizeLimit, boolean isUpload)
+            throws IOException {
+        final List<Record<K, V>> records = listPool.get(
+                Collections.<Record<K, V>>emptyList());
+        if (isUpload) {
+            uploadPeekPosition = headPosition;
+        }
+        try {
+            if (isFramed) {
+                peekFrames(limit, sizeLimit, new FrameReader() {
+                    @Override
+                    public int read(InputStream in, int skip, int frameLimit)
+                            throws IOException {
+                        return frameConverter.deserialize(
+                                in, skip, frameLimit, records, valuePool);
+                    }
+                });
+            } else {
+                peekRecords(limit, sizeLimit, records);
+            }
+        } catch (IOException | IllegalStateException ex) {
+            records.clear();
+            fixCorruptQueue();
+        }
+        return records;
+    }
+
+    @Override
+    public SerializedRecords<K, V> unsentSerializedRecords(final int limit, final long sizeLimit)
+            throws IOException {
+        try {
+            return executor.submit(new Callable<SerializedRecords<K, V>>() {
+                @Override
+                public SerializedRecords<K, V> call() throws Exception {
+                    final SerializedRecords<K, V> records = new SerializedRecords<>(topic);
+                    uploadPeekPosition = headPosition;
                     try {
-                        return queue.peek(limit);
+                        if (isFramed) {
+                            peekFrames(limit, sizeLimit, new FrameReader() {
+                                @Override
+                                public int read(InputStream in, int skip, int frameLimit)
+                                        throws IOException {
+                                    return frameConverter.readSerialized(
+                                            in, skip, frameLimit, records);
+                                }
+                            });
+                        } else {
+                            queue.peek(limit, sizeLimit, new BackedObjectQueue.ElementReader() {
+                                @Override
+                                public boolean read(InputStream in) throws IOException {
+                                    converter.readSerialized(in, records);
+                                    return true;
+                                }
+                            });
+                        }
+                        return records;
                     } catch (IOException | IllegalStateException ex) {
                         fixCorruptQueue();
-                        return Collections.emptyList();
+                        return new SerializedRecords<>(topic);
                     }
                 }
-            }).get());
+            }).get();
         } catch (InterruptedException ex) {
-            logger.warn("unsentRecords was interrupted, returning an empty list", ex);
+            logger.warn("unsentSerializedRecords was interrupted, returning no records", ex);
             Thread.currentThread().interrupt();
-            return listPool.get(Collections.<Record<K, V>>emptyList());
+            return new SerializedRecords<>(topic);
         } catch (ExecutionException ex) {
             logger.warn("Failed to retrieve records for topic {}", topic, ex);
             Throwable cause = ex.getCause();
@@ -159,9 +404,13 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
         }
     }
 
+    /**
+     * Get records to inspect them. Unlike {@link #unsentRecords(int)}, this does not affect which
+     * records {@link #remove(int)} removes.
+     */
     @Override
     public List<Record<K, V>> getRecords(int limit) throws IOException {
-        return unsentRecords(limit);
+        return readRecords(limit, Long.MAX_VALUE, false);
     }
 
     @Override
@@ -169,6 +418,56 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
         return new Pair<>(queueSize.get(), 0L);
     }
 
+    @Override
+    public long numberOfBytes() {
+        return queueBytes.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     * The time is kept until the oldest record is removed, so the record is only read once.
+     */
+    @Override
+    public long getOldestTime() throws IOException {
+        long time = headTime.get();
+        if (time != HEAD_TIME_UNKNOWN) {
+            return time;
+        }
+        try {
+            return executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long time = headTime.get();
+                    if (time == HEAD_TIME_UNKNOWN) {
+                        List<Record<K, V>> records = doReadRecords(1, Long.MAX_VALUE, false);
+                        time = records.isEmpty() ? Long.MAX_VALUE : recordTime(records.get(0));
+                        returnList(records);
+                        headTime.set(time);
+                    }
+                    return time;
+                }
+            }).get();
+        } catch (InterruptedException ex) {
+            logger.warn("getOldestTime was interrupted", ex);
+            Thread.currentThread().interrupt();
+            return Long.MAX_VALUE;
+        } catch (ExecutionException ex) {
+            logger.warn("Failed to read the oldest record of topic {}", topic, ex);
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException("Unknown error occurred", ex);
+            }
+        }
+    }
+
+    /** Time of a record in milliseconds, or {@link Long#MAX_VALUE} if it is not known. */
+    private static long recordTime(Record<?, ?> record) {
+        long time = UploadScheduler.recordTime(record.value);
+        return time >= 0L ? time : Long.MAX_VALUE;
+    }
+
     @Override
     public synchronized void setTimeWindow(long timeWindowMillis) {
         this.timeWindowMillis = timeWindowMillis;
@@ -181,6 +480,8 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
                 @Override
                 public void run() {
                     queueFile.setMaximumFileSize(numBytes);
+                    maximumFileSize = numBytes;
+                    updateBackpressure();
                 }
             }).get();
         } catch (InterruptedException | ExecutionException e) {
@@ -188,19 +489,110 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
         }
     }
 
+    /**
+     * Set the pool to decode large batches of records on in parallel.
+     * @param decodePool pool to use, or {@code null} to decode on the cache executor only.
+     */
+    public void setDecodePool(DecodePool decodePool) {
+        this.decodePool = decodePool;
+    }
+
+    @Override
+    public void setFrameEncoding(boolean frameEncoding) {
+        if (frameEncoding && frameConverter == null) {
+            logger.warn("Topic {} cannot be stored in frames: its values are not all numeric",
+                    topic);
+            return;
+        }
+        this.frameEncoding = frameEncoding;
+    }
+
+    @Override
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        this.overflowPolicy = policy;
+    }
+
+    @Override
+    public OverflowPolicy.Stats getOverflowStats() {
+        return new OverflowPolicy.Stats(rejectedRecords.get(), droppedRecords.get(),
+                spilledRecords.get(), restoredRecords.get(), downsampledRecords.get(),
+                failedRecords.get());
+    }
+
+    @Override
+    public synchronized void setHighWatermark(long numberOfRecords,
+            @NonNull HighWatermarkListener listener) {
+        this.highWatermark = numberOfRecords;
+        this.highWatermarkListener = listener;
+    }
+
+    @Override
+    public synchronized void removeHighWatermark(@NonNull HighWatermarkListener listener) {
+        if (highWatermarkListener == listener) {
+            highWatermarkListener = null;
+        }
+    }
+
+    @Override
+    public float getFillLevel() {
+        if (isFull) {
+            return 1f;
+        }
+        long maximumBytes = maximumFileSize - QueueFileHeader.HEADER_LENGTH;
+        return maximumBytes > 0L ? Math.min(1f, (float) queueBytes.get() / maximumBytes) : 1f;
+    }
+
+    @Override
+    public synchronized long getFlushLag() {
+        long oldest = writingSince != 0L ? writingSince : pendingSince;
+        return oldest != 0L ? System.currentTimeMillis() - oldest : 0L;
+    }
+
+    @Override
+    public synchronized void setBackpressureListener(float fillLevel,
+            @NonNull BackpressureListener listener) {
+        this.backpressureLevel = fillLevel;
+        if (backpressureListener != listener) {
+            this.backpressureListener = listener;
+            this.hasBackpressure = false;
+        }
+    }
+
+    @Override
+    public synchronized void removeBackpressureListener(@NonNull BackpressureListener listener) {
+        if (backpressureListener == listener) {
+            backpressureListener = null;
+        }
+    }
+
     @Override
     public int remove(final int number) throws IOException {
         try {
             return executor.submit(new Callable<Integer>() {
                 @Override
                 public Integer call() throws Exception {
-                    int actualNumber = Math.min(number, queue.size());
+                    long numDropped = uploadPeekPosition >= 0L
+                            ? headPosition - uploadPeekPosition : 0L;
+                    uploadPeekPosition = -1L;
+                    int actualNumber = (int) Math.min(
+                            Math.max(0L, number - numDropped), queueSize.get());
                     if (actualNumber == 0) {
                         return 0;
                     }
                     logger.info("Removing {} records from topic {}", actualNumber, topic);
-                    queue.remove(actualNumber);
-                    queueSize.addAndGet(-actualNumber);
+                    removeHead(actualNumber);
+                    queueBytes.set(usedBytes());
+                    isFull = false;
+                    if (queueFile.isEmpty()) {
+                        try {
+                            updateFormat();
+                            restoreSpilled();
+                        } catch (IOException ex) {
+                            logger.error("Failed to restore records of topic {}", topic, ex);
+                        }
+                    }
+                    queueBytes.set(usedBytes());
+                    updateBackpressure();
                     return actualNumber;
                 }
             }).get();
@@ -223,8 +615,29 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
 
     @Override
     public synchronized void addMeasurement(final K key, final V value) {
+        if (measurementsToAdd.isEmpty()) {
+            pendingSince = System.currentTimeMillis();
+        }
         measurementsToAdd.add(new Record<>(key, value));
+        scheduleFlush();
+    }
 
+    @Override
+    public synchronized void addMeasurements(K key, Collection<? extends V> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        if (measurementsToAdd.isEmpty()) {
+            pendingSince = System.currentTimeMillis();
+        }
+        for (V value : values) {
+            measurementsToAdd.add(new Record<>(key, value));
+        }
+        scheduleFlush();
+    }
+
+    /** Write added measurements to file after the time window, unless already scheduled. */
+    private void scheduleFlush() {
         if (addMeasurementFuture == null) {
             addMeasurementFuture = executor.schedule(flusher,
                     timeWindowMillis, TimeUnit.MILLISECONDS);
@@ -256,16 +669,37 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
         returnList(records);
     }
 
+    /**
+     * Return a list to cache. The values of its records are reused for records that are
+     * retrieved later, so they should not be used again either.
+     */
     @Override
     public void returnList(List list) {
         listPool.add(list);
     }
 
+    @Override
+    public void returnListAndValues(List list) {
+        Class<V> valueClass = topic.getValueClass();
+        for (Object obj : list) {
+            if (!(obj instanceof Record)) {
+                continue;
+            }
+            Object value = ((Record<?, ?>) obj).value;
+            if (valueClass.isInstance(value) && !valuePool.offer(valueClass.cast(value))) {
+                break;
+            }
+        }
+        listPool.add(list);
+    }
+
     @Override
     public void close() throws IOException {
         flush();
         queue.close();
+        keyDictionary.close();
         listPool.clear();
+        valuePool.clear();
     }
 
     @Override
@@ -276,11 +710,20 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
                 addMeasurementFuture.cancel(false);
                 addMeasurementFuture = null;
             }
-            // no measurements in cache
-            if (measurementsToAdd.isEmpty()) {
+            if (!measurementsToAdd.isEmpty()) {
+                flushFuture = executor.submit(this.flusher);
+            } else if (isFlushing) {
+                // wait until measurements that are being written are stored
+                flushFuture = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        // only wait for the current flush
+                    }
+                });
+            } else {
+                // no measurements in cache
                 return;
             }
-            flushFuture = executor.submit(this.flusher);
         }
         try {
             flushFuture.get();
@@ -293,24 +736,49 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
 
     private void doFlush() {
         List<Record<K, V>> localList;
+        long watermark;
+        HighWatermarkListener listener;
 
         synchronized (this) {
             addMeasurementFuture = null;
             localList = listPool.get(measurementsToAdd);
             measurementsToAdd.clear();
+            watermark = highWatermark;
+            listener = highWatermarkListener;
+            isFlushing = true;
+            writingSince = pendingSince;
+            pendingSince = 0L;
         }
 
         try {
             logger.info("Writing {} records to file in topic {}", localList.size(), topic);
-            queue.addAll(localList);
-            queueSize.addAndGet(localList.size());
+            updateFormat();
+            restoreSpilled();
+            addWithOverflowPolicy(localList);
+            queueBytes.set(usedBytes());
         } catch (IOException ex) {
             logger.error("Failed to add record", ex);
-            queueSize.set(queue.size());
+            failedRecords.addAndGet(localList.size());
+            try {
+                queueSize.set(countRecords() - headFrameSkip);
+            } catch (IOException countEx) {
+                logger.error("Failed to count records", countEx);
+            }
+            queueBytes.set(usedBytes());
             throw new RuntimeException(ex);
+        } finally {
+            synchronized (this) {
+                isFlushing = false;
+                writingSince = 0L;
+            }
+            updateBackpressure();
         }
 
         listPool.add(localList);
+
+        if (listener != null && queueSize.get() > watermark) {
+            listener.onHighWatermark(this);
+        }
     }
 
     private void fixCorruptQueue() throws IOException {
@@ -321,11 +789,438 @@ public class TapeCache<K extends SpecificRecord, V extends SpecificRecord> imple
             logger.warn("Failed to close corrupt queue", ioex);
         }
         if (outputFile.delete()) {
+            // the removed records count as removed from the head, so that a pending upload of
+            // some of them does not remove records of the new queue file once it is sent
+            headPosition += Math.max(queueSize.get(), 0L);
+            headTime.set(HEAD_TIME_UNKNOWN);
             queueFile = QueueFile.newMapped(outputFile, maxBytes);
+            queueFile.setMaximumFileSize(maximumFileSize);
+            isFull = false;
             queueSize.set(queueFile.size());
+            queueBytes.set(usedBytes());
+            headFrameSkip = 0;
+            keyDictionary.clear();
+            updateFormat();
             queue = new BackedObjectQueue<>(queueFile, converter);
         } else {
             throw new IOException("Cannot create new cache.");
         }
     }
+
+    /**
+     * Write records to the queue file. Records that do not fit are handled according to the
+     * overflow policy.
+     */
+    private void addWithOverflowPolicy(List<Record<K, V>> records) throws IOException {
+        OverflowPolicy policy = overflowPolicy;
+        if (policy == OverflowPolicy.SPILL && !spillArchive.isEmpty()) {
+            // keep records in order, after the records that were spilled before
+            spill(records, 0);
+            isFull = true;
+            return;
+        }
+        if (policy == OverflowPolicy.DOWNSAMPLE) {
+            records = downsample(records);
+        }
+        int numAdded = addRecords(records);
+        if (numAdded < records.size() && policy == OverflowPolicy.DROP_OLDEST) {
+            numAdded = addDroppingOldest(records, numAdded);
+        }
+        isFull = numAdded < records.size();
+        if (!isFull) {
+            return;
+        }
+        if (policy == OverflowPolicy.SPILL) {
+            spill(records, numAdded);
+        } else {
+            int numRejected = records.size() - numAdded;
+            logger.warn("Cache of topic {} is full: dropping {} new records", topic, numRejected);
+            rejectedRecords.addAndGet(numRejected);
+        }
+    }
+
+    /**
+     * Write records to the queue file until it is full.
+     * @return number of records written from the start of given list.
+     */
+    private int addRecords(List<Record<K, V>> records) throws IOException {
+        boolean wasEmpty = queueSize.get() == 0L;
+        if (wasEmpty) {
+            headTime.set(HEAD_TIME_UNKNOWN);
+        }
+        int numAdded = isFramed ? addFrames(records) : queue.addWhileFits(records);
+        queueSize.addAndGet(numAdded);
+        if (wasEmpty && numAdded > 0) {
+            headTime.set(recordTime(records.get(0)));
+        }
+        return numAdded;
+    }
+
+    /**
+     * Remove the oldest records from the queue file until the remaining given records fit, or
+     * until the queue file is empty. Only the head of the queue file is moved, it is not
+     * rewritten.
+     * @param records records to write
+     * @param numAdded number of records that were already written
+     * @return number of records written from the start of given list.
+     */
+    private int addDroppingOldest(List<Record<K, V>> records, int numAdded)
+            throws IOException {
+        int numToDrop = Math.max(records.size() - numAdded, isFramed ? FRAME_SIZE : 1);
+        while (numAdded < records.size() && queueSize.get() > 0L) {
+            int numDropped = (int) Math.min(numToDrop, queueSize.get());
+            removeHead(numDropped);
+            droppedRecords.addAndGet(numDropped);
+            numAdded += addRecords(records.subList(numAdded, records.size()));
+            numToDrop = (int) Math.min(2L * numToDrop, Integer.MAX_VALUE);
+        }
+        logger.warn("Cache of topic {} is full: dropped the oldest records", topic);
+        return numAdded;
+    }
+
+    /**
+     * Keep only a part of given records if the cache is at or above its backpressure level: every
+     * second record at the backpressure level, up to every sixteenth record once the cache is
+     * full. Records are counted over calls, so that small batches are downsampled too.
+     */
+    private List<Record<K, V>> downsample(List<Record<K, V>> records) {
+        float level = getFillLevel();
+        float threshold;
+        synchronized (this) {
+            threshold = backpressureLevel;
+        }
+        if (level < threshold) {
+            return records;
+        }
+        int shift = threshold < 1f
+                ? (int) Math.ceil(MAX_DOWNSAMPLE_SHIFT * (level - threshold) / (1f - threshold))
+                : MAX_DOWNSAMPLE_SHIFT;
+        int factor = 1 << Math.max(1, Math.min(MAX_DOWNSAMPLE_SHIFT, shift));
+        List<Record<K, V>> result = new ArrayList<>(records.size() / factor + 1);
+        for (Record<K, V> record : records) {
+            if (downsampleIndex++ % factor == 0L) {
+                result.add(record);
+            }
+        }
+        downsampledRecords.addAndGet(records.size() - result.size());
+        return result;
+    }
+
+    /** Store records in the overflow archive, unless the archive is full. */
+    private void spill(List<Record<K, V>> records, int from) throws IOException {
+        int numRecords = records.size() - from;
+        if (spillArchive.size() >= maximumFileSize) {
+            logger.warn("Overflow archive of topic {} is full: dropping {} new records",
+                    topic, numRecords);
+            rejectedRecords.addAndGet(numRecords);
+            return;
+        }
+        spillArchive.append(records, from, records.size());
+        spilledRecords.addAndGet(numRecords);
+    }
+
+    /**
+     * Move records from the overflow archive back to the queue file, in order, while they fit.
+     * This only happens once the queue file has room again, so that the archive is not read on
+     * every flush while the cache is full.
+     */
+    private void restoreSpilled() throws IOException {
+        if (spillArchive.isEmpty() || getFillLevel() >= RESTORE_LEVEL) {
+            return;
+        }
+        List<Record<K, V>> records = new ArrayList<>();
+        int numRestored = 0;
+        // number of records of the current block that are in the queue file
+        int numBlockRestored = 0;
+        SpillArchive.Reader<K, V> reader = spillArchive.takeAll();
+        try {
+            while (reader.readBlock(records)) {
+                long queueSizeBefore = queueSize.get();
+                try {
+                    numBlockRestored = addRecords(records);
+                } catch (IOException ex) {
+                    // records that were written before the error stay in the queue file
+                    queueSize.set(countRecords() - headFrameSkip);
+                    numBlockRestored = (int) Math.max(queueSize.get() - queueSizeBefore, 0L);
+                    throw ex;
+                } finally {
+                    numRestored += numBlockRestored;
+                }
+                if (numBlockRestored < records.size()) {
+                    break;
+                }
+                records.clear();
+                numBlockRestored = 0;
+            }
+        } finally {
+            keepUnrestored(reader, records, numBlockRestored);
+            queueBytes.set(usedBytes());
+            restoredRecords.addAndGet(numRestored);
+            logger.info("Restored {} records of topic {} from the overflow archive",
+                    numRestored, topic);
+        }
+    }
+
+    /**
+     * Move the records of an overflow archive reader that were not restored back to the archive,
+     * in order, and remove the records that were taken. If they cannot be moved, the reader is
+     * only closed, so that no records are lost, but the restored records will be restored again.
+     * @param reader reader of the overflow archive
+     * @param records records of the current block of the reader
+     * @param from index of the first record of the current block that was not restored
+     */
+    private void keepUnrestored(SpillArchive.Reader<K, V> reader, List<Record<K, V>> records,
+            int from) {
+        try {
+            spillArchive.append(records, from, records.size());
+            records.clear();
+            while (readRemainingBlock(reader, records)) {
+                spillArchive.append(records, 0, records.size());
+                records.clear();
+            }
+            reader.finish();
+        } catch (IOException ex) {
+            logger.error("Failed to keep the records of topic {} that were not restored;"
+                    + " the restored records may be sent twice", topic, ex);
+            try {
+                reader.close();
+            } catch (IOException closeEx) {
+                logger.warn("Failed to close overflow archive of topic {}", topic, closeEx);
+            }
+        }
+    }
+
+    /**
+     * Read the next block of an overflow archive reader, or drop the remaining records if they
+     * cannot be read, since reading them again would fail too.
+     * @return whether a block was read.
+     */
+    private boolean readRemainingBlock(SpillArchive.Reader<K, V> reader,
+            List<Record<K, V>> records) {
+        try {
+            return reader.readBlock(records);
+        } catch (IOException ex) {
+            logger.error("Dropping unreadable records of the overflow archive of topic {}",
+                    topic, ex);
+            records.clear();
+            return false;
+        }
+    }
+
+    /** Remove the oldest records from the queue file. */
+    private void removeHead(int number) throws IOException {
+        if (isFramed) {
+            removeFrameRecords(number);
+        } else {
+            queue.remove(number);
+        }
+        queueSize.addAndGet(-number);
+        headPosition += number;
+        headTime.set(HEAD_TIME_UNKNOWN);
+    }
+
+    /**
+     * Notify the backpressure listener if the fill level passed the backpressure level since it
+     * was last notified.
+     */
+    private void updateBackpressure() {
+        BackpressureListener listener;
+        boolean backpressure;
+        synchronized (this) {
+            listener = backpressureListener;
+            if (listener == null) {
+                return;
+            }
+            backpressure = getFillLevel() >= backpressureLevel;
+            if (backpressure == hasBackpressure) {
+                return;
+            }
+            hasBackpressure = backpressure;
+        }
+        logger.info("Backpressure of cache of topic {} changed to {}", topic, backpressure);
+        listener.onBackpressure(this, backpressure);
+    }
+
+    /**
+     * Read records in the format of the queue file. Once a queue file of an older version is
+     * empty, it is upgraded to the current version. Keys of old sources are removed from the key
+     * dictionary once the queue file is empty.
+     * @throws IOException if the queue file header or the key dictionary cannot be updated
+     */
+    private void updateFormat() throws IOException {
+        if (queueFile.isEmpty()) {
+            int version = frameEncoding && frameConverter != null
+                    ? QueueFileHeader.VERSION_4 : QueueFileHeader.VERSION;
+            if (queueFile.getVersion() != version) {
+                logger.info("Changing cache of topic {} to version {}", topic, version);
+                queueFile.setVersion(version);
+            }
+            headFrameSkip = 0;
+            if (keyDictionary.size() > KEY_DICTIONARY_SIZE) {
+                keyDictionary.clear();
+            }
+        }
+        configure(converter);
+        isFramed = queueFile.getVersion() == QueueFileHeader.VERSION_4;
+    }
+
+    /** Configure a converter to read and write records in the format of the queue file. */
+    private void configure(TapeAvroConverter<K, V> recordConverter) {
+        int version = queueFile.getVersion();
+        recordConverter.setLegacyHeader(version == QueueFileHeader.VERSION_1);
+        recordConverter.setKeyDictionary(
+                version >= QueueFileHeader.VERSION_3 ? keyDictionary : null);
+    }
+
+    /**
+     * Read at most {@code limit} records from the queue file. Large batches are decoded in
+     * parallel on the decode pool, if any.
+     */
+    private void peekRecords(int limit, long sizeLimit, List<Record<K, V>> records)
+            throws IOException {
+        DecodePool pool = decodePool;
+        int numReaders = 1;
+        if (pool != null) {
+            int maxRecords = (int) Math.min(limit, queueSize.get());
+            numReaders = Math.min(pool.getParallelism(),
+                    maxRecords / BackedObjectQueue.MIN_CHUNK_SIZE);
+        }
+        if (numReaders <= 1) {
+            queue.peek(limit, sizeLimit, recordReader(converter, records));
+            return;
+        }
+
+        List<List<Record<K, V>>> chunks = new ArrayList<>(numReaders);
+        List<BackedObjectQueue.ElementReader> readers = new ArrayList<>(numReaders);
+        chunks.add(records);
+        readers.add(recordReader(converter, records));
+        for (int i = 1; i < numReaders; i++) {
+            List<Record<K, V>> chunk = new ArrayList<>();
+            TapeAvroConverter<K, V> chunkConverter = new TapeAvroConverter<>(topic);
+            configure(chunkConverter);
+            chunks.add(chunk);
+            readers.add(recordReader(chunkConverter, chunk));
+        }
+        queue.peek(limit, sizeLimit, readers, pool.getExecutor());
+        for (int i = 1; i < numReaders; i++) {
+            records.addAll(chunks.get(i));
+        }
+    }
+
+    /** Reader that decodes elements into given list, reusing pooled values. */
+    private BackedObjectQueue.ElementReader recordReader(
+            final TapeAvroConverter<K, V> recordConverter, final List<Record<K, V>> records) {
+        return new BackedObjectQueue.ElementReader() {
+            @Override
+            public boolean read(InputStream in) throws IOException {
+                records.add(recordConverter.deserialize(in, valuePool.poll()));
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Number of records in the queue file, including records of the first frame that were
+     * already removed.
+     */
+    private long countRecords() throws IOException {
+        if (queueFile.getVersion() != QueueFileHeader.VERSION_4) {
+            return queueFile.size();
+        }
+        long count = 0L;
+        for (InputStream in : queueFile) {
+            try {
+                count += NumericFrameConverter.readCount(in);
+            } finally {
+                in.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Write records to the queue file in frames of at most {@link #FRAME_SIZE} records, until
+     * the queue file is full.
+     * @return number of records written from the start of given list.
+     */
+    private int addFrames(List<Record<K, V>> records) throws IOException {
+        int numAdded = 0;
+        try (QueueFileOutputStream out = queueFile.elementOutputStream()) {
+            for (int from = 0; from < records.size(); from += FRAME_SIZE) {
+                int to = Math.min(from + FRAME_SIZE, records.size());
+                try {
+                    frameConverter.serialize(records, from, to, out);
+                } catch (QueueFullException ex) {
+                    break;
+                }
+                out.next();
+                numAdded = to;
+            }
+        }
+        return numAdded;
+    }
+
+    /** Read at most {@code limit} records from the frames in the queue file. */
+    private void peekFrames(final int limit, long sizeLimit, final FrameReader reader)
+            throws IOException {
+        // every frame contains at least one record, so at most limit frames are needed
+        queue.peek(limit, sizeLimit, new BackedObjectQueue.ElementReader() {
+            private int skip = headFrameSkip;
+            private int numRead = 0;
+
+            @Override
+            public boolean read(InputStream in) throws IOException {
+                int numRecords = reader.read(in, skip, limit - numRead);
+                numRead += Math.min(numRecords - skip, limit - numRead);
+                skip = 0;
+                return numRead < limit;
+            }
+        });
+    }
+
+    /**
+     * Remove records from the frames in the queue file. Frames are only removed once all their
+     * records are removed. The number of removed records of the first frame is stored in the
+     * queue file header together with the removal of frames, so those records are not read again
+     * after a restart.
+     */
+    private void removeFrameRecords(int number) throws IOException {
+        int remaining = headFrameSkip + number;
+        int numFrames = 0;
+        for (InputStream in : queueFile) {
+            int numRecords;
+            try {
+                numRecords = NumericFrameConverter.readCount(in);
+            } finally {
+                in.close();
+            }
+            if (numRecords > remaining) {
+                break;
+            }
+            remaining -= numRecords;
+            numFrames++;
+            if (remaining == 0) {
+                break;
+            }
+        }
+        queueFile.remove(numFrames, remaining);
+        headFrameSkip = remaining;
+    }
+
+    /** Reads records from a frame. */
+    private interface FrameReader {
+        /**
+         * Read records from a frame.
+         * @param in input with exactly the frame data
+         * @param skip number of records at the start of the frame to skip
+         * @param limit maximum number of records to read
+         * @return number of records in the frame
+         */
+        int read(InputStream in, int skip, int limit) throws IOException;
+    }
+
+    /** Number of bytes used by elements in the queue file, excluding the file header. */
+    private long usedBytes() {
+        return queueFile.usedBytes() - queueFile.getHeaderLength();
+    }
 }
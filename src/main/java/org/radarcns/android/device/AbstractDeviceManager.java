@@ -20,6 +20,8 @@ import android.support.annotation.CallSuper;
 import org.apache.avro.Schema;
 import org.apache.avro.specific.SpecificRecord;
 import org.radarcns.android.auth.AppSource;
+import org.radarcns.android.data.DataCache;
+import org.radarcns.android.data.ExtendedDataCache;
 import org.radarcns.android.data.TableDataHandler;
 import org.radarcns.kafka.ObservationKey;
 import org.radarcns.topic.AvroTopic;
@@ -29,7 +31,10 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Abstract DeviceManager that handles some common functionality.
@@ -46,6 +51,8 @@ public abstract class AbstractDeviceManager<S extends DeviceService<T>, T extend
     private final T deviceStatus;
     private String deviceName;
     private final S service;
+    private final Map<String, AvroTopic<ObservationKey, ?>> topics;
+    private final ExtendedDataCache.BackpressureListener backpressureListener;
     private boolean closed;
     private boolean didWarn;
 
@@ -60,6 +67,20 @@ public abstract class AbstractDeviceManager<S extends DeviceService<T>, T extend
         this.dataHandler = service.getDataHandler();
         this.deviceName = android.os.Build.MODEL;
         this.deviceStatus = service.getState();
+        this.topics = new ConcurrentHashMap<>();
+        this.backpressureListener = new ExtendedDataCache.BackpressureListener() {
+            @Override
+            public void onBackpressure(DataCache<?, ?> cache, boolean hasBackpressure) {
+                AvroTopic<ObservationKey, ?> topic = topics.get(cache.getTopic().getName());
+                if (topic != null) {
+                    onCacheBackpressure(topic, hasBackpressure);
+                }
+            }
+        };
+        // the service may not have a data handler yet
+        if (dataHandler != null) {
+            dataHandler.addBackpressureListener(backpressureListener);
+        }
         closed = false;
         didWarn = false;
     }
@@ -108,6 +129,7 @@ public abstract class AbstractDeviceManager<S extends DeviceService<T>, T extend
             AvroTopic<ObservationKey, V> topic = new AvroTopic<>(
                     name, ObservationKey.getClassSchema(), valueSchema, ObservationKey.class, valueClass);
             dataHandler.registerTopic(topic);
+            topics.put(name, topic);
             return topic;
         } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException | IOException e) {
             logger.error("Error creating topic " + name, e);
@@ -115,6 +137,65 @@ public abstract class AbstractDeviceManager<S extends DeviceService<T>, T extend
         }
     }
 
+    /**
+     * Creates and registers an Avro topic, and returns a sink to send its records with. The sink
+     * is bound to the cache of the topic and to the device of this manager, so it avoids looking
+     * up the cache for every record, as {@link #send(AvroTopic, SpecificRecord)} does.
+     * @param name The name of the topic
+     * @param valueClass The value class
+     * @param <V> record value type
+     * @return sink that sends records to the new topic
+     * @throws IllegalStateException if {@link #createTopic(String, Class)} did not create a
+     *                               topic.
+     */
+    protected <V extends SpecificRecord> RecordSink<V> createSink(String name, Class<V> valueClass) {
+        AvroTopic<ObservationKey, V> topic = createTopic(name, valueClass);
+        if (topic == null) {
+            throw new IllegalStateException("Topic " + name + " was not created");
+        }
+        return new RecordSink<V>(topic, dataHandler.getCache(topic), deviceStatus);
+    }
+
+    /**
+     * Called when the cache of a topic created by this manager reaches the configured
+     * backpressure level, or drops below it again. Records that do not fit in a full cache are
+     * lost, so while there is backpressure, override this to reduce the data rate, for example
+     * by lowering the sample rate or pausing optional data streams. This is called from the
+     * thread that writes to the cache, so it should return quickly. This implementation only
+     * logs the change.
+     * @param topic topic whose cache changed
+     * @param hasBackpressure whether the data rate of the topic should be reduced.
+     */
+    protected void onCacheBackpressure(AvroTopic<ObservationKey, ?> topic,
+            boolean hasBackpressure) {
+        if (hasBackpressure) {
+            logger.warn("Cache of topic {} is getting full", topic.getName());
+        } else {
+            logger.info("Cache of topic {} has room again", topic.getName());
+        }
+    }
+
+    /**
+     * Fraction of the maximum cache size that the cache of given topic uses, from 0 to 1, or 0
+     * if the cache does not report it.
+     * @see #onCacheBackpressure(AvroTopic, boolean)
+     */
+    protected float getCacheFillLevel(AvroTopic<ObservationKey, ?> topic) {
+        DataCache<?, ?> cache = dataHandler.getCache(topic.getName());
+        return cache instanceof ExtendedDataCache
+                ? ((ExtendedDataCache<?, ?>) cache).getFillLevel() : 0f;
+    }
+
+    /**
+     * Time in milliseconds that the oldest record sent to given topic has waited to be written to
+     * its cache, or 0 if no records are waiting or the cache does not report it.
+     */
+    protected long getCacheFlushLag(AvroTopic<ObservationKey, ?> topic) {
+        DataCache<?, ?> cache = dataHandler.getCache(topic.getName());
+        return cache instanceof ExtendedDataCache
+                ? ((ExtendedDataCache<?, ?>) cache).getFlushLag() : 0L;
+    }
+
     /**
      * Send a single record, using the cache to persist the data.
      * If the current device is not registered when this is called, the data will NOT be sent.
@@ -129,6 +210,43 @@ public abstract class AbstractDeviceManager<S extends DeviceService<T>, T extend
         }
     }
 
+    /**
+     * Send a batch of records, using the cache to persist the data. This has less overhead than
+     * sending the records one by one, for example for samples that arrive in a single packet.
+     * If the current device is not registered when this is called, the data will NOT be sent.
+     */
+    protected <V extends SpecificRecord> void sendAll(AvroTopic<ObservationKey, V> topic,
+            Collection<? extends V> values) {
+        ObservationKey key = deviceStatus.getId();
+        if (key.getSourceId() != null) {
+            dataHandler.addMeasurements(topic, key, values);
+        } else if (!didWarn) {
+            logger.warn("Cannot send data without a source ID from {}", getClass().getSimpleName());
+            didWarn = true;
+        }
+    }
+
+    /**
+     * Import records that were stored on the device itself, for example when reading its memory
+     * after it was used offline. Unlike {@link #sendAll(AvroTopic, Collection)}, this only
+     * returns after the records are written to the cache, so the device memory may be cleared
+     * afterwards. Large memory dumps should be imported in parts of, for example, ten thousand
+     * records, to limit memory use.
+     * If the current device is not registered when this is called, the data will NOT be imported.
+     * @return whether all records were written to the cache. If not, for example because the
+     *         cache was full, the device memory should not be cleared.
+     */
+    protected <V extends SpecificRecord> boolean importAll(AvroTopic<ObservationKey, V> topic,
+            Collection<? extends V> values) {
+        ObservationKey key = deviceStatus.getId();
+        if (key.getSourceId() == null) {
+            logger.warn("Cannot import data without a source ID from {}",
+                    getClass().getSimpleName());
+            return false;
+        }
+        return dataHandler.importMeasurements(topic, key, values);
+    }
+
     /**
      * Try to send a single record without any caching mechanism.
      * If the current device is not registered when this is called, the data will NOT be sent.
@@ -197,6 +315,9 @@ public abstract class AbstractDeviceManager<S extends DeviceService<T>, T extend
     @Override
     public void close() throws IOException {
         closed = true;
+        if (dataHandler != null) {
+            dataHandler.removeBackpressureListener(backpressureListener);
+        }
         updateStatus(DeviceStatusListener.Status.DISCONNECTED);
     }
 
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.device;
+
+import org.apache.avro.specific.SpecificRecord;
+import org.radarcns.android.data.DataCache;
+import org.radarcns.android.data.ExtendedDataCache;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.topic.AvroTopic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+
+/**
+ * Sends records of a single topic to its cache, for the device of a device manager. The cache of
+ * the topic is looked up once, when the sink is created, instead of by topic on every send. The
+ * cache of a topic is kept as long as the data handler, and repairs its own storage if needed, so
+ * the sink stays valid. A cache that is partitioned by subject keeps the partition of the current
+ * subject at hand, so records of the current subject are added to it without a further lookup,
+ * also after the subject changes.
+ *
+ * <p>The key of the records is not fixed: every send reads the current key from the device
+ * state, since its user ID and source ID may change. Records are only sent once the device has a
+ * source ID.
+ *
+ * @param <V> record value type
+ */
+public class RecordSink<V extends SpecificRecord> {
+    private static final Logger logger = LoggerFactory.getLogger(RecordSink.class);
+
+    private final AvroTopic<ObservationKey, V> topic;
+    private final DataCache<ObservationKey, V> cache;
+    private final BaseDeviceState deviceState;
+    private boolean didWarn;
+
+    RecordSink(AvroTopic<ObservationKey, V> topic, DataCache<ObservationKey, V> cache,
+            BaseDeviceState deviceState) {
+        if (topic == null) {
+            throw new IllegalArgumentException("Cannot create a record sink without a topic");
+        }
+        if (cache == null) {
+            throw new IllegalArgumentException("Topic " + topic.getName() + " is not registered");
+        }
+        this.topic = topic;
+        this.cache = cache;
+        this.deviceState = deviceState;
+        this.didWarn = false;
+    }
+
+    /** Topic that records are sent to. */
+    public AvroTopic<ObservationKey, V> getTopic() {
+        return topic;
+    }
+
+    /**
+     * Fraction of the maximum cache size that the cache of the topic uses, from 0 to 1, or 0 if
+     * the cache does not report it.
+     * @see AbstractDeviceManager#onCacheBackpressure(AvroTopic, boolean)
+     */
+    public float getFillLevel() {
+        return cache instanceof ExtendedDataCache
+                ? ((ExtendedDataCache<?, ?>) cache).getFillLevel() : 0f;
+    }
+
+    /**
+     * Time in milliseconds that the oldest record sent has waited to be written to the cache, or
+     * 0 if no records are waiting or the cache does not report it.
+     */
+    public long getFlushLag() {
+        return cache instanceof ExtendedDataCache
+                ? ((ExtendedDataCache<?, ?>) cache).getFlushLag() : 0L;
+    }
+
+    /**
+     * Send a single record, using the cache to persist the data.
+     * @return whether the record was sent; false if the device does not have a source ID yet.
+     */
+    public boolean send(V value) {
+        ObservationKey key = sourceKey();
+        if (key == null) {
+            return false;
+        }
+        cache.addMeasurement(key, value);
+        return true;
+    }
+
+    /**
+     * Send a batch of records, using the cache to persist the data.
+     * @return whether the records were sent; false if the device does not have a source ID yet.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean sendAll(Collection<? extends V> values) {
+        ObservationKey key = sourceKey();
+        if (key == null) {
+            return false;
+        }
+        if (cache instanceof ExtendedDataCache) {
+            ((ExtendedDataCache<ObservationKey, V>) cache).addMeasurements(key, values);
+        } else {
+            for (V value : values) {
+                cache.addMeasurement(key, value);
+            }
+        }
+        return true;
+    }
+
+    /** Key of the device, or {@code null} if it does not have a source ID yet. */
+    private ObservationKey sourceKey() {
+        ObservationKey key = deviceState.getId();
+        if (key.getSourceId() != null) {
+            return key;
+        }
+        if (!didWarn) {
+            logger.warn("Cannot send data of topic {} without a source ID", topic.getName());
+            didWarn = true;
+        }
+        return null;
+    }
+}
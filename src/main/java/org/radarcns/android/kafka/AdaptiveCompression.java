@@ -0,0 +1,322 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.radarcns.android.data.SerializedRecords;
+import org.radarcns.data.Record;
+import org.radarcns.producer.KafkaSender;
+import org.radarcns.producer.rest.RestSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides per request whether to compress it. If adaptive, small batches are never compressed,
+ * and larger batches only if their topic compresses well enough for the current battery state.
+ * The compression ratio of each topic is measured by compressing a sample of the Avro binary
+ * values of a batch now and then.
+ *
+ * <p>Only a {@link BinaryRestSender} takes the compression setting per request. A
+ * {@link RestSender} compresses either all or none of its requests, so with it, all requests are
+ * compressed if compression is enabled, whether adaptive or not.
+ */
+public class AdaptiveCompression {
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveCompression.class);
+
+    /** Batches smaller than this number of bytes are not worth compressing. */
+    static final long MINIMUM_COMPRESS_BYTES = 4096L;
+    /** Compress if the compression ratio is below this value while charging. */
+    static final double MAXIMUM_RATIO_CHARGING = 0.9d;
+    /** Compress if the compression ratio is below this value on battery. */
+    static final double MAXIMUM_RATIO_BATTERY = 0.7d;
+    /** Compress if the compression ratio is below this value on low battery. */
+    static final double MAXIMUM_RATIO_LOW_BATTERY = 0.5d;
+    static final float LOW_BATTERY_LEVEL = 0.2f;
+
+    /** Number of records to compress to measure the compression ratio of a topic. */
+    private static final int SAMPLE_SIZE = 20;
+    /** Number of requests of a topic after which its compression ratio is measured again. */
+    private static final int SAMPLE_INTERVAL = 50;
+
+    private final KafkaSender sender;
+    private final Map<String, TopicCompression> topics;
+    private boolean isEnabled;
+    private boolean isAdaptive;
+    private float batteryLevel;
+    private boolean isPlugged;
+
+    /**
+     * Compression policy that does not compress until enabled with
+     * {@link #setMode(boolean, boolean)}.
+     * @param sender sender to set compression on. Only {@link RestSender} and
+     *               {@link BinaryRestSender} support compression.
+     */
+    AdaptiveCompression(KafkaSender sender) {
+        this.sender = sender instanceof RestSender || sender instanceof BinaryRestSender
+                ? sender : null;
+        this.topics = new HashMap<>();
+        this.isEnabled = false;
+        this.isAdaptive = false;
+        this.batteryLevel = 1f;
+        this.isPlugged = false;
+    }
+
+    /**
+     * Set the compression mode.
+     * @param isEnabled whether compression may be used at all. The server must support it.
+     * @param isAdaptive if enabled, whether to decide per request whether to compress. If not
+     *                   adaptive, or if the sender cannot compress single requests, all requests
+     *                   are compressed.
+     */
+    public synchronized void setMode(boolean isEnabled, boolean isAdaptive) {
+        this.isEnabled = isEnabled && sender != null;
+        this.isAdaptive = isAdaptive;
+        if (sender instanceof RestSender) {
+            ((RestSender) sender).setCompression(this.isEnabled);
+        }
+    }
+
+    /** Whether to compress every request, rather than deciding per request. */
+    private boolean compressesAll() {
+        return !isAdaptive || !(sender instanceof BinaryRestSender);
+    }
+
+    /** Update the battery state to take into account. */
+    public synchronized void setBatteryState(float level, boolean isPlugged) {
+        this.batteryLevel = level;
+        this.isPlugged = isPlugged;
+    }
+
+    /**
+     * Decide whether to compress a request with given records.
+     * @param topic topic name
+     * @param records records that will be sent
+     */
+    synchronized <K, V> boolean shouldCompress(String topic, List<Record<K, V>> records) {
+        if (!isEnabled) {
+            return false;
+        }
+        if (compressesAll()) {
+            return true;
+        }
+        TopicCompression compression = getTopic(topic);
+        if (compression.needsSample()) {
+            compression.sample(records);
+        }
+        return shouldCompress(compression, records.size());
+    }
+
+    /**
+     * Decide whether to compress a request with given serialized records.
+     * @param topic topic name
+     * @param records records that will be sent
+     */
+    synchronized boolean shouldCompress(String topic, SerializedRecords<?, ?> records) {
+        if (!isEnabled) {
+            return false;
+        }
+        if (compressesAll()) {
+            return true;
+        }
+        TopicCompression compression = getTopic(topic);
+        if (compression.needsSample()) {
+            compression.sample(records);
+        }
+        return shouldCompress(compression, records.size());
+    }
+
+    private boolean shouldCompress(TopicCompression compression, int numberOfRecords) {
+        compression.requestsSinceSample++;
+
+        double estimatedBytes = compression.bytesPerRecord * numberOfRecords;
+        if (estimatedBytes < MINIMUM_COMPRESS_BYTES) {
+            return false;
+        }
+        double maximumRatio;
+        if (isPlugged) {
+            maximumRatio = MAXIMUM_RATIO_CHARGING;
+        } else if (batteryLevel < LOW_BATTERY_LEVEL) {
+            maximumRatio = MAXIMUM_RATIO_LOW_BATTERY;
+        } else {
+            maximumRatio = MAXIMUM_RATIO_BATTERY;
+        }
+        return compression.ratio < maximumRatio;
+    }
+
+    /**
+     * Register a successful request for the statistics.
+     * @param topic topic name
+     * @param numberOfRecords number of records sent
+     * @param compressed whether the request was compressed
+     */
+    synchronized void didSend(String topic, int numberOfRecords, boolean compressed) {
+        TopicCompression compression = getTopic(topic);
+        if (compressed) {
+            compression.compressedRequests++;
+            // the request itself is not measured, so extrapolate from the last sample
+            if (compression.bytesPerRecord >= 0d) {
+                double bytes = compression.bytesPerRecord * numberOfRecords;
+                compression.estimatedBytesSaved += Math.round(bytes * (1d - compression.ratio));
+                compression.estimatedCpuTimeNanos += Math.round(bytes * compression.nanosPerByte);
+            }
+        } else {
+            compression.uncompressedRequests++;
+        }
+    }
+
+    private TopicCompression getTopic(String topic) {
+        TopicCompression compression = topics.get(topic);
+        if (compression == null) {
+            compression = new TopicCompression();
+            topics.put(topic, compression);
+        }
+        return compression;
+    }
+
+    /** Compression statistics per topic name. */
+    public synchronized Map<String, Stats> getStats() {
+        Map<String, Stats> stats = new HashMap<>();
+        for (Map.Entry<String, TopicCompression> topic : topics.entrySet()) {
+            TopicCompression compression = topic.getValue();
+            stats.put(topic.getKey(), new Stats(compression.ratio,
+                    compression.estimatedBytesSaved,
+                    compression.estimatedCpuTimeNanos / 1_000_000L,
+                    compression.compressedRequests, compression.uncompressedRequests));
+        }
+        return stats;
+    }
+
+    /**
+     * Compression statistics of a single topic. Compressed requests are not measured themselves:
+     * the bytes saved and CPU time are estimated from the compression of the most recent sample
+     * of the topic. They are only estimated if compression is adaptive.
+     */
+    public static class Stats {
+        /** Most recently measured compressed size divided by uncompressed size of a sample. */
+        public final double ratio;
+        /** Estimated number of bytes that compression saved. */
+        public final long estimatedBytesSaved;
+        /** Estimated CPU time spent compressing in milliseconds. */
+        public final long estimatedCpuTimeMillis;
+        public final long compressedRequests;
+        public final long uncompressedRequests;
+
+        Stats(double ratio, long estimatedBytesSaved, long estimatedCpuTimeMillis,
+                long compressedRequests, long uncompressedRequests) {
+            this.ratio = ratio;
+            this.estimatedBytesSaved = estimatedBytesSaved;
+            this.estimatedCpuTimeMillis = estimatedCpuTimeMillis;
+            this.compressedRequests = compressedRequests;
+            this.uncompressedRequests = uncompressedRequests;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{ratio=" + ratio
+                    + ", estimatedBytesSaved=" + estimatedBytesSaved
+                    + ", estimatedCpuTimeMillis=" + estimatedCpuTimeMillis
+                    + ", compressedRequests=" + compressedRequests
+                    + ", uncompressedRequests=" + uncompressedRequests
+                    + '}';
+        }
+    }
+
+    /** Measured compression of a single topic. */
+    private static class TopicCompression {
+        private double ratio = 1d;
+        private double bytesPerRecord = -1d;
+        private double nanosPerByte = 0d;
+        private int requestsSinceSample = 0;
+        private long estimatedBytesSaved = 0L;
+        private long estimatedCpuTimeNanos = 0L;
+        private long compressedRequests = 0L;
+        private long uncompressedRequests = 0L;
+
+        /** Whether the compression should be measured before the next request. */
+        boolean needsSample() {
+            return bytesPerRecord < 0d || requestsSinceSample >= SAMPLE_INTERVAL;
+        }
+
+        /**
+         * Measure the compression of the first values of a batch, in the Avro binary encoding
+         * that {@link BinaryRestSender} sends them in.
+         */
+        <K, V> void sample(List<Record<K, V>> records) {
+            requestsSinceSample = 0;
+            int sampleSize = Math.min(SAMPLE_SIZE, records.size());
+            if (sampleSize == 0) {
+                return;
+            }
+            ByteArrayOutputStream rawStream = new ByteArrayOutputStream();
+            try {
+                SpecificDatumWriter<V> writer = new SpecificDatumWriter<>(
+                        SpecificData.get().induce(records.get(0).value));
+                BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(rawStream, null);
+                for (int i = 0; i < sampleSize; i++) {
+                    writer.write(records.get(i).value, encoder);
+                }
+                encoder.flush();
+            } catch (IOException | AvroRuntimeException ex) {
+                logger.warn("Cannot sample records for compression", ex);
+                return;
+            }
+            measure(rawStream.toByteArray(), sampleSize);
+        }
+
+        /** Measure the compression of the first serialized values of a batch. */
+        void sample(SerializedRecords<?, ?> records) {
+            requestsSinceSample = 0;
+            int sampleSize = Math.min(SAMPLE_SIZE, records.size());
+            if (sampleSize == 0) {
+                return;
+            }
+            ByteArrayOutputStream rawStream = new ByteArrayOutputStream();
+            for (int i = 0; i < sampleSize; i++) {
+                rawStream.write(records.getBuffer(), records.getValueOffset(i),
+                        records.getValueLength(i));
+            }
+            measure(rawStream.toByteArray(), sampleSize);
+        }
+
+        private void measure(byte[] raw, int sampleSize) {
+            long startTime = System.nanoTime();
+            ByteArrayOutputStream compressedStream = new ByteArrayOutputStream(raw.length / 2);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressedStream)) {
+                gzip.write(raw);
+            } catch (IOException ex) {
+                logger.warn("Cannot compress sample records", ex);
+                return;
+            }
+            long duration = System.nanoTime() - startTime;
+
+            ratio = compressedStream.size() / (double) raw.length;
+            bytesPerRecord = raw.length / (double) sampleSize;
+            nanosPerByte = duration / (double) raw.length;
+        }
+    }
+}
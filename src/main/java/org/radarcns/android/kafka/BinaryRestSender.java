@@ -0,0 +1,607 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import android.support.annotation.NonNull;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.radarcns.android.data.SerializedRecords;
+import org.radarcns.config.ServerConfig;
+import org.radarcns.data.Record;
+import org.radarcns.data.RecordData;
+import org.radarcns.producer.AuthenticationException;
+import org.radarcns.producer.KafkaSender;
+import org.radarcns.producer.KafkaTopicSender;
+import org.radarcns.producer.rest.ManagedConnectionPool;
+import org.radarcns.producer.rest.ParsedSchemaMetadata;
+import org.radarcns.producer.rest.RestClient;
+import org.radarcns.producer.rest.SchemaRetriever;
+import org.radarcns.topic.AvroTopic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Sender that uploads records to a binary-capable endpoint, like RADAR-Gateway, as Avro binary
+ * instead of the JSON format of the Kafka REST proxy. This makes requests smaller than JSON
+ * requests. All records in a request share a single key, so a batch with different keys is split
+ * into one request per run of equal keys. Serialized records are only sent up to the first key
+ * change, see {@link #send(SerializedRecords)}.
+ *
+ * A request body has the Avro binary encoding of the following record, and records are encoded
+ * straight into the request stream. Records that are already serialized in a cache can be sent
+ * as they are with {@link #send(SerializedRecords)}:
+ * <pre>
+ * record RecordSet {
+ *   int key_schema_version;
+ *   int value_schema_version;
+ *   union {null, string} projectId;
+ *   union {null, string} userId;
+ *   string sourceId;
+ *   array&lt;bytes&gt; data;  // binary encoded values
+ * }
+ * </pre>
+ * The binary format identifies schemas by their version in the schema registry subject of the
+ * topic, not by their schema ID, so the server looks them up by topic and version. Schema
+ * versions are taken from the schema registry with a {@link SchemaRetriever}, registering the
+ * schemas if needed. Keys must have a {@code sourceId} field.
+ */
+public class BinaryRestSender implements KafkaSender {
+    private static final Logger logger = LoggerFactory.getLogger(BinaryRestSender.class);
+
+    public static final MediaType BINARY_CONTENT_TYPE = MediaType.parse(
+            "application/vnd.radarbase.avro.v1+binary");
+    private static final String KAFKA_REST_ACCEPT_TYPE = "application/vnd.kafka.v2+json, "
+            + "application/vnd.kafka+json, application/json";
+    private static final int HTTP_UNAUTHORIZED = 401;
+    private static final int HTTP_FORBIDDEN = 403;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+    private final ManagedConnectionPool connectionPool;
+    private RestClient httpClient;
+    private ServerConfig kafkaConfig;
+    private long connectionTimeout;
+    private SchemaRetriever schemaRetriever;
+    private Headers headers;
+    private boolean useCompression;
+
+    private BinaryRestSender(Builder builder) {
+        this.kafkaConfig = builder.kafkaConfig;
+        this.schemaRetriever = builder.retriever;
+        this.connectionTimeout = builder.timeout;
+        this.useCompression = builder.compression;
+        this.headers = builder.additionalHeaders;
+        this.connectionPool = builder.pool;
+        this.httpClient = new RestClient(kafkaConfig, connectionTimeout, connectionPool);
+    }
+
+    /** Set the server to send data to. */
+    public synchronized void setKafkaConfig(@NonNull ServerConfig kafkaConfig) {
+        if (kafkaConfig.equals(this.kafkaConfig)) {
+            return;
+        }
+        this.kafkaConfig = kafkaConfig;
+        replaceClient();
+    }
+
+    /** Set the connection timeout in seconds. */
+    public synchronized void setConnectionTimeout(long connectionTimeout) {
+        if (connectionTimeout == this.connectionTimeout) {
+            return;
+        }
+        this.connectionTimeout = connectionTimeout;
+        replaceClient();
+    }
+
+    private void replaceClient() {
+        RestClient oldClient = httpClient;
+        httpClient = new RestClient(kafkaConfig, connectionTimeout, connectionPool);
+        oldClient.close();
+    }
+
+    public synchronized void setSchemaRetriever(@NonNull SchemaRetriever retriever) {
+        this.schemaRetriever = retriever;
+    }
+
+    /** Set headers, like authorization headers, to add to every request. */
+    public synchronized void setHeaders(@NonNull Headers headers) {
+        this.headers = headers;
+    }
+
+    /**
+     * Set whether to compress request bodies with GZIP by default. The server must support it.
+     * Single requests can override it, see {@link #send(SerializedRecords, boolean)} and
+     * {@link #sender(AvroTopic, boolean)}.
+     */
+    public synchronized void setCompression(boolean useCompression) {
+        this.useCompression = useCompression;
+    }
+
+    private synchronized RestClient getHttpClient() {
+        return httpClient;
+    }
+
+    private synchronized ServerConfig getKafkaConfig() {
+        return kafkaConfig;
+    }
+
+    private synchronized SchemaRetriever getSchemaRetriever() {
+        return schemaRetriever;
+    }
+
+    private synchronized Headers getHeaders() {
+        return headers;
+    }
+
+    private synchronized boolean isCompressing() {
+        return useCompression;
+    }
+
+    @Override
+    public <K, V> KafkaTopicSender<K, V> sender(AvroTopic<K, V> topic) throws IOException {
+        return newSender(topic, null);
+    }
+
+    /**
+     * Sender for a topic that compresses its requests or not, regardless of the setting of
+     * {@link #setCompression(boolean)}.
+     */
+    public <K, V> KafkaTopicSender<K, V> sender(AvroTopic<K, V> topic, boolean compress)
+            throws IOException {
+        return newSender(topic, compress);
+    }
+
+    private <K, V> KafkaTopicSender<K, V> newSender(AvroTopic<K, V> topic, Boolean compress)
+            throws IOException {
+        if (topic.getKeySchema().getType() != Schema.Type.RECORD
+                || topic.getKeySchema().getField("sourceId") == null) {
+            throw new IOException("Cannot send topic " + topic.getName()
+                    + " in binary format: its key has no sourceId");
+        }
+        return new BinaryTopicSender<>(topic, compress);
+    }
+
+    /** Checks the connection with a HEAD request to the server. */
+    @Override
+    public boolean isConnected() throws AuthenticationException {
+        RestClient client = getHttpClient();
+        try {
+            Request request = client.requestBuilder("")
+                    .headers(getHeaders())
+                    .head()
+                    .build();
+            try (Response response = client.request(request)) {
+                if (response.code() == HTTP_UNAUTHORIZED || response.code() == HTTP_FORBIDDEN) {
+                    throw new AuthenticationException("Unauthorized to connect to "
+                            + getKafkaConfig());
+                }
+                return response.isSuccessful();
+            }
+        } catch (AuthenticationException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            logger.debug("Cannot connect to {}: {}", getKafkaConfig(), ex.toString());
+            return false;
+        }
+    }
+
+    @Override
+    public boolean resetConnection() throws AuthenticationException {
+        return isConnected();
+    }
+
+    @Override
+    public synchronized void close() {
+        httpClient.close();
+    }
+
+    /**
+     * Failed request that the server responded to with an HTTP error status. The message has the
+     * same form as that of failed requests of the radar-commons RestSender.
+     */
+    public static class HttpStatusException extends IOException {
+        /** Status code in the exception message of a failed RestSender request. */
+        private static final Pattern STATUS_CODE_PATTERN = Pattern.compile(
+                "HTTP status code (\\d{3})");
+
+        private final int statusCode;
+        private final long retryAfterMillis;
+
+        HttpStatusException(int statusCode, String message, long retryAfterMillis) {
+            super(message);
+            this.statusCode = statusCode;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        /** HTTP status code of the response. */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * Delay requested by the server in milliseconds, or -1 if the server did not specify it.
+         */
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+
+        /**
+         * HTTP status code of a failed request. The RestSender of radar-commons does not expose
+         * it, so for its exceptions it is taken from the message.
+         * @return status code, or -1 if the request did not fail with an HTTP error status.
+         */
+        public static int statusCodeOf(IOException ex) {
+            if (ex instanceof HttpStatusException) {
+                return ((HttpStatusException) ex).getStatusCode();
+            }
+            if (ex == null || ex.getMessage() == null) {
+                return -1;
+            }
+            Matcher matcher = STATUS_CODE_PATTERN.matcher(ex.getMessage());
+            return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+        }
+    }
+
+    /**
+     * Send records as they are stored in a cache, without decoding and encoding their values.
+     * Since a request has a single key, only the records up to the first record with a
+     * different key are sent, in a single request. The remaining records should be sent with a
+     * next call, after the sent records are removed from the cache. That way, a failed request
+     * never causes records of an earlier accepted request to be sent again. Like topic senders,
+     * only one thread may send records of a single topic at a time.
+     * @param records records to send
+     * @return number of records sent, from the start of given records.
+     * @throws IOException if the records cannot be sent
+     */
+    public int send(SerializedRecords<?, ?> records) throws IOException {
+        return send(records, isCompressing());
+    }
+
+    /**
+     * Send records as they are stored in a cache, like {@link #send(SerializedRecords)}.
+     * @param records records to send
+     * @param compress whether to compress the request, regardless of
+     *                 {@link #setCompression(boolean)}
+     * @return number of records sent, from the start of given records.
+     * @throws IOException if the records cannot be sent
+     */
+    public int send(final SerializedRecords<?, ?> records, boolean compress) throws IOException {
+        final int size = records.getKeyRunLength();
+        if (size == 0) {
+            return 0;
+        }
+        postRecordSet(records.getTopic(), records.getKey(0), new RecordSetValues() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public void write(int index, BinaryEncoder encoder) throws IOException {
+                encoder.writeBytes(records.getBuffer(), records.getValueOffset(index),
+                        records.getValueLength(index));
+            }
+        }, compress);
+        return size;
+    }
+
+    /** Send values that share a single key in one request. */
+    private void postRecordSet(AvroTopic<?, ?> topic, Object key, RecordSetValues values,
+            boolean compress) throws IOException {
+        SchemaRetriever retriever = getSchemaRetriever();
+        ParsedSchemaMetadata keyMetadata = retriever.getOrSetSchemaMetadata(
+                topic.getName(), false, topic.getKeySchema());
+        ParsedSchemaMetadata valueMetadata = retriever.getOrSetSchemaMetadata(
+                topic.getName(), true, topic.getValueSchema());
+
+        RequestBody body = new RecordSetBody(schemaVersion(topic, keyMetadata),
+                schemaVersion(topic, valueMetadata), (IndexedRecord) key, values);
+        if (compress) {
+            body = new GzipBody(body);
+        }
+
+        RestClient client = getHttpClient();
+        Request.Builder requestBuilder = client.requestBuilder("topics/" + topic.getName())
+                .headers(getHeaders())
+                .header("Accept", KAFKA_REST_ACCEPT_TYPE)
+                .post(body);
+        if (body instanceof GzipBody) {
+            requestBuilder.header("Content-Encoding", "gzip");
+        }
+
+        try (Response response = client.request(requestBuilder.build())) {
+            if (response.isSuccessful()) {
+                return;
+            }
+            int code = response.code();
+            if (code == HTTP_UNAUTHORIZED || code == HTTP_FORBIDDEN) {
+                throw new AuthenticationException("Request unauthorized");
+            }
+            String message = "Failed to submit (HTTP status code " + code + "): "
+                    + RestClient.responseBody(response);
+            long retryAfter = -1L;
+            if (UploadThrottle.isThrottleStatus(code)) {
+                retryAfter = UploadThrottle.parseRetryAfter(
+                        response.header("Retry-After"), System.currentTimeMillis());
+            } else if (code == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                logger.error("Server {} does not accept binary data; disable binary uploads",
+                        getKafkaConfig());
+            }
+            throw new HttpStatusException(code, message, retryAfter);
+        }
+    }
+
+    private static int schemaVersion(AvroTopic<?, ?> topic, ParsedSchemaMetadata metadata)
+            throws IOException {
+        Integer version = metadata.getVersion();
+        if (version == null) {
+            throw new IOException("Schema version of topic " + topic.getName() + " is not known");
+        }
+        return version;
+    }
+
+    /**
+     * Sender for a single topic. Like other topic senders, only one thread may use it. A batch
+     * with different keys is sent as one request per run of equal keys, so if a request fails,
+     * the runs before it were already accepted. Callers that need to know which records were
+     * sent should pass a single run at a time, or use {@link #send(SerializedRecords)}.
+     */
+    private class BinaryTopicSender<K, V> implements KafkaTopicSender<K, V> {
+        private final AvroTopic<K, V> topic;
+        private final SpecificDatumWriter<V> valueWriter;
+        private final ByteArrayOutputStream valueBuffer;
+        private BinaryEncoder valueEncoder;
+        /** Whether to compress requests, or {@code null} to use the setting of the sender. */
+        private final Boolean compress;
+
+        private BinaryTopicSender(AvroTopic<K, V> topic, Boolean compress) {
+            this.topic = topic;
+            this.compress = compress;
+            this.valueWriter = new SpecificDatumWriter<>(topic.getValueSchema());
+            this.valueBuffer = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void send(K key, V value) throws IOException {
+            send(key, Collections.singletonList(value));
+        }
+
+        @Override
+        public void send(RecordData<K, V> records) throws IOException {
+            K currentKey = null;
+            List<V> values = new ArrayList<>();
+            for (Record<K, V> record : records) {
+                if (currentKey != null && !currentKey.equals(record.key)) {
+                    send(currentKey, values);
+                    values.clear();
+                }
+                currentKey = record.key;
+                values.add(record.value);
+            }
+            if (!values.isEmpty()) {
+                send(currentKey, values);
+            }
+        }
+
+        private void send(K key, final List<V> values) throws IOException {
+            postRecordSet(topic, key, new RecordSetValues() {
+                @Override
+                public int size() {
+                    return values.size();
+                }
+
+                @Override
+                public void write(int index, BinaryEncoder encoder) throws IOException {
+                    writeValue(values.get(index), encoder);
+                }
+            }, compress != null ? compress : isCompressing());
+        }
+
+        /** Encode a value with a reused buffer. Only called on the thread that sends. */
+        private void writeValue(V value, BinaryEncoder out) throws IOException {
+            valueBuffer.reset();
+            valueEncoder = EncoderFactory.get().binaryEncoder(valueBuffer, valueEncoder);
+            valueWriter.write(value, valueEncoder);
+            valueEncoder.flush();
+            out.writeBytes(valueBuffer.toByteArray());
+        }
+
+        @Override
+        public void clear() {
+            // nothing is buffered
+        }
+
+        @Override
+        public void flush() {
+            // requests are sent immediately
+        }
+
+        @Override
+        public void close() {
+            // the HTTP client is shared and closed by the sender
+        }
+    }
+
+    /** Values of a record set, written while the request body is written. */
+    private interface RecordSetValues {
+        int size();
+
+        /** Write the binary encoded value at given index as Avro bytes. */
+        void write(int index, BinaryEncoder encoder) throws IOException;
+    }
+
+    /**
+     * Request body with the binary record set. Values are written while the body is written,
+     * so the body may be written again if OkHttp retries the request.
+     */
+    private static class RecordSetBody extends RequestBody {
+        private final int keyVersion;
+        private final int valueVersion;
+        private final IndexedRecord key;
+        private final RecordSetValues values;
+
+        RecordSetBody(int keyVersion, int valueVersion, IndexedRecord key,
+                RecordSetValues values) {
+            this.keyVersion = keyVersion;
+            this.valueVersion = valueVersion;
+            this.key = key;
+            this.values = values;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return BINARY_CONTENT_TYPE;
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            OutputStream out = sink.outputStream();
+            BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+            encoder.writeInt(keyVersion);
+            encoder.writeInt(valueVersion);
+            writeNullableString(encoder, keyField("projectId"));
+            writeNullableString(encoder, keyField("userId"));
+            encoder.writeString(keyField("sourceId"));
+            encoder.writeArrayStart();
+            int size = values.size();
+            encoder.setItemCount(size);
+            for (int i = 0; i < size; i++) {
+                encoder.startItem();
+                values.write(i, encoder);
+            }
+            encoder.writeArrayEnd();
+            encoder.flush();
+        }
+
+        private String keyField(String name) {
+            Schema.Field field = key.getSchema().getField(name);
+            if (field == null) {
+                return null;
+            }
+            Object value = key.get(field.pos());
+            return value != null ? value.toString() : null;
+        }
+    }
+
+    private static void writeNullableString(BinaryEncoder encoder, String value)
+            throws IOException {
+        if (value == null) {
+            encoder.writeIndex(0);
+        } else {
+            encoder.writeIndex(1);
+            encoder.writeString(value);
+        }
+    }
+
+    /** Request body that compresses another body with GZIP. */
+    private static class GzipBody extends RequestBody {
+        private final RequestBody body;
+
+        GzipBody(RequestBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            // not known in advance
+            return -1L;
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+            body.writeTo(gzipSink);
+            gzipSink.close();
+        }
+    }
+
+    public static class Builder {
+        private ServerConfig kafkaConfig;
+        private SchemaRetriever retriever;
+        private boolean compression = false;
+        private long timeout = 10;
+        private Headers additionalHeaders = Headers.of();
+        private ManagedConnectionPool pool = ManagedConnectionPool.GLOBAL_POOL;
+
+        public Builder server(ServerConfig kafkaConfig) {
+            this.kafkaConfig = kafkaConfig;
+            return this;
+        }
+
+        public Builder schemaRetriever(SchemaRetriever schemaRetriever) {
+            this.retriever = schemaRetriever;
+            return this;
+        }
+
+        public Builder useCompression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder connectionTimeout(long timeout, TimeUnit unit) {
+            this.timeout = TimeUnit.SECONDS.convert(timeout, unit);
+            return this;
+        }
+
+        public Builder headers(Headers headers) {
+            this.additionalHeaders = headers;
+            return this;
+        }
+
+        public Builder connectionPool(ManagedConnectionPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        public BinaryRestSender build() {
+            if (kafkaConfig == null) {
+                throw new IllegalStateException("Kafka server is not set");
+            }
+            if (retriever == null) {
+                throw new IllegalStateException("Schema retriever is not set");
+            }
+            return new BinaryRestSender(this);
+        }
+    }
+}
@@ -32,14 +32,16 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * present, and a exponential back-off mechanism if the connection is severed. If the connection is
  * assessed to be present through another mechanism, {@link #didConnect()} should be called,
  * conversely, if it is assessed to be severed, {@link #didDisconnect(IOException)} should be
- * called.
+ * called. If the server throttles requests, {@link #didThrottle()} should be called instead: the
+ * connection is then checked again only once the throttle expires.
  */
 class KafkaConnectionChecker implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(KafkaConnectionChecker.class);
 
-    private static final int INCREMENTAL_BACKOFF_MILLISECONDS = 60_000;
-    private static final int MAX_BACKOFF_MILLISECONDS = 14_400_000; // 4 hours
+    static final int INCREMENTAL_BACKOFF_MILLISECONDS = 60_000;
+    static final int MAX_BACKOFF_MILLISECONDS = 14_400_000; // 4 hours
     private final KafkaSender sender;
+    private final UploadThrottle throttle;
     private final ServerStatusListener listener;
     private final AtomicBoolean isConnected;
     private final Random random;
@@ -48,10 +50,12 @@ class KafkaConnectionChecker implements Runnable {
     private long lastConnection;
     private int retries;
     private boolean isPosted;
+    private boolean isThrottled;
 
-    KafkaConnectionChecker(KafkaSender sender, Handler handler, ServerStatusListener listener,
-                           long heartbeatSecondsInterval) {
+    KafkaConnectionChecker(KafkaSender sender, UploadThrottle throttle, Handler handler,
+                           ServerStatusListener listener, long heartbeatSecondsInterval) {
         this.sender = sender;
+        this.throttle = throttle;
         this.mHandler = handler;
         isConnected = new AtomicBoolean(true);
         lastConnection = -1L;
@@ -60,6 +64,7 @@ class KafkaConnectionChecker implements Runnable {
         this.random = new Random();
         this.heartbeatInterval = heartbeatSecondsInterval * 1000L;
         this.isPosted = false;
+        this.isThrottled = false;
     }
 
     /**
@@ -67,11 +72,20 @@ class KafkaConnectionChecker implements Runnable {
      */
     @Override
     public void run() {
+        boolean wasThrottled;
         synchronized (this) {
             isPosted = false;
+            long throttleDelay = throttle.getThrottleDelay();
+            if (throttleDelay > 0L) {
+                post(throttleDelay);
+                return;
+            }
+            wasThrottled = isThrottled;
+            isThrottled = false;
         }
         try {
-            if (!isConnected.get()) {
+            // the sender may consider itself disconnected after being throttled
+            if (!isConnected.get() || wasThrottled) {
                 if (sender.resetConnection()) {
                     didConnect();
                     listener.updateServerStatus(ServerStatusListener.Status.CONNECTED);
@@ -112,13 +126,23 @@ class KafkaConnectionChecker implements Runnable {
         double sample = random.nextDouble();
         synchronized (this) {
             retries++;
-            int range = Math.min(INCREMENTAL_BACKOFF_MILLISECONDS * (1 << retries - 1),
-                    MAX_BACKOFF_MILLISECONDS);
-            long nextWait = Math.round(sample * range * 1000d);
-            post(nextWait);
+            post(backoffDelay(retries, sample));
         }
     }
 
+    /**
+     * Delay before retrying the connection. It is randomly chosen between zero and a range that
+     * doubles with every retry, up to {@link #MAX_BACKOFF_MILLISECONDS}.
+     * @param retries number of retries so far, including this one
+     * @param sample random sample between 0 and 1
+     * @return delay in milliseconds
+     */
+    static long backoffDelay(int retries, double sample) {
+        long range = Math.min((long) INCREMENTAL_BACKOFF_MILLISECONDS << Math.min(retries - 1, 30),
+                MAX_BACKOFF_MILLISECONDS);
+        return Math.round(sample * range);
+    }
+
     /** Signal that the sender successfully connected. */
     public synchronized void didConnect() {
         lastConnection = System.currentTimeMillis();
@@ -127,6 +151,15 @@ class KafkaConnectionChecker implements Runnable {
         retries = 0;
     }
 
+    /**
+     * Signal that the server throttled a request. This is not considered a disconnect: the
+     * connection is checked again as soon as the throttle expires.
+     */
+    public synchronized void didThrottle() {
+        isThrottled = true;
+        post(throttle.getThrottleDelay());
+    }
+
     /**
      * Signal that the Kafka REST sender has disconnected.
      * @param ex exception the sender disconnected with, may be null
@@ -18,9 +18,12 @@ package org.radarcns.android.kafka;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import org.radarcns.android.data.DataCache;
 import org.radarcns.android.data.DataHandler;
+import org.radarcns.android.data.ExtendedDataCache;
+import org.radarcns.android.data.SerializedRecords;
 import org.radarcns.data.AvroRecordData;
 import org.radarcns.data.Record;
 import org.radarcns.kafka.ObservationKey;
@@ -35,10 +38,11 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 
@@ -46,37 +50,105 @@ import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
  * Separate thread to read from the database and send it to the Kafka server. It cleans the
  * database.
  *
- * It uses a set of timers to addMeasurement data and clean the databases.
+ * It uses a set of timers to addMeasurement data and clean the databases. Multiple topics may be
+ * uploaded in parallel, see {@link #setUploadParallelism(int, long)}. The order in which topics
+ * are uploaded is determined by an {@link UploadScheduler}. Cached data is only uploaded while
+ * the {@link UploadWindow} is open. With a {@link BinaryRestSender}, cached records are uploaded
+ * as they are stored, without decoding them.
+ *
+ * Besides the periodic upload of all caches, a cache is uploaded as soon as it holds more than
+ * the send limit of its topic. An {@link ExtendedDataCache} notifies the submitter of this with a
+ * {@link ExtendedDataCache.HighWatermarkListener} when it writes new records, so that the
+ * submitter does not need to poll it. Other caches are polled five times per upload period.
  */
 public class KafkaDataSubmitter<V> implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(KafkaDataSubmitter.class);
 
+    public static final int UPLOAD_PARALLELISM_DEFAULT = 1;
+    public static final long MAX_BYTES_IN_FLIGHT_DEFAULT = 4_000_000L;
+    public static final long SIZE_LIMIT_DEFAULT = 1_000_000L;
+    public static final UploadScheduler.Policy UPLOAD_POLICY_DEFAULT = UploadScheduler.Policy.LARGEST_BACKLOG;
+    public static final int TRY_SEND_CAPACITY_DEFAULT = 1000;
+    public static final int UPLOAD_REQUESTS_PER_MINUTE_DEFAULT = 0;
+
     private final DataHandler<ObservationKey, V> dataHandler;
     private final KafkaSender sender;
-    private final ConcurrentMap<AvroTopic<ObservationKey, V>, Queue<Record<ObservationKey, V>>> trySendCache;
+    private final ConcurrentMap<AvroTopic<ObservationKey, V>, RecordRing<ObservationKey, V>> trySendCache;
     private final Map<AvroTopic<ObservationKey, V>, Runnable> trySendFuture;
     private final Map<AvroTopic<ObservationKey, V>, KafkaTopicSender<ObservationKey, V>> topicSenders;
+    /** Topic senders that compress their requests, if the sender compresses per request. */
+    private final Map<AvroTopic<ObservationKey, V>, KafkaTopicSender<ObservationKey, V>> compressedTopicSenders;
     private final KafkaConnectionChecker connection;
     private static final ListPool listPool = new ListPool(1);
-    private final AtomicInteger sendLimit;
+    private final SendLimitController sendLimits;
+    private final AtomicLong sizeLimit;
+    private final UploadScheduler scheduler;
+    private final UploadThrottle throttle;
+    private final AdaptiveCompression compression;
+    private final UploadMetrics metrics;
     private final HandlerThread mHandlerThread;
     private final Handler mHandler;
 
+    private final Runnable uploadIfNeededFuture;
+    private final ExtendedDataCache.HighWatermarkListener highWatermarkListener;
+    private final Runnable highWatermarkUpdater;
+    /** Checks caches that do not notify the submitter of their high watermark. */
+    private final Runnable pollCachesFuture;
+    /** Whether {@link #pollCachesFuture} is posted. Only used on the submitter thread. */
+    private boolean isPollingCaches;
+    /** Whether {@link #uploadIfNeededFuture} is posted and has not started yet. */
+    private final AtomicBoolean isUploadIfNeededPending;
+
     private Runnable uploadFuture;
-    private Runnable uploadIfNeededFuture;
+    /** Window in which cached data may be uploaded. */
+    private volatile UploadWindow uploadWindow;
+    /** Pool to upload topics with. Only replaced on the submitter thread. */
+    private volatile UploadPool uploadPool;
+    /** Maximum number of records per topic to hold for {@link #trySend}. */
+    private volatile int trySendCapacity;
     /** Upload rate in milliseconds. */
     private long uploadRate;
-    private String userId;
 
+    public KafkaDataSubmitter(@NonNull DataHandler<ObservationKey, V> dataHandler, @NonNull
+            KafkaSender sender, int sendLimit, long uploadRate) {
+        this(dataHandler, sender, sendLimit, uploadRate, new UploadMetrics());
+    }
+
+    /**
+     * Data submitter that used to only upload records of given user. The user ID is ignored: the
+     * caches of the data handler only contain records of the current subject, so all their
+     * records are uploaded.
+     *
+     * @param userId ignored.
+     * @deprecated use {@link #KafkaDataSubmitter(DataHandler, KafkaSender, int, long)} instead.
+     */
+    @Deprecated
     public KafkaDataSubmitter(@NonNull DataHandler<ObservationKey, V> dataHandler, @NonNull
             KafkaSender sender, int sendLimit, long uploadRate, String userId) {
+        this(dataHandler, sender, sendLimit, uploadRate);
+    }
+
+    /**
+     * Data submitter that records its uploads in given metrics, so that they can be kept when
+     * the submitter is replaced.
+     */
+    public KafkaDataSubmitter(@NonNull DataHandler<ObservationKey, V> dataHandler, @NonNull
+            KafkaSender sender, int sendLimit, long uploadRate, @NonNull UploadMetrics metrics) {
         this.dataHandler = dataHandler;
         this.sender = sender;
-        this.userId = userId;
+        this.metrics = metrics;
         trySendCache = new ConcurrentHashMap<>();
+        trySendCapacity = TRY_SEND_CAPACITY_DEFAULT;
         trySendFuture = new HashMap<>();
         topicSenders = new HashMap<>();
-        this.sendLimit = new AtomicInteger(sendLimit);
+        compressedTopicSenders = new HashMap<>();
+        this.sendLimits = new SendLimitController(sendLimit);
+        this.sizeLimit = new AtomicLong(SIZE_LIMIT_DEFAULT);
+        this.uploadPool = new UploadPool(UPLOAD_PARALLELISM_DEFAULT, MAX_BYTES_IN_FLIGHT_DEFAULT);
+        this.scheduler = new UploadScheduler(UPLOAD_POLICY_DEFAULT);
+        this.throttle = new UploadThrottle(UPLOAD_REQUESTS_PER_MINUTE_DEFAULT);
+        this.uploadWindow = new UploadWindow(null);
+        this.compression = new AdaptiveCompression(sender);
 
         mHandlerThread = new HandlerThread("data-submitter", THREAD_PRIORITY_BACKGROUND);
         mHandlerThread.start();
@@ -84,7 +156,45 @@ public class KafkaDataSubmitter<V> implements Closeable {
 
         logger.info("Started data submission executor");
 
-        connection = new KafkaConnectionChecker(sender, mHandler, dataHandler, uploadRate * 5);
+        connection = new KafkaConnectionChecker(sender, throttle, mHandler, dataHandler,
+                uploadRate * 5);
+
+        isUploadIfNeededPending = new AtomicBoolean(false);
+        uploadIfNeededFuture = new Runnable() {
+            @Override
+            public void run() {
+                isUploadIfNeededPending.set(false);
+                if (connection.isConnected() && uploadWindow.isOpen()) {
+                    boolean sendAgain = uploadCachesIfNeeded();
+                    updateHighWatermarks();
+                    if (sendAgain) {
+                        postUploadIfNeeded();
+                    }
+                }
+            }
+        };
+        highWatermarkListener = new ExtendedDataCache.HighWatermarkListener() {
+            @Override
+            public void onHighWatermark(DataCache<?, ?> cache) {
+                postUploadIfNeeded();
+            }
+        };
+        highWatermarkUpdater = new Runnable() {
+            @Override
+            public void run() {
+                updateHighWatermarks();
+            }
+        };
+        isPollingCaches = false;
+        pollCachesFuture = new Runnable() {
+            @Override
+            public void run() {
+                isPollingCaches = false;
+                // polls again if there are still caches without high watermark
+                updateHighWatermarks();
+                postUploadIfNeeded();
+            }
+        };
 
         mHandler.post(new Runnable() {
             @Override
@@ -105,9 +215,9 @@ public class KafkaDataSubmitter<V> implements Closeable {
 
         synchronized (this) {
             uploadFuture = null;
-            uploadIfNeededFuture = null;
             setUploadRate(uploadRate);
         }
+        mHandler.post(highWatermarkUpdater);
         logger.info("Remote Config: Upload rate is '{}' sec per upload", uploadRate);
     }
 
@@ -120,7 +230,6 @@ public class KafkaDataSubmitter<V> implements Closeable {
         this.uploadRate = newUploadRate;
         if (uploadFuture != null) {
             mHandler.removeCallbacks(uploadFuture);
-            mHandler.removeCallbacks(uploadIfNeededFuture);
         }
         // Get upload frequency from system property
         uploadFuture = new Runnable() {
@@ -128,7 +237,14 @@ public class KafkaDataSubmitter<V> implements Closeable {
 
             @Override
             public void run() {
+                // also registers caches of topics that were added since the last upload
+                updateHighWatermarks();
                 if (connection.isConnected()) {
+                    if (!uploadWindow.isOpen()) {
+                        // wait for the next window, without waking up the radio
+                        mHandler.postDelayed(this, uploadRate);
+                        return;
+                    }
                     if (topicsToSend.isEmpty()) {
                         topicsToSend = new HashSet<>(KafkaDataSubmitter.this.dataHandler.getCaches().keySet());
                     }
@@ -145,21 +261,43 @@ public class KafkaDataSubmitter<V> implements Closeable {
             }
         };
         mHandler.postDelayed(uploadFuture, uploadRate);
+    }
 
-        uploadIfNeededFuture = new Runnable() {
-            @Override
-            public void run() {
-                if (connection.isConnected()) {
-                    boolean sendAgain = uploadCachesIfNeeded();
-                    if (sendAgain) {
-                        mHandler.post(this);
-                        return;
-                    }
-                }
-                mHandler.postDelayed(this, uploadRate / 5);
+    /** Upload the caches that exceed their send limit, unless that is already pending. */
+    private void postUploadIfNeeded() {
+        if (isUploadIfNeededPending.compareAndSet(false, true)
+                && !mHandler.post(uploadIfNeededFuture)) {
+            // the submitter was closed
+            isUploadIfNeededPending.set(false);
+        }
+    }
+
+    /**
+     * Set the high watermark of each cache to the current send limit of its topic. Caches that
+     * do not support a high watermark are polled instead. This is only run on the submitter
+     * thread.
+     */
+    private void updateHighWatermarks() {
+        boolean needsPolling = false;
+        for (Map.Entry<AvroTopic<ObservationKey, ? extends V>, ? extends DataCache<ObservationKey, ? extends V>> entry
+                : dataHandler.getCaches().entrySet()) {
+            DataCache<ObservationKey, ? extends V> cache = entry.getValue();
+            if (cache instanceof ExtendedDataCache) {
+                ((ExtendedDataCache<ObservationKey, ? extends V>) cache).setHighWatermark(
+                        sendLimits.getLimit(entry.getKey().getName()), highWatermarkListener);
+            } else {
+                needsPolling = true;
             }
-        };
-        mHandler.postDelayed(uploadIfNeededFuture, uploadRate / 5);
+        }
+        if (needsPolling && !isPollingCaches
+                && mHandler.postDelayed(pollCachesFuture, getUploadRate() * 200L)) {
+            isPollingCaches = true;
+        }
+    }
+
+    /** Looper of the submitter thread. Package-private for testing. */
+    Looper getLooper() {
+        return mHandlerThread.getLooper();
     }
 
     /** Upload rate in seconds. */
@@ -168,7 +306,149 @@ public class KafkaDataSubmitter<V> implements Closeable {
     }
 
     public void setSendLimit(int limit) {
-        sendLimit.set(limit);
+        sendLimits.setStaticLimit(limit);
+        mHandler.post(highWatermarkUpdater);
+    }
+
+    /**
+     * Set the maximum number of cached bytes to send in a single request. A request is cut off
+     * at the send limit or at this size limit, whichever is reached first. A single record that
+     * exceeds the size limit is still sent on its own.
+     */
+    public void setSizeLimit(long bytes) {
+        sizeLimit.set(bytes);
+    }
+
+    /**
+     * Adapt the send limit per topic to the network conditions. The limit of a topic grows while
+     * full batches are uploaded within the latency target, and is cut back if requests fail or
+     * are slow.
+     * @param minimumLimit minimum number of records to send in a single request
+     * @param maximumLimit maximum number of records to send in a single request
+     * @param latencyTargetMillis maximum request duration that is considered healthy.
+     */
+    public void setAdaptiveSendLimit(int minimumLimit, int maximumLimit, long latencyTargetMillis) {
+        sendLimits.setAdaptive(minimumLimit, maximumLimit, latencyTargetMillis);
+    }
+
+    /** Use the same static send limit for all topics. */
+    public void disableAdaptiveSendLimit() {
+        sendLimits.disableAdaptive();
+    }
+
+    /**
+     * Current effective send limit per topic name. Topics that have not been adapted yet are not
+     * included.
+     */
+    public Map<String, Integer> getSendLimits() {
+        return sendLimits.getLimits();
+    }
+
+    /**
+     * Set the number of upload requests per minute that a single topic may make, after an
+     * initial burst. Zero disables the limit.
+     */
+    public void setUploadRequestsPerMinute(int requestsPerMinute) {
+        throttle.setRequestsPerMinute(requestsPerMinute);
+    }
+
+    /**
+     * Set whether to compress uploads. Only senders that support compression are affected.
+     * @param useCompression whether compression may be used. The server must support it.
+     * @param isAdaptive whether to decide per request whether to compress, based on the batch
+     *                   size, the measured compression ratio of its topic and the battery state.
+     *                   Otherwise, all requests are compressed.
+     */
+    public void setCompression(boolean useCompression, boolean isAdaptive) {
+        compression.setMode(useCompression, isAdaptive);
+    }
+
+    /** Set the battery state to take into account when deciding whether to compress. */
+    public void setBatteryState(float level, boolean isPlugged) {
+        compression.setBatteryState(level, isPlugged);
+    }
+
+    /** Compression statistics per topic name. */
+    public Map<String, AdaptiveCompression.Stats> getCompressionStats() {
+        return compression.getStats();
+    }
+
+    /** Upload metrics per topic name. */
+    public Map<String, UploadMetrics.TopicMetrics> getUploadMetrics() {
+        return metrics.getMetrics();
+    }
+
+    /**
+     * Set the window in which cached data may be uploaded. Data sent with {@link #trySend} is not
+     * held back by the window.
+     */
+    public void setUploadWindow(@NonNull UploadWindow window) {
+        this.uploadWindow = window;
+    }
+
+    /** Set the policy that determines which topics are uploaded first. */
+    public void setUploadPolicy(UploadScheduler.Policy policy) {
+        scheduler.setPolicy(policy);
+    }
+
+    /**
+     * Set the priorities of topics by topic name, for the weighted round robin upload policy.
+     * Topics that are not specified have priority 1.
+     */
+    public void setTopicPriorities(Map<String, Integer> priorities) {
+        scheduler.setPriorities(priorities);
+    }
+
+    /**
+     * Set the maximum number of records per topic that are held for {@link #trySend}. If more
+     * records are added before they can be sent, the oldest records are dropped.
+     */
+    public void setTrySendCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Try send capacity must be at least 1");
+        }
+        trySendCapacity = capacity;
+        for (RecordRing<ObservationKey, V> ring : trySendCache.values()) {
+            ring.setCapacity(capacity);
+        }
+    }
+
+    /**
+     * Number of records per topic name that were dropped by {@link #trySend} because they could
+     * not be sent in time.
+     */
+    public Map<String, Long> getTrySendDropped() {
+        Map<String, Long> dropped = new HashMap<>();
+        for (Map.Entry<AvroTopic<ObservationKey, V>, RecordRing<ObservationKey, V>> entry
+                : trySendCache.entrySet()) {
+            dropped.put(entry.getKey().getName(), entry.getValue().getDropped());
+        }
+        return dropped;
+    }
+
+    /**
+     * Set the number of topics that may be uploaded at the same time. Records of a single topic
+     * are always uploaded in order. With a parallelism of one, all topics are uploaded one after
+     * another on the submitter thread.
+     * @param parallelism maximum number of topics to upload at the same time
+     * @param maxBytesInFlight maximum number of cached bytes that may be uploaded at the same time
+     */
+    public void setUploadParallelism(final int parallelism, final long maxBytesInFlight) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                UploadPool oldPool = uploadPool;
+                if (oldPool == null
+                        || (oldPool.getParallelism() == parallelism
+                        && oldPool.getMaxBytesInFlight() == maxBytesInFlight)) {
+                    return;
+                }
+                logger.info("Uploading at most {} topics and {} bytes at the same time",
+                        parallelism, maxBytesInFlight);
+                uploadPool = new UploadPool(parallelism, maxBytesInFlight);
+                oldPool.close();
+            }
+        });
     }
 
     /**
@@ -181,6 +461,14 @@ public class KafkaDataSubmitter<V> implements Closeable {
             public void run() {
                 mHandler.removeCallbacks(uploadFuture);
                 mHandler.removeCallbacks(uploadIfNeededFuture);
+                mHandler.removeCallbacks(pollCachesFuture);
+                for (DataCache<ObservationKey, ? extends V> cache
+                        : dataHandler.getCaches().values()) {
+                    if (cache instanceof ExtendedDataCache) {
+                        ((ExtendedDataCache<ObservationKey, ? extends V>) cache)
+                                .removeHighWatermark(highWatermarkListener);
+                    }
+                }
 
                 synchronized (trySendFuture) {
                     for (Runnable future : trySendFuture.values()) {
@@ -190,14 +478,13 @@ public class KafkaDataSubmitter<V> implements Closeable {
                     trySendCache.clear();
                 }
 
-                for (Map.Entry<AvroTopic<ObservationKey, V>, KafkaTopicSender<ObservationKey, V>> topicSender : topicSenders.entrySet()) {
-                    try {
-                        topicSender.getValue().close();
-                    } catch (IOException e) {
-                        logger.warn("failed to close topicSender for topic {}", topicSender.getKey().getName(), e);
-                    }
+                uploadPool.close();
+                uploadPool = null;
+
+                synchronized (topicSenders) {
+                    closeTopicSenders(topicSenders);
+                    closeTopicSenders(compressedTopicSenders);
                 }
-                topicSenders.clear();
 
                 try {
                     sender.close();
@@ -209,14 +496,52 @@ public class KafkaDataSubmitter<V> implements Closeable {
         mHandlerThread.quitSafely();
     }
 
-    /** Get a sender for a topic. Per topic, only ONE thread may use this. */
-    private KafkaTopicSender<ObservationKey, V> sender(AvroTopic<ObservationKey, V> topic) throws IOException {
-        KafkaTopicSender<ObservationKey, V> topicSender = topicSenders.get(topic);
-        if (topicSender == null) {
-            topicSender = sender.sender(topic);
-            topicSenders.put(topic, topicSender);
+    private void closeTopicSenders(Map<AvroTopic<ObservationKey, V>, KafkaTopicSender<ObservationKey, V>> senders) {
+        for (Map.Entry<AvroTopic<ObservationKey, V>, KafkaTopicSender<ObservationKey, V>> topicSender : senders.entrySet()) {
+            try {
+                topicSender.getValue().close();
+            } catch (IOException e) {
+                logger.warn("failed to close topicSender for topic {}", topicSender.getKey().getName(), e);
+            }
+        }
+        senders.clear();
+    }
+
+    /**
+     * Get a sender for a topic. Per topic, only ONE thread may use this.
+     * @param compress whether to compress the requests. A sender that cannot compress single
+     *                 requests ignores this and uses its own setting, see
+     *                 {@link AdaptiveCompression}.
+     */
+    private KafkaTopicSender<ObservationKey, V> sender(AvroTopic<ObservationKey, V> topic,
+            boolean compress) throws IOException {
+        boolean isPerRequest = sender instanceof BinaryRestSender;
+        synchronized (topicSenders) {
+            Map<AvroTopic<ObservationKey, V>, KafkaTopicSender<ObservationKey, V>> senders =
+                    isPerRequest && compress ? compressedTopicSenders : topicSenders;
+            KafkaTopicSender<ObservationKey, V> topicSender = senders.get(topic);
+            if (topicSender == null) {
+                topicSender = isPerRequest
+                        ? ((BinaryRestSender) sender).sender(topic, compress)
+                        : sender.sender(topic);
+                senders.put(topic, topicSender);
+            }
+            return topicSender;
         }
-        return topicSender;
+    }
+
+    /**
+     * Set the user to upload records of. This does nothing: the caches of the data handler only
+     * contain records of the current subject, see
+     * {@link org.radarcns.android.data.SubjectPartitionedCache#setSubject(String)}.
+     *
+     * @param userId ignored.
+     * @deprecated the data handler selects the records of the current subject.
+     */
+    @Deprecated
+    public void setUserId(String userId) {
+        logger.warn("Ignoring user ID {}: caches only contain records of the current subject",
+                userId);
     }
 
     /**
@@ -230,31 +555,44 @@ public class KafkaDataSubmitter<V> implements Closeable {
      * Upload the caches if they would cause the buffer to overflow
      */
     private boolean uploadCachesIfNeeded() {
-        boolean uploadingNotified = false;
-        int currentSendLimit = sendLimit.get();
+        if (throttle.isThrottled()) {
+            return false;
+        }
+        AtomicBoolean uploadingNotified = new AtomicBoolean(false);
         boolean sendAgain = false;
+        long currentSizeLimit = sizeLimit.get();
+
+        List<UploadTask> tasks = new ArrayList<>();
+        for (Map.Entry<AvroTopic<ObservationKey, ? extends V>, ? extends DataCache<ObservationKey, ? extends V>> entry
+                : dataHandler.getCaches().entrySet()) {
+            long unsent = entry.getValue().numberOfRecords().first;
+            int currentSendLimit = sendLimits.getLimit(entry.getKey().getName());
+            if (unsent > currentSendLimit && throttle.tryAcquire(entry.getKey().getName())) {
+                //noinspection unchecked
+                tasks.add(new UploadTask(
+                        (AvroTopic<ObservationKey, V>) entry.getKey(), (DataCache<ObservationKey, V>) entry.getValue(),
+                        currentSendLimit, currentSizeLimit, uploadingNotified));
+            }
+        }
+
+        scheduler.sort(tasks);
 
         try {
-            for (Map.Entry<AvroTopic<ObservationKey, ? extends V>, ? extends DataCache<ObservationKey, ? extends V>> entry
-                    : dataHandler.getCaches().entrySet()) {
-                long unsent = entry.getValue().numberOfRecords().first;
-                if (unsent > currentSendLimit) {
-                    //noinspection unchecked
-                    int sent = uploadCache(
-                            (AvroTopic<ObservationKey, V>) entry.getKey(), (DataCache<ObservationKey, V>) entry.getValue(),
-                            currentSendLimit, uploadingNotified);
-                    if (!uploadingNotified) {
-                        uploadingNotified = true;
-                    }
-                    if (!sendAgain && unsent - sent > currentSendLimit && sent != -1) {
-                        sendAgain = true;
-                    }
+            List<Integer> sentRecords = uploadPool.invokeAll(tasks);
+            for (int i = 0; i < sentRecords.size(); i++) {
+                int sent = sentRecords.get(i);
+                if (!sendAgain && tasks.get(i).unsent - sent > tasks.get(i).limit && sent != -1) {
+                    sendAgain = true;
                 }
             }
-            if (uploadingNotified) {
+            if (!tasks.isEmpty()) {
                 dataHandler.updateServerStatus(ServerStatusListener.Status.CONNECTED);
                 connection.didConnect();
             }
+        } catch (UploadThrottle.ThrottleException ex) {
+            logger.info("Upload throttled by server, retrying in {} ms", throttle.getThrottleDelay());
+            connection.didThrottle();
+            sendAgain = false;
         } catch (IOException ex) {
             connection.didDisconnect(ex);
             sendAgain = false;
@@ -263,29 +601,54 @@ public class KafkaDataSubmitter<V> implements Closeable {
     }
 
     /**
-     * Upload a limited amount of data stored in the database which is not yet sent.
+     * Upload a limited amount of data stored in the database which is not yet sent. Topics that
+     * have no more data to send are removed from given set. Package-private for load testing.
      */
-    private void uploadCaches(Set<AvroTopic<ObservationKey, ? extends V>> toSend) {
-        boolean uploadingNotified = false;
-        int currentSendLimit = sendLimit.get();
+    void uploadCaches(Set<AvroTopic<ObservationKey, ? extends V>> toSend) {
+        if (throttle.isThrottled()) {
+            toSend.clear();
+            return;
+        }
+        AtomicBoolean uploadingNotified = new AtomicBoolean(false);
+        long currentSizeLimit = sizeLimit.get();
+
+        List<UploadTask> tasks = new ArrayList<>();
+        for (Map.Entry<AvroTopic<ObservationKey, ? extends V>, ? extends DataCache<ObservationKey, ? extends V>> entry : dataHandler.getCaches().entrySet()) {
+            if (!toSend.contains(entry.getKey())) {
+                continue;
+            }
+            if (!throttle.tryAcquire(entry.getKey().getName())) {
+                // try again at the next upload
+                toSend.remove(entry.getKey());
+                continue;
+            }
+            @SuppressWarnings("unchecked") // we can upload any record
+            UploadTask task = new UploadTask((AvroTopic<ObservationKey, V>)entry.getKey(), (DataCache<ObservationKey, V>)entry.getValue(), sendLimits.getLimit(entry.getKey().getName()), currentSizeLimit, uploadingNotified);
+            tasks.add(task);
+        }
+
+        scheduler.sort(tasks);
+
         try {
-            for (Map.Entry<AvroTopic<ObservationKey, ? extends V>, ? extends DataCache<ObservationKey, ? extends V>> entry : dataHandler.getCaches().entrySet()) {
-                if (!toSend.contains(entry.getKey())) {
-                    continue;
+            List<Integer> sentRecords = uploadPool.invokeAll(tasks);
+            boolean didUpload = false;
+            for (int i = 0; i < sentRecords.size(); i++) {
+                int sent = sentRecords.get(i);
+                if (!tasks.get(i).isFull(sent)) {
+                    toSend.remove(tasks.get(i).topic);
                 }
-                @SuppressWarnings("unchecked") // we can upload any record
-                int sent = uploadCache((AvroTopic<ObservationKey, V>)entry.getKey(), (DataCache<ObservationKey, V>)entry.getValue(), currentSendLimit, uploadingNotified);
-                if (sent < currentSendLimit) {
-                    toSend.remove(entry.getKey());
-                }
-                if (!uploadingNotified && sent > 0) {
-                    uploadingNotified = true;
+                if (sent > 0) {
+                    didUpload = true;
                 }
             }
-            if (uploadingNotified) {
+            if (didUpload) {
                 dataHandler.updateServerStatus(ServerStatusListener.Status.CONNECTED);
                 connection.didConnect();
             }
+        } catch (UploadThrottle.ThrottleException ex) {
+            logger.info("Upload throttled by server, retrying in {} ms", throttle.getThrottleDelay());
+            connection.didThrottle();
+            toSend.clear();
         } catch (IOException ex) {
             connection.didDisconnect(ex);
         }
@@ -295,52 +658,234 @@ public class KafkaDataSubmitter<V> implements Closeable {
      * Upload some data from a single table.
      * @return number of records sent.
      */
-    private int uploadCache(AvroTopic<ObservationKey, V> topic, DataCache<ObservationKey, V> cache, int limit,
-                            boolean uploadingNotified) throws IOException {
-        List<Record<ObservationKey, V>> unfilteredMeasurements = cache.unsentRecords(limit);
-
-        List<Record<ObservationKey, V>> measurements = listPool.get(Collections
-                .<Record<ObservationKey,V>>emptyList());
-        for (Record<ObservationKey, V> record : unfilteredMeasurements) {
-            if (record.key.getUserId().equals(userId)) {
-                measurements.add(record);
-            }
+    private int uploadCache(final AvroTopic<ObservationKey, V> topic, DataCache<ObservationKey, V> cache, int limit,
+                            long sizeLimit, AtomicBoolean uploadingNotified) throws IOException {
+        if (sender instanceof BinaryRestSender && cache instanceof ExtendedDataCache) {
+            return uploadSerializedCache(topic, (ExtendedDataCache<ObservationKey, V>) cache,
+                    limit, sizeLimit, uploadingNotified);
         }
-
+        // the cache only contains records of the current subject
+        final List<Record<ObservationKey, V>> measurements = cache instanceof ExtendedDataCache
+                ? ((ExtendedDataCache<ObservationKey, V>) cache).unsentRecords(limit, sizeLimit)
+                : cache.unsentRecords(limit);
         int numberOfRecords = measurements.size();
-        int totalSize = unfilteredMeasurements.size();
 
         try {
             if (numberOfRecords > 0) {
-                KafkaTopicSender<ObservationKey, V> cacheSender = sender(topic);
+                boolean compress = compression.shouldCompress(topic.getName(), measurements);
+                final KafkaTopicSender<ObservationKey, V> cacheSender = sender(topic, compress);
+                upload(topic, numberOfRecords, estimateBytes(cache, numberOfRecords),
+                        compress, measurements.get(0).value, uploadingNotified, new UploadRequest() {
+                            @Override
+                            public void send() throws IOException {
+                                cacheSender.send(new AvroRecordData<>(topic, measurements));
+                                cacheSender.flush();
+                            }
+                        });
+            }
+            cache.remove(numberOfRecords);
+        } finally {
+            // the records are not used after sending them
+            if (cache instanceof ExtendedDataCache) {
+                ((ExtendedDataCache<ObservationKey, V>) cache).returnListAndValues(measurements);
+            } else {
+                cache.returnList(measurements);
+            }
+        }
 
-                if (!uploadingNotified) {
-                    dataHandler.updateServerStatus(ServerStatusListener.Status.UPLOADING);
-                }
+        return numberOfRecords;
+    }
 
-                try {
-                    cacheSender.send(new AvroRecordData<>(topic, measurements));
-                    cacheSender.flush();
-                } catch (AuthenticationException ex) {
-                    dataHandler.updateRecordsSent(topic.getName(), -1);
-                    throw ex;
-                } catch (IOException ioe) {
-                    dataHandler.updateServerStatus(ServerStatusListener.Status.UPLOADING_FAILED);
-                    dataHandler.updateRecordsSent(topic.getName(), -1);
-                    throw ioe;
-                }
+    /**
+     * Upload some data from a single table as it is stored, with a binary sender. Only the
+     * first value is decoded, to keep track of the data age.
+     * @return number of records sent.
+     */
+    private int uploadSerializedCache(AvroTopic<ObservationKey, V> topic, ExtendedDataCache<ObservationKey, V> cache,
+                                      int limit, long sizeLimit, AtomicBoolean uploadingNotified) throws IOException {
+        // the cache only contains records of the current subject
+        final SerializedRecords<ObservationKey, V> records = cache.unsentSerializedRecords(limit, sizeLimit);
+        // the sender only sends records up to the first key change, the rest follows next time
+        int numberOfRecords = records.getKeyRunLength();
+
+        if (numberOfRecords > 0) {
+            final boolean compress = compression.shouldCompress(topic.getName(), records);
+            long numberOfBytes = records.getSerializedSize() * numberOfRecords / records.size();
+            upload(topic, numberOfRecords, numberOfBytes, compress, records.getValue(0),
+                    uploadingNotified, new UploadRequest() {
+                        @Override
+                        public void send() throws IOException {
+                            ((BinaryRestSender) sender).send(records, compress);
+                        }
+                    });
+        }
+        cache.remove(numberOfRecords);
+
+        return numberOfRecords;
+    }
 
-                dataHandler.updateRecordsSent(topic.getName(), numberOfRecords);
+    /**
+     * Make an upload request for a batch of records of a single topic, and keep track of its
+     * result.
+     * @param topic topic of the records
+     * @param numberOfRecords number of records in the batch
+     * @param numberOfBytes (estimated) number of cached bytes of the batch. The upload pool
+     *                      reserves at most its maximum number of bytes in flight for it.
+     * @param compress whether the request is compressed, for the statistics
+     * @param firstValue first value of the batch
+     * @param uploadingNotified whether the uploading status was already sent
+     * @param request request that sends the batch
+     * @throws IOException if the batch could not be sent
+     */
+    private void upload(AvroTopic<ObservationKey, V> topic, int numberOfRecords, long numberOfBytes,
+                        boolean compress, Object firstValue, AtomicBoolean uploadingNotified,
+                        UploadRequest request) throws IOException {
+        if (uploadingNotified.compareAndSet(false, true)) {
+            dataHandler.updateServerStatus(ServerStatusListener.Status.UPLOADING);
+        }
 
-                logger.debug("uploaded {} {} records", numberOfRecords, topic.getName());
+        UploadPool pool = uploadPool;
+        long reservedBytes = pool.acquireBytes(numberOfBytes);
+        try {
+            long startTime = System.nanoTime();
+            request.send();
+            long latency = (System.nanoTime() - startTime) / 1_000_000L;
+            sendLimits.didSend(topic.getName(), numberOfRecords, latency);
+            compression.didSend(topic.getName(), numberOfRecords, compress);
+            metrics.didUpload(topic.getName(), numberOfRecords, numberOfBytes, latency,
+                    firstValue);
+            throttle.didSucceed();
+        } catch (AuthenticationException ex) {
+            metrics.didFail(topic.getName(), ex);
+            dataHandler.updateRecordsSent(topic.getName(), -1);
+            throw ex;
+        } catch (IOException ioe) {
+            metrics.didFail(topic.getName(), ioe);
+            dataHandler.updateServerStatus(ServerStatusListener.Status.UPLOADING_FAILED);
+            dataHandler.updateRecordsSent(topic.getName(), -1);
+            IOException failure = checkThrottled(ioe);
+            if (failure == ioe) {
+                sendLimits.didFail(topic.getName());
             }
-            cache.remove(totalSize);
+            throw failure;
         } finally {
-            listPool.add(measurements);
-            cache.returnList(unfilteredMeasurements);
+            pool.releaseBytes(reservedBytes);
         }
 
-        return totalSize;
+        dataHandler.updateRecordsSent(topic.getName(), numberOfRecords);
+        scheduler.didUpload(topic.getName());
+
+        logger.debug("uploaded {} {} records", numberOfRecords, topic.getName());
+    }
+
+    /** Request that sends a batch of records. */
+    private interface UploadRequest {
+        void send() throws IOException;
+    }
+
+    /**
+     * Register a failed request. If the server throttled the request, uploads are paused.
+     * @return a {@link UploadThrottle.ThrottleException} if the server throttled the request,
+     *         the original exception otherwise.
+     */
+    private IOException checkThrottled(IOException ex) {
+        if (UploadThrottle.throttleStatus(ex) == -1) {
+            return ex;
+        }
+        // only the binary sender exposes the Retry-After header, otherwise use the default backoff
+        long retryAfter = ex instanceof BinaryRestSender.HttpStatusException
+                ? ((BinaryRestSender.HttpStatusException) ex).getRetryAfterMillis() : -1L;
+        throttle.didThrottle(retryAfter);
+        return new UploadThrottle.ThrottleException(ex);
+    }
+
+    /**
+     * Estimate the number of bytes that the oldest records in a cache take up, or 0 if the cache
+     * does not report its size.
+     */
+    private static long estimateBytes(DataCache<?, ?> cache, int numberOfRecords) {
+        if (!(cache instanceof ExtendedDataCache)) {
+            return 0L;
+        }
+        long cachedRecords = cache.numberOfRecords().first;
+        if (cachedRecords <= 0L) {
+            return 0L;
+        }
+        return ((ExtendedDataCache<?, ?>) cache).numberOfBytes()
+                * Math.min(numberOfRecords, cachedRecords) / cachedRecords;
+    }
+
+    /** Task to upload a limited amount of data of a single topic. */
+    private class UploadTask implements Callable<Integer>, UploadScheduler.Candidate {
+        private final AvroTopic<ObservationKey, V> topic;
+        private final DataCache<ObservationKey, V> cache;
+        private final int limit;
+        private final long sizeLimit;
+        private final AtomicBoolean uploadingNotified;
+        /** Number of unsent records in the cache before uploading. */
+        private final long unsent;
+
+        UploadTask(AvroTopic<ObservationKey, V> topic, DataCache<ObservationKey, V> cache,
+                int limit, long sizeLimit, AtomicBoolean uploadingNotified) {
+            this.topic = topic;
+            this.cache = cache;
+            this.limit = limit;
+            this.sizeLimit = sizeLimit;
+            this.uploadingNotified = uploadingNotified;
+            this.unsent = cache.numberOfRecords().first;
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            return uploadCache(topic, cache, limit, sizeLimit, uploadingNotified);
+        }
+
+        @Override
+        public String getTopicName() {
+            return topic.getName();
+        }
+
+        @Override
+        public long getBacklog() {
+            return unsent;
+        }
+
+        @Override
+        public long getOldestTime() {
+            if (cache instanceof ExtendedDataCache) {
+                try {
+                    return ((ExtendedDataCache<ObservationKey, V>) cache).getOldestTime();
+                } catch (IOException ex) {
+                    logger.warn("Cannot read oldest record of topic {}", topic.getName(), ex);
+                    return Long.MAX_VALUE;
+                }
+            }
+            List<Record<ObservationKey, V>> oldest = null;
+            try {
+                // not read as an upload, so that a concurrent upload removes the right records
+                oldest = cache.getRecords(1);
+                if (oldest.isEmpty()) {
+                    return Long.MAX_VALUE;
+                }
+                long time = UploadScheduler.recordTime(oldest.get(0).value);
+                return time >= 0L ? time : Long.MAX_VALUE;
+            } catch (IOException ex) {
+                logger.warn("Cannot read oldest record of topic {}", topic.getName(), ex);
+                return Long.MAX_VALUE;
+            } finally {
+                if (oldest != null) {
+                    cache.returnList(oldest);
+                }
+            }
+        }
+
+        /**
+         * Whether the uploaded batch was cut off by the send limit or by the size limit, so
+         * more data is likely to be waiting.
+         */
+        boolean isFull(int sent) {
+            return sent >= limit || (sent > 0 && sent < unsent);
+        }
     }
 
     /**
@@ -355,13 +900,15 @@ public class KafkaDataSubmitter<V> implements Closeable {
         }
         @SuppressWarnings("unchecked")
         final AvroTopic<ObservationKey, V> castTopic = (AvroTopic<ObservationKey, V>)topic;
-        Queue<Record<ObservationKey, V>> records = trySendCache.get(castTopic);
+        RecordRing<ObservationKey, V> records = trySendCache.get(castTopic);
         if (records == null) {
-            records = new ConcurrentLinkedQueue<>();
-            //noinspection unchecked
-            trySendCache.put((AvroTopic<ObservationKey, V>)topic, records);
+            RecordRing<ObservationKey, V> newRecords = new RecordRing<>(trySendCapacity);
+            records = trySendCache.putIfAbsent(castTopic, newRecords);
+            if (records == null) {
+                records = newRecords;
+            }
         }
-        records.add(new Record<>(deviceId, (V)record));
+        records.add(deviceId, (V)record);
 
         long period = getUploadRate();
 
@@ -371,23 +918,39 @@ public class KafkaDataSubmitter<V> implements Closeable {
                     @Override
                     public void run() {
                         if (!connection.isConnected()) {
+                            // the records are sent with the next record after reconnecting
+                            synchronized (trySendFuture) {
+                                trySendFuture.remove(topic);
+                            }
+                            return;
+                        }
+                        if (throttle.isThrottled()) {
+                            mHandler.postDelayed(this, throttle.getThrottleDelay());
                             return;
                         }
 
-                        List<Record<ObservationKey, V>> localRecords;
+                        List<Record<ObservationKey, V>> localRecords = listPool.get(
+                                Collections.<Record<ObservationKey, V>>emptyList());
 
                         synchronized (trySendFuture) {
-                            Queue<Record<ObservationKey, V>> queue = trySendCache.get(topic);
                             trySendFuture.remove(topic);
-                            localRecords = listPool.get(queue);
+                            trySendCache.get(castTopic).drainTo(localRecords);
                         }
 
                         try {
                             doImmediateSend(castTopic, localRecords);
+                            throttle.didSucceed();
                             connection.didConnect();
-                        } catch (IOException e) {
+                        } catch (AuthenticationException e) {
                             dataHandler.updateRecordsSent(topic.getName(), -1);
                             connection.didDisconnect(e);
+                        } catch (IOException e) {
+                            dataHandler.updateRecordsSent(topic.getName(), -1);
+                            if (checkThrottled(e) instanceof UploadThrottle.ThrottleException) {
+                                connection.didThrottle();
+                            } else {
+                                connection.didDisconnect(e);
+                            }
                         } finally {
                             listPool.add(localRecords);
                         }
@@ -400,16 +963,44 @@ public class KafkaDataSubmitter<V> implements Closeable {
         return true;
     }
 
-    /** Immediately send given records, without any error recovery. */
+    /**
+     * Immediately send given records, without any error recovery. Records are sent in one request
+     * per run of equal keys, so if a request fails, the runs before it are already registered as
+     * sent.
+     */
     private void doImmediateSend(AvroTopic<ObservationKey, V> topic,
                                  List<Record<ObservationKey, V>> records)
             throws IOException {
-        KafkaTopicSender<ObservationKey, V> localSender = sender(topic);
-        localSender.send(new AvroRecordData<>(topic, records));
-        dataHandler.updateRecordsSent(topic.getName(), records.size());
+        int start = 0;
+        while (start < records.size()) {
+            ObservationKey key = records.get(start).key;
+            int end = start + 1;
+            while (end < records.size() && key.equals(records.get(end).key)) {
+                end++;
+            }
+            doImmediateSendRun(topic, records.subList(start, end));
+            start = end;
+        }
     }
 
-    public void setUserId(String userId) {
-        this.userId = userId;
+    /** Immediately send records with a single key in a single request. */
+    private void doImmediateSendRun(AvroTopic<ObservationKey, V> topic,
+                                    List<Record<ObservationKey, V>> records)
+            throws IOException {
+        boolean compress = compression.shouldCompress(topic.getName(), records);
+        KafkaTopicSender<ObservationKey, V> localSender = sender(topic, compress);
+        long startTime = System.nanoTime();
+        try {
+            localSender.send(new AvroRecordData<>(topic, records));
+        } catch (IOException ex) {
+            metrics.didFail(topic.getName(), ex);
+            throw ex;
+        }
+        compression.didSend(topic.getName(), records.size(), compress);
+        // the serialized size of records that were not cached is unknown
+        metrics.didUpload(topic.getName(), records.size(), 0L,
+                (System.nanoTime() - startTime) / 1_000_000L,
+                records.isEmpty() ? null : records.get(0).value);
+        dataHandler.updateRecordsSent(topic.getName(), records.size());
     }
 }
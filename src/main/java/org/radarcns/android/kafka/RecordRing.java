@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.radarcns.data.Record;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed-capacity ring of records that overwrites its oldest entries when it is full. Keys and
+ * values are stored in preallocated arrays, so adding a record does not allocate memory. The
+ * number of overwritten records is counted.
+ *
+ * @param <K> record key type
+ * @param <V> record value type
+ */
+class RecordRing<K, V> {
+    private Object[] keys;
+    private Object[] values;
+    /** Index of the oldest record. */
+    private int head;
+    private int size;
+    private long dropped;
+
+    /**
+     * Empty ring.
+     * @param capacity maximum number of records to hold, at least one.
+     */
+    RecordRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Ring capacity must be at least 1");
+        }
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        head = 0;
+        size = 0;
+        dropped = 0L;
+    }
+
+    /**
+     * Add a record, overwriting the oldest record if the ring is full.
+     * @return {@code false} if the oldest record was dropped to make room, {@code true} otherwise.
+     */
+    synchronized boolean add(K key, V value) {
+        int capacity = keys.length;
+        int index = head + size;
+        if (index >= capacity) {
+            index -= capacity;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (size < capacity) {
+            size++;
+            return true;
+        } else {
+            head = head + 1 == capacity ? 0 : head + 1;
+            dropped++;
+            return false;
+        }
+    }
+
+    /**
+     * Move all records to given list, from old to new, and empty the ring.
+     * @return number of records moved.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized int drainTo(List<Record<K, V>> records) {
+        int capacity = keys.length;
+        int drained = size;
+        int index = head;
+        for (int i = 0; i < drained; i++) {
+            records.add(new Record<>((K) keys[index], (V) values[index]));
+            keys[index] = null;
+            values[index] = null;
+            index = index + 1 == capacity ? 0 : index + 1;
+        }
+        head = 0;
+        size = 0;
+        return drained;
+    }
+
+    /**
+     * Change the capacity of the ring. If the new capacity is smaller than the number of records
+     * held, the oldest records are dropped.
+     */
+    synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Ring capacity must be at least 1");
+        }
+        if (capacity == keys.length) {
+            return;
+        }
+        Object[] newKeys = new Object[capacity];
+        Object[] newValues = new Object[capacity];
+        int kept = Math.min(size, capacity);
+        int index = head + size - kept;
+        for (int i = 0; i < kept; i++) {
+            int oldIndex = index % keys.length;
+            newKeys[i] = keys[oldIndex];
+            newValues[i] = values[oldIndex];
+            index++;
+        }
+        dropped += size - kept;
+        keys = newKeys;
+        values = newValues;
+        head = 0;
+        size = kept;
+    }
+
+    /** Remove all records without counting them as dropped. */
+    synchronized void clear() {
+        Arrays.fill(keys, null);
+        Arrays.fill(values, null);
+        head = 0;
+        size = 0;
+    }
+
+    /** Maximum number of records the ring holds. */
+    synchronized int getCapacity() {
+        return keys.length;
+    }
+
+    /** Number of records currently held. */
+    synchronized int size() {
+        return size;
+    }
+
+    /** Total number of records that were overwritten or removed by a capacity change. */
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
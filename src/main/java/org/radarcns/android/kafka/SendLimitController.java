@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Number of records to send in a single request, per topic. If adaptive, it uses additive
+ * increase, multiplicative decrease (AIMD): the limit of a topic grows while full batches are
+ * uploaded within the latency target, and it is cut back when a request fails or is slow. The
+ * limit always stays within the configured bounds. If not adaptive, the static limit is used for
+ * all topics.
+ */
+class SendLimitController {
+    private static final Logger logger = LoggerFactory.getLogger(SendLimitController.class);
+
+    /** Fraction of the limit to keep after a failed request. */
+    private static final float FAILURE_DECREASE = 0.5f;
+    /** Fraction of the limit to keep after a request that exceeded the latency target. */
+    private static final float SLOW_DECREASE = 0.75f;
+    /** Fraction of the static limit to increase the limit with after a fast request. */
+    private static final float INCREASE = 0.1f;
+
+    private final Map<String, Integer> limits;
+    private int staticLimit;
+    private boolean isAdaptive;
+    private int minimumLimit;
+    private int maximumLimit;
+    private long latencyTarget;
+
+    /**
+     * Controller that is not adaptive.
+     * @param staticLimit limit to use if not adaptive, and initial limit if adaptive.
+     */
+    SendLimitController(int staticLimit) {
+        this.limits = new HashMap<>();
+        this.staticLimit = staticLimit;
+        this.isAdaptive = false;
+        this.minimumLimit = staticLimit;
+        this.maximumLimit = staticLimit;
+        this.latencyTarget = Long.MAX_VALUE;
+    }
+
+    /**
+     * Set the limit to use if not adaptive, and the initial limit of each topic if adaptive.
+     */
+    synchronized void setStaticLimit(int limit) {
+        staticLimit = limit;
+        limits.clear();
+    }
+
+    /**
+     * Adapt the limit per topic.
+     * @param minimumLimit minimum number of records to send in a single request
+     * @param maximumLimit maximum number of records to send in a single request
+     * @param latencyTargetMillis maximum request duration that is considered healthy.
+     */
+    synchronized void setAdaptive(int minimumLimit, int maximumLimit, long latencyTargetMillis) {
+        if (minimumLimit < 1 || maximumLimit < minimumLimit) {
+            throw new IllegalArgumentException("Send limit bounds [" + minimumLimit + ", "
+                    + maximumLimit + "] are not valid.");
+        }
+        this.isAdaptive = true;
+        this.minimumLimit = minimumLimit;
+        this.maximumLimit = maximumLimit;
+        this.latencyTarget = latencyTargetMillis;
+        for (Map.Entry<String, Integer> limit : limits.entrySet()) {
+            limit.setValue(bound(limit.getValue()));
+        }
+    }
+
+    /** Use the static limit for all topics. */
+    synchronized void disableAdaptive() {
+        this.isAdaptive = false;
+        limits.clear();
+    }
+
+    /** Current number of records to send in a single request for given topic. */
+    synchronized int getLimit(String topic) {
+        if (!isAdaptive) {
+            return staticLimit;
+        }
+        Integer limit = limits.get(topic);
+        if (limit == null) {
+            return bound(staticLimit);
+        } else {
+            return limit;
+        }
+    }
+
+    /**
+     * Update the limit after a successful request.
+     * @param topic topic that was sent
+     * @param numberOfRecords number of records that the request contained
+     * @param latencyMillis duration of the request
+     */
+    synchronized void didSend(String topic, int numberOfRecords, long latencyMillis) {
+        if (!isAdaptive) {
+            return;
+        }
+        int limit = getLimit(topic);
+        if (latencyMillis > latencyTarget) {
+            update(topic, limit, (int)(limit * SLOW_DECREASE));
+        } else if (numberOfRecords >= limit) {
+            // only a full batch shows that the limit may be too small
+            update(topic, limit, limit + Math.max(1, (int)(staticLimit * INCREASE)));
+        }
+    }
+
+    /** Update the limit after a failed request. */
+    synchronized void didFail(String topic) {
+        if (!isAdaptive) {
+            return;
+        }
+        int limit = getLimit(topic);
+        update(topic, limit, (int)(limit * FAILURE_DECREASE));
+    }
+
+    private void update(String topic, int oldLimit, int newLimit) {
+        int limit = bound(newLimit);
+        limits.put(topic, limit);
+        if (limit != oldLimit) {
+            logger.debug("Send limit of topic {} changed from {} to {}", topic, oldLimit, limit);
+        }
+    }
+
+    private int bound(int limit) {
+        return Math.max(minimumLimit, Math.min(maximumLimit, limit));
+    }
+
+    /** Current send limit of all topics that have been adapted. */
+    synchronized Map<String, Integer> getLimits() {
+        return new HashMap<>(limits);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.radarcns.producer.AuthenticationException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Metrics of the upload path, per topic. It tracks upload throughput over the last minute,
+ * request latency, failures by cause, and the age of data when the server acknowledges it. The
+ * age is measured from the {@code timeReceived} field of a record, or its {@code time} field if
+ * it has none. Recording does not allocate memory once a topic is registered, so it can be
+ * called for every request. Use {@link #getMetrics()} to take a snapshot.
+ */
+public class UploadMetrics {
+    /** Window in seconds over which throughput is computed. */
+    static final int RATE_WINDOW_SECONDS = 60;
+
+    /** Cause of a failed upload. */
+    public enum FailureCause {
+        /** The client is not authorized to upload. */
+        AUTHENTICATION,
+        /** The server sheds load with HTTP status 429 or 503. */
+        THROTTLED,
+        /** The server responded with another HTTP error status. */
+        HTTP_ERROR,
+        /** The server could not be reached or the connection was broken. */
+        NETWORK;
+
+        /** Classify an exception that caused a failed upload. */
+        public static FailureCause of(IOException ex) {
+            if (ex instanceof AuthenticationException) {
+                return AUTHENTICATION;
+            } else if (ex instanceof UploadThrottle.ThrottleException
+                    || UploadThrottle.throttleStatus(ex) != -1) {
+                return THROTTLED;
+            } else if (BinaryRestSender.HttpStatusException.statusCodeOf(ex) != -1) {
+                return HTTP_ERROR;
+            } else {
+                return NETWORK;
+            }
+        }
+    }
+
+    private final Map<String, TopicRecorder> topics;
+
+    public UploadMetrics() {
+        topics = new HashMap<>();
+    }
+
+    /**
+     * Register a successful upload.
+     * @param topic topic name
+     * @param numberOfRecords number of records uploaded
+     * @param numberOfBytes (estimated) number of bytes uploaded
+     * @param latencyMillis request duration in milliseconds
+     * @param firstValue value of the first, oldest, record in the upload
+     */
+    public void didUpload(String topic, int numberOfRecords, long numberOfBytes,
+            long latencyMillis, Object firstValue) {
+        long now = System.currentTimeMillis();
+        long ingestTime = UploadScheduler.recordTime(firstValue, "timeReceived");
+        if (ingestTime == -1L) {
+            ingestTime = UploadScheduler.recordTime(firstValue);
+        }
+        TopicRecorder recorder = getRecorder(topic);
+        synchronized (recorder) {
+            recorder.records.add(now, numberOfRecords);
+            recorder.bytes.add(now, numberOfBytes);
+            recorder.latency.add(latencyMillis);
+            if (ingestTime != -1L) {
+                recorder.dataAge.add(Math.max(0L, now - ingestTime));
+            }
+        }
+    }
+
+    /** Register a failed upload. */
+    public void didFail(String topic, IOException ex) {
+        TopicRecorder recorder = getRecorder(topic);
+        synchronized (recorder) {
+            recorder.failures[FailureCause.of(ex).ordinal()]++;
+        }
+    }
+
+    private synchronized TopicRecorder getRecorder(String topic) {
+        TopicRecorder recorder = topics.get(topic);
+        if (recorder == null) {
+            recorder = new TopicRecorder();
+            topics.put(topic, recorder);
+        }
+        return recorder;
+    }
+
+    /** Snapshot of the metrics per topic name. */
+    public Map<String, TopicMetrics> getMetrics() {
+        Map<String, TopicRecorder> recorders;
+        synchronized (this) {
+            recorders = new HashMap<>(topics);
+        }
+        long now = System.currentTimeMillis();
+        Map<String, TopicMetrics> metrics = new HashMap<>();
+        for (Map.Entry<String, TopicRecorder> entry : recorders.entrySet()) {
+            TopicRecorder recorder = entry.getValue();
+            synchronized (recorder) {
+                metrics.put(entry.getKey(), recorder.snapshot(now));
+            }
+        }
+        return metrics;
+    }
+
+    /** Upload metrics of a single topic. Percentiles are -1 if nothing was measured yet. */
+    public static class TopicMetrics {
+        /** Records uploaded per second over the last minute. */
+        public final double recordsPerSecond;
+        /** Estimated bytes uploaded per second over the last minute. */
+        public final double bytesPerSecond;
+        public final long totalRecords;
+        public final long totalBytes;
+        /** Median request latency in milliseconds. */
+        public final long latencyP50;
+        public final long latencyP95;
+        public final long latencyP99;
+        /** Median age in milliseconds of the oldest record in an upload, when it was sent. */
+        public final long dataAgeP50;
+        public final long dataAgeP95;
+        public final long dataAgeP99;
+        /** Number of failed uploads by cause. */
+        public final Map<FailureCause, Long> failures;
+
+        TopicMetrics(double recordsPerSecond, double bytesPerSecond, long totalRecords,
+                long totalBytes, long latencyP50, long latencyP95, long latencyP99,
+                long dataAgeP50, long dataAgeP95, long dataAgeP99,
+                Map<FailureCause, Long> failures) {
+            this.recordsPerSecond = recordsPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.totalRecords = totalRecords;
+            this.totalBytes = totalBytes;
+            this.latencyP50 = latencyP50;
+            this.latencyP95 = latencyP95;
+            this.latencyP99 = latencyP99;
+            this.dataAgeP50 = dataAgeP50;
+            this.dataAgeP95 = dataAgeP95;
+            this.dataAgeP99 = dataAgeP99;
+            this.failures = failures;
+        }
+
+        @Override
+        public String toString() {
+            return "TopicMetrics{recordsPerSecond=" + recordsPerSecond
+                    + ", bytesPerSecond=" + bytesPerSecond
+                    + ", totalRecords=" + totalRecords
+                    + ", totalBytes=" + totalBytes
+                    + ", latency=" + latencyP50 + '/' + latencyP95 + '/' + latencyP99
+                    + ", dataAge=" + dataAgeP50 + '/' + dataAgeP95 + '/' + dataAgeP99
+                    + ", failures=" + failures
+                    + '}';
+        }
+    }
+
+    /** Mutable metrics of a single topic, guarded by its own lock. */
+    private static class TopicRecorder {
+        private final RateCounter records = new RateCounter();
+        private final RateCounter bytes = new RateCounter();
+        private final Histogram latency = new Histogram();
+        private final Histogram dataAge = new Histogram();
+        private final long[] failures = new long[FailureCause.values().length];
+
+        TopicMetrics snapshot(long now) {
+            Map<FailureCause, Long> failureMap = new EnumMap<>(FailureCause.class);
+            for (FailureCause cause : FailureCause.values()) {
+                if (failures[cause.ordinal()] > 0L) {
+                    failureMap.put(cause, failures[cause.ordinal()]);
+                }
+            }
+            return new TopicMetrics(records.rate(now), bytes.rate(now),
+                    records.getTotal(), bytes.getTotal(),
+                    latency.percentile(0.5d), latency.percentile(0.95d), latency.percentile(0.99d),
+                    dataAge.percentile(0.5d), dataAge.percentile(0.95d), dataAge.percentile(0.99d),
+                    Collections.unmodifiableMap(failureMap));
+        }
+    }
+
+    /** Counter with per-second buckets over a sliding window. */
+    static class RateCounter {
+        private final long[] counts = new long[RATE_WINDOW_SECONDS];
+        private final long[] seconds = new long[RATE_WINDOW_SECONDS];
+        private long total = 0L;
+
+        void add(long timeMillis, long amount) {
+            long second = timeMillis / 1000L;
+            int index = (int) (second % RATE_WINDOW_SECONDS);
+            if (seconds[index] != second) {
+                seconds[index] = second;
+                counts[index] = 0L;
+            }
+            counts[index] += amount;
+            total += amount;
+        }
+
+        /** Average amount per second over the last window. */
+        double rate(long timeMillis) {
+            long second = timeMillis / 1000L;
+            long sum = 0L;
+            for (int i = 0; i < RATE_WINDOW_SECONDS; i++) {
+                if (second - seconds[i] < RATE_WINDOW_SECONDS) {
+                    sum += counts[i];
+                }
+            }
+            return sum / (double) RATE_WINDOW_SECONDS;
+        }
+
+        long getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * Histogram with exponentially growing buckets. Bucket {@code i} holds values below
+     * {@code 2^i}, so percentiles are accurate to within a factor two.
+     */
+    static class Histogram {
+        private static final int NUM_BUCKETS = 40;
+        private final long[] buckets = new long[NUM_BUCKETS];
+        private long count = 0L;
+
+        void add(long value) {
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0L, value));
+            buckets[Math.min(bucket, NUM_BUCKETS - 1)]++;
+            count++;
+        }
+
+        /**
+         * Upper bound of the bucket containing given percentile.
+         * @param fraction percentile as a fraction between 0 and 1
+         * @return upper bound or -1 if the histogram is empty.
+         */
+        long percentile(double fraction) {
+            if (count == 0L) {
+                return -1L;
+            }
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0L;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0L) {
+                    return (1L << i) - 1L;
+                }
+            }
+            return (1L << (NUM_BUCKETS - 1)) - 1L;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.radarcns.android.util.AndroidThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+
+/**
+ * Bounded pool to upload multiple topics at the same time. Each task passed to
+ * {@link #invokeAll(List)} should upload a single topic, so that the records of one topic are
+ * always sent in order. The total number of bytes that are being uploaded at any one time is
+ * limited with {@link #acquireBytes(long)} and {@link #releaseBytes(long)}.
+ *
+ * With a parallelism of one, all tasks are run on the calling thread.
+ */
+class UploadPool implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(UploadPool.class);
+
+    private final int parallelism;
+    private final long maxBytesInFlight;
+    private final ExecutorService executor;
+    private long bytesInFlight;
+
+    /**
+     * Upload pool.
+     * @param parallelism maximum number of topics to upload at the same time.
+     * @param maxBytesInFlight maximum number of bytes that may be uploaded at the same time.
+     */
+    UploadPool(int parallelism, long maxBytesInFlight) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Upload parallelism must be at least 1");
+        }
+        if (maxBytesInFlight <= 0L) {
+            throw new IllegalArgumentException("Maximum number of bytes in flight must be positive");
+        }
+        this.parallelism = parallelism;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.bytesInFlight = 0L;
+        if (parallelism > 1) {
+            executor = Executors.newFixedThreadPool(parallelism,
+                    new AndroidThreadFactory("data-uploader", THREAD_PRIORITY_BACKGROUND));
+        } else {
+            executor = null;
+        }
+    }
+
+    /** Maximum number of topics that are uploaded at the same time. */
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /** Maximum number of bytes that are uploaded at the same time. */
+    long getMaxBytesInFlight() {
+        return maxBytesInFlight;
+    }
+
+    /**
+     * Run all given upload tasks and wait for them to finish.
+     * @param tasks upload tasks, at most one per topic.
+     * @return the results of the tasks, in the same order as the tasks.
+     * @throws IOException the first exception that a task threw, after all tasks have finished.
+     */
+    <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (executor == null) {
+            for (Callable<T> task : tasks) {
+                results.add(call(task));
+            }
+            return results;
+        }
+
+        List<Future<T>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading data", ex);
+        }
+
+        IOException firstException = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while uploading data", ex);
+            } catch (ExecutionException ex) {
+                results.add(null);
+                if (firstException == null) {
+                    firstException = toIOException(ex.getCause());
+                } else {
+                    logger.warn("Failed to upload data", ex.getCause());
+                }
+            }
+        }
+        if (firstException != null) {
+            throw firstException;
+        }
+        return results;
+    }
+
+    private static <T> T call(Callable<T> task) throws IOException {
+        try {
+            return task.call();
+        } catch (IOException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Failed to upload data", ex);
+        }
+    }
+
+    private static IOException toIOException(Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else {
+            return new IOException("Failed to upload data", cause);
+        }
+    }
+
+    /**
+     * Reserve given number of bytes for uploading, waiting until enough bytes are available. A
+     * single request larger than the limit is allowed once nothing else is in flight.
+     * @param bytes number of bytes to reserve.
+     * @return the number of bytes reserved, to pass to {@link #releaseBytes(long)}.
+     * @throws IOException if interrupted while waiting.
+     */
+    synchronized long acquireBytes(long bytes) throws IOException {
+        long reserved = Math.min(bytes, maxBytesInFlight);
+        try {
+            while (bytesInFlight + reserved > maxBytesInFlight) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to upload data", ex);
+        }
+        bytesInFlight += reserved;
+        return reserved;
+    }
+
+    /** Release bytes that were reserved with {@link #acquireBytes(long)}. */
+    synchronized void releaseBytes(long reserved) {
+        bytesInFlight -= reserved;
+        notifyAll();
+    }
+
+    /** Number of bytes that are currently reserved for uploading. */
+    synchronized long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.apache.avro.Schema;
+import org.apache.avro.specific.SpecificRecord;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Orders topics for uploading, so that no topic starves when the connection is only available for
+ * short periods. The order is determined by a {@link Policy}.
+ */
+public class UploadScheduler {
+    /** Policy to order topics with. */
+    public enum Policy {
+        /** Topics with the most unsent records first. */
+        LARGEST_BACKLOG,
+        /** Topics with the oldest unsent record first. */
+        OLDEST_DATA,
+        /**
+         * Topics in turn, where a topic with priority {@code n} is uploaded first {@code n} times
+         * as often as a topic with priority 1.
+         */
+        WEIGHTED_ROUND_ROBIN;
+
+        /**
+         * Parse a policy name, case insensitive.
+         * @throws IllegalArgumentException if the name does not match any policy.
+         */
+        public static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.US));
+        }
+    }
+
+    /** Topic that may be scheduled for uploading. */
+    interface Candidate {
+        /** Name of the topic. */
+        String getTopicName();
+        /** Number of unsent records of the topic. */
+        long getBacklog();
+        /**
+         * Time of the oldest unsent record in milliseconds, or {@link Long#MAX_VALUE} if
+         * unknown. This may be expensive to compute.
+         */
+        long getOldestTime();
+    }
+
+    private final Map<String, Integer> priorities;
+    /** Stride scheduling pass value per topic. The topic with the lowest pass goes first. */
+    private final Map<String, Double> passes;
+    private Policy policy;
+
+    public UploadScheduler(Policy policy) {
+        this.policy = policy;
+        this.priorities = new HashMap<>();
+        this.passes = new HashMap<>();
+    }
+
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    public synchronized Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Set the priorities of topics for the weighted round robin policy. Topics that are not
+     * specified have priority 1.
+     */
+    public synchronized void setPriorities(Map<String, Integer> priorities) {
+        for (Map.Entry<String, Integer> priority : priorities.entrySet()) {
+            if (priority.getValue() < 1) {
+                throw new IllegalArgumentException("Priority of topic " + priority.getKey()
+                        + " must be at least 1");
+            }
+        }
+        this.priorities.clear();
+        this.priorities.putAll(priorities);
+    }
+
+    /**
+     * Order candidates for uploading according to the current policy.
+     * @param candidates candidates that will be sorted in place.
+     */
+    synchronized <T extends Candidate> void sort(List<T> candidates) {
+        switch (policy) {
+            case LARGEST_BACKLOG:
+                Collections.sort(candidates, new Comparator<T>() {
+                    @Override
+                    public int compare(T o1, T o2) {
+                        return Long.compare(o2.getBacklog(), o1.getBacklog());
+                    }
+                });
+                break;
+            case OLDEST_DATA:
+                final Map<String, Long> oldestTimes = new HashMap<>();
+                for (T candidate : candidates) {
+                    oldestTimes.put(candidate.getTopicName(), candidate.getOldestTime());
+                }
+                Collections.sort(candidates, new Comparator<T>() {
+                    @Override
+                    public int compare(T o1, T o2) {
+                        return Long.compare(oldestTimes.get(o1.getTopicName()),
+                                oldestTimes.get(o2.getTopicName()));
+                    }
+                });
+                break;
+            case WEIGHTED_ROUND_ROBIN:
+                double minimumPass = Double.MAX_VALUE;
+                for (Double pass : passes.values()) {
+                    minimumPass = Math.min(minimumPass, pass);
+                }
+                // new topics join at the current minimum, so they do not monopolize uploads
+                for (T candidate : candidates) {
+                    if (!passes.containsKey(candidate.getTopicName())) {
+                        passes.put(candidate.getTopicName(),
+                                minimumPass == Double.MAX_VALUE ? 0d : minimumPass);
+                    }
+                }
+                Collections.sort(candidates, new Comparator<T>() {
+                    @Override
+                    public int compare(T o1, T o2) {
+                        return Double.compare(passes.get(o1.getTopicName()),
+                                passes.get(o2.getTopicName()));
+                    }
+                });
+                break;
+            default:
+                throw new IllegalStateException("Unknown upload policy " + policy);
+        }
+    }
+
+    /**
+     * Register that a batch of a topic was uploaded. The age of the uploaded data is tracked by
+     * {@link UploadMetrics}.
+     * @param topic topic name
+     */
+    synchronized void didUpload(String topic) {
+        Double pass = passes.get(topic);
+        passes.put(topic, (pass == null ? 0d : pass) + 1d / getPriority(topic));
+    }
+
+    private int getPriority(String topic) {
+        Integer priority = priorities.get(topic);
+        return priority == null ? 1 : priority;
+    }
+
+    /**
+     * Parse topic priorities of the form {@code "topic1:3 topic2:2"}.
+     * @throws IllegalArgumentException if the priorities cannot be parsed.
+     */
+    public static Map<String, Integer> parsePriorities(String priorities) {
+        Map<String, Integer> result = new HashMap<>();
+        for (String priority : priorities.trim().split("\\s+")) {
+            if (priority.isEmpty()) {
+                continue;
+            }
+            int separator = priority.lastIndexOf(':');
+            if (separator <= 0 || separator == priority.length() - 1) {
+                throw new IllegalArgumentException("Topic priority " + priority
+                        + " does not have format topic:priority");
+            }
+            result.put(priority.substring(0, separator),
+                    Integer.valueOf(priority.substring(separator + 1)));
+        }
+        return result;
+    }
+
+    /**
+     * Time of a record in milliseconds, taken from the {@code time} field of its value, in
+     * seconds since the Unix Epoch.
+     * @return time in milliseconds or -1 if the value does not have a numeric time field.
+     */
+    public static long recordTime(Object value) {
+        return recordTime(value, "time");
+    }
+
+    /**
+     * Time of a record in milliseconds, taken from given field of its value, in seconds since
+     * the Unix Epoch.
+     * @return time in milliseconds or -1 if the value does not have given numeric field.
+     */
+    static long recordTime(Object value, String fieldName) {
+        if (!(value instanceof SpecificRecord)) {
+            return -1L;
+        }
+        SpecificRecord record = (SpecificRecord) value;
+        Schema.Field field = record.getSchema().getField(fieldName);
+        if (field == null) {
+            return -1L;
+        }
+        Object time = record.get(field.pos());
+        if (time instanceof Number) {
+            return Math.round(((Number) time).doubleValue() * 1000d);
+        } else {
+            return -1L;
+        }
+    }
+}
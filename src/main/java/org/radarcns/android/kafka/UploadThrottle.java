@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Throttles uploads when the server sheds load, and limits the request rate per topic. A server
+ * that responds with HTTP status 429 or 503 is not considered disconnected: uploads are paused
+ * for the duration given in its {@code Retry-After} header, or for a short, growing backoff if it
+ * gives none. Separately, each topic has a token bucket that limits the number of requests per
+ * minute.
+ */
+class UploadThrottle {
+    private static final Logger logger = LoggerFactory.getLogger(UploadThrottle.class);
+
+    /** HTTP status code for too many requests. */
+    static final int HTTP_TOO_MANY_REQUESTS = 429;
+    /** HTTP status code for a service that is temporarily unavailable. */
+    static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
+    private static final long INCREMENTAL_BACKOFF_MILLISECONDS = 15_000L;
+    private static final long MAX_BACKOFF_MILLISECONDS = 900_000L; // 15 minutes
+    /** Upper bound on a server-requested delay, to guard against misconfigured servers. */
+    private static final long MAX_RETRY_AFTER_MILLISECONDS = 14_400_000L; // 4 hours
+    /** Number of requests a topic may make in a burst. */
+    private static final int BURST_SIZE = 10;
+
+    private final Random random;
+    private final Map<String, TokenBucket> buckets;
+    private double requestsPerMinute;
+    private long throttledUntil;
+    private int throttles;
+
+    /**
+     * Throttle that is not throttled initially.
+     * @param requestsPerMinute number of requests per minute a single topic may make, or zero for
+     *                          no limit.
+     */
+    UploadThrottle(double requestsPerMinute) {
+        this.random = new Random();
+        this.buckets = new HashMap<>();
+        this.throttledUntil = 0L;
+        this.throttles = 0;
+        setRequestsPerMinute(requestsPerMinute);
+    }
+
+    /** Number of requests per minute a single topic may make, or zero for no limit. */
+    synchronized void setRequestsPerMinute(double requestsPerMinute) {
+        if (requestsPerMinute < 0d) {
+            throw new IllegalArgumentException("Number of requests per minute may not be negative");
+        }
+        this.requestsPerMinute = requestsPerMinute;
+        buckets.clear();
+    }
+
+    /** Whether uploads are currently paused at the request of the server. */
+    synchronized boolean isThrottled() {
+        return System.currentTimeMillis() < throttledUntil;
+    }
+
+    /** Time in milliseconds until uploads may resume, or zero if they are not paused. */
+    synchronized long getThrottleDelay() {
+        return Math.max(0L, throttledUntil - System.currentTimeMillis());
+    }
+
+    /**
+     * Take a request token for given topic.
+     * @return whether the topic may make a request now.
+     */
+    synchronized boolean tryAcquire(String topic) {
+        if (requestsPerMinute == 0d) {
+            return true;
+        }
+        TokenBucket bucket = buckets.get(topic);
+        if (bucket == null) {
+            bucket = new TokenBucket(BURST_SIZE, requestsPerMinute / 60_000d);
+            buckets.put(topic, bucket);
+        }
+        return bucket.tryAcquire(System.currentTimeMillis());
+    }
+
+    /**
+     * Signal that the server throttled a request.
+     * @param retryAfterMillis delay requested by the server in milliseconds, or a negative value
+     *                         if the server did not specify one.
+     */
+    synchronized void didThrottle(long retryAfterMillis) {
+        throttles++;
+        long delay;
+        if (retryAfterMillis >= 0L) {
+            delay = Math.min(retryAfterMillis, MAX_RETRY_AFTER_MILLISECONDS);
+        } else {
+            long range = Math.min(INCREMENTAL_BACKOFF_MILLISECONDS << Math.min(throttles - 1, 16),
+                    MAX_BACKOFF_MILLISECONDS);
+            // spread out the clients that were throttled at the same time
+            delay = Math.round(range * (0.5d + 0.5d * random.nextDouble()));
+        }
+        throttledUntil = Math.max(throttledUntil, System.currentTimeMillis() + delay);
+        logger.warn("Server is throttling uploads, pausing for {} ms", delay);
+    }
+
+    /** Signal that the server accepted a request. */
+    synchronized void didSucceed() {
+        throttles = 0;
+    }
+
+    /**
+     * Whether given exception was caused by a server that sheds load.
+     * @return the HTTP status code if it indicates throttling, or -1 otherwise.
+     */
+    static int throttleStatus(IOException ex) {
+        int code = BinaryRestSender.HttpStatusException.statusCodeOf(ex);
+        return isThrottleStatus(code) ? code : -1;
+    }
+
+    /** Whether given HTTP status code indicates that the server sheds load. */
+    static boolean isThrottleStatus(int code) {
+        return code == HTTP_TOO_MANY_REQUESTS || code == HTTP_SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Parse the value of a {@code Retry-After} header, either in seconds or as an HTTP date.
+     * @param value header value, may be null
+     * @param now current time in milliseconds
+     * @return delay in milliseconds, or -1 if the value is absent or cannot be parsed.
+     */
+    static long parseRetryAfter(String value, long now) {
+        if (value == null) {
+            return -1L;
+        }
+        String trimmed = value.trim();
+        if (trimmed.isEmpty()) {
+            return -1L;
+        }
+        try {
+            long seconds = Long.parseLong(trimmed);
+            return seconds >= 0L ? seconds * 1000L : -1L;
+        } catch (NumberFormatException ex) {
+            // not in seconds, try HTTP date
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0L, format.parse(trimmed).getTime() - now);
+        } catch (ParseException ex) {
+            logger.warn("Cannot parse Retry-After header {}", value);
+            return -1L;
+        }
+    }
+
+    /** Exception for a request that the server throttled. */
+    static class ThrottleException extends IOException {
+        ThrottleException(IOException cause) {
+            super("Server throttled the request", cause);
+        }
+    }
+
+    /** Token bucket that refills at a constant rate. */
+    private static class TokenBucket {
+        private final int capacity;
+        private final double tokensPerMillisecond;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(int capacity, double tokensPerMillisecond) {
+            this.capacity = capacity;
+            this.tokensPerMillisecond = tokensPerMillisecond;
+            this.tokens = capacity;
+            this.lastRefill = -1L;
+        }
+
+        boolean tryAcquire(long now) {
+            if (lastRefill >= 0L) {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMillisecond);
+            }
+            lastRefill = now;
+            if (tokens >= 1d) {
+                tokens--;
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+}
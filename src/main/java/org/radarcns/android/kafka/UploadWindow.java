@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Batches cached uploads into windows, so that the radio is not woken up for every upload
+ * period. Like a JobScheduler job, a window opens once all its constraints are met, for example
+ * when the device is charging on an unmetered network, or when the maximum delay since the last
+ * window has passed. A window stays open for at least {@link #WINDOW_LENGTH_MILLIS}, so that
+ * the backlog can be drained. Without constraints, the window is always open.
+ *
+ * Records sent with {@link KafkaDataSubmitter#trySend} are not held back by the window, so they
+ * form a real-time lane.
+ */
+public class UploadWindow {
+    /** Minimum time in milliseconds that a window stays open. */
+    static final long WINDOW_LENGTH_MILLIS = 60_000L;
+    public static final long MAX_DELAY_DEFAULT = 3_600L;
+
+    /** Constraint for opening an upload window. */
+    public enum Constraint {
+        /** The active network is not metered. */
+        UNMETERED,
+        /** The device is charging. */
+        CHARGING,
+        /** The device is not in interactive use. */
+        IDLE;
+
+        /**
+         * Parse a comma- or space-separated list of constraint names, case insensitive.
+         * @throws IllegalArgumentException if a constraint name is not known.
+         */
+        public static Set<Constraint> parseAll(String value) {
+            Set<Constraint> constraints = EnumSet.noneOf(Constraint.class);
+            if (value == null) {
+                return constraints;
+            }
+            for (String name : value.split("[,\\s]+")) {
+                if (!name.isEmpty()) {
+                    constraints.add(Constraint.valueOf(name.toUpperCase(Locale.US)));
+                }
+            }
+            return constraints;
+        }
+    }
+
+    /** Current state of the device, to check constraints against. */
+    public interface Conditions {
+        boolean isUnmetered();
+        boolean isCharging();
+        boolean isIdle();
+    }
+
+    private final Conditions conditions;
+    private Set<Constraint> constraints;
+    private long maxDelayMillis;
+    private long lastOpened;
+    private long openUntil;
+
+    /**
+     * Upload window without constraints.
+     * @param conditions device state, or {@code null} if no constraint is ever met.
+     */
+    public UploadWindow(Conditions conditions) {
+        this.conditions = conditions;
+        this.constraints = Collections.emptySet();
+        this.maxDelayMillis = MAX_DELAY_DEFAULT * 1000L;
+        this.lastOpened = SystemClock.elapsedRealtime();
+        this.openUntil = 0L;
+    }
+
+    /**
+     * Set the constraints for opening a window.
+     * @param constraints constraints that must all be met, or none to always allow uploads.
+     * @param maxDelay maximum time in seconds between windows, regardless of constraints.
+     */
+    public synchronized void setConstraints(Set<Constraint> constraints, long maxDelay) {
+        if (maxDelay <= 0L) {
+            throw new IllegalArgumentException("Maximum upload window delay must be positive");
+        }
+        this.constraints = constraints.isEmpty()
+                ? Collections.<Constraint>emptySet() : EnumSet.copyOf(constraints);
+        this.maxDelayMillis = maxDelay * 1000L;
+    }
+
+    /** Whether uploads are batched into windows. */
+    public synchronized boolean isWindowed() {
+        return !constraints.isEmpty();
+    }
+
+    /**
+     * Whether cached data may be uploaded now. This opens a window if its constraints are met or
+     * if the maximum delay has passed.
+     */
+    public synchronized boolean isOpen() {
+        if (constraints.isEmpty()) {
+            return true;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now < openUntil) {
+            return true;
+        }
+        if (constraintsMet() || now - lastOpened >= maxDelayMillis) {
+            lastOpened = now;
+            openUntil = now + WINDOW_LENGTH_MILLIS;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean constraintsMet() {
+        if (conditions == null) {
+            return false;
+        }
+        for (Constraint constraint : constraints) {
+            boolean isMet;
+            switch (constraint) {
+                case UNMETERED:
+                    isMet = conditions.isUnmetered();
+                    break;
+                case CHARGING:
+                    isMet = conditions.isCharging();
+                    break;
+                case IDLE:
+                    isMet = conditions.isIdle();
+                    break;
+                default:
+                    isMet = false;
+                    break;
+            }
+            if (!isMet) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.util;
+
+import org.radarcns.producer.rest.ManagedConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP connection pool shared by the data uploader, the schema retriever and the
+ * ManagementPortal client, which all get it from {@link #get()}. The underlying pool is discarded when no client uses it, so a data
+ * sender that is recreated after a network or battery change would otherwise open new
+ * connections with a full TCP and TLS handshake. A long-lived component, like the RADAR service,
+ * retains the pool for its lifetime, so that idle connections are kept alive and reused across
+ * clients.
+ */
+public final class HttpConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(HttpConnectionPool.class);
+    private static int holders = 0;
+
+    private HttpConnectionPool() {
+        // utility class
+    }
+
+    /** Connection pool to give to REST clients and senders. */
+    public static ManagedConnectionPool get() {
+        return ManagedConnectionPool.GLOBAL_POOL;
+    }
+
+    /** Keep the connection pool alive until a matching call to {@link #release()}. */
+    public static synchronized void retain() {
+        if (holders == 0) {
+            get().acquire();
+        }
+        holders++;
+    }
+
+    /** Release the connection pool retained with {@link #retain()}. */
+    public static synchronized void release() {
+        if (holders == 0) {
+            logger.warn("Connection pool was released more often than it was retained");
+            return;
+        }
+        holders--;
+        if (holders == 0) {
+            get().release();
+        }
+    }
+}
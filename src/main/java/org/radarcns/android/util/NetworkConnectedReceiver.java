@@ -31,12 +31,14 @@ public class NetworkConnectedReceiver extends SpecificReceiver {
     private final NetworkConnectedListener listener;
     private boolean hasWifiOrEthernet;
     private boolean isConnected;
+    private boolean isUnmetered;
 
     public NetworkConnectedReceiver(@NonNull Context context, NetworkConnectedListener listener) {
         super(context);
         this.listener = listener;
         this.isConnected = true;
         this.hasWifiOrEthernet = true;
+        this.isUnmetered = true;
     }
 
     @Override
@@ -46,10 +48,12 @@ public class NetworkConnectedReceiver extends SpecificReceiver {
         if (activeNetwork == null) {
             isConnected = false;
             hasWifiOrEthernet = false;
+            isUnmetered = false;
         } else {
             isConnected = activeNetwork.isConnected();
             int networkType = activeNetwork.getType();
             hasWifiOrEthernet = networkType == TYPE_WIFI || networkType == TYPE_ETHERNET;
+            isUnmetered = !cm.isActiveNetworkMetered();
         }
         if (listener != null) {
             listener.onNetworkConnectionChanged(isConnected, hasWifiOrEthernet);
@@ -73,6 +77,11 @@ public class NetworkConnectedReceiver extends SpecificReceiver {
         return hasWifiOrEthernet;
     }
 
+    /** Whether the active network is not metered, for example WiFi without a data cap. */
+    public boolean isUnmetered() {
+        return isUnmetered;
+    }
+
     public interface NetworkConnectedListener {
         void onNetworkConnectionChanged(boolean isConnected, boolean hasWifiOrEthernet);
     }
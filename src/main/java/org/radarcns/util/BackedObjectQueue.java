@@ -16,21 +16,32 @@
 
 package org.radarcns.util;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * A queue-like object queue that is backed by a file storage.
  * @param <T> type of objects to store.
  */
 public class BackedObjectQueue<T> implements Closeable {
+    /** Minimum number of elements per chunk in a parallel peek. */
+    public static final int MIN_CHUNK_SIZE = 256;
+
     private final Converter<T> converter;
     private final QueueFile queueFile;
 
@@ -76,6 +87,30 @@ public class BackedObjectQueue<T> implements Closeable {
         }
     }
 
+    /**
+     * Add new elements to the queue in order, until the queue is full.
+     * @param entries elements to add
+     * @return number of elements added from the start of given list. If this is less than the
+     *         number of entries, the next entry did not fit in the queue.
+     * @throws IOException if the backing file cannot be accessed or an element cannot be
+     *                     converted.
+     */
+    public int addWhileFits(List<? extends T> entries) throws IOException {
+        int numAdded = 0;
+        try (QueueFileOutputStream out = queueFile.elementOutputStream()) {
+            for (T entry : entries) {
+                try {
+                    converter.serialize(entry, out);
+                } catch (QueueFullException ex) {
+                    break;
+                }
+                out.next();
+                numAdded++;
+            }
+        }
+        return numAdded;
+    }
+
     /**
      * Get the front-most object in the queue. This does not remove the element.
      * @return front-most element or null if none is available
@@ -95,14 +130,132 @@ public class BackedObjectQueue<T> implements Closeable {
      * @throws IllegalStateException if the element could not be read
      */
     public List<T> peek(int n) throws IOException {
+        return peek(n, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get at most {@code n} front-most objects in the queue, together taking up at most
+     * {@code sizeLimit} bytes in the queue. At least one element is returned if the queue is not
+     * empty, even if it exceeds the size limit. This does not remove the elements. Elements that
+     * do not fit are not deserialized.
+     * @param n number of elements to retrieve
+     * @param sizeLimit maximum total serialized size of the elements in bytes.
+     * @return list of elements, with at most {@code n} elements.
+     * @throws IOException if the element could not be read or deserialized
+     * @throws IllegalStateException if the element could not be read
+     */
+    public List<T> peek(int n, long sizeLimit) throws IOException {
+        final List<T> results = new ArrayList<>(Math.min(n, size()));
+        peek(n, sizeLimit, new ElementReader() {
+            @Override
+            public boolean read(InputStream in) throws IOException {
+                results.add(converter.deserialize(in));
+                return true;
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Pass at most {@code n} front-most elements in the queue to given reader, without
+     * converting them to objects. The elements together take up at most {@code sizeLimit} bytes
+     * in the queue, but at least one element is read if the queue is not empty. The reader may
+     * stop reading before that. This does not remove the elements.
+     * @param n number of elements to read
+     * @param sizeLimit maximum total serialized size of the elements in bytes.
+     * @param reader reader of the element data
+     * @return number of elements read.
+     * @throws IOException if the element could not be read
+     * @throws IllegalStateException if the element could not be read
+     */
+    public int peek(int n, long sizeLimit, ElementReader reader) throws IOException {
         Iterator<InputStream> iter = queueFile.iterator();
-        List<T> results = new ArrayList<>(n);
-        for (int i = 0; i < n && iter.hasNext(); i++) {
+        long size = 0L;
+        int i = 0;
+        for (; i < n && iter.hasNext(); i++) {
             try (InputStream in = iter.next()) {
-                results.add(converter.deserialize(in));
+                // the element length is known before reading any data
+                size += in.available();
+                if (size > sizeLimit && i > 0) {
+                    break;
+                }
+                if (!reader.read(in)) {
+                    return i + 1;
+                }
             }
         }
-        return results;
+        return i;
+    }
+
+    /**
+     * Pass at most {@code n} front-most elements in the queue to given readers, reading in
+     * parallel. The element data is copied from the queue first, so the readers do not access
+     * the queue file. It is then split in contiguous chunks of at least {@value #MIN_CHUNK_SIZE}
+     * elements, at most one per reader. Reader {@code i} reads the elements of chunk {@code i}
+     * in order, so the elements of reader {@code i} precede those of reader {@code i + 1}. The
+     * first chunk is read on the calling thread and the others on given executor. If the
+     * executor does not accept a chunk, it is read on the calling thread. The return value of
+     * the readers is ignored. This does not remove the elements.
+     * @param n number of elements to read
+     * @param sizeLimit maximum total serialized size of the elements in bytes, see
+     *                  {@link #peek(int, long, ElementReader)}.
+     * @param readers readers of the element data, which may be called concurrently
+     * @param executor executor to read chunks on
+     * @return number of elements read.
+     * @throws IOException if the element could not be read
+     * @throws IllegalStateException if the element could not be read
+     * @throws IllegalArgumentException if no readers are given
+     */
+    public int peek(int n, long sizeLimit, List<? extends ElementReader> readers,
+            ExecutorService executor) throws IOException {
+        if (readers.isEmpty()) {
+            throw new IllegalArgumentException("Parallel peek needs at least one reader");
+        }
+        final ElementBuffer elements = new ElementBuffer();
+        final int count = peek(n, sizeLimit, elements);
+        final int numChunks = Math.min(readers.size(), Math.max(1, count / MIN_CHUNK_SIZE));
+
+        List<Future<Void>> futures = new ArrayList<>(numChunks - 1);
+        try {
+            for (int c = 1; c < numChunks; c++) {
+                final int chunk = c;
+                final ElementReader reader = readers.get(c);
+                Callable<Void> task = new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        elements.read(count * chunk / numChunks,
+                                count * (chunk + 1) / numChunks, reader);
+                        return null;
+                    }
+                };
+                try {
+                    futures.add(executor.submit(task));
+                } catch (RejectedExecutionException ex) {
+                    task.call();
+                }
+            }
+            elements.read(0, count / numChunks, readers.get(0));
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading elements");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException("Failed to read elements", cause);
+            }
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return count;
     }
 
     /**
@@ -138,6 +291,56 @@ public class BackedObjectQueue<T> implements Closeable {
         queueFile.close();
     }
 
+    /** Reads the data of a single element. */
+    public interface ElementReader {
+        /**
+         * Read the data of an element.
+         * @param in input containing exactly the element data, which will not be closed after
+         *           this call.
+         * @return whether to read more elements
+         * @throws IOException if the element could not be read
+         */
+        boolean read(InputStream in) throws IOException;
+    }
+
+    /** Copy of the data of consecutive elements. */
+    private static class ElementBuffer implements ElementReader {
+        private byte[] buffer = new byte[4096];
+        private int[] offsets = new int[65];
+        private int count = 0;
+
+        @Override
+        public boolean read(InputStream in) throws IOException {
+            int start = offsets[count];
+            int length = in.available();
+            if (start + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(start + length, buffer.length * 2));
+            }
+            int numRead = 0;
+            while (numRead < length) {
+                int n = in.read(buffer, start + numRead, length - numRead);
+                if (n < 0) {
+                    throw new IOException("Element data ended early");
+                }
+                numRead += n;
+            }
+            if (count + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            count++;
+            offsets[count] = start + length;
+            return true;
+        }
+
+        /** Pass the elements from index {@code from} up to {@code to} to given reader. */
+        void read(int from, int to, ElementReader reader) throws IOException {
+            for (int i = from; i < to; i++) {
+                reader.read(new ByteArrayInputStream(
+                        buffer, offsets[i], offsets[i + 1] - offsets[i]));
+            }
+        }
+    }
+
     /** Converts streams into objects. */
     public interface Converter<T> {
         /**
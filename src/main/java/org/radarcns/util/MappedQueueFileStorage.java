@@ -34,7 +34,7 @@ public class MappedQueueFileStorage implements QueueStorage {
      * The underlying file. Uses a ring buffer to store entries.
      * <pre>
      * Format:
-     *   QueueFileHeader.HEADER_LENGTH bytes    Header
+     *   headerLength bytes                     Header
      *   length bytes                           Data
      * </pre>
      */
@@ -48,6 +48,7 @@ public class MappedQueueFileStorage implements QueueStorage {
     private MappedByteBuffer byteBuffer;
     private boolean closed;
     private int length;
+    private int headerLength;
     private boolean existed;
 
     /**
@@ -75,6 +76,7 @@ public class MappedQueueFileStorage implements QueueStorage {
 
         closed = false;
         this.maximumLength = maximumLength;
+        this.headerLength = QueueFileHeader.HEADER_LENGTH;
 
         existed = file.exists();
         randomAccessFile = new RandomAccessFile(file, "rw");
@@ -109,15 +111,15 @@ public class MappedQueueFileStorage implements QueueStorage {
             // # of bytes to read before the EOF. Guaranteed to be less than Integer.MAX_VALUE.
             int firstPart = length - wrappedPosition;
             byteBuffer.get(buffer, offset, firstPart);
-            byteBuffer.position(QueueFileHeader.HEADER_LENGTH);
+            byteBuffer.position(headerLength);
             byteBuffer.get(buffer, offset + firstPart, count - firstPart);
-            return QueueFileHeader.HEADER_LENGTH + count - firstPart;
+            return headerLength + count - firstPart;
         }
     }
 
     /** Wraps the position if it exceeds the end of the file. */
     private int wrapPosition(long position) {
-        long newPosition = position < length ? position : QueueFileHeader.HEADER_LENGTH + position - length;
+        long newPosition = position < length ? position : headerLength + position - length;
         if (newPosition >= length || position < 0) {
             throw new IllegalArgumentException("Position " + position + " invalid outside of storage length " + length);
         }
@@ -165,9 +167,9 @@ public class MappedQueueFileStorage implements QueueStorage {
             if (linearPart > 0) {
                 byteBuffer.put(buffer, offset, linearPart);
             }
-            byteBuffer.position(QueueFileHeader.HEADER_LENGTH);
+            byteBuffer.position(headerLength);
             byteBuffer.put(buffer, offset + linearPart, count - linearPart);
-            return QueueFileHeader.HEADER_LENGTH + count - linearPart;
+            return headerLength + count - linearPart;
         }
     }
 
@@ -214,7 +216,7 @@ public class MappedQueueFileStorage implements QueueStorage {
         if (count < 0) {
             throw new IndexOutOfBoundsException("count < 0");
         }
-        if (count + QueueFileHeader.HEADER_LENGTH > length) {
+        if (count + headerLength > length) {
             throw new IllegalArgumentException("buffer count " + count
                     + " exceeds storage length " + length);
         }
@@ -249,6 +251,15 @@ public class MappedQueueFileStorage implements QueueStorage {
         this.maximumLength = (int)newLength;
     }
 
+    @Override
+    public void setHeaderLength(int headerLength) {
+        if (headerLength < QueueFileHeader.HEADER_LENGTH || headerLength >= MINIMUM_LENGTH) {
+            throw new IllegalArgumentException("Header length " + headerLength
+                    + " out of range");
+        }
+        this.headerLength = headerLength;
+    }
+
     @Override
     public boolean isClosed() {
         return closed;
@@ -64,7 +64,7 @@ public final class QueueFile implements Closeable, Iterable<InputStream> {
      * copied).
      * <pre>
      * Format:
-     *   36 bytes         Header
+     *   36 bytes         Header (40 bytes in version 4)
      *   ...              Data
      *
      * Header:
@@ -73,6 +73,7 @@ public final class QueueFile implements Closeable, Iterable<InputStream> {
      *   4 bytes          Element count
      *   8 bytes          Head element position
      *   8 bytes          Tail element position
+     *   4 bytes          Records to skip in the head element (version 4 only)
      *   4 bytes          Header checksum
      *
      * Element:
@@ -166,19 +167,20 @@ public final class QueueFile implements Closeable, Iterable<InputStream> {
      */
     public QueueFileOutputStream elementOutputStream() throws IOException {
         requireNotClosed();
-        return new QueueFileOutputStream(this, header, storage, last.nextPosition());
+        long position = last.isEmpty() ? header.getHeaderLength() : last.nextPosition();
+        return new QueueFileOutputStream(this, header, storage, position);
     }
 
     /** Number of bytes used in the file. */
     public long usedBytes() {
         if (isEmpty()) {
-            return QueueFileHeader.HEADER_LENGTH;
+            return header.getHeaderLength();
         }
 
         long firstPosition = first.getFirst().getPosition();
         if (last.getPosition() >= firstPosition) {
             // Contiguous queue.
-            return last.nextPosition() - firstPosition + QueueFileHeader.HEADER_LENGTH;
+            return last.nextPosition() - firstPosition + header.getHeaderLength();
         } else {
             // tail < head. The queue wraps.
             return last.nextPosition() - firstPosition + header.getLength();
@@ -317,11 +319,34 @@ public final class QueueFile implements Closeable, Iterable<InputStream> {
      * @throws NoSuchElementException if more than the available elements are requested to be removed
      */
     public void remove(int n) throws IOException {
+        remove(n, n > 0 ? 0 : header.getFirstElementSkip());
+    }
+
+    /**
+     * Removes the eldest {@code n} elements, and sets the number of records at the start of the
+     * new first element that were already removed, see {@link #getFirstElementSkip()}. Both are
+     * stored in a single header update.
+     *
+     * @throws NoSuchElementException if more than the available elements are requested to be removed
+     * @throws IllegalArgumentException if the number of records to skip is not valid for the
+     *                                  version of the queue file
+     */
+    public void remove(int n, int firstElementSkip) throws IOException {
         requireNotClosed();
         if (n < 0) {
             throw new IllegalArgumentException("Cannot remove negative (" + n + ") number of elements.");
         }
+        if (firstElementSkip < 0
+                || (firstElementSkip != 0 && (header.getVersion() != QueueFileHeader.VERSION_4
+                        || n == header.getCount()))) {
+            throw new IllegalArgumentException("Cannot skip " + firstElementSkip
+                    + " records of the first element of " + this);
+        }
         if (n == 0) {
+            if (firstElementSkip != header.getFirstElementSkip()) {
+                header.setFirstElementSkip(firstElementSkip);
+                header.write();
+            }
             return;
         }
         if (n == header.getCount()) {
@@ -359,6 +384,7 @@ public final class QueueFile implements Closeable, Iterable<InputStream> {
 
         // Commit the header.
         modCount++;
+        header.setFirstElementSkip(firstElementSkip);
         header.setFirstPosition(newFirst.getPosition());
         header.addCount(-n);
         truncateIfNeeded();
@@ -389,6 +415,44 @@ public final class QueueFile implements Closeable, Iterable<InputStream> {
         }
     }
 
+    /**
+     * Number of records at the start of the first element that were already removed. This is
+     * only used by {@link QueueFileHeader#VERSION_4} queue files, whose elements contain multiple
+     * records.
+     */
+    public int getFirstElementSkip() {
+        return header.getFirstElementSkip();
+    }
+
+    /** Length of the queue file header in bytes, which depends on the version. */
+    public int getHeaderLength() {
+        return header.getHeaderLength();
+    }
+
+    /** Version of the queue file format, see {@link QueueFileHeader#VERSION}. */
+    public int getVersion() {
+        return header.getVersion();
+    }
+
+    /**
+     * Change the version of the queue file format. Since existing elements are not converted,
+     * this is only possible while the queue is empty.
+     * @throws IllegalStateException if the queue is not empty
+     * @throws IllegalArgumentException if the version is not supported
+     * @throws IOException if the header cannot be written
+     */
+    public void setVersion(int version) throws IOException {
+        requireNotClosed();
+        if (version == header.getVersion()) {
+            return;
+        }
+        if (!isEmpty()) {
+            throw new IllegalStateException("Cannot change the version of a non-empty queue file");
+        }
+        header.setVersion(version);
+        header.write();
+    }
+
     /** Clears this queue. Truncates the file to the initial size. */
     public void clear() throws IOException {
         requireNotClosed();
@@ -552,14 +616,15 @@ public final class QueueFile implements Closeable, Iterable<InputStream> {
         // Calculate the position of the tail end of the data in the ring buffer
         // If the buffer is split, we need to make it contiguous
         if (position <= beginningOfFirstElement) {
-            if (position > QueueFileHeader.HEADER_LENGTH) {
-                long count = position - QueueFileHeader.HEADER_LENGTH;
-                storage.move(QueueFileHeader.HEADER_LENGTH, oldLength, count);
+            int headerLength = header.getHeaderLength();
+            if (position > headerLength) {
+                long count = position - headerLength;
+                storage.move(headerLength, oldLength, count);
             }
             modCount++;
 
             // Last position was moved forward in the copy
-            long positionUpdate = oldLength - QueueFileHeader.HEADER_LENGTH;
+            long positionUpdate = oldLength - headerLength;
             if (header.getLastPosition() < beginningOfFirstElement) {
                 header.setLastPosition(header.getLastPosition() + positionUpdate);
                 last.setPosition(header.getLastPosition());
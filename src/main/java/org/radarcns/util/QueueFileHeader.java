@@ -31,14 +31,43 @@ import static org.radarcns.util.Serialization.longToBytes;
  *
  */
 public class QueueFileHeader {
-    /** The header length in bytes. */
+    /** The header length in bytes, for queue files up to {@link #VERSION_3}. */
     public static final int HEADER_LENGTH = 36;
 
-    /** Leading bit set to 1 indicating a versioned header and the version of 1. */
-    private static final int VERSIONED_HEADER = 0x00000001;
+    /**
+     * The header length in bytes for {@link #VERSION_4} queue files. Their header also stores the
+     * number of records to skip in the first element.
+     */
+    public static final int FRAMED_HEADER_LENGTH = 40;
+
+    /**
+     * Version 1 of the queue file format. Its elements start with eight bytes that are always
+     * zero, kept for backwards compatibility.
+     */
+    public static final int VERSION_1 = 0x00000001;
+
+    /** Version 2 of the queue file format. Its elements do not have a legacy prefix. */
+    public static final int VERSION_2 = 0x00000002;
+
+    /**
+     * Version 3 of the queue file format. Its elements refer to data that is shared between
+     * elements, for example record keys, and which is stored outside the queue file.
+     */
+    public static final int VERSION_3 = 0x00000003;
+
+    /**
+     * Version 4 of the queue file format. Like {@link #VERSION_3}, but each element contains a
+     * frame of multiple records. Queue files are only given this version on request. Its header
+     * has an additional field with the number of records at the start of the first frame that
+     * were already removed, see {@link #getFirstElementSkip()}.
+     */
+    public static final int VERSION_4 = 0x00000004;
+
+    /** Version of newly created queue files. */
+    public static final int VERSION = VERSION_3;
 
     /** Buffer to read and store the header with. */
-    private final byte[] headerBuffer = new byte[HEADER_LENGTH];
+    private final byte[] headerBuffer = new byte[FRAMED_HEADER_LENGTH];
 
     /** Storage to read and write the header. */
     private final QueueStorage storage;
@@ -49,12 +78,15 @@ public class QueueFileHeader {
     /** Number of elements. */
     private int count;
 
-    /** Version number. Currently fixed to {@link #VERSIONED_HEADER}. */
-    private final int version;
+    /** Version number, from {@link #VERSION_1} up to {@link #VERSION_4}. */
+    private int version;
 
     /** Position of the first (front-most) element in the queue. */
     private long firstPosition;
 
+    /** Number of records to skip in the first element, for {@link #VERSION_4} only. */
+    private int firstElementSkip;
+
     /** Position of the last (back-most) element in the queue. */
     private long lastPosition;
 
@@ -66,7 +98,6 @@ public class QueueFileHeader {
      */
     public QueueFileHeader(QueueStorage storage) throws IOException {
         this.storage = storage;
-        version = VERSIONED_HEADER;
         if (this.storage.existed()) {
             read();
         } else {
@@ -74,6 +105,9 @@ public class QueueFileHeader {
             if (length < HEADER_LENGTH) {
                 throw new IOException("Storage does not contain header.");
             }
+            version = VERSION;
+            storage.setHeaderLength(getHeaderLength());
+            firstElementSkip = 0;
             count = 0;
             firstPosition = 0L;
             lastPosition = 0L;
@@ -85,10 +119,16 @@ public class QueueFileHeader {
     private void read() throws IOException {
         storage.read(0L, headerBuffer, 0, HEADER_LENGTH);
 
-        int version = bytesToInt(headerBuffer, 0);
-        if (version != VERSIONED_HEADER) {
+        version = bytesToInt(headerBuffer, 0);
+        if (version < VERSION_1 || version > VERSION_4) {
             throw new IOException("Storage " + storage + " is not recognized as a queue file.");
         }
+        int headerLength = getHeaderLength();
+        if (headerLength > HEADER_LENGTH) {
+            storage.read(HEADER_LENGTH, headerBuffer, HEADER_LENGTH,
+                    headerLength - HEADER_LENGTH);
+        }
+        storage.setHeaderLength(headerLength);
         length = bytesToLong(headerBuffer, 4);
         if (length > storage.length()) {
             throw new IOException("File is truncated. Expected length: " + length
@@ -97,8 +137,9 @@ public class QueueFileHeader {
         count = bytesToInt(headerBuffer, 12);
         firstPosition = bytesToLong(headerBuffer, 16);
         lastPosition = bytesToLong(headerBuffer, 24);
+        firstElementSkip = version == VERSION_4 ? bytesToInt(headerBuffer, 32) : 0;
 
-        if (length < HEADER_LENGTH) {
+        if (length < headerLength) {
             throw new IOException("File length in " + storage + " header too small");
         }
         if (firstPosition < 0 || firstPosition > length
@@ -108,7 +149,10 @@ public class QueueFileHeader {
         if (count < 0 || (count > 0 && (firstPosition == 0 || lastPosition == 0))) {
             throw new IOException("Number of elements not correct in storage " + storage);
         }
-        int crc = bytesToInt(headerBuffer, 32);
+        if (firstElementSkip < 0) {
+            throw new IOException("Number of records to skip not correct in storage " + storage);
+        }
+        int crc = bytesToInt(headerBuffer, headerLength - 4);
         if (crc != hashCode()) {
             throw new IOException("Queue storage " + storage + " was corrupted.");
         }
@@ -120,18 +164,78 @@ public class QueueFileHeader {
      */
     public void write() throws IOException {
         // first write all variables to a single byte buffer
-        intToBytes(VERSIONED_HEADER, headerBuffer, 0);
+        int headerLength = getHeaderLength();
+        intToBytes(version, headerBuffer, 0);
         longToBytes(length, headerBuffer, 4);
         intToBytes(count, headerBuffer, 12);
         longToBytes(firstPosition, headerBuffer, 16);
         longToBytes(lastPosition, headerBuffer, 24);
-        intToBytes(hashCode(), headerBuffer, 32);
+        if (version == VERSION_4) {
+            intToBytes(firstElementSkip, headerBuffer, 32);
+        }
+        intToBytes(hashCode(), headerBuffer, headerLength - 4);
 
         // then write the byte buffer out in one go
-        storage.write(0L, headerBuffer, 0, HEADER_LENGTH);
+        storage.write(0L, headerBuffer, 0, headerLength);
         storage.flush();
     }
 
+    /** Get the version of the queue file format. */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Set the version of the queue file format. This does not convert existing elements, and it
+     * changes the header length, so it should only be called while the queue file is empty.
+     * @throws IllegalArgumentException if the version is not supported
+     */
+    public void setVersion(int version) {
+        if (version < VERSION_1 || version > VERSION_4) {
+            throw new IllegalArgumentException("Queue file version " + version + " is not supported");
+        }
+        this.version = version;
+        if (version != VERSION_4) {
+            firstElementSkip = 0;
+        }
+        storage.setHeaderLength(getHeaderLength());
+    }
+
+    /**
+     * Length of the header in bytes for the current version. Element data starts after the header,
+     * also when it wraps around the end of the storage.
+     */
+    public int getHeaderLength() {
+        return version == VERSION_4 ? FRAMED_HEADER_LENGTH : HEADER_LENGTH;
+    }
+
+    /**
+     * Get the number of records at the start of the first element that were already removed.
+     * Only {@link #VERSION_4} queue files, with frames of records as elements, have a non-zero
+     * value.
+     */
+    public int getFirstElementSkip() {
+        return firstElementSkip;
+    }
+
+    /**
+     * Set the number of records at the start of the first element that were already removed.
+     * @throws IllegalArgumentException if the number is negative
+     * @throws IllegalStateException if the number is not zero and the version is not
+     *                               {@link #VERSION_4}
+     */
+    public void setFirstElementSkip(int firstElementSkip) {
+        if (firstElementSkip < 0) {
+            throw new IllegalArgumentException(
+                    "Cannot skip " + firstElementSkip + " records of the first element");
+        }
+        if (firstElementSkip != 0 && version != VERSION_4) {
+            throw new IllegalStateException(
+                    "Only version 4 queue files can skip records of the first element");
+        }
+        this.firstElementSkip = firstElementSkip;
+    }
+
     /** Get the stored length of the QueueStorage in bytes. */
     public long getLength() {
         return length;
@@ -185,12 +289,15 @@ public class QueueFileHeader {
         result = 31 * result + count;
         result = 31 * result + (int)((firstPosition >> 32) ^ firstPosition);
         result = 31 * result + (int)((lastPosition >> 32) ^ lastPosition);
+        if (version == VERSION_4) {
+            result = 31 * result + firstElementSkip;
+        }
         return result;
     }
 
     /** Wraps the position if it exceeds the end of the file. */
     public long wrapPosition(long position) {
-        long newPosition = position < length ? position : HEADER_LENGTH + position - length;
+        long newPosition = position < length ? position : getHeaderLength() + position - length;
         if (newPosition >= length || newPosition < 0) {
             throw new IllegalArgumentException("Position " + position + " invalid outside of storage length " + length);
         }
@@ -200,7 +307,9 @@ public class QueueFileHeader {
     @Override
     public String toString() {
         return getClass().getSimpleName()
-                + "[length=" + length
+                + "[version=" + version
+                + ", firstSkip=" + firstElementSkip
+                + ", length=" + length
                 + ", size=" + count
                 + ", first=" + firstPosition
                 + ", last=" + lastPosition
@@ -210,6 +319,7 @@ public class QueueFileHeader {
     /** Clear the positions and count. This does not change the stored file length. */
     public void clear() {
         count = 0;
+        firstElementSkip = 0;
         firstPosition = 0L;
         lastPosition = 0L;
     }
@@ -136,7 +136,7 @@ public class QueueFileOutputStream extends OutputStream {
         if (bytesNeeded > queue.getMaximumFileSize()) {
             // reset current element
             current.setLength(0);
-            throw new IOException("Data does not fit in queue");
+            throw new QueueFullException("Data does not fit in queue");
         }
 
         streamBytesUsed = newStreamBytesUsed;
@@ -163,7 +163,7 @@ public class QueueFileOutputStream extends OutputStream {
         queue.setFileLength(Math.min(queue.getMaximumFileSize(), newLength), storagePosition, beginningOfFirstElement);
 
         if (storagePosition <= beginningOfFirstElement) {
-            long positionUpdate = oldLength - QueueFileHeader.HEADER_LENGTH;
+            long positionUpdate = oldLength - header.getHeaderLength();
 
             if (current.getPosition() <= beginningOfFirstElement) {
                 current.setPosition(current.getPosition() + positionUpdate);
@@ -92,6 +92,13 @@ public interface QueueStorage extends Closeable, Flushable {
 
     void setMaximumLength(long newLength);
 
+    /**
+     * Set the number of bytes at the start of the storage that hold the queue file header. Data
+     * that wraps around the end of the storage continues after the header. Defaults to
+     * {@link QueueFileHeader#HEADER_LENGTH}.
+     */
+    void setHeaderLength(int headerLength);
+
     /** Whether the close function was called. */
     boolean isClosed();
 
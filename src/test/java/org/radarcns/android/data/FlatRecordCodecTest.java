@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.passive.phone.PhoneAcceleration;
+import org.radarcns.util.ActiveAudioRecording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class FlatRecordCodecTest {
+    private static final Logger logger = LoggerFactory.getLogger(FlatRecordCodecTest.class);
+    private static final Schema SCHEMA = new Schema.Parser().parse("{\"type\":\"record\","
+            + "\"name\":\"Flat\",\"namespace\":\"org.radarcns.test\",\"fields\":["
+            + "{\"name\":\"b\",\"type\":\"boolean\"},"
+            + "{\"name\":\"i\",\"type\":\"int\"},"
+            + "{\"name\":\"l\",\"type\":[\"null\",\"long\"]},"
+            + "{\"name\":\"f\",\"type\":[\"float\",\"null\"]},"
+            + "{\"name\":\"s\",\"type\":\"string\"},"
+            + "{\"name\":\"e\",\"type\":{\"type\":\"enum\",\"name\":\"Letter\","
+            + "\"symbols\":[\"A\",\"B\",\"C\"]}},"
+            + "{\"name\":\"d\",\"type\":\"bytes\"}]}");
+
+    @Test
+    public void supports() {
+        assertTrue(FlatRecordCodec.supports(SCHEMA));
+        assertTrue(FlatRecordCodec.supports(ObservationKey.getClassSchema()));
+        assertTrue(FlatRecordCodec.supports(PhoneAcceleration.getClassSchema()));
+        assertTrue(FlatRecordCodec.supports(ActiveAudioRecording.getClassSchema()));
+        assertFalse(FlatRecordCodec.supports(new Schema.Parser().parse(
+                "{\"type\":\"record\",\"name\":\"Nested\",\"fields\":["
+                        + "{\"name\":\"a\",\"type\":{\"type\":\"array\",\"items\":\"int\"}}]}")));
+        assertFalse(FlatRecordCodec.supports(new Schema.Parser().parse(
+                "{\"type\":\"record\",\"name\":\"Union\",\"fields\":["
+                        + "{\"name\":\"a\",\"type\":[\"int\",\"string\"]}]}")));
+    }
+
+    @Test
+    public void genericRecord() throws IOException {
+        FlatRecordCodec<GenericRecord> codec = new FlatRecordCodec<>(SCHEMA);
+        GenericData.Record record = new GenericData.Record(SCHEMA);
+        record.put("b", true);
+        record.put("i", -5);
+        record.put("l", null);
+        record.put("f", 1.5f);
+        record.put("s", "some text");
+        record.put("e", new GenericData.EnumSymbol(SCHEMA.getField("e").schema(), "C"));
+        record.put("d", ByteBuffer.wrap(new byte[] {1, 2, 3}));
+
+        byte[] expected = encode(new GenericDatumWriter<GenericRecord>(SCHEMA), record);
+        assertArrayEquals(expected, encode(codec, record));
+        assertEquals(record, decode(codec, expected));
+
+        record.put("l", 1L << 40);
+        record.put("f", null);
+        expected = encode(new GenericDatumWriter<GenericRecord>(SCHEMA), record);
+        assertArrayEquals(expected, encode(codec, record));
+        assertEquals(record, decode(codec, expected));
+    }
+
+    @Test
+    public void specificRecord() throws IOException {
+        ObservationKey key = new ObservationKey("test", "a", "b");
+        byte[] expected = encode(new SpecificDatumWriter<ObservationKey>(
+                ObservationKey.getClassSchema()), key);
+        FlatRecordCodec<ObservationKey> codec = new FlatRecordCodec<>(
+                ObservationKey.getClassSchema());
+        assertArrayEquals(expected, encode(codec, key));
+        assertEquals(key, decode(codec, expected));
+
+        PhoneAcceleration value = new PhoneAcceleration(1.0, 2.0, 0.1f, 0.2f, 0.3f);
+        FlatRecordCodec<PhoneAcceleration> valueCodec = new FlatRecordCodec<>(
+                PhoneAcceleration.getClassSchema());
+        byte[] encoded = encode(valueCodec, value);
+        assertEquals(value, decode(new SpecificDatumReader<PhoneAcceleration>(
+                PhoneAcceleration.getClassSchema()), encoded));
+        PhoneAcceleration reuse = new PhoneAcceleration();
+        BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(encoded, null);
+        PhoneAcceleration decoded = valueCodec.read(reuse, decoder);
+        assertSame(reuse, decoded);
+        assertEquals(value, decoded);
+    }
+
+    /**
+     * Compares the read speed of the codec with that of the specific reader. This only runs with
+     * system property {@code radar.benchmark=true}, for example
+     * {@code ./gradlew testDebugUnitTest --tests '*FlatRecordCodecTest' -Dradar.benchmark=true}.
+     */
+    @Test
+    public void readBenchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean("radar.benchmark"));
+        int numRecords = 10_000;
+        Random random = new Random();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+        SpecificDatumWriter<PhoneAcceleration> writer = new SpecificDatumWriter<>(
+                PhoneAcceleration.getClassSchema());
+        double time = System.currentTimeMillis() / 1000d;
+        for (int i = 0; i < numRecords; i++) {
+            writer.write(new PhoneAcceleration(time + i * 0.02d, time + i * 0.02d + 0.001d,
+                    random.nextFloat(), random.nextFloat(), random.nextFloat()), encoder);
+        }
+        encoder.flush();
+        byte[] data = out.toByteArray();
+
+        long specific = readBenchmark(new SpecificDatumReader<PhoneAcceleration>(
+                PhoneAcceleration.getClassSchema()), data, numRecords);
+        long flat = readBenchmark(new FlatRecordCodec<PhoneAcceleration>(
+                PhoneAcceleration.getClassSchema()), data, numRecords);
+
+        logger.info(String.format(Locale.US, "SpecificDatumReader: %.3f us/record read",
+                specific / 1000d / numRecords));
+        logger.info(String.format(Locale.US, "FlatRecordCodec: %.3f us/record read",
+                flat / 1000d / numRecords));
+    }
+
+    /** Nanoseconds to read given records. */
+    private static long readBenchmark(DatumReader<PhoneAcceleration> reader, byte[] data,
+            int numRecords) throws IOException {
+        BinaryDecoder decoder = null;
+        PhoneAcceleration value = null;
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            decoder = DecoderFactory.get().binaryDecoder(data, decoder);
+            for (int j = 0; j < numRecords; j++) {
+                value = reader.read(value, decoder);
+            }
+        }
+        long startTime = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            decoder = DecoderFactory.get().binaryDecoder(data, decoder);
+            for (int j = 0; j < numRecords; j++) {
+                value = reader.read(value, decoder);
+            }
+        }
+        assertTrue(decoder.isEnd());
+        return (System.nanoTime() - startTime) / 10;
+    }
+
+    private static <T> byte[] encode(DatumWriter<T> writer, T record) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+        writer.write(record, encoder);
+        encoder.flush();
+        return out.toByteArray();
+    }
+
+    private static <T> T decode(DatumReader<T> reader, byte[] data) throws IOException {
+        return reader.read(null, DecoderFactory.get().binaryDecoder(data, null));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.radarcns.kafka.ObservationKey;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class KeyDictionaryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void storeKeys() throws IOException {
+        File file = new File(folder.getRoot(), "test.keys");
+        ObservationKey first = new ObservationKey("p", "u", "a");
+        ObservationKey second = new ObservationKey("p", "u", "b");
+
+        try (KeyDictionary<ObservationKey> dictionary = new KeyDictionary<>(
+                file, ObservationKey.getClassSchema())) {
+            assertEquals(0, dictionary.indexOf(first));
+            assertEquals(1, dictionary.indexOf(second));
+            assertEquals(0, dictionary.indexOf(new ObservationKey("p", "u", "a")));
+            assertEquals(2, dictionary.size());
+            assertSame(dictionary.get(1), dictionary.get(1));
+        }
+
+        try (KeyDictionary<ObservationKey> dictionary = new KeyDictionary<>(
+                file, ObservationKey.getClassSchema())) {
+            assertEquals(2, dictionary.size());
+            assertEquals(first, dictionary.get(0));
+            assertEquals(second, dictionary.get(1));
+            assertEquals(1, dictionary.indexOf(second));
+
+            dictionary.clear();
+            assertEquals(0, dictionary.size());
+            assertEquals(0, dictionary.indexOf(second));
+        }
+    }
+
+    @Test
+    public void ignorePartialKey() throws IOException {
+        File file = new File(folder.getRoot(), "test.keys");
+        ObservationKey key = new ObservationKey("p", "u", "a");
+
+        try (KeyDictionary<ObservationKey> dictionary = new KeyDictionary<>(
+                file, ObservationKey.getClassSchema())) {
+            dictionary.indexOf(key);
+        }
+        // a key length without a key
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] {0, 0, 0, 10, 1});
+        }
+
+        try (KeyDictionary<ObservationKey> dictionary = new KeyDictionary<>(
+                file, ObservationKey.getClassSchema())) {
+            assertEquals(1, dictionary.size());
+            assertEquals(1, dictionary.indexOf(new ObservationKey("p", "u", "b")));
+        }
+        try (KeyDictionary<ObservationKey> dictionary = new KeyDictionary<>(
+                file, ObservationKey.getClassSchema())) {
+            assertEquals(2, dictionary.size());
+            assertEquals(key, dictionary.get(0));
+        }
+    }
+
+    @Test
+    public void unknownIndex() throws IOException {
+        try (KeyDictionary<ObservationKey> dictionary = new KeyDictionary<>(
+                new File(folder.getRoot(), "test.keys"), ObservationKey.getClassSchema())) {
+            dictionary.get(0);
+            fail("Key index should not be known");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+@SuppressWarnings("all")
+@org.apache.avro.specific.AvroGenerated
+public class NullableMeasurement extends org.apache.avro.specific.SpecificRecordBase implements org.apache.avro.specific.SpecificRecord {
+    private static final long serialVersionUID = 4315273095562839717L;
+    public static final org.apache.avro.Schema SCHEMA$ = new org.apache.avro.Schema.Parser().parse("{\"type\":\"record\",\"name\":\"NullableMeasurement\",\"namespace\":\"org.radarcns.android.data\",\"doc\":\"Measurement with optional numeric fields.\",\"fields\":[{\"name\":\"time\",\"type\":\"double\",\"doc\":\"Device timestamp in UTC (s).\"},{\"name\":\"value\",\"type\":[\"null\",\"float\"],\"doc\":\"Measured value, null if unknown.\",\"default\":null},{\"name\":\"count\",\"type\":[\"int\",\"null\"],\"doc\":\"Number of samples, null if unknown.\"}]}");
+
+    public static org.apache.avro.Schema getClassSchema() {
+        return SCHEMA$;
+    }
+
+    /**
+     * Device timestamp in UTC (s).
+     */
+    @Deprecated
+    public double time;
+    /**
+     * Measured value, null if unknown.
+     */
+    @Deprecated
+    public java.lang.Float value;
+    /**
+     * Number of samples, null if unknown.
+     */
+    @Deprecated
+    public java.lang.Integer count;
+
+    /**
+     * Default constructor.  Note that this does not initialize fields
+     * to their default values from the schema.
+     */
+    public NullableMeasurement() {
+    }
+
+    /**
+     * All-args constructor.
+     *
+     * @param time  Device timestamp in UTC (s).
+     * @param value Measured value, null if unknown.
+     * @param count Number of samples, null if unknown.
+     */
+    public NullableMeasurement(java.lang.Double time, java.lang.Float value, java.lang.Integer count) {
+        this.time = time;
+        this.value = value;
+        this.count = count;
+    }
+
+    public org.apache.avro.Schema getSchema() {
+        return SCHEMA$;
+    }
+
+    // Used by DatumWriter.  Applications should not call.
+    public Object get(int field$) {
+        switch (field$) {
+            case 0:
+                return time;
+            case 1:
+                return value;
+            case 2:
+                return count;
+            default:
+                throw new org.apache.avro.AvroRuntimeException("Bad index");
+        }
+    }
+
+    // Used by DatumReader.  Applications should not call.
+    @SuppressWarnings(value = "unchecked")
+    public void put(int field$, Object value$) {
+        switch (field$) {
+            case 0:
+                time = (java.lang.Double) value$;
+                break;
+            case 1:
+                value = (java.lang.Float) value$;
+                break;
+            case 2:
+                count = (java.lang.Integer) value$;
+                break;
+            default:
+                throw new org.apache.avro.AvroRuntimeException("Bad index");
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.radarcns.data.Record;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.monitor.application.ApplicationUptime;
+import org.radarcns.passive.phone.PhoneAcceleration;
+import org.radarcns.topic.AvroTopic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NumericFrameConverterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private KeyDictionary<ObservationKey> keyDictionary;
+    private AvroTopic<ObservationKey, PhoneAcceleration> topic;
+    private List<Record<ObservationKey, PhoneAcceleration>> records;
+
+    @Before
+    public void setUp() throws IOException {
+        keyDictionary = new KeyDictionary<>(new File(folder.getRoot(), "test.keys"),
+                ObservationKey.getClassSchema());
+        topic = new AvroTopic<>("test",
+                ObservationKey.getClassSchema(), PhoneAcceleration.getClassSchema(),
+                ObservationKey.class, PhoneAcceleration.class);
+
+        ObservationKey key = new ObservationKey("test", "a", "b");
+        ObservationKey otherKey = new ObservationKey("test", "a", "c");
+        Random random = new Random();
+        double time = System.currentTimeMillis() / 1000d;
+        records = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            records.add(new Record<>(i < 60 ? key : otherKey, new PhoneAcceleration(
+                    time + i * 0.02d, time + i * 0.02d + 0.001d,
+                    random.nextFloat(), random.nextFloat(), random.nextFloat())));
+        }
+        records.add(new Record<>(key, new PhoneAcceleration(
+                Double.NaN, Double.NEGATIVE_INFINITY, Float.NaN, -0f, Float.MAX_VALUE)));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        keyDictionary.close();
+    }
+
+    @Test
+    public void supports() {
+        assertTrue(NumericFrameConverter.supports(PhoneAcceleration.getClassSchema()));
+        assertTrue(NumericFrameConverter.supports(ApplicationUptime.getClassSchema()));
+        assertFalse(NumericFrameConverter.supports(ObservationKey.getClassSchema()));
+        assertTrue(NumericFrameConverter.supports(NullableMeasurement.getClassSchema()));
+    }
+
+    @Test
+    public void nullableFields() throws IOException {
+        AvroTopic<ObservationKey, NullableMeasurement> nullableTopic = new AvroTopic<>("nullable",
+                ObservationKey.getClassSchema(), NullableMeasurement.getClassSchema(),
+                ObservationKey.class, NullableMeasurement.class);
+        NumericFrameConverter<ObservationKey, NullableMeasurement> converter =
+                new NumericFrameConverter<>(nullableTopic, keyDictionary);
+
+        ObservationKey key = new ObservationKey("test", "a", "b");
+        List<Record<ObservationKey, NullableMeasurement>> nullableRecords = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            nullableRecords.add(new Record<>(key, new NullableMeasurement(i * 0.02d,
+                    i % 3 == 0 ? null : i * 0.5f, i % 7 == 0 ? null : i)));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        converter.serialize(nullableRecords, 0, nullableRecords.size(), out);
+
+        // reused values must not keep their old field values
+        Queue<NullableMeasurement> valuePool = new ArrayDeque<>();
+        for (int i = 0; i < 40; i++) {
+            valuePool.add(new NullableMeasurement(-1d, -1f, -1));
+        }
+        List<Record<ObservationKey, NullableMeasurement>> result = new ArrayList<>();
+        assertEquals(nullableRecords.size(), converter.deserialize(
+                new ByteArrayInputStream(out.toByteArray()), 10, 40, result, valuePool));
+        assertEquals(40, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(nullableRecords.get(10 + i).value, result.get(i).value);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        NumericFrameConverter<ObservationKey, PhoneAcceleration> converter =
+                new NumericFrameConverter<>(topic, keyDictionary);
+        byte[] frame = serialize(converter, 0, records.size());
+        assertEquals(records.size(),
+                NumericFrameConverter.readCount(new ByteArrayInputStream(frame)));
+
+        List<Record<ObservationKey, PhoneAcceleration>> result = new ArrayList<>();
+        assertEquals(records.size(), converter.deserialize(
+                new ByteArrayInputStream(frame), 0, Integer.MAX_VALUE, result, null));
+        assertRecords(records, result);
+        assertEquals(2, keyDictionary.size());
+    }
+
+    @Test
+    public void skipAndLimit() throws IOException {
+        NumericFrameConverter<ObservationKey, PhoneAcceleration> converter =
+                new NumericFrameConverter<>(topic, keyDictionary);
+        byte[] frame = serialize(converter, 10, 90);
+
+        List<Record<ObservationKey, PhoneAcceleration>> result = new ArrayList<>();
+        assertEquals(80, converter.deserialize(
+                new ByteArrayInputStream(frame), 45, 10, result, null));
+        assertRecords(records.subList(55, 65), result);
+
+        result.clear();
+        assertEquals(80, converter.deserialize(
+                new ByteArrayInputStream(frame), 75, 10, result, null));
+        assertRecords(records.subList(85, 90), result);
+    }
+
+    @Test
+    public void readSerialized() throws IOException {
+        NumericFrameConverter<ObservationKey, PhoneAcceleration> converter =
+                new NumericFrameConverter<>(topic, keyDictionary);
+        byte[] frame = serialize(converter, 0, records.size());
+
+        SerializedRecords<ObservationKey, PhoneAcceleration> result =
+                new SerializedRecords<>(topic);
+        assertEquals(records.size(), converter.readSerialized(
+                new ByteArrayInputStream(frame), 50, 20, result));
+        assertEquals(20, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(records.get(50 + i).key, result.getKey(i));
+            assertEquals(records.get(50 + i).value, result.getValue(i));
+        }
+    }
+
+    private byte[] serialize(NumericFrameConverter<ObservationKey, PhoneAcceleration> converter,
+            int from, int to) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        converter.serialize(records, from, to, out);
+        return out.toByteArray();
+    }
+
+    private static void assertRecords(List<Record<ObservationKey, PhoneAcceleration>> expected,
+            List<Record<ObservationKey, PhoneAcceleration>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).key, actual.get(i).key);
+            assertEquals(expected.get(i).value, actual.get(i).value);
+        }
+    }
+}
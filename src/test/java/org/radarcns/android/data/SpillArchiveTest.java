@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.radarcns.data.Record;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.monitor.application.ApplicationUptime;
+import org.radarcns.topic.AvroTopic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpillArchiveTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AvroTopic<ObservationKey, ApplicationUptime> topic = new AvroTopic<>("test",
+            ObservationKey.getClassSchema(), ApplicationUptime.getClassSchema(),
+            ObservationKey.class, ApplicationUptime.class);
+    private final ObservationKey key = new ObservationKey("p", "u", "s");
+
+    @Test
+    public void appendAfterIncompleteBlock() throws IOException {
+        File file = new File(folder.getRoot(), "test.tape.spill");
+        List<Record<ObservationKey, ApplicationUptime>> records = records(30);
+
+        SpillArchive<ObservationKey, ApplicationUptime> archive = new SpillArchive<>(topic, file);
+        assertTrue(archive.isEmpty());
+        archive.append(records, 0, 10);
+        archive.append(records, 10, 20);
+
+        // the app stopped while writing the second block
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(out.length() - 5);
+        }
+
+        archive = new SpillArchive<>(topic, file);
+        archive.append(records, 20, 30);
+
+        List<Record<ObservationKey, ApplicationUptime>> restored = new ArrayList<>();
+        try (SpillArchive.Reader<ObservationKey, ApplicationUptime> reader = archive.takeAll()) {
+            assertTrue(reader.readBlock(restored));
+            assertTrue(reader.readBlock(restored));
+            assertFalse(reader.readBlock(restored));
+            reader.finish();
+        }
+        assertTrue(archive.isEmpty());
+
+        assertEquals(20, restored.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(records.get(i).value, restored.get(i).value);
+            assertEquals(records.get(20 + i).value, restored.get(10 + i).value);
+        }
+    }
+
+    private List<Record<ObservationKey, ApplicationUptime>> records(int number) {
+        List<Record<ObservationKey, ApplicationUptime>> records = new ArrayList<>(number);
+        for (int i = 0; i < number; i++) {
+            records.add(new Record<>(key, new ApplicationUptime(1500000000d + i, (double) i)));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import android.content.Context;
+import android.util.Pair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.radarcns.data.Record;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.monitor.application.ApplicationUptime;
+import org.radarcns.topic.AvroTopic;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SubjectPartitionedCacheTest {
+    private Context context;
+    private AvroTopic<ObservationKey, ApplicationUptime> topic;
+    private SubjectPartitionedCache<ApplicationUptime> cache;
+    private ObservationKey keyA;
+    private ObservationKey keyB;
+    private ApplicationUptime value;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application.getApplicationContext();
+        topic = new AvroTopic<>("test",
+                ObservationKey.getClassSchema(), ApplicationUptime.getClassSchema(),
+                ObservationKey.class, ApplicationUptime.class);
+        cache = new SubjectPartitionedCache<>(context, topic, "a");
+        cache.setMaximumSize(4096);
+        cache.setTimeWindow(100);
+
+        keyA = new ObservationKey("test", "a", "b");
+        keyB = new ObservationKey("test", "other/../subject", "b");
+        value = new ApplicationUptime(System.currentTimeMillis() / 1000d,
+                System.nanoTime() / 1_000_000_000d);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.close();
+    }
+
+    @Test
+    public void partitionBySubject() throws IOException {
+        cache.addMeasurement(keyA, value);
+        cache.addMeasurement(keyB, value);
+        cache.addMeasurement(keyB, value);
+        cache.flush();
+
+        assertEquals(new Pair<>(1L, 0L), cache.numberOfRecords());
+        List<Record<ObservationKey, ApplicationUptime>> records = cache.unsentRecords(100);
+        assertEquals(1, records.size());
+        assertEquals(keyA, records.get(0).key);
+        cache.returnList(records);
+        assertEquals(1, cache.remove(100));
+
+        // data of the other subject is kept
+        cache.setSubject(keyB.getUserId());
+        assertEquals(new Pair<>(2L, 0L), cache.numberOfRecords());
+        records = cache.unsentRecords(100);
+        assertEquals(2, records.size());
+        assertEquals(keyB, records.get(0).key);
+        cache.returnList(records);
+
+        cache.setSubject(null);
+        assertEquals(new Pair<>(0L, 0L), cache.numberOfRecords());
+        assertEquals(Collections.emptyList(), cache.unsentRecords(100));
+    }
+
+    @Test
+    public void switchSubject() throws IOException {
+        cache.addMeasurement(keyA, value);
+        cache.setSubject(keyB.getUserId());
+        // measurements of the previous subject still go to its own cache
+        cache.addMeasurement(keyA, value);
+        cache.addMeasurement(keyB, value);
+        cache.flush();
+
+        assertEquals(new Pair<>(1L, 0L), cache.numberOfRecords());
+        assertEquals(new Pair<>(2L, 0L), cache.getPartition(keyA.getUserId()).numberOfRecords());
+
+        cache.setSubject(keyA.getUserId());
+        assertEquals(new Pair<>(2L, 0L), cache.numberOfRecords());
+        assertEquals(keyA.getUserId(), cache.getSubject());
+    }
+
+    @Test
+    public void returnListAfterSwitch() throws IOException {
+        cache.addMeasurement(keyA, value);
+        cache.addMeasurement(keyB, value);
+        cache.flush();
+
+        List<Record<ObservationKey, ApplicationUptime>> records = cache.unsentRecords(100);
+        ApplicationUptime firstValue = records.get(0).value;
+        cache.setSubject(keyB.getUserId());
+        cache.returnListAndValues(records);
+
+        // the values are reused by the cache that the list came from
+        records = cache.unsentRecords(100);
+        assertNotSame(firstValue, records.get(0).value);
+        cache.returnList(records);
+
+        ExtendedDataCache<ObservationKey, ApplicationUptime> partition =
+                cache.getPartition(keyA.getUserId());
+        records = partition.unsentRecords(100);
+        assertSame(firstValue, records.get(0).value);
+        partition.returnList(records);
+    }
+
+    @Test
+    public void removeAfterSwitch() throws IOException {
+        cache.addMeasurement(keyA, value);
+        cache.addMeasurement(keyB, value);
+        cache.flush();
+
+        List<Record<ObservationKey, ApplicationUptime>> records = cache.unsentRecords(100);
+        cache.returnList(records);
+        cache.setSubject(keyB.getUserId());
+        // removes the records that were read, not those of the new subject
+        assertEquals(1, cache.remove(1));
+
+        assertEquals(new Pair<>(1L, 0L), cache.numberOfRecords());
+        assertEquals(new Pair<>(0L, 0L), cache.getPartition(keyA.getUserId()).numberOfRecords());
+    }
+
+    @Test
+    public void noSubjectFile() throws IOException {
+        cache.getPartition(null);
+        // the shared cache of earlier versions is removed after importing it
+        assertFalse(CacheStore.getCacheFile(context, topic, null).exists());
+        assertTrue(CacheStore.getCacheFile(context, topic, "").exists());
+    }
+
+    @Test
+    public void subjectFiles() {
+        assertNotEquals(CacheStore.getCacheFile(context, topic, "a"),
+                CacheStore.getCacheFile(context, topic, null));
+        assertNotEquals(CacheStore.getCacheFile(context, topic, ""),
+                CacheStore.getCacheFile(context, topic, null));
+        // user IDs cannot escape the cache directory
+        assertEquals(new File(context.getCacheDir(), "subjects"),
+                CacheStore.getCacheFile(context, topic, keyB.getUserId())
+                        .getParentFile().getParentFile());
+    }
+
+    @Test
+    public void deleteCache() throws IOException {
+        CacheStore store = CacheStore.getInstance();
+        DataCache<ObservationKey, ApplicationUptime> sharedCache = store.getOrCreateCache(
+                context, topic);
+        try {
+            sharedCache.addMeasurement(keyA, value);
+            sharedCache.flush();
+            try {
+                store.deleteCache(context, topic, null);
+                fail("Cannot delete a cache that is held");
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+        } finally {
+            store.releaseCache(sharedCache);
+        }
+        File file = CacheStore.getCacheFile(context, topic, null);
+        assertTrue(file.exists());
+
+        assertTrue(store.deleteCache(context, topic, null));
+        for (File storageFile : TapeCache.storageFiles(file)) {
+            assertFalse(storageFile.exists());
+        }
+    }
+
+    @Test
+    public void importRecords() throws IOException {
+        CacheStore store = CacheStore.getInstance();
+        DataCache<ObservationKey, ApplicationUptime> sharedCache = store.getOrCreateCache(
+                context, topic);
+        try {
+            sharedCache.setMaximumSize(4096);
+            sharedCache.addMeasurement(keyA, value);
+            sharedCache.addMeasurement(keyB, value);
+            sharedCache.addMeasurement(keyA, value);
+            sharedCache.flush();
+
+            assertEquals(3, cache.importRecords(sharedCache, 2));
+            assertEquals(new Pair<>(0L, 0L), sharedCache.numberOfRecords());
+        } finally {
+            store.releaseCache(sharedCache);
+        }
+
+        assertEquals(new Pair<>(2L, 0L), cache.numberOfRecords());
+        cache.setSubject(keyB.getUserId());
+        assertEquals(new Pair<>(1L, 0L), cache.numberOfRecords());
+    }
+
+    @Test
+    public void importRejectedRecords() throws IOException {
+        CacheStore store = CacheStore.getInstance();
+        DataCache<ObservationKey, ApplicationUptime> sharedCache = store.getOrCreateCache(
+                context, topic);
+        try {
+            sharedCache.setMaximumSize(1_000_000);
+            sharedCache.addMeasurement(keyB, value);
+            sharedCache.addMeasurement(keyB, value);
+            for (int i = 0; i < 1000; i++) {
+                sharedCache.addMeasurement(keyA, value);
+            }
+            sharedCache.flush();
+
+            try {
+                cache.importRecords(sharedCache, 2000);
+                fail("Records that do not fit cannot be imported");
+            } catch (IOException ex) {
+                // expected
+            }
+            // records of the subject that did not fit are kept
+            assertEquals(new Pair<>(1000L, 0L), sharedCache.numberOfRecords());
+            assertTrue(cache.getOverflowStats().rejected > 0L);
+            sharedCache.remove(1000);
+        } finally {
+            store.releaseCache(sharedCache);
+        }
+
+        cache.setSubject(keyB.getUserId());
+        assertEquals(new Pair<>(2L, 0L), cache.numberOfRecords());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.radarcns.android.auth.AppAuthState;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.monitor.application.ApplicationUptime;
+import org.radarcns.topic.AvroTopic;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TableDataHandlerTest {
+    private TableDataHandler dataHandler;
+    private AvroTopic<ObservationKey, ApplicationUptime> topic;
+    private ObservationKey key;
+
+    @Before
+    public void setUp() throws IOException {
+        AppAuthState authState = new AppAuthState.Builder()
+                .projectId("p")
+                .userId("u")
+                .build();
+        // without a server, the data handler does not start a submitter
+        dataHandler = new TableDataHandler(RuntimeEnvironment.application, null, null,
+                4096, false, authState);
+        topic = new AvroTopic<>("test",
+                ObservationKey.getClassSchema(), ApplicationUptime.getClassSchema(),
+                ObservationKey.class, ApplicationUptime.class);
+        dataHandler.registerTopic(topic);
+        key = new ObservationKey("p", "u", "s");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dataHandler.close();
+    }
+
+    @Test
+    public void importMeasurements() {
+        assertTrue(dataHandler.importMeasurements(topic, key, uptimes(10)));
+        assertEquals(10L, (long) dataHandler.getCache(topic).numberOfRecords().first);
+    }
+
+    @Test
+    public void importMeasurementsInFullCache() {
+        // the cache is too small for all records, so some are rejected
+        assertFalse(dataHandler.importMeasurements(topic, key, uptimes(1000)));
+        long numRecords = dataHandler.getCache(topic).numberOfRecords().first;
+        assertTrue(numRecords > 0L && numRecords < 1000L);
+
+        // nothing fits anymore
+        assertFalse(dataHandler.importMeasurements(topic, key, uptimes(1)));
+    }
+
+    @Test
+    public void importMeasurementsWithDroppedRecords() {
+        dataHandler.setOverflowPolicies(Collections.singletonMap(
+                topic.getName(), OverflowPolicy.DROP_OLDEST));
+        // old records are dropped to make room, but the imported records are stored
+        assertTrue(dataHandler.importMeasurements(topic, key, uptimes(100)));
+        assertTrue(dataHandler.importMeasurements(topic, key, uptimes(100)));
+    }
+
+    private static List<ApplicationUptime> uptimes(int number) {
+        List<ApplicationUptime> values = new ArrayList<>(number);
+        double time = System.currentTimeMillis() / 1000d;
+        for (int i = 0; i < number; i++) {
+            values.add(new ApplicationUptime(time + i, (double) i));
+        }
+        return values;
+    }
+}
@@ -29,19 +29,28 @@ import org.radarcns.kafka.ObservationKey;
 import org.radarcns.monitor.application.ApplicationUptime;
 import org.radarcns.topic.AvroTopic;
 import org.radarcns.util.ActiveAudioRecording;
+import org.radarcns.util.BackedObjectQueue;
+import org.radarcns.util.QueueFile;
+import org.radarcns.util.QueueFileHeader;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 import org.slf4j.impl.HandroidLoggerAdapter;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(manifest = Config.NONE)
@@ -148,6 +157,27 @@ public class TapeCacheTest {
         assertEquals(firstRecord.value, localValue);
     }
 
+    @Test
+    public void addMeasurements() throws Exception {
+        List<ApplicationUptime> values = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            values.add(new ApplicationUptime(value.getTime() + i, (double) i));
+        }
+        tapeCache.addMeasurements(key, Collections.<ApplicationUptime>emptyList());
+        tapeCache.addMeasurements(key, values);
+        tapeCache.addMeasurement(key, value);
+        tapeCache.flush();
+
+        List<Record<ObservationKey, ApplicationUptime>> records = tapeCache.unsentRecords(100);
+        assertEquals(4, records.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(key, records.get(i).key);
+            assertEquals(values.get(i), records.get(i).value);
+        }
+        assertEquals(value, records.get(3).value);
+        tapeCache.returnList(records);
+    }
+
     @Test
     public void flush() throws Exception {
         assertEquals(Collections.emptyList(), tapeCache.unsentRecords(100));
@@ -164,4 +194,405 @@ public class TapeCacheTest {
         assertEquals(1, tapeCache.unsentRecords(100).size());
         assertEquals(new Pair<>(1L, 0L), tapeCache.numberOfRecords());
     }
+
+    @Test
+    public void highWatermark() throws Exception {
+        final List<DataCache<?, ?>> notified = new ArrayList<>();
+        ExtendedDataCache.HighWatermarkListener listener = new ExtendedDataCache.HighWatermarkListener() {
+            @Override
+            public void onHighWatermark(DataCache<?, ?> cache) {
+                notified.add(cache);
+            }
+        };
+        tapeCache.setHighWatermark(1L, listener);
+
+        tapeCache.addMeasurement(key, value);
+        tapeCache.flush();
+        assertEquals(Collections.emptyList(), notified);
+
+        tapeCache.addMeasurement(key, value);
+        tapeCache.flush();
+        assertEquals(Collections.<DataCache<?, ?>>singletonList(tapeCache), notified);
+
+        // another listener was set, so this has no effect
+        tapeCache.removeHighWatermark(new ExtendedDataCache.HighWatermarkListener() {
+            @Override
+            public void onHighWatermark(DataCache<?, ?> cache) {
+                throw new AssertionError("Listener should not be called");
+            }
+        });
+        tapeCache.addMeasurement(key, value);
+        tapeCache.flush();
+        assertEquals(2, notified.size());
+
+        tapeCache.removeHighWatermark(listener);
+        tapeCache.addMeasurement(key, value);
+        tapeCache.flush();
+        assertEquals(2, notified.size());
+    }
+
+    @Test
+    public void backpressure() throws Exception {
+        final List<Boolean> notified = new ArrayList<>();
+        tapeCache.setBackpressureListener(0.5f, new ExtendedDataCache.BackpressureListener() {
+            @Override
+            public void onBackpressure(DataCache<?, ?> cache, boolean hasBackpressure) {
+                notified.add(hasBackpressure);
+            }
+        });
+        assertEquals(0f, tapeCache.getFillLevel(), 0f);
+        assertEquals(0L, tapeCache.getFlushLag());
+
+        tapeCache.addMeasurement(key, value);
+        tapeCache.flush();
+        assertEquals(0L, tapeCache.getFlushLag());
+        assertTrue(tapeCache.getFillLevel() > 0f);
+        assertEquals(Collections.<Boolean>emptyList(), notified);
+
+        // does not fit in the cache
+        List<ApplicationUptime> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            values.add(new ApplicationUptime(value.getTime() + i, (double) i));
+        }
+        tapeCache.addMeasurements(key, values);
+        tapeCache.flush();
+        assertEquals(1f, tapeCache.getFillLevel(), 0f);
+        assertEquals(Collections.singletonList(true), notified);
+
+        tapeCache.remove(values.size() + 1);
+        assertEquals(0f, tapeCache.getFillLevel(), 0f);
+        assertEquals(Arrays.asList(true, false), notified);
+    }
+
+    @Test
+    public void overflowDropOldest() throws Exception {
+        tapeCache.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        List<ApplicationUptime> values = uptimes(1000);
+        tapeCache.addMeasurements(key, values);
+        tapeCache.flush();
+
+        long numRecords = tapeCache.numberOfRecords().first;
+        assertTrue(numRecords > 0L && numRecords < values.size());
+        OverflowPolicy.Stats stats = tapeCache.getOverflowStats();
+        assertEquals(values.size() - numRecords, stats.dropped);
+        assertEquals(0L, stats.rejected);
+
+        List<Record<ObservationKey, ApplicationUptime>> records = tapeCache.unsentRecords(1000);
+        assertEquals(numRecords, records.size());
+        assertEquals(values.get(values.size() - 1), records.get(records.size() - 1).value);
+        assertEquals(values.get((int) (values.size() - numRecords)), records.get(0).value);
+    }
+
+    @Test
+    public void overflowDropOldestWhileUploading() throws Exception {
+        tapeCache.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        List<ApplicationUptime> values = uptimes(1000);
+        tapeCache.addMeasurements(key, values.subList(0, 20));
+        tapeCache.flush();
+
+        List<Record<ObservationKey, ApplicationUptime>> uploading = tapeCache.unsentRecords(10);
+        assertEquals(10, uploading.size());
+        tapeCache.returnList(uploading);
+
+        // drops all records that are being uploaded
+        tapeCache.addMeasurements(key, values.subList(20, values.size()));
+        tapeCache.flush();
+        long numRecords = tapeCache.numberOfRecords().first;
+        assertTrue(tapeCache.getOverflowStats().dropped >= 20L);
+
+        // reading records for other purposes does not change what the upload removes
+        List<Record<ObservationKey, ApplicationUptime>> records = tapeCache.getRecords(5);
+        assertEquals(5, records.size());
+        tapeCache.returnList(records);
+
+        assertEquals(0, tapeCache.remove(10));
+        assertEquals(numRecords, (long) tapeCache.numberOfRecords().first);
+        records = tapeCache.unsentRecords(1000);
+        assertEquals(numRecords, records.size());
+        assertEquals(values.get(values.size() - 1), records.get(records.size() - 1).value);
+        tapeCache.returnList(records);
+
+        // without new drops, removal after an upload is unchanged
+        assertEquals(10, tapeCache.remove(10));
+    }
+
+    @Test
+    public void overflowSpill() throws Exception {
+        tapeCache.setOverflowPolicy(OverflowPolicy.SPILL);
+        List<ApplicationUptime> values = uptimes(1000);
+        tapeCache.addMeasurements(key, values);
+        tapeCache.flush();
+        long numRecords = tapeCache.numberOfRecords().first;
+        assertEquals(values.size() - numRecords, tapeCache.getOverflowStats().spilled);
+
+        // stored after the spilled records
+        tapeCache.addMeasurement(key, value);
+        tapeCache.flush();
+        values.add(value);
+
+        List<ApplicationUptime> result = new ArrayList<>();
+        while (tapeCache.numberOfRecords().first > 0L) {
+            List<Record<ObservationKey, ApplicationUptime>> records =
+                    tapeCache.unsentRecords(1000);
+            for (Record<ObservationKey, ApplicationUptime> record : records) {
+                result.add(record.value);
+            }
+            tapeCache.remove(records.size());
+        }
+        assertEquals(values, result);
+
+        OverflowPolicy.Stats stats = tapeCache.getOverflowStats();
+        assertEquals(values.size() - numRecords, stats.spilled);
+        assertEquals(stats.spilled, stats.restored);
+        assertEquals(0L, stats.rejected);
+    }
+
+    @Test
+    public void overflowDownsample() throws Exception {
+        tapeCache.setOverflowPolicy(OverflowPolicy.DOWNSAMPLE);
+        tapeCache.addMeasurements(key, uptimes(1000));
+        tapeCache.flush();
+        long numRecords = tapeCache.numberOfRecords().first;
+        OverflowPolicy.Stats stats = tapeCache.getOverflowStats();
+        assertEquals(0L, stats.downsampled);
+        assertEquals(1000L - numRecords, stats.rejected);
+
+        // full cache, so one in sixteen records is kept
+        tapeCache.addMeasurements(key, uptimes(32));
+        tapeCache.flush();
+        stats = tapeCache.getOverflowStats();
+        assertEquals(30L, stats.downsampled);
+        assertEquals(1002L - numRecords, stats.rejected);
+    }
+
+    @Test
+    public void unsentSerializedRecords() throws Exception {
+        ObservationKey otherKey = new ObservationKey("test", "a", "c");
+        tapeCache.addMeasurement(key, value);
+        tapeCache.addMeasurement(key, value);
+        tapeCache.addMeasurement(otherKey, value);
+        tapeCache.flush();
+
+        SerializedRecords<ObservationKey, ApplicationUptime> records =
+                tapeCache.unsentSerializedRecords(100, Long.MAX_VALUE);
+        assertEquals(3, records.size());
+        assertEquals(key, records.getKey(0));
+        assertEquals(key, records.getKey(1));
+        assertEquals(otherKey, records.getKey(2));
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(value, records.getValue(i));
+        }
+        assertTrue(records.getSerializedSize() > 0L);
+
+        assertEquals(1, tapeCache.unsentSerializedRecords(1, Long.MAX_VALUE).size());
+        // records are not removed
+        assertEquals(new Pair<>(3L, 0L), tapeCache.numberOfRecords());
+    }
+
+    @Test
+    public void reuseReturnedRecords() throws Exception {
+        tapeCache.addMeasurement(key, value);
+        tapeCache.addMeasurement(key, value);
+        tapeCache.flush();
+
+        List<Record<ObservationKey, ApplicationUptime>> records = tapeCache.unsentRecords(100);
+        assertEquals(2, records.size());
+        // records with the same key share the key object
+        assertSame(records.get(0).key, records.get(1).key);
+        ApplicationUptime firstValue = records.get(0).value;
+        tapeCache.returnList(records);
+
+        // values are only reused if the caller allows it
+        records = tapeCache.unsentRecords(1);
+        assertNotSame(firstValue, records.get(0).value);
+        firstValue = records.get(0).value;
+        tapeCache.returnListAndValues(records);
+
+        records = tapeCache.unsentRecords(1);
+        assertSame(firstValue, records.get(0).value);
+        assertEquals(value, records.get(0).value);
+        assertEquals(key, records.get(0).key);
+        tapeCache.returnList(records);
+    }
+
+    @Test
+    public void oldestTime() throws Exception {
+        assertEquals(Long.MAX_VALUE, tapeCache.getOldestTime());
+        List<ApplicationUptime> values = uptimes(3);
+        tapeCache.addMeasurements(key, values);
+        tapeCache.flush();
+        assertEquals(Math.round(values.get(0).getTime() * 1000d), tapeCache.getOldestTime());
+
+        // new records do not change the oldest record
+        tapeCache.addMeasurement(key, value);
+        tapeCache.flush();
+        assertEquals(Math.round(values.get(0).getTime() * 1000d), tapeCache.getOldestTime());
+
+        tapeCache.remove(1);
+        assertEquals(Math.round(values.get(1).getTime() * 1000d), tapeCache.getOldestTime());
+        tapeCache.remove(3);
+        assertEquals(Long.MAX_VALUE, tapeCache.getOldestTime());
+    }
+
+    @Test
+    public void readLegacyTape() throws Exception {
+        AvroTopic<ObservationKey, ApplicationUptime> topic = tapeCache.getTopic();
+        File file = new File(RuntimeEnvironment.application.getCacheDir(), "legacy.tape");
+        QueueFile queueFile = QueueFile.newMapped(file, 450_000_000);
+        queueFile.setVersion(QueueFileHeader.VERSION_1);
+        TapeAvroConverter<ObservationKey, ApplicationUptime> converter =
+                new TapeAvroConverter<>(topic);
+        converter.setLegacyHeader(true);
+        try (BackedObjectQueue<Record<ObservationKey, ApplicationUptime>> queue =
+                     new BackedObjectQueue<>(queueFile, converter)) {
+            queue.add(new Record<>(key, value));
+        }
+
+        TapeCache<ObservationKey, ApplicationUptime> legacyCache = new TapeCache<>(
+                RuntimeEnvironment.application, topic, file, executorFactory);
+        try {
+            List<Record<ObservationKey, ApplicationUptime>> records = legacyCache.unsentRecords(100);
+            assertEquals(1, records.size());
+            assertEquals(key, records.get(0).key);
+            assertEquals(value, records.get(0).value);
+            legacyCache.returnList(records);
+            assertEquals(1, legacyCache.unsentSerializedRecords(100, Long.MAX_VALUE).size());
+
+            // once emptied, new records are written in the current format
+            legacyCache.remove(1);
+            legacyCache.addMeasurement(key, value);
+            legacyCache.flush();
+            records = legacyCache.unsentRecords(100);
+            assertEquals(1, records.size());
+            assertEquals(value, records.get(0).value);
+            legacyCache.returnList(records);
+        } finally {
+            legacyCache.close();
+        }
+
+        queueFile = QueueFile.newMapped(file, 450_000_000);
+        assertEquals(QueueFileHeader.VERSION, queueFile.getVersion());
+        queueFile.close();
+    }
+
+    @Test
+    public void frameEncoding() throws Exception {
+        ObservationKey otherKey = new ObservationKey("test", "a", "c");
+        tapeCache.setMaximumSize(1_000_000);
+        tapeCache.setFrameEncoding(true);
+        List<Record<ObservationKey, ApplicationUptime>> expected = new ArrayList<>();
+        double time = value.getTime();
+        for (int i = 0; i < 300; i++) {
+            ObservationKey recordKey = i < 200 ? key : otherKey;
+            ApplicationUptime recordValue = new ApplicationUptime(time + i * 0.02, i * 1.5);
+            expected.add(new Record<>(recordKey, recordValue));
+            tapeCache.addMeasurement(recordKey, recordValue);
+        }
+        tapeCache.flush();
+        assertEquals(new Pair<>(300L, 0L), tapeCache.numberOfRecords());
+
+        List<Record<ObservationKey, ApplicationUptime>> records = tapeCache.unsentRecords(100);
+        assertRecords(expected.subList(0, 100), records);
+        tapeCache.returnList(records);
+
+        // removes part of a frame
+        assertEquals(150, tapeCache.remove(150));
+        assertEquals(new Pair<>(150L, 0L), tapeCache.numberOfRecords());
+        records = tapeCache.unsentRecords(1000);
+        assertRecords(expected.subList(150, 300), records);
+        tapeCache.returnList(records);
+
+        SerializedRecords<ObservationKey, ApplicationUptime> serialized =
+                tapeCache.unsentSerializedRecords(60, Long.MAX_VALUE);
+        assertEquals(60, serialized.size());
+        for (int i = 0; i < serialized.size(); i++) {
+            assertEquals(expected.get(150 + i).key, serialized.getKey(i));
+            assertEquals(expected.get(150 + i).value, serialized.getValue(i));
+        }
+
+        assertEquals(150, tapeCache.remove(150));
+        assertEquals(new Pair<>(0L, 0L), tapeCache.numberOfRecords());
+        assertEquals(Collections.emptyList(), tapeCache.unsentRecords(100));
+    }
+
+    @Test
+    public void frameSkipAfterRestart() throws Exception {
+        AvroTopic<ObservationKey, ApplicationUptime> topic = tapeCache.getTopic();
+        File file = new File(RuntimeEnvironment.application.getCacheDir(), "frames.tape");
+        List<Record<ObservationKey, ApplicationUptime>> expected = new ArrayList<>();
+        TapeCache<ObservationKey, ApplicationUptime> frameCache = new TapeCache<>(
+                RuntimeEnvironment.application, topic, file, executorFactory);
+        try {
+            frameCache.setFrameEncoding(true);
+            double time = value.getTime();
+            for (int i = 0; i < 200; i++) {
+                ApplicationUptime recordValue = new ApplicationUptime(time + i * 0.02, i * 1.5);
+                expected.add(new Record<>(key, recordValue));
+                frameCache.addMeasurement(key, recordValue);
+            }
+            frameCache.flush();
+            // removes part of the first frame
+            assertEquals(50, frameCache.remove(50));
+        } finally {
+            frameCache.close();
+        }
+
+        frameCache = new TapeCache<>(RuntimeEnvironment.application, topic, file, executorFactory);
+        try {
+            assertEquals(new Pair<>(150L, 0L), frameCache.numberOfRecords());
+            List<Record<ObservationKey, ApplicationUptime>> records =
+                    frameCache.unsentRecords(1000);
+            assertRecords(expected.subList(50, 200), records);
+            frameCache.returnList(records);
+        } finally {
+            frameCache.close();
+        }
+    }
+
+    @Test
+    public void decodeParallel() throws Exception {
+        DecodePool decodePool = new DecodePool(3);
+        try {
+            tapeCache.setMaximumSize(1_000_000);
+            tapeCache.setDecodePool(decodePool);
+            List<Record<ObservationKey, ApplicationUptime>> expected = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                ApplicationUptime recordValue = new ApplicationUptime(
+                        value.getTime() + i, (double) i);
+                expected.add(new Record<>(key, recordValue));
+                tapeCache.addMeasurement(key, recordValue);
+            }
+            tapeCache.flush();
+
+            List<Record<ObservationKey, ApplicationUptime>> records = tapeCache.unsentRecords(900);
+            assertRecords(expected.subList(0, 900), records);
+            tapeCache.returnList(records);
+
+            // on low battery, decode on the cache executor only
+            decodePool.setBatteryState(0.1f, false);
+            assertEquals(1, decodePool.getParallelism());
+            records = tapeCache.unsentRecords(900);
+            assertRecords(expected.subList(0, 900), records);
+            tapeCache.returnList(records);
+        } finally {
+            decodePool.close();
+        }
+    }
+
+    private List<ApplicationUptime> uptimes(int number) {
+        List<ApplicationUptime> values = new ArrayList<>(number);
+        for (int i = 0; i < number; i++) {
+            values.add(new ApplicationUptime(value.getTime() + i, (double) i));
+        }
+        return values;
+    }
+
+    private static void assertRecords(List<Record<ObservationKey, ApplicationUptime>> expected,
+            List<Record<ObservationKey, ApplicationUptime>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).key, actual.get(i).key);
+            assertEquals(expected.get(i).value, actual.get(i).value);
+        }
+    }
 }
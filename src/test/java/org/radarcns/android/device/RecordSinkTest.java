@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.device;
+
+import android.content.Context;
+import android.util.Pair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.radarcns.android.data.SubjectPartitionedCache;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.monitor.application.ApplicationUptime;
+import org.radarcns.topic.AvroTopic;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class RecordSinkTest {
+    private AvroTopic<ObservationKey, ApplicationUptime> topic;
+    private SubjectPartitionedCache<ApplicationUptime> cache;
+    private BaseDeviceState deviceState;
+    private ApplicationUptime value;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        topic = new AvroTopic<>("test",
+                ObservationKey.getClassSchema(), ApplicationUptime.getClassSchema(),
+                ObservationKey.class, ApplicationUptime.class);
+        cache = new SubjectPartitionedCache<>(context, topic, "u");
+        cache.setMaximumSize(4096);
+        cache.setTimeWindow(100);
+        deviceState = new BaseDeviceState();
+        deviceState.getId().setProjectId("p");
+        deviceState.getId().setUserId("u");
+        value = new ApplicationUptime(System.currentTimeMillis() / 1000d,
+                System.nanoTime() / 1_000_000_000d);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.close();
+    }
+
+    @Test
+    public void send() {
+        RecordSink<ApplicationUptime> sink = new RecordSink<>(topic, cache, deviceState);
+        assertSame(topic, sink.getTopic());
+
+        // no source ID yet
+        assertFalse(sink.send(value));
+        assertFalse(sink.sendAll(Arrays.asList(value, value)));
+
+        deviceState.getId().setSourceId("s");
+        assertTrue(sink.send(value));
+        assertTrue(sink.sendAll(Arrays.asList(value, value)));
+        cache.flush();
+        assertEquals(new Pair<>(3L, 0L), cache.numberOfRecords());
+        assertEquals(0L, sink.getFlushLag());
+        assertTrue(sink.getFillLevel() > 0f);
+    }
+
+    @Test
+    public void sendAfterSubjectChange() {
+        RecordSink<ApplicationUptime> sink = new RecordSink<>(topic, cache, deviceState);
+        deviceState.getId().setSourceId("s");
+        assertTrue(sink.send(value));
+
+        cache.setSubject("other");
+        deviceState.getId().setUserId("other");
+        assertTrue(sink.send(value));
+        assertTrue(sink.send(value));
+        cache.flush();
+        assertEquals(new Pair<>(2L, 0L), cache.numberOfRecords());
+
+        cache.setSubject("u");
+        assertEquals(new Pair<>(1L, 0L), cache.numberOfRecords());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingTopic() {
+        new RecordSink<>(null, cache, deviceState);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingCache() {
+        new RecordSink<>(topic, null, deviceState);
+    }
+}
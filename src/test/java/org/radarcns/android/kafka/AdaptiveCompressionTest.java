@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.radarcns.config.ServerConfig;
+import org.radarcns.data.Record;
+import org.radarcns.producer.rest.RestSender;
+import org.radarcns.producer.rest.SchemaRetriever;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveCompressionTest {
+    private MockWebServer server;
+    private RestSender sender;
+    private BinaryRestSender binarySender;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        ServerConfig config = new ServerConfig(server.url("/").url());
+        sender = new RestSender.Builder()
+                .server(config)
+                .schemaRetriever(new SchemaRetriever(config, 30))
+                .build();
+        binarySender = new BinaryRestSender.Builder()
+                .server(config)
+                .schemaRetriever(new SchemaRetriever(config, 30))
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sender.close();
+        binarySender.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void staticMode() {
+        AdaptiveCompression compression = new AdaptiveCompression(binarySender);
+        List<Record<String, String>> records = records(2, false);
+        assertFalse(compression.shouldCompress("a", records));
+
+        compression.setMode(true, false);
+        assertTrue(compression.shouldCompress("a", records));
+
+        // senders without compression support never compress
+        AdaptiveCompression unsupported = new AdaptiveCompression(null);
+        unsupported.setMode(true, false);
+        assertFalse(unsupported.shouldCompress("a", records));
+    }
+
+    @Test
+    public void jsonCompressesAll() {
+        AdaptiveCompression compression = new AdaptiveCompression(sender);
+        compression.setMode(true, true);
+        // a JSON sender cannot compress single requests
+        assertTrue(compression.shouldCompress("a", records(2, false)));
+
+        compression.setMode(false, true);
+        assertFalse(compression.shouldCompress("a", records(2, false)));
+    }
+
+    @Test
+    public void adaptiveMode() {
+        AdaptiveCompression compression = new AdaptiveCompression(binarySender);
+        compression.setMode(true, true);
+
+        // too small to be worth it
+        assertFalse(compression.shouldCompress("repetitive", records(2, false)));
+        assertTrue(compression.shouldCompress("repetitive", records(1000, false)));
+
+        List<Record<String, String>> random = records(1000, true);
+        compression.setBatteryState(0.1f, false);
+        assertFalse(compression.shouldCompress("random", random));
+        compression.setBatteryState(0.1f, true);
+        assertTrue(compression.shouldCompress("repetitive", records(1000, false)));
+    }
+
+    @Test
+    public void stats() {
+        AdaptiveCompression compression = new AdaptiveCompression(binarySender);
+        compression.setMode(true, true);
+        List<Record<String, String>> records = records(1000, false);
+        assertTrue(compression.shouldCompress("a", records));
+        compression.didSend("a", records.size(), true);
+        compression.didSend("a", 2, false);
+
+        AdaptiveCompression.Stats stats = compression.getStats().get("a");
+        assertEquals(1L, stats.compressedRequests);
+        assertEquals(1L, stats.uncompressedRequests);
+        assertTrue(stats.ratio < 0.5d);
+        assertTrue(stats.estimatedBytesSaved > 0L);
+    }
+
+    private static List<Record<String, String>> records(int size, boolean isRandom) {
+        Random random = new Random(1L);
+        List<Record<String, String>> records = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            StringBuilder value = new StringBuilder(64);
+            for (int j = 0; j < 64; j++) {
+                value.append(isRandom ? (char) (33 + random.nextInt(94)) : 'a');
+            }
+            records.add(new Record<>("user", value.toString()));
+        }
+        return records;
+    }
+}
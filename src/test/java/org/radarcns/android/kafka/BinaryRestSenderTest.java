@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.radarcns.android.data.SerializedRecords;
+import org.radarcns.android.data.TapeCache;
+import org.radarcns.android.util.AndroidThreadFactory;
+import org.radarcns.android.util.SharedSingleThreadExecutorFactory;
+import org.radarcns.config.ServerConfig;
+import org.radarcns.data.AvroRecordData;
+import org.radarcns.data.Record;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.monitor.application.ApplicationUptime;
+import org.radarcns.producer.KafkaSender;
+import org.radarcns.producer.KafkaTopicSender;
+import org.radarcns.producer.rest.RestSender;
+import org.radarcns.producer.rest.SchemaRetriever;
+import org.radarcns.topic.AvroTopic;
+import org.robolectric.RobolectricTestRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BinaryRestSenderTest {
+    private static final Logger logger = LoggerFactory.getLogger(BinaryRestSenderTest.class);
+    private static final int BATCH_SIZE = 500;
+    private static final int BATCHES = 40;
+
+    private StandInRestProxy proxy;
+    private ServerConfig config;
+    private AvroTopic<ObservationKey, ApplicationUptime> topic;
+    private ObservationKey key;
+
+    @Before
+    public void setUp() throws IOException {
+        proxy = new StandInRestProxy();
+        config = new ServerConfig(proxy.getUrl());
+        topic = new AvroTopic<>("android_binary_test",
+                ObservationKey.getClassSchema(), ApplicationUptime.getClassSchema(),
+                ObservationKey.class, ApplicationUptime.class);
+        key = new ObservationKey("p", "u", "s");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        proxy.close();
+    }
+
+    @Test
+    public void sendBinary() throws IOException {
+        try (BinaryRestSender sender = binarySender()) {
+            KafkaTopicSender<ObservationKey, ApplicationUptime> topicSender = sender.sender(topic);
+            topicSender.send(new AvroRecordData<>(topic, records(key, 100)));
+            assertEquals(100L, proxy.getRecords());
+            assertEquals(1L, proxy.getBinaryRequests());
+
+            // one request per run of equal keys
+            List<Record<ObservationKey, ApplicationUptime>> records = records(key, 10);
+            records.addAll(records(new ObservationKey("p", "u", "t"), 10));
+            topicSender.send(new AvroRecordData<>(topic, records));
+            assertEquals(120L, proxy.getRecords());
+            assertEquals(3L, proxy.getBinaryRequests());
+        }
+    }
+
+    @Test
+    public void sendSerialized() throws IOException {
+        SharedSingleThreadExecutorFactory executorFactory = new SharedSingleThreadExecutorFactory(
+                new AndroidThreadFactory("test", THREAD_PRIORITY_BACKGROUND));
+        TapeCache<ObservationKey, ApplicationUptime> cache = new TapeCache<>(
+                RuntimeEnvironment.application, topic, executorFactory);
+        try (BinaryRestSender sender = binarySender()) {
+            for (Record<ObservationKey, ApplicationUptime> record : records(key, 10)) {
+                cache.addMeasurement(record.key, record.value);
+            }
+            for (Record<ObservationKey, ApplicationUptime> record
+                    : records(new ObservationKey("p", "u", "t"), 10)) {
+                cache.addMeasurement(record.key, record.value);
+            }
+            cache.flush();
+
+            SerializedRecords<ObservationKey, ApplicationUptime> records =
+                    cache.unsentSerializedRecords(100, Long.MAX_VALUE);
+            assertEquals(20, records.size());
+            // only records up to the first key change are sent
+            assertEquals(10, sender.send(records));
+            assertEquals(10L, proxy.getRecords());
+            assertEquals(1L, proxy.getBinaryRequests());
+            cache.remove(10);
+
+            records = cache.unsentSerializedRecords(100, Long.MAX_VALUE);
+            assertEquals(10, sender.send(records));
+            assertEquals(20L, proxy.getRecords());
+            assertEquals(2L, proxy.getBinaryRequests());
+        } finally {
+            cache.close();
+            executorFactory.close();
+        }
+    }
+
+    @Test
+    public void throttled() throws IOException {
+        proxy.setThrottleRate(1d, 5);
+        try (BinaryRestSender sender = binarySender()) {
+            sender.sender(topic).send(new AvroRecordData<>(topic, records(key, 10)));
+            fail("Request should be throttled");
+        } catch (BinaryRestSender.HttpStatusException ex) {
+            assertEquals(UploadThrottle.HTTP_TOO_MANY_REQUESTS, ex.getStatusCode());
+            assertEquals(5_000L, ex.getRetryAfterMillis());
+            assertEquals(UploadThrottle.HTTP_TOO_MANY_REQUESTS, UploadThrottle.throttleStatus(ex));
+        }
+    }
+
+    /**
+     * Compares the request size per record with the JSON format. CPU time per record is only
+     * logged, since it depends too much on the test machine to assert anything about it.
+     */
+    @Test
+    public void compareWithJson() throws IOException {
+        RestSender jsonSender = new RestSender.Builder()
+                .server(config)
+                .schemaRetriever(new SchemaRetriever(config, 30))
+                .connectionTimeout(30, TimeUnit.SECONDS)
+                .build();
+        long[] json = benchmark(jsonSender);
+        long[] binary = benchmark(binarySender());
+
+        int numRecords = BATCH_SIZE * BATCHES;
+        logger.debug(String.format(Locale.US, "JSON:   %.1f bytes/record, %.2f us CPU/record",
+                json[0] / (double) numRecords, json[1] / 1000d / numRecords));
+        logger.debug(String.format(Locale.US, "Binary: %.1f bytes/record, %.2f us CPU/record",
+                binary[0] / (double) numRecords, binary[1] / 1000d / numRecords));
+
+        assertTrue(binary[0] < json[0]);
+    }
+
+    /** Number of request bytes and CPU nanoseconds of the sending thread. */
+    private long[] benchmark(KafkaSender sender) throws IOException {
+        try {
+            KafkaTopicSender<ObservationKey, ApplicationUptime> topicSender = sender.sender(topic);
+            List<Record<ObservationKey, ApplicationUptime>> records = records(key, BATCH_SIZE);
+            // warm up, and retrieve the schemas
+            for (int i = 0; i < 5; i++) {
+                topicSender.send(new AvroRecordData<>(topic, records));
+            }
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long startBytes = proxy.getBytes();
+            long startCpu = threads.getCurrentThreadCpuTime();
+            for (int i = 0; i < BATCHES; i++) {
+                topicSender.send(new AvroRecordData<>(topic, records));
+            }
+            return new long[] {proxy.getBytes() - startBytes,
+                    threads.getCurrentThreadCpuTime() - startCpu};
+        } finally {
+            sender.close();
+        }
+    }
+
+    private BinaryRestSender binarySender() {
+        return new BinaryRestSender.Builder()
+                .server(config)
+                .schemaRetriever(new SchemaRetriever(config, 30))
+                .connectionTimeout(30, TimeUnit.SECONDS)
+                .build();
+    }
+
+    private static List<Record<ObservationKey, ApplicationUptime>> records(
+            ObservationKey key, int number) {
+        List<Record<ObservationKey, ApplicationUptime>> records = new ArrayList<>(number);
+        double time = System.currentTimeMillis() / 1000d;
+        for (int i = 0; i < number; i++) {
+            records.add(new Record<>(key, new ApplicationUptime(time + i, i * 0.01d)));
+        }
+        return records;
+    }
+}
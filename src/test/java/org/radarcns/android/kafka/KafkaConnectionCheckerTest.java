@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.radarcns.android.kafka.KafkaConnectionChecker.INCREMENTAL_BACKOFF_MILLISECONDS;
+import static org.radarcns.android.kafka.KafkaConnectionChecker.MAX_BACKOFF_MILLISECONDS;
+import static org.radarcns.android.kafka.KafkaConnectionChecker.backoffDelay;
+
+public class KafkaConnectionCheckerTest {
+    @Test
+    public void backoffDelay_firstRetry() {
+        assertEquals(0L, backoffDelay(1, 0d));
+        assertEquals(30_000L, backoffDelay(1, 0.5d));
+        // at most one minute, not a thousand minutes
+        assertEquals(INCREMENTAL_BACKOFF_MILLISECONDS, backoffDelay(1, 1d));
+    }
+
+    @Test
+    public void backoffDelay_doubles() {
+        assertEquals(2L * INCREMENTAL_BACKOFF_MILLISECONDS, backoffDelay(2, 1d));
+        assertEquals(4L * INCREMENTAL_BACKOFF_MILLISECONDS, backoffDelay(3, 1d));
+        assertEquals(60_000L, backoffDelay(3, 0.25d));
+    }
+
+    @Test
+    public void backoffDelay_maximum() {
+        assertEquals(MAX_BACKOFF_MILLISECONDS, backoffDelay(9, 1d));
+        assertEquals(MAX_BACKOFF_MILLISECONDS / 2, backoffDelay(9, 0.5d));
+        // no overflow after many retries
+        assertEquals(MAX_BACKOFF_MILLISECONDS, backoffDelay(40, 1d));
+        assertEquals(MAX_BACKOFF_MILLISECONDS, backoffDelay(Integer.MAX_VALUE, 1d));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.apache.avro.specific.SpecificRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.radarcns.android.auth.AppAuthState;
+import org.radarcns.android.data.TableDataHandler;
+import org.radarcns.config.ServerConfig;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.monitor.application.ApplicationUptime;
+import org.radarcns.producer.rest.RestSender;
+import org.radarcns.producer.rest.SchemaRetriever;
+import org.radarcns.topic.AvroTopic;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.Scheduler;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class KafkaDataSubmitterTest {
+    private StandInRestProxy proxy;
+    private TableDataHandler dataHandler;
+    private KafkaDataSubmitter<SpecificRecord> submitter;
+    private Scheduler scheduler;
+    private ObservationKey key;
+
+    @Before
+    public void setUp() throws IOException {
+        proxy = new StandInRestProxy();
+
+        AppAuthState authState = new AppAuthState.Builder()
+                .projectId("p")
+                .userId("u")
+                .build();
+        key = new ObservationKey("p", "u", "s");
+        // without a server, the data handler does not start its own submitter
+        dataHandler = new TableDataHandler(RuntimeEnvironment.application, null, null,
+                100_000_000, false, authState);
+
+        ServerConfig config = new ServerConfig(proxy.getUrl());
+        RestSender sender = new RestSender.Builder()
+                .server(config)
+                .schemaRetriever(new SchemaRetriever(config, 10))
+                .connectionTimeout(10, TimeUnit.SECONDS)
+                .build();
+        // upload every second and check the connection every five seconds
+        submitter = new KafkaDataSubmitter<>(dataHandler, sender, 100, 1L);
+        scheduler = shadowOf(submitter.getLooper()).getScheduler();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        submitter.close();
+        dataHandler.close();
+        proxy.close();
+    }
+
+    @Test(timeout = 30_000L)
+    public void trySendAfterReconnect() {
+        AvroTopic<ObservationKey, ApplicationUptime> topicA = topic("android_try_send_a");
+        AvroTopic<ObservationKey, ApplicationUptime> topicB = topic("android_try_send_b");
+
+        assertTrue(submitter.trySend(topicA, key, value()));
+        assertTrue(submitter.trySend(topicB, key, value()));
+
+        // the records of topic A fail, so topic B is not sent while disconnected
+        proxy.setErrorRate(1d);
+        scheduler.advanceBy(1L, TimeUnit.SECONDS);
+        assertEquals(1L, proxy.getErrors());
+        assertFalse(submitter.trySend(topicB, key, value()));
+
+        proxy.setErrorRate(0d);
+        scheduler.advanceBy(5L, TimeUnit.SECONDS);
+        assertTrue(submitter.trySend(topicB, key, value()));
+        scheduler.advanceBy(1L, TimeUnit.SECONDS);
+
+        // the record that was queued before disconnecting is sent too
+        assertEquals(2, proxy.getValues(topicB.getName()).size());
+        assertEquals(0, proxy.getValues(topicA.getName()).size());
+    }
+
+    private static AvroTopic<ObservationKey, ApplicationUptime> topic(String name) {
+        return new AvroTopic<>(name,
+                ObservationKey.getClassSchema(), ApplicationUptime.getClassSchema(),
+                ObservationKey.class, ApplicationUptime.class);
+    }
+
+    private static ApplicationUptime value() {
+        return new ApplicationUptime(System.currentTimeMillis() / 1000d,
+                System.nanoTime() / 1_000_000_000d);
+    }
+}
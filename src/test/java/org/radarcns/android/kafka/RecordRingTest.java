@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.junit.Test;
+import org.radarcns.data.Record;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordRingTest {
+    @Test
+    public void addAndDrain() {
+        RecordRing<String, Integer> ring = new RecordRing<>(3);
+        assertTrue(ring.add("a", 1));
+        assertTrue(ring.add("a", 2));
+        assertEquals(2, ring.size());
+
+        List<Record<String, Integer>> records = new ArrayList<>();
+        assertEquals(2, ring.drainTo(records));
+        assertEquals(Arrays.asList(1, 2), values(records));
+        assertEquals(0, ring.size());
+        assertEquals(0L, ring.getDropped());
+    }
+
+    @Test
+    public void overwriteOldest() {
+        RecordRing<String, Integer> ring = new RecordRing<>(3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(ring.add("a", i));
+        }
+        assertFalse(ring.add("a", 3));
+        assertFalse(ring.add("a", 4));
+        assertEquals(3, ring.size());
+        assertEquals(2L, ring.getDropped());
+
+        List<Record<String, Integer>> records = new ArrayList<>();
+        ring.drainTo(records);
+        assertEquals(Arrays.asList(2, 3, 4), values(records));
+
+        // the ring is reused after draining
+        ring.add("a", 5);
+        records.clear();
+        ring.drainTo(records);
+        assertEquals(Arrays.asList(5), values(records));
+    }
+
+    @Test
+    public void setCapacity() {
+        RecordRing<String, Integer> ring = new RecordRing<>(4);
+        for (int i = 0; i < 6; i++) {
+            ring.add("a", i);
+        }
+        ring.setCapacity(2);
+        assertEquals(2, ring.getCapacity());
+        assertEquals(4L, ring.getDropped());
+
+        ring.setCapacity(3);
+        ring.add("a", 6);
+        List<Record<String, Integer>> records = new ArrayList<>();
+        ring.drainTo(records);
+        assertEquals(Arrays.asList(4, 5, 6), values(records));
+    }
+
+    private static List<Integer> values(List<Record<String, Integer>> records) {
+        List<Integer> values = new ArrayList<>(records.size());
+        for (Record<String, Integer> record : records) {
+            values.add(record.value);
+        }
+        return values;
+    }
+}
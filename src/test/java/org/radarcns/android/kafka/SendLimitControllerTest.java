@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class SendLimitControllerTest {
+    @Test
+    public void staticLimit() {
+        SendLimitController controller = new SendLimitController(1000);
+        controller.didSend("a", 1000, 10L);
+        assertEquals(1000, controller.getLimit("a"));
+        controller.didFail("a");
+        assertEquals(1000, controller.getLimit("a"));
+        assertEquals(Collections.emptyMap(), controller.getLimits());
+    }
+
+    @Test
+    public void additiveIncrease() {
+        SendLimitController controller = new SendLimitController(1000);
+        controller.setAdaptive(100, 1300, 1000L);
+        controller.didSend("a", 1000, 10L);
+        assertEquals(1100, controller.getLimit("a"));
+        assertEquals(1000, controller.getLimit("b"));
+        // batch was not full
+        controller.didSend("a", 500, 10L);
+        assertEquals(1100, controller.getLimit("a"));
+        controller.didSend("a", 1100, 10L);
+        controller.didSend("a", 1200, 10L);
+        controller.didSend("a", 1300, 10L);
+        assertEquals(1300, controller.getLimit("a"));
+        assertEquals(Collections.singletonMap("a", 1300), controller.getLimits());
+    }
+
+    @Test
+    public void multiplicativeDecrease() {
+        SendLimitController controller = new SendLimitController(1000);
+        controller.setAdaptive(300, 10000, 1000L);
+        controller.didSend("a", 1000, 2000L);
+        assertEquals(750, controller.getLimit("a"));
+        controller.didFail("a");
+        assertEquals(375, controller.getLimit("a"));
+        controller.didFail("a");
+        assertEquals(300, controller.getLimit("a"));
+
+        controller.disableAdaptive();
+        assertEquals(1000, controller.getLimit("a"));
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Embedded stand-in for the Kafka REST proxy and schema registry, for end-to-end load tests.
+ * It accepts any schema, counts the records that it receives in JSON or binary format, keeps the
+ * values of JSON records per topic, and can simulate request latency, limited bandwidth, server
+ * errors and throttling.
+ */
+class StandInRestProxy extends Dispatcher implements Closeable {
+    private static final String JSON_CONTENT_TYPE = "application/json";
+
+    private final MockWebServer server;
+    private final Random random;
+    private final Map<String, String> schemas;
+    private final ConcurrentMap<String, List<JSONObject>> values;
+
+    private final AtomicLong requests;
+    private final AtomicLong records;
+    private final AtomicLong bytes;
+    private final AtomicLong errors;
+    private final AtomicLong throttled;
+    private final AtomicLong binaryRequests;
+
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond;
+    private volatile double errorRate;
+    private volatile double throttleRate;
+    private volatile int retryAfterSeconds;
+
+    StandInRestProxy() throws IOException {
+        random = new Random();
+        schemas = new ConcurrentHashMap<>();
+        values = new ConcurrentHashMap<>();
+        requests = new AtomicLong();
+        records = new AtomicLong();
+        bytes = new AtomicLong();
+        errors = new AtomicLong();
+        throttled = new AtomicLong();
+        binaryRequests = new AtomicLong();
+        retryAfterSeconds = 1;
+
+        server = new MockWebServer();
+        server.setDispatcher(this);
+        server.start();
+    }
+
+    /** Base URL of both the REST proxy and the schema registry. */
+    URL getUrl() {
+        return server.url("/").url();
+    }
+
+    /** Delay every response by given duration. */
+    void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /** Limit the transfer rate of requests and responses, or zero for no limit. */
+    void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Fraction of data requests that fail with HTTP status 500. */
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Fraction of data requests that are throttled with HTTP status 429.
+     * @param retryAfterSeconds value of the Retry-After header
+     */
+    void setThrottleRate(double throttleRate, int retryAfterSeconds) {
+        this.throttleRate = throttleRate;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /** Number of data requests received. */
+    long getRequests() {
+        return requests.get();
+    }
+
+    /** Number of records accepted. */
+    long getRecords() {
+        return records.get();
+    }
+
+    /** Number of request body bytes accepted. */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /** Number of data requests with a binary body. */
+    long getBinaryRequests() {
+        return binaryRequests.get();
+    }
+
+    /** Number of data requests that failed with a server error. */
+    long getErrors() {
+        return errors.get();
+    }
+
+    /** Number of data requests that were throttled. */
+    long getThrottled() {
+        return throttled.get();
+    }
+
+    /** Values of the JSON records that were accepted for given topic, in order of arrival. */
+    List<JSONObject> getValues(String topic) {
+        List<JSONObject> topicValues = values.get(topic);
+        if (topicValues == null) {
+            return Collections.emptyList();
+        }
+        synchronized (topicValues) {
+            return new ArrayList<>(topicValues);
+        }
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        long latency = latencyMillis;
+        if (latency > 0L) {
+            Thread.sleep(latency);
+        }
+        MockResponse response;
+        String path = request.getPath();
+        try {
+            if (path.startsWith("/topics/")) {
+                response = topicResponse(request);
+            } else if (path.startsWith("/subjects/")) {
+                response = schemaResponse(request);
+            } else {
+                response = new MockResponse();
+            }
+        } catch (JSONException ex) {
+            response = new MockResponse().setResponseCode(422)
+                    .setBody("{\"error_code\":422,\"message\":\"" + ex.getMessage() + "\"}");
+        }
+        long bandwidth = bytesPerSecond;
+        if (bandwidth > 0L) {
+            // throttles both the request body and the response body
+            response.throttleBody(Math.max(1L, bandwidth / 10L), 100L, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+
+    private MockResponse topicResponse(RecordedRequest request) throws JSONException {
+        requests.incrementAndGet();
+        double sample = random.nextDouble();
+        if (sample < throttleRate) {
+            throttled.incrementAndGet();
+            return new MockResponse()
+                    .setResponseCode(UploadThrottle.HTTP_TOO_MANY_REQUESTS)
+                    .setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+        } else if (sample < throttleRate + errorRate) {
+            errors.incrementAndGet();
+            return new MockResponse().setResponseCode(500)
+                    .setBody("{\"error_code\":500,\"message\":\"Internal server error\"}");
+        }
+
+        long bodySize = request.getBodySize();
+        String contentType = request.getHeader("Content-Type");
+        JSONObject result = new JSONObject();
+        int numRecords;
+        if (contentType != null
+                && contentType.startsWith(BinaryRestSender.BINARY_CONTENT_TYPE.toString())) {
+            try {
+                numRecords = countBinaryRecords(request.getBody().inputStream());
+            } catch (IOException ex) {
+                throw new JSONException("Cannot read binary records: " + ex);
+            }
+            binaryRequests.incrementAndGet();
+        } else {
+            JSONObject body = new JSONObject(request.getBody().readUtf8());
+            JSONArray bodyRecords = body.getJSONArray("records");
+            numRecords = bodyRecords.length();
+            // paths look like /topics/{topic}
+            List<JSONObject> topicValues = topicValues(request.getPath().split("/")[2]);
+            synchronized (topicValues) {
+                for (int i = 0; i < numRecords; i++) {
+                    topicValues.add(bodyRecords.getJSONObject(i).getJSONObject("value"));
+                }
+            }
+            result.put("key_schema_id", body.optInt("key_schema_id", 1));
+            result.put("value_schema_id", body.optInt("value_schema_id", 2));
+        }
+        records.addAndGet(numRecords);
+        bytes.addAndGet(bodySize);
+        result.put("offsets", new JSONArray());
+        return new MockResponse()
+                .setHeader("Content-Type", JSON_CONTENT_TYPE)
+                .setBody(result.toString());
+    }
+
+    private List<JSONObject> topicValues(String topic) {
+        List<JSONObject> topicValues = values.get(topic);
+        if (topicValues == null) {
+            List<JSONObject> newValues = new ArrayList<>();
+            topicValues = values.putIfAbsent(topic, newValues);
+            if (topicValues == null) {
+                topicValues = newValues;
+            }
+        }
+        return topicValues;
+    }
+
+    /** Read a binary record set and return the number of records in it. */
+    private static int countBinaryRecords(InputStream in) throws IOException {
+        BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(in, null);
+        decoder.readInt();  // key schema version
+        decoder.readInt();  // value schema version
+        for (int i = 0; i < 2; i++) {
+            // project ID and user ID
+            if (decoder.readIndex() == 1) {
+                decoder.skipString();
+            }
+        }
+        decoder.skipString();  // source ID
+        int numRecords = 0;
+        for (long n = decoder.readArrayStart(); n > 0; n = decoder.arrayNext()) {
+            for (long i = 0; i < n; i++) {
+                decoder.skipBytes();
+                numRecords++;
+            }
+        }
+        return numRecords;
+    }
+
+    private MockResponse schemaResponse(RecordedRequest request) throws JSONException {
+        // paths look like /subjects/{topic}-{key|value}/versions[/latest]
+        String[] parts = request.getPath().split("/");
+        String subject = parts.length > 2 ? parts[2] : "";
+        JSONObject result = new JSONObject();
+        if ("POST".equals(request.getMethod())) {
+            JSONObject body = new JSONObject(request.getBody().readUtf8());
+            schemas.put(subject, body.getString("schema"));
+            result.put("id", schemaId(subject));
+        } else {
+            String schema = schemas.get(subject);
+            if (schema == null) {
+                return new MockResponse().setResponseCode(404)
+                        .setBody("{\"error_code\":40401,\"message\":\"Subject not found.\"}");
+            }
+            result.put("subject", subject);
+            result.put("version", 1);
+            result.put("id", schemaId(subject));
+            result.put("schema", schema);
+        }
+        return new MockResponse()
+                .setHeader("Content-Type", JSON_CONTENT_TYPE)
+                .setBody(result.toString());
+    }
+
+    private int schemaId(String subject) {
+        return Math.abs(subject.hashCode() % 1000) + 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+}
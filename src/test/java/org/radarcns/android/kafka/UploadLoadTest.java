@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.apache.avro.specific.SpecificRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.radarcns.android.auth.AppAuthState;
+import org.radarcns.android.data.DataCache;
+import org.radarcns.android.data.ExtendedDataCache;
+import org.radarcns.android.data.TableDataHandler;
+import org.radarcns.config.ServerConfig;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.monitor.application.ApplicationUptime;
+import org.radarcns.producer.rest.RestSender;
+import org.radarcns.producer.rest.SchemaRetriever;
+import org.radarcns.topic.AvroTopic;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * End-to-end load test from {@link TableDataHandler#addMeasurement} through the cache and the
+ * {@link KafkaDataSubmitter} to a {@link StandInRestProxy}. By default it runs briefly as a
+ * smoke test. Configure a longer run with system properties, for example
+ * {@code ./gradlew testDebugUnitTest --tests '*UploadLoadTest' -Dradar.loadtest.duration=60
+ * -Dradar.loadtest.latency=200}. See {@link #setUp()} for all properties.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class UploadLoadTest {
+    private static final String PROPERTY_PREFIX = "radar.loadtest.";
+
+    private StandInRestProxy proxy;
+    private TableDataHandler dataHandler;
+    private KafkaDataSubmitter<SpecificRecord> submitter;
+    private AvroTopic<ObservationKey, ApplicationUptime> topic;
+
+    private long durationMillis;
+    private long recordsPerSecond;
+    private long drainTimeoutMillis;
+
+    @Before
+    public void setUp() throws IOException {
+        durationMillis = property("duration", 3L) * 1000L;
+        recordsPerSecond = property("rate", 2000L);
+        drainTimeoutMillis = property("drainTimeout", 30L) * 1000L;
+
+        proxy = new StandInRestProxy();
+        proxy.setLatency(property("latency", 0L));
+        proxy.setBandwidth(property("bandwidth", 0L));
+        proxy.setErrorRate(property("errorRate", 0d));
+        proxy.setThrottleRate(property("throttleRate", 0d), (int) property("retryAfter", 1L));
+
+        AppAuthState authState = new AppAuthState.Builder()
+                .projectId("p")
+                .userId("u")
+                .build();
+        // without a server, the data handler does not start its own submitter
+        dataHandler = new TableDataHandler(RuntimeEnvironment.application, null, null,
+                (int) property("cacheSize", 450_000_000L), false, authState);
+        topic = new AvroTopic<>("android_load_test",
+                ObservationKey.getClassSchema(), ApplicationUptime.getClassSchema(),
+                ObservationKey.class, ApplicationUptime.class);
+        dataHandler.registerTopic(topic);
+        dataHandler.setDatabaseCommitRate(property("commitRate", 1000L));
+
+        ServerConfig config = new ServerConfig(proxy.getUrl());
+        RestSender sender = new RestSender.Builder()
+                .server(config)
+                .schemaRetriever(new SchemaRetriever(config, 30))
+                .connectionTimeout(30, TimeUnit.SECONDS)
+                .build();
+        submitter = new KafkaDataSubmitter<>(dataHandler, sender,
+                (int) property("sendLimit", 1000L), 10L);
+        submitter.setUploadRequestsPerMinute((int) property("requestsPerMinute", 0L));
+        submitter.setUploadParallelism((int) property("parallelism", 1L),
+                KafkaDataSubmitter.MAX_BYTES_IN_FLIGHT_DEFAULT);
+
+        // Uploads are driven by the uploader thread of the test. Robolectric runs handler tasks
+        // on the posting thread, so the submitter must not be notified on the cache thread.
+        for (DataCache<ObservationKey, ? extends SpecificRecord> cache
+                : dataHandler.getCaches().values()) {
+            ((ExtendedDataCache<?, ?>) cache).setHighWatermark(Long.MAX_VALUE,
+                    new ExtendedDataCache.HighWatermarkListener() {
+                        @Override
+                        public void onHighWatermark(DataCache<?, ?> cache) {
+                            // uploads are not triggered by the cache
+                        }
+                    });
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        submitter.close();
+        dataHandler.close();
+        proxy.close();
+    }
+
+    @Test(timeout = 600_000L)
+    public void sustainedUpload() throws Exception {
+        final AtomicBoolean isProducing = new AtomicBoolean(true);
+        final AtomicBoolean isUploading = new AtomicBoolean(true);
+        final AtomicLong produced = new AtomicLong();
+        final ObservationKey key = new ObservationKey("p", "u", "s");
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                while (isProducing.get()) {
+                    long expected = (System.nanoTime() - start) * recordsPerSecond / 1_000_000_000L;
+                    if (produced.get() >= expected) {
+                        sleep(1L);
+                        continue;
+                    }
+                    double time = System.currentTimeMillis() / 1000d;
+                    dataHandler.addMeasurement(topic, key, new ApplicationUptime(time, time));
+                    produced.incrementAndGet();
+                }
+            }
+        }, "load-producer");
+
+        Thread uploader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Set<AvroTopic<ObservationKey, ? extends SpecificRecord>> toSend = new HashSet<>();
+                while (isUploading.get()) {
+                    if (toSend.isEmpty()) {
+                        // next upload period
+                        sleep(100L);
+                        toSend.addAll(dataHandler.getCaches().keySet());
+                    }
+                    submitter.uploadCaches(toSend);
+                }
+            }
+        }, "load-uploader");
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long startHeap = runtime.totalMemory() - runtime.freeMemory();
+        long startTime = System.currentTimeMillis();
+        producer.start();
+        uploader.start();
+
+        long peakBacklog = 0L;
+        long peakCacheBytes = 0L;
+        long peakHeap = startHeap;
+        while (System.currentTimeMillis() - startTime < durationMillis) {
+            Thread.sleep(500L);
+            peakBacklog = Math.max(peakBacklog, backlog());
+            peakCacheBytes = Math.max(peakCacheBytes, cacheBytes());
+            peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+        }
+        isProducing.set(false);
+        producer.join();
+        long producedRecords = produced.get();
+        long produceMillis = System.currentTimeMillis() - startTime;
+        long receivedAtStop = proxy.getRecords();
+
+        for (DataCache<ObservationKey, ? extends SpecificRecord> cache
+                : dataHandler.getCaches().values()) {
+            cache.flush();
+        }
+        long drainStart = System.currentTimeMillis();
+        while (proxy.getRecords() < producedRecords
+                && System.currentTimeMillis() - drainStart < drainTimeoutMillis) {
+            Thread.sleep(100L);
+        }
+        long totalMillis = System.currentTimeMillis() - startTime;
+        isUploading.set(false);
+        uploader.join();
+
+        System.out.printf(Locale.US, "Produced %d records in %.1f s (%.0f records/s)%n",
+                producedRecords, produceMillis / 1000d, producedRecords * 1000d / produceMillis);
+        System.out.printf(Locale.US, "Uploaded %d records during production (%.0f records/s),"
+                        + " %d in total in %.1f s%n",
+                receivedAtStop, receivedAtStop * 1000d / produceMillis,
+                proxy.getRecords(), totalMillis / 1000d);
+        System.out.printf(Locale.US, "Requests: %d, errors: %d, throttled: %d, bytes: %d%n",
+                proxy.getRequests(), proxy.getErrors(), proxy.getThrottled(), proxy.getBytes());
+        System.out.printf(Locale.US, "Peak backlog: %d records, peak cache size: %d bytes,"
+                        + " final backlog: %d records%n",
+                peakBacklog, peakCacheBytes, backlog());
+        System.out.printf(Locale.US, "Heap: %d kB at start, peak %d kB%n",
+                startHeap / 1024L, peakHeap / 1024L);
+        System.out.println("Upload metrics: " + submitter.getUploadMetrics());
+
+        if (proxy.getErrors() == 0L && proxy.getThrottled() == 0L) {
+            assertEquals(producedRecords, proxy.getRecords());
+        }
+    }
+
+    private long backlog() {
+        long backlog = 0L;
+        for (DataCache<ObservationKey, ? extends SpecificRecord> cache
+                : dataHandler.getCaches().values()) {
+            backlog += cache.numberOfRecords().first;
+        }
+        return backlog;
+    }
+
+    private long cacheBytes() {
+        long bytes = 0L;
+        for (DataCache<ObservationKey, ? extends SpecificRecord> cache
+                : dataHandler.getCaches().values()) {
+            bytes += ((ExtendedDataCache<?, ?>) cache).numberOfBytes();
+        }
+        return bytes;
+    }
+
+    private static long property(String name, long defaultValue) {
+        return Long.parseLong(System.getProperty(PROPERTY_PREFIX + name,
+                Long.toString(defaultValue)));
+    }
+
+    private static double property(String name, double defaultValue) {
+        return Double.parseDouble(System.getProperty(PROPERTY_PREFIX + name,
+                Double.toString(defaultValue)));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
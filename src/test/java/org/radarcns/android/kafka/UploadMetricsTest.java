@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.junit.Test;
+import org.radarcns.monitor.application.ApplicationUptime;
+import org.radarcns.producer.AuthenticationException;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UploadMetricsTest {
+    @Test
+    public void histogram() {
+        UploadMetrics.Histogram histogram = new UploadMetrics.Histogram();
+        assertEquals(-1L, histogram.percentile(0.5d));
+        for (int i = 0; i < 98; i++) {
+            histogram.add(10L);
+        }
+        histogram.add(1000L);
+        histogram.add(100_000L);
+        // accurate to within a factor two
+        assertEquals(15L, histogram.percentile(0.5d));
+        assertEquals(15L, histogram.percentile(0.95d));
+        assertEquals(1023L, histogram.percentile(0.99d));
+        assertEquals(131071L, histogram.percentile(1d));
+    }
+
+    @Test
+    public void rateCounter() {
+        UploadMetrics.RateCounter counter = new UploadMetrics.RateCounter();
+        counter.add(1_000L, 60L);
+        counter.add(2_500L, 60L);
+        assertEquals(2d, counter.rate(3_000L), 1e-9d);
+        // the first second has left the window
+        assertEquals(1d, counter.rate(61_000L), 1e-9d);
+        assertEquals(0d, counter.rate(120_000L), 1e-9d);
+        assertEquals(120L, counter.getTotal());
+    }
+
+    @Test
+    public void failureCause() {
+        assertEquals(UploadMetrics.FailureCause.AUTHENTICATION,
+                UploadMetrics.FailureCause.of(new AuthenticationException("unauthorized")));
+        assertEquals(UploadMetrics.FailureCause.THROTTLED, UploadMetrics.FailureCause.of(
+                new IOException("Failed to submit (HTTP status code 429): ")));
+        assertEquals(UploadMetrics.FailureCause.HTTP_ERROR, UploadMetrics.FailureCause.of(
+                new IOException("Failed to submit (HTTP status code 500): ")));
+        assertEquals(UploadMetrics.FailureCause.HTTP_ERROR, UploadMetrics.FailureCause.of(
+                new BinaryRestSender.HttpStatusException(400, "bad request", -1L)));
+        assertEquals(UploadMetrics.FailureCause.NETWORK, UploadMetrics.FailureCause.of(
+                new IOException("Connection reset")));
+    }
+
+    @Test
+    public void topicMetrics() {
+        UploadMetrics metrics = new UploadMetrics();
+        double tenSecondsAgo = System.currentTimeMillis() / 1000d - 10d;
+        metrics.didUpload("a", 100, 6000L, 20L, new ApplicationUptime(tenSecondsAgo, 1d));
+        metrics.didUpload("a", 20, 0L, 40L, null);
+        metrics.didFail("a", new IOException("Connection reset"));
+        metrics.didFail("a", new IOException("Connection reset"));
+
+        UploadMetrics.TopicMetrics topic = metrics.getMetrics().get("a");
+        assertEquals(120L, topic.totalRecords);
+        assertEquals(6000L, topic.totalBytes);
+        assertEquals(2d, topic.recordsPerSecond, 1e-9d);
+        assertEquals(100d, topic.bytesPerSecond, 1e-9d);
+        assertEquals(31L, topic.latencyP50);
+        assertEquals(63L, topic.latencyP99);
+        // only records with a time field have a data age
+        assertTrue(topic.dataAgeP50 >= 8191L && topic.dataAgeP50 <= 16383L);
+        assertEquals(Long.valueOf(2L), topic.failures.get(UploadMetrics.FailureCause.NETWORK));
+        assertNull(topic.failures.get(UploadMetrics.FailureCause.THROTTLED));
+        assertFalse(metrics.getMetrics().containsKey("b"));
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.apache.avro.specific.SpecificRecord;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.radarcns.android.auth.AppAuthState;
+import org.radarcns.android.data.DataCache;
+import org.radarcns.android.data.ExtendedDataCache;
+import org.radarcns.android.data.TableDataHandler;
+import org.radarcns.config.ServerConfig;
+import org.radarcns.kafka.ObservationKey;
+import org.radarcns.monitor.application.ApplicationUptime;
+import org.radarcns.producer.rest.RestSender;
+import org.radarcns.producer.rest.SchemaRetriever;
+import org.radarcns.topic.AvroTopic;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class UploadPoolTest {
+    private static final Logger logger = LoggerFactory.getLogger(UploadPoolTest.class);
+
+    private static final long LATENCY_MILLIS = 100L;
+    private static final int NUM_TOPICS = 12;
+    private static final int NUM_BATCHES = 3;
+    private static final int BATCH_SIZE = 100;
+    private static final long BATCH_BYTES = 10_000L;
+
+    private StandInRestProxy proxy;
+    private TableDataHandler dataHandler;
+    private KafkaDataSubmitter<SpecificRecord> submitter;
+    private List<AvroTopic<ObservationKey, ApplicationUptime>> topics;
+    private ObservationKey key;
+
+    @Before
+    public void setUp() throws IOException {
+        proxy = new StandInRestProxy();
+
+        AppAuthState authState = new AppAuthState.Builder()
+                .projectId("p")
+                .userId("u")
+                .build();
+        key = new ObservationKey("p", "u", "s");
+        // without a server, the data handler does not start its own submitter
+        dataHandler = new TableDataHandler(RuntimeEnvironment.application, null, null,
+                100_000_000, false, authState);
+        topics = new ArrayList<>(NUM_TOPICS);
+        for (int i = 0; i < NUM_TOPICS; i++) {
+            AvroTopic<ObservationKey, ApplicationUptime> topic = new AvroTopic<>(
+                    "android_upload_pool_test_" + i,
+                    ObservationKey.getClassSchema(), ApplicationUptime.getClassSchema(),
+                    ObservationKey.class, ApplicationUptime.class);
+            dataHandler.registerTopic(topic);
+            topics.add(topic);
+        }
+
+        ServerConfig config = new ServerConfig(proxy.getUrl());
+        RestSender sender = new RestSender.Builder()
+                .server(config)
+                .schemaRetriever(new SchemaRetriever(config, 30))
+                .connectionTimeout(10, TimeUnit.SECONDS)
+                .build();
+        submitter = new KafkaDataSubmitter<>(dataHandler, sender, BATCH_SIZE, 10L);
+
+        // Uploads are driven by the test, see UploadLoadTest.
+        for (DataCache<ObservationKey, ? extends SpecificRecord> cache
+                : dataHandler.getCaches().values()) {
+            ((ExtendedDataCache<?, ?>) cache).setHighWatermark(Long.MAX_VALUE,
+                    new ExtendedDataCache.HighWatermarkListener() {
+                        @Override
+                        public void onHighWatermark(DataCache<?, ?> cache) {
+                            // uploads are not triggered by the cache
+                        }
+                    });
+        }
+
+        // retrieve the schemas of all topics before measuring anything
+        addRecords(1);
+        uploadAll();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        submitter.close();
+        dataHandler.close();
+        proxy.close();
+    }
+
+    @Test(timeout = 60_000L)
+    public void parallelUploadBenchmark() throws IOException {
+        proxy.setLatency(LATENCY_MILLIS);
+
+        submitter.setUploadParallelism(1, KafkaDataSubmitter.MAX_BYTES_IN_FLIGHT_DEFAULT);
+        addRecords(NUM_BATCHES * BATCH_SIZE);
+        long sequentialTime = uploadAll();
+
+        submitter.setUploadParallelism(4, KafkaDataSubmitter.MAX_BYTES_IN_FLIGHT_DEFAULT);
+        addRecords(NUM_BATCHES * BATCH_SIZE);
+        long parallelTime = uploadAll();
+
+        logger.info("Uploading {} topics x {} batches with {} ms latency: "
+                        + "sequential {} ms, 4 parallel {} ms",
+                NUM_TOPICS, NUM_BATCHES, LATENCY_MILLIS, sequentialTime, parallelTime);
+        assertEquals(NUM_TOPICS * (1 + 2 * NUM_BATCHES * BATCH_SIZE), proxy.getRecords());
+        assertTrue(parallelTime * 2 < sequentialTime);
+    }
+
+    @Test(timeout = 60_000L)
+    public void parallelUploadOrder() throws IOException, JSONException {
+        proxy.setLatency(10L);
+        submitter.setUploadParallelism(4, KafkaDataSubmitter.MAX_BYTES_IN_FLIGHT_DEFAULT);
+        int numRecords = NUM_BATCHES * BATCH_SIZE;
+        addRecords(numRecords);
+        uploadAll();
+
+        assertEquals(0L, proxy.getErrors());
+        for (AvroTopic<ObservationKey, ApplicationUptime> topic : topics) {
+            // the first record was sent before the test
+            List<JSONObject> values = proxy.getValues(topic.getName());
+            assertEquals(1 + numRecords, values.size());
+            for (int i = 0; i < numRecords; i++) {
+                assertEquals(i, values.get(i + 1).getDouble("uptime"), 0d);
+            }
+        }
+    }
+
+    @Test(timeout = 30_000L)
+    public void bytesInFlight() throws IOException {
+        final AtomicLong maxBytesInFlight = new AtomicLong(0L);
+        try (final UploadPool pool = new UploadPool(4, BATCH_BYTES)) {
+            List<Callable<Integer>> tasks = new ArrayList<>(NUM_TOPICS);
+            for (int i = 0; i < NUM_TOPICS; i++) {
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        for (int batch = 0; batch < NUM_BATCHES; batch++) {
+                            long reserved = pool.acquireBytes(BATCH_BYTES / 2);
+                            try {
+                                long inFlight = pool.getBytesInFlight();
+                                long currentMax = maxBytesInFlight.get();
+                                while (inFlight > currentMax
+                                        && !maxBytesInFlight.compareAndSet(currentMax, inFlight)) {
+                                    currentMax = maxBytesInFlight.get();
+                                }
+                                Thread.sleep(10L);
+                            } finally {
+                                pool.releaseBytes(reserved);
+                            }
+                        }
+                        return NUM_BATCHES;
+                    }
+                });
+            }
+            pool.invokeAll(tasks);
+            assertEquals(0L, pool.getBytesInFlight());
+        }
+        assertTrue(maxBytesInFlight.get() <= BATCH_BYTES);
+    }
+
+    @Test
+    public void acquireOversized() throws IOException {
+        try (UploadPool pool = new UploadPool(2, 100L)) {
+            long reserved = pool.acquireBytes(1000L);
+            assertEquals(100L, reserved);
+            assertEquals(100L, pool.getBytesInFlight());
+            pool.releaseBytes(reserved);
+            assertEquals(0L, pool.getBytesInFlight());
+        }
+    }
+
+    /** Add records to each topic, with their index as uptime, and flush them to the caches. */
+    private void addRecords(int numRecords) {
+        for (AvroTopic<ObservationKey, ApplicationUptime> topic : topics) {
+            for (int i = 0; i < numRecords; i++) {
+                dataHandler.addMeasurement(topic, key,
+                        new ApplicationUptime(System.currentTimeMillis() / 1000d, (double) i));
+            }
+        }
+        for (DataCache<ObservationKey, ? extends SpecificRecord> cache
+                : dataHandler.getCaches().values()) {
+            cache.flush();
+        }
+    }
+
+    /**
+     * Upload all cached records with {@link KafkaDataSubmitter#uploadCaches(Set)}.
+     * @return duration in milliseconds
+     */
+    private long uploadAll() {
+        Set<AvroTopic<ObservationKey, ? extends SpecificRecord>> toSend =
+                new HashSet<AvroTopic<ObservationKey, ? extends SpecificRecord>>(topics);
+        long startTime = System.nanoTime();
+        while (!toSend.isEmpty()) {
+            submitter.uploadCaches(toSend);
+        }
+        return (System.nanoTime() - startTime) / 1_000_000L;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.junit.Test;
+import org.radarcns.kafka.ObservationKey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class UploadSchedulerTest {
+    @Test
+    public void largestBacklog() {
+        UploadScheduler scheduler = new UploadScheduler(UploadScheduler.Policy.LARGEST_BACKLOG);
+        List<TestCandidate> candidates = Arrays.asList(
+                new TestCandidate("a", 10, 3), new TestCandidate("b", 30, 2),
+                new TestCandidate("c", 20, 1));
+        scheduler.sort(candidates);
+        assertEquals(Arrays.asList("b", "c", "a"), names(candidates));
+    }
+
+    @Test
+    public void oldestData() {
+        UploadScheduler scheduler = new UploadScheduler(UploadScheduler.Policy.OLDEST_DATA);
+        List<TestCandidate> candidates = Arrays.asList(
+                new TestCandidate("a", 10, 3), new TestCandidate("b", 30, 2),
+                new TestCandidate("c", 20, Long.MAX_VALUE), new TestCandidate("d", 20, 1));
+        scheduler.sort(candidates);
+        assertEquals(Arrays.asList("d", "b", "a", "c"), names(candidates));
+    }
+
+    @Test
+    public void weightedRoundRobin() {
+        UploadScheduler scheduler = new UploadScheduler(UploadScheduler.Policy.WEIGHTED_ROUND_ROBIN);
+        scheduler.setPriorities(Collections.singletonMap("a", 3));
+        List<TestCandidate> candidates = new ArrayList<>(Arrays.asList(
+                new TestCandidate("a", 1, 1), new TestCandidate("b", 1, 1),
+                new TestCandidate("c", 1, 1)));
+
+        // only the first topic gets uploaded each time, as with a very short connection
+        Map<String, Integer> firstCount = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            scheduler.sort(candidates);
+            String first = candidates.get(0).getTopicName();
+            Integer count = firstCount.get(first);
+            firstCount.put(first, count == null ? 1 : count + 1);
+            scheduler.didUpload(first);
+        }
+        assertEquals(30, (int) firstCount.get("a"));
+        assertEquals(10, (int) firstCount.get("b"));
+        assertEquals(10, (int) firstCount.get("c"));
+    }
+
+    @Test
+    public void recordTime() {
+        assertEquals(-1L, UploadScheduler.recordTime(new ObservationKey("p", "u", "s")));
+    }
+
+    @Test
+    public void parsePriorities() {
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("android_phone_acceleration", 3);
+        expected.put("b", 2);
+        assertEquals(expected, UploadScheduler.parsePriorities(" android_phone_acceleration:3  b:2 "));
+        assertEquals(Collections.emptyMap(), UploadScheduler.parsePriorities(""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parsePrioritiesInvalid() {
+        UploadScheduler.parsePriorities("a:3 b");
+    }
+
+    private static List<String> names(List<TestCandidate> candidates) {
+        List<String> result = new ArrayList<>(candidates.size());
+        for (TestCandidate candidate : candidates) {
+            result.add(candidate.getTopicName());
+        }
+        return result;
+    }
+
+    private static class TestCandidate implements UploadScheduler.Candidate {
+        private final String topic;
+        private final long backlog;
+        private final long oldestTime;
+
+        TestCandidate(String topic, long backlog, long oldestTime) {
+            this.topic = topic;
+            this.backlog = backlog;
+            this.oldestTime = oldestTime;
+        }
+
+        @Override
+        public String getTopicName() {
+            return topic;
+        }
+
+        @Override
+        public long getBacklog() {
+            return backlog;
+        }
+
+        @Override
+        public long getOldestTime() {
+            return oldestTime;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadThrottleTest {
+    private MockWebServer server;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        client = new OkHttpClient();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void retryAfterFromServer() throws IOException {
+        // stand-in REST proxy that sheds load
+        server.enqueue(new MockResponse()
+                .setResponseCode(UploadThrottle.HTTP_TOO_MANY_REQUESTS)
+                .setHeader("Retry-After", "2"));
+        server.enqueue(new MockResponse().setBody("{\"offsets\":[]}"));
+
+        UploadThrottle throttle = new UploadThrottle(0);
+        Request request = new Request.Builder().url(server.url("/topics/test")).build();
+        try (Response response = client.newCall(request).execute()) {
+            assertTrue(UploadThrottle.isThrottleStatus(response.code()));
+            throttle.didThrottle(UploadThrottle.parseRetryAfter(
+                    response.header("Retry-After"), System.currentTimeMillis()));
+        }
+        assertTrue(throttle.isThrottled());
+        long delay = throttle.getThrottleDelay();
+        assertTrue(delay > 1000L && delay <= 2000L);
+
+        try (Response response = client.newCall(request).execute()) {
+            assertFalse(UploadThrottle.isThrottleStatus(response.code()));
+            throttle.didSucceed();
+        }
+    }
+
+    @Test
+    public void defaultBackoff() {
+        UploadThrottle throttle = new UploadThrottle(0);
+        assertFalse(throttle.isThrottled());
+        throttle.didThrottle(-1L);
+        long delay = throttle.getThrottleDelay();
+        // 15 seconds, randomized to between half and full range
+        assertTrue(delay > 7000L && delay <= 15000L);
+    }
+
+    @Test
+    public void throttleStatus() {
+        assertEquals(429, UploadThrottle.throttleStatus(
+                new IOException("Failed to submit (HTTP status code 429): slow down")));
+        assertEquals(503, UploadThrottle.throttleStatus(
+                new IOException("Failed to submit (HTTP status code 503): ")));
+        assertEquals(-1, UploadThrottle.throttleStatus(
+                new IOException("Failed to submit (HTTP status code 500): ")));
+        assertEquals(-1, UploadThrottle.throttleStatus(new IOException("Connection reset")));
+        assertEquals(-1, UploadThrottle.throttleStatus(new IOException()));
+        // the binary sender reports the status code directly
+        assertEquals(503, UploadThrottle.throttleStatus(
+                new BinaryRestSender.HttpStatusException(503, "unavailable", -1L)));
+    }
+
+    @Test
+    public void parseRetryAfter() {
+        long now = System.currentTimeMillis();
+        assertEquals(120_000L, UploadThrottle.parseRetryAfter(" 120 ", now));
+        assertEquals(-1L, UploadThrottle.parseRetryAfter(null, now));
+        assertEquals(-1L, UploadThrottle.parseRetryAfter("soon", now));
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        long inOneMinute = (now / 1000L + 60L) * 1000L;
+        assertEquals(inOneMinute - now,
+                UploadThrottle.parseRetryAfter(format.format(new Date(inOneMinute)), now));
+        assertEquals(0L, UploadThrottle.parseRetryAfter(format.format(new Date(now - 60_000L)), now));
+    }
+
+    @Test
+    public void tokenBucket() {
+        UploadThrottle throttle = new UploadThrottle(60);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(throttle.tryAcquire("a"));
+        }
+        assertFalse(throttle.tryAcquire("a"));
+        // other topics have their own bucket
+        assertTrue(throttle.tryAcquire("b"));
+
+        UploadThrottle unlimited = new UploadThrottle(0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(unlimited.tryAcquire("a"));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.kafka;
+
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class UploadWindowTest {
+    private TestConditions conditions;
+    private UploadWindow window;
+
+    @Before
+    public void setUp() {
+        conditions = new TestConditions();
+        window = new UploadWindow(conditions);
+    }
+
+    @Test
+    public void withoutConstraints() {
+        assertFalse(window.isWindowed());
+        assertTrue(window.isOpen());
+    }
+
+    @Test
+    public void constraints() {
+        window.setConstraints(EnumSet.of(
+                UploadWindow.Constraint.UNMETERED, UploadWindow.Constraint.CHARGING), 3600L);
+        assertTrue(window.isWindowed());
+        assertFalse(window.isOpen());
+
+        conditions.isUnmetered = true;
+        assertFalse(window.isOpen());
+
+        conditions.isCharging = true;
+        assertTrue(window.isOpen());
+
+        // stays open for the length of a window
+        conditions.isCharging = false;
+        SystemClock.sleep(UploadWindow.WINDOW_LENGTH_MILLIS / 2);
+        assertTrue(window.isOpen());
+        SystemClock.sleep(UploadWindow.WINDOW_LENGTH_MILLIS);
+        assertFalse(window.isOpen());
+    }
+
+    @Test
+    public void maxDelay() {
+        window.setConstraints(EnumSet.of(UploadWindow.Constraint.IDLE), 600L);
+        assertFalse(window.isOpen());
+        SystemClock.sleep(599_000L);
+        assertFalse(window.isOpen());
+        SystemClock.sleep(1_000L);
+        assertTrue(window.isOpen());
+
+        SystemClock.sleep(UploadWindow.WINDOW_LENGTH_MILLIS);
+        assertFalse(window.isOpen());
+    }
+
+    @Test
+    public void parseAll() {
+        assertEquals(EnumSet.of(UploadWindow.Constraint.UNMETERED, UploadWindow.Constraint.IDLE),
+                UploadWindow.Constraint.parseAll("unmetered, IDLE"));
+        assertEquals(Collections.emptySet(), UploadWindow.Constraint.parseAll(""));
+        assertEquals(Collections.emptySet(), UploadWindow.Constraint.parseAll(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseUnknown() {
+        UploadWindow.Constraint.parseAll("unmetered,cheap");
+    }
+
+    private static class TestConditions implements UploadWindow.Conditions {
+        private boolean isUnmetered = false;
+        private boolean isCharging = false;
+        private boolean isIdle = false;
+
+        @Override
+        public boolean isUnmetered() {
+            return isUnmetered;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return isCharging;
+        }
+
+        @Override
+        public boolean isIdle() {
+            return isIdle;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarcns.android.util;
+
+import org.junit.Test;
+import org.radarcns.config.ServerConfig;
+import org.radarcns.producer.rest.RestClient;
+import org.radarcns.producer.rest.RestSender;
+import org.radarcns.producer.rest.SchemaRetriever;
+
+import java.io.IOException;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpConnectionPoolTest {
+    @Test
+    public void reuseConnectionAcrossClients() throws IOException, InterruptedException {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("a"));
+            server.enqueue(new MockResponse().setBody("b"));
+            server.start();
+            ServerConfig config = new ServerConfig(server.url("/").url());
+
+            HttpConnectionPool.retain();
+            try {
+                // like a data sender that is recreated when the network state changes
+                doRequest(config);
+                doRequest(config);
+            } finally {
+                HttpConnectionPool.release();
+            }
+
+            assertEquals(0, server.takeRequest().getSequenceNumber());
+            // second request on the same connection
+            assertEquals(1, server.takeRequest().getSequenceNumber());
+        }
+    }
+
+    @Test
+    public void reuseConnectionAcrossSenderRestart() throws IOException, InterruptedException {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse());
+            server.enqueue(new MockResponse());
+            server.start();
+            ServerConfig config = new ServerConfig(server.url("/").url());
+
+            HttpConnectionPool.retain();
+            try {
+                // like TableDataHandler.start(), stop() and start() again
+                checkConnection(config);
+                checkConnection(config);
+            } finally {
+                HttpConnectionPool.release();
+            }
+
+            assertEquals(0, server.takeRequest().getSequenceNumber());
+            // the restarted sender uses the same connection
+            assertEquals(1, server.takeRequest().getSequenceNumber());
+        }
+    }
+
+    private static void checkConnection(ServerConfig config) throws IOException {
+        SchemaRetriever retriever = new SchemaRetriever(config, 10L, HttpConnectionPool.get());
+        RestSender sender = new RestSender.Builder()
+                .server(config)
+                .schemaRetriever(retriever)
+                .connectionPool(HttpConnectionPool.get())
+                .build();
+        try {
+            assertTrue(sender.resetConnection());
+        } finally {
+            sender.close();
+            retriever.close();
+        }
+    }
+
+    private static void doRequest(ServerConfig config) throws IOException {
+        try (RestClient client = new RestClient(config, 10L, HttpConnectionPool.get())) {
+            Request request = client.requestBuilder("test").build();
+            try (Response response = client.request(request)) {
+                RestClient.responseBody(response);
+            }
+        }
+    }
+}
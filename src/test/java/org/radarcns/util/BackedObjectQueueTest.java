@@ -19,23 +19,37 @@ package org.radarcns.util;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.radarcns.android.data.KeyDictionary;
 import org.radarcns.android.data.TapeAvroConverter;
 import org.radarcns.data.Record;
 import org.radarcns.kafka.ObservationKey;
+import org.radarcns.passive.phone.PhoneAcceleration;
 import org.radarcns.topic.AvroTopic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
  * Created by joris on 27/07/2017.
  */
 public class BackedObjectQueueTest {
+    private static final Logger logger = LoggerFactory.getLogger(BackedObjectQueueTest.class);
 
     @Rule
     public TemporaryFolder folder = new TemporaryFolder();
@@ -89,6 +103,153 @@ public class BackedObjectQueueTest {
         queue.peek();
     }
 
+    @Test
+    public void peekSizeLimit() throws IOException {
+        File file = folder.newFile();
+        assertTrue(file.delete());
+        AvroTopic<ObservationKey, ObservationKey> topic = new AvroTopic<>("test",
+                ObservationKey.getClassSchema(), ObservationKey.getClassSchema(),
+                ObservationKey.class, ObservationKey.class);
+
+        try (BackedObjectQueue<Record<ObservationKey, ObservationKey>> queue = new BackedObjectQueue<>(
+                QueueFile.newMapped(file, 10000), new TapeAvroConverter<>(topic))) {
+            Record<ObservationKey, ObservationKey> record = new Record<>(
+                    new ObservationKey("test", "a", "b"),
+                    new ObservationKey("test", "c", "d"));
+
+            queue.addAll(Arrays.asList(record, record, record));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new TapeAvroConverter<>(topic).serialize(record, out);
+            long elementSize = out.size();
+
+            assertEquals(3, queue.peek(10, Long.MAX_VALUE).size());
+            assertEquals(2, queue.peek(10, 2 * elementSize).size());
+            assertEquals(2, queue.peek(10, 3 * elementSize - 1).size());
+            assertEquals(2, queue.peek(2, 3 * elementSize).size());
+            // at least one element is returned
+            assertEquals(1, queue.peek(10, 1).size());
+        }
+    }
+
+    @Test
+    public void peekParallel() throws IOException {
+        File file = folder.newFile();
+        assertTrue(file.delete());
+        AvroTopic<ObservationKey, PhoneAcceleration> topic = new AvroTopic<>("test",
+                ObservationKey.getClassSchema(), PhoneAcceleration.getClassSchema(),
+                ObservationKey.class, PhoneAcceleration.class);
+        int numRecords = 3 * BackedObjectQueue.MIN_CHUNK_SIZE + 10;
+        List<Record<ObservationKey, PhoneAcceleration>> records = new ArrayList<>(numRecords);
+        ObservationKey key = new ObservationKey("test", "a", "b");
+        for (int i = 0; i < numRecords; i++) {
+            records.add(new Record<>(key, new PhoneAcceleration(i, i, 0f, 0f, 0f)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (BackedObjectQueue<Record<ObservationKey, PhoneAcceleration>> queue =
+                     new BackedObjectQueue<>(QueueFile.newMapped(file, 450000000),
+                             new TapeAvroConverter<>(topic))) {
+            queue.addAll(records);
+
+            List<List<Record<ObservationKey, PhoneAcceleration>>> chunks = new ArrayList<>();
+            List<BackedObjectQueue.ElementReader> readers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final List<Record<ObservationKey, PhoneAcceleration>> chunk = new ArrayList<>();
+                final TapeAvroConverter<ObservationKey, PhoneAcceleration> converter =
+                        new TapeAvroConverter<>(topic);
+                chunks.add(chunk);
+                readers.add(new BackedObjectQueue.ElementReader() {
+                    @Override
+                    public boolean read(InputStream in) throws IOException {
+                        chunk.add(converter.deserialize(in));
+                        return true;
+                    }
+                });
+            }
+            assertEquals(numRecords - 5, queue.peek(numRecords - 5, Long.MAX_VALUE,
+                    readers, executor));
+
+            List<Record<ObservationKey, PhoneAcceleration>> result = new ArrayList<>();
+            for (List<Record<ObservationKey, PhoneAcceleration>> chunk : chunks) {
+                result.addAll(chunk);
+            }
+            // three chunks of at least the minimum chunk size
+            assertTrue(chunks.get(3).isEmpty());
+            assertEquals(numRecords - 5, result.size());
+            for (int i = 0; i < result.size(); i++) {
+                assertEquals(records.get(i).value, result.get(i).value);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Compares the size and read speed of the queue file versions. */
+    @Test
+    public void compactFormat() throws IOException {
+        AvroTopic<ObservationKey, PhoneAcceleration> topic = new AvroTopic<>("test",
+                ObservationKey.getClassSchema(), PhoneAcceleration.getClassSchema(),
+                ObservationKey.class, PhoneAcceleration.class);
+        int numRecords = 10_000;
+        List<Record<ObservationKey, PhoneAcceleration>> records = new ArrayList<>(numRecords);
+        ObservationKey key = new ObservationKey("test", "a", "b");
+        Random random = new Random();
+        double time = System.currentTimeMillis() / 1000d;
+        for (int i = 0; i < numRecords; i++) {
+            records.add(new Record<>(key, new PhoneAcceleration(time + i * 0.02d,
+                    time + i * 0.02d + 0.001d, random.nextFloat(), random.nextFloat(),
+                    random.nextFloat())));
+        }
+
+        long[] legacy = readBenchmark(topic, records, QueueFileHeader.VERSION_1);
+        long[] compact = readBenchmark(topic, records, QueueFileHeader.VERSION_2);
+        long[] dictionary = readBenchmark(topic, records, QueueFileHeader.VERSION_3);
+
+        logger.debug(String.format(Locale.US, "Version 1: %.1f bytes/record, %.2f us/record read",
+                legacy[0] / (double) numRecords, legacy[1] / 1000d / numRecords));
+        logger.debug(String.format(Locale.US, "Version 2: %.1f bytes/record, %.2f us/record read",
+                compact[0] / (double) numRecords, compact[1] / 1000d / numRecords));
+        logger.debug(String.format(Locale.US, "Version 3: %.1f bytes/record, %.2f us/record read",
+                dictionary[0] / (double) numRecords, dictionary[1] / 1000d / numRecords));
+
+        assertEquals(legacy[0] - 8L * numRecords, compact[0]);
+        assertTrue(dictionary[0] < compact[0]);
+    }
+
+    /** Number of bytes used by given records and nanoseconds to read them. */
+    private long[] readBenchmark(AvroTopic<ObservationKey, PhoneAcceleration> topic,
+            List<Record<ObservationKey, PhoneAcceleration>> records, int version)
+            throws IOException {
+        File file = folder.newFile();
+        assertTrue(file.delete());
+        QueueFile queueFile = QueueFile.newMapped(file, 450000000);
+        queueFile.setVersion(version);
+        TapeAvroConverter<ObservationKey, PhoneAcceleration> converter =
+                new TapeAvroConverter<>(topic);
+        converter.setLegacyHeader(version == QueueFileHeader.VERSION_1);
+
+        try (KeyDictionary<ObservationKey> keyDictionary = new KeyDictionary<>(
+                    new File(file.getPath() + ".keys"), topic.getKeySchema());
+                BackedObjectQueue<Record<ObservationKey, PhoneAcceleration>> queue =
+                     new BackedObjectQueue<>(queueFile, converter)) {
+            if (version == QueueFileHeader.VERSION_3) {
+                converter.setKeyDictionary(keyDictionary);
+            }
+            queue.addAll(records);
+            long bytes = queueFile.usedBytes() - QueueFileHeader.HEADER_LENGTH;
+
+            // warm up
+            for (int i = 0; i < 3; i++) {
+                assertEquals(records.get(i).value, queue.peek(records.size()).get(i).value);
+            }
+            long startTime = System.nanoTime();
+            for (int i = 0; i < 10; i++) {
+                queue.peek(records.size());
+            }
+            return new long[] {bytes, (System.nanoTime() - startTime) / 10};
+        }
+    }
+
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
     public static String bytesToHex(byte[] bytes, int offset, int count) {
         char[] hexChars = new char[count * 2];
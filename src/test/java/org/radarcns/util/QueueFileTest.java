@@ -38,6 +38,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class QueueFileTest {
     private static final int MAX_SIZE = 8 * MappedQueueFileStorage.MINIMUM_LENGTH;
@@ -97,6 +98,125 @@ public class QueueFileTest {
         return QueueFile.newMapped(file, MAX_SIZE);
     }
 
+    @Test
+    public void version() throws Exception {
+        File file = folder.newFile();
+        assertTrue(file.delete());
+        QueueFile queue = QueueFile.newMapped(file, MAX_SIZE);
+        assertEquals(QueueFileHeader.VERSION, queue.getVersion());
+        queue.setVersion(QueueFileHeader.VERSION_1);
+        try (OutputStream out = queue.elementOutputStream()) {
+            out.write(1);
+        }
+        queue.close();
+
+        queue = QueueFile.newMapped(file, MAX_SIZE);
+        assertEquals(QueueFileHeader.VERSION_1, queue.getVersion());
+        assertEquals(1, queue.size());
+        try {
+            queue.setVersion(QueueFileHeader.VERSION_2);
+            fail("Cannot change the version of a non-empty queue file");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        queue.remove(1);
+        queue.setVersion(QueueFileHeader.VERSION_2);
+        queue.close();
+
+        queue = QueueFile.newMapped(file, MAX_SIZE);
+        assertEquals(QueueFileHeader.VERSION_2, queue.getVersion());
+        queue.close();
+    }
+
+    @Test
+    public void firstElementSkip() throws Exception {
+        File file = folder.newFile();
+        assertTrue(file.delete());
+        QueueFile queue = QueueFile.newMapped(file, MAX_SIZE);
+        try (QueueFileOutputStream out = queue.elementOutputStream()) {
+            out.write(1);
+            out.next();
+            out.write(2);
+            out.next();
+            out.write(3);
+        }
+        try {
+            queue.remove(1, 5);
+            fail("Only version 4 queue files can skip records");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        queue.remove(3);
+        queue.setVersion(QueueFileHeader.VERSION_4);
+        try (QueueFileOutputStream out = queue.elementOutputStream()) {
+            out.write(1);
+            out.next();
+            out.write(2);
+            out.next();
+            out.write(3);
+        }
+        queue.remove(1, 5);
+        queue.close();
+
+        queue = QueueFile.newMapped(file, MAX_SIZE);
+        assertEquals(QueueFileHeader.VERSION_4, queue.getVersion());
+        assertEquals(2, queue.size());
+        assertEquals(5, queue.getFirstElementSkip());
+        assertEquals(2, queue.peek().read());
+        queue.remove(1);
+        assertEquals(0, queue.getFirstElementSkip());
+        queue.close();
+    }
+
+    @Test
+    public void framedHeaderLength() throws Exception {
+        File file = folder.newFile();
+        assertTrue(file.delete());
+        QueueFile queue = QueueFile.newMapped(file, MAX_SIZE);
+        assertEquals(QueueFileHeader.HEADER_LENGTH, queue.usedBytes());
+        queue.setVersion(QueueFileHeader.VERSION_4);
+        assertEquals(QueueFileHeader.FRAMED_HEADER_LENGTH, queue.usedBytes());
+
+        // fill the minimum file length so that the last element wraps around the end
+        int elementLength = MappedQueueFileStorage.MINIMUM_LENGTH / 4;
+        byte[] buffer = new byte[elementLength];
+        try (QueueFileOutputStream out = queue.elementOutputStream()) {
+            for (int i = 0; i < 3; i++) {
+                buffer[0] = (byte) i;
+                out.write(buffer);
+                out.next();
+            }
+        }
+        queue.remove(2, 70_000);
+        byte[] wrapped = new byte[elementLength + 100];
+        for (int i = 0; i < wrapped.length; i++) {
+            wrapped[i] = (byte) i;
+        }
+        try (QueueFileOutputStream out = queue.elementOutputStream()) {
+            out.write(wrapped);
+        }
+        assertEquals(MappedQueueFileStorage.MINIMUM_LENGTH, queue.fileSize());
+        queue.close();
+
+        queue = QueueFile.newMapped(file, MAX_SIZE);
+        assertEquals(QueueFileHeader.VERSION_4, queue.getVersion());
+        assertEquals(70_000, queue.getFirstElementSkip());
+        assertEquals(2, queue.size());
+        Iterator<InputStream> iterator = queue.iterator();
+        assertEquals(2, iterator.next().read());
+        byte[] actual = new byte[wrapped.length];
+        try (InputStream in = iterator.next()) {
+            assertEquals(wrapped.length, in.read(actual));
+        }
+        assertArrayEquals(wrapped, actual);
+
+        queue.clear();
+        queue.setVersion(QueueFileHeader.VERSION);
+        assertEquals(0, queue.getFirstElementSkip());
+        assertEquals(QueueFileHeader.HEADER_LENGTH, queue.usedBytes());
+        queue.close();
+    }
+
     @Test
     public void isEmpty() throws Exception {
         QueueFile queueFile = createQueue();